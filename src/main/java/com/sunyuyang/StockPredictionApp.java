@@ -4,11 +4,19 @@ import com.sunyuyang.dao.DatabaseConfig;
 import com.sunyuyang.dao.ZhituStockDataDao;
 import com.sunyuyang.entity.ModelConfig;
 import com.sunyuyang.entity.ZhituStockKLine;
+import com.sunyuyang.feature.CrossSectionalFeatureEngine;
+import com.sunyuyang.feature.FeatureEngineeringService;
+import com.sunyuyang.feature.FeatureMatrixCache;
+import com.sunyuyang.feature.MultiTimeframeFeatureFusion;
 import com.sunyuyang.model.LSTMModel;
+import com.sunyuyang.model.ModelBundle;
 import com.sunyuyang.service.*;
+import com.sunyuyang.util.TradeTimeUtil;
+import org.nd4j.linalg.api.ndarray.INDArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.List;
@@ -20,6 +28,11 @@ public class StockPredictionApp {
     private static final String STOCK_CODE = "300624.SZ";
     private static final String MODEL_NAME = "stock_predictor_v1";
     private static final boolean RETRAIN_MODEL = true;
+    // RETRAIN_MODEL为false时，为true表示在已保存的模型上用训练截止之后的新K线增量微调，而不是直接加载
+    private static final boolean FINE_TUNE_MODEL = false;
+    // 为true时在库中全部股票上训练一个共用模型，预测任意股票都使用该模型
+    private static final boolean UNIVERSE_MODEL = false;
+    private static final String UNIVERSE_MODEL_NAME = "universe_predictor_v1";
 
     public static void main(String[] args) {
         logger.info("Starting Stock Prediction Application...");
@@ -28,8 +41,16 @@ public class StockPredictionApp {
             // 1. 初始化组件
             ModelConfig modelConfig = ModelConfig.getDefaultConfig();
             ZhituStockDataDao stockDataDao = new ZhituStockDataDao();
-            DataPreprocessingService preprocessingService = new DataPreprocessingService();
+            DataPreprocessingService preprocessingService = new DataPreprocessingService(modelConfig.getDataType());
+            preprocessingService.setFeatureNormalizerMode(modelConfig.getFeatureNormalizerMode());
+            FeatureMatrixCache featureCache = new FeatureMatrixCache(new File("cache/features"),
+                    preprocessingService.getFeatureEngineeringService(), modelConfig.getStorageDataType());
+            preprocessingService.setFeatureCache(featureCache);
+            MultiTimeframeFeatureFusion fusion = new MultiTimeframeFeatureFusion(
+                    preprocessingService.getFeatureEngineeringService(), featureCache);
+            CrossSectionalFeatureEngine crossSectionalEngine = new CrossSectionalFeatureEngine(modelConfig.getDataType());
             ModelTrainingService trainingService = new ModelTrainingService(modelConfig);
+            DatasetSnapshotCache snapshotCache = new DatasetSnapshotCache(new File("cache/datasets"));
 
             // 注意：这里先不初始化PredictionService，等模型训练/加载后再创建
             PredictionService predictionService = null;
@@ -41,44 +62,62 @@ public class StockPredictionApp {
                 return;
             }
 
-            // 3. 获取数据
+            // 3. 检查数据（只统计数量和首尾时间，K线在需要重新预处理时才拉取）
             LocalDateTime endDate = LocalDateTime.now();
             LocalDateTime startDate = endDate.minusYears(3);
 
-            logger.info("Fetching data from {} to {}", startDate, endDate);
-            List<ZhituStockKLine> klineData = stockDataDao.getKLineData(STOCK_CODE, startDate, endDate);
+            ZhituStockDataDao.BarStats barStats = stockDataDao.getBarStats(STOCK_CODE, modelConfig.getTimeLevel(),
+                    startDate, endDate);
+            // 横截面特征依赖全市场的K线，全市场数据变化时快照也要失效
+            ZhituStockDataDao.BarStats universeStats = modelConfig.isCrossSectionalFeatures()
+                    ? stockDataDao.getBarStats(null, modelConfig.getTimeLevel(), startDate, endDate) : null;
 
-            if (klineData.isEmpty()) {
+            if (barStats.getCount() == 0) {
                 logger.error("No data found for stock: {}", STOCK_CODE);
                 System.err.println("没有找到股票数据，请检查数据库");
                 return;
             }
 
-            logger.info("Loaded {} records for training", klineData.size());
+            logger.info("Found {} records for training ({} ~ {})",
+                    barStats.getCount(), barStats.getFirstTradeTime(), barStats.getLastTradeTime());
 
             // 4. 模型训练或加载
             LSTMModel lstmModel;
 
-            if (RETRAIN_MODEL) {
+            if (UNIVERSE_MODEL) {
+                lstmModel = RETRAIN_MODEL
+                        ? trainUniverseModel(stockDataDao, preprocessingService, trainingService, modelConfig,
+                        startDate, endDate)
+                        : LSTMModel.loadModel(UNIVERSE_MODEL_NAME);
+
+            } else if (RETRAIN_MODEL) {
                 logger.info("Starting model training...");
 
-                // 4.1 数据预处理
-                DataPreprocessingService.ProcessedData processedData =
-                        preprocessingService.preprocessData(klineData,
-                                modelConfig.getTimeSteps(), modelConfig.getPredictSteps());
+                // 4.1 数据预处理，输入未变化时直接读取上次的快照
+                String fingerprint = DatasetSnapshotCache.fingerprint(STOCK_CODE, modelConfig.getTimeLevel(), barStats,
+                        universeStats,
+                        modelConfig.getCoarseTimeLevels(), modelConfig.getTimeSteps(), modelConfig.getPredictSteps(),
+                        modelConfig.getFeatureNormalizerMode(), modelConfig.getDataType(),
+                        modelConfig.getStorageDataType());
+                DataPreprocessingService.ProcessedData processedData = snapshotCache.load(fingerprint);
+
+                if (processedData == null) {
+                    logger.info("Fetching data from {} to {}", startDate, endDate);
+                    List<ZhituStockKLine> klineData = stockDataDao.getKLineData(STOCK_CODE,
+                            modelConfig.getTimeLevel(), startDate, endDate);
+                    logger.info("Loaded {} records for training", klineData.size());
+
+                    // 配置了粗周期或横截面特征时，对齐到训练K线上作为额外特征列
+                    processedData = preprocessingService.preprocessData(klineData,
+                            modelConfig.getTimeSteps(), modelConfig.getPredictSteps(),
+                            extraFeatures(fusion, crossSectionalEngine, stockDataDao, klineData, modelConfig));
+                    snapshotCache.save(fingerprint, processedData);
+                }
 
                 // 4.2 训练模型
+                // 4.3 标准化器和模型写入同一个模型包
                 ModelTrainingService.TrainingResult trainingResult =
-                        trainingService.trainModel(
-                                processedData.getFeatures(),
-                                processedData.getLabels(),
-                                MODEL_NAME);
-
-                // 4.3 保存标准化器
-                preprocessingService.saveNormalizers(
-                        processedData.getFeatureNormalizer(),
-                        processedData.getLabelNormalizer(),
-                        MODEL_NAME);
+                        trainingService.trainModel(processedData, MODEL_NAME, barStats.getLastTradeTime());
 
                 // 4.4 评估结果
                 if (trainingResult.getEvaluation() != null) {
@@ -86,11 +125,14 @@ public class StockPredictionApp {
                 }
 
                 // 4.5 获取训练好的模型
-                lstmModel = new LSTMModel(modelConfig);
-                lstmModel.model = trainingResult.getModel();
+                lstmModel = LSTMModel.loadModel(MODEL_NAME);
 
                 logger.info("Model training completed successfully");
 
+            } else if (FINE_TUNE_MODEL) {
+                lstmModel = fineTuneModel(stockDataDao, preprocessingService, fusion, crossSectionalEngine,
+                        trainingService, modelConfig, endDate);
+
             } else {
                 logger.info("Loading existing model...");
                 lstmModel = LSTMModel.loadModel(MODEL_NAME);
@@ -110,7 +152,8 @@ public class StockPredictionApp {
             System.out.println(lstmModel.getModelSummary());
 
             // 6. 初始化预测服务
-            predictionService = new PredictionService(stockDataDao, preprocessingService);
+            predictionService = new PredictionService(stockDataDao, preprocessingService, fusion,
+                    crossSectionalEngine);
 
             // 7. 进行预测
             logger.info("Making predictions for the next 5 trading days...");
@@ -164,4 +207,95 @@ public class StockPredictionApp {
             DatabaseConfig.closeDataSource();
         }
     }
+
+    /**
+     * 在已保存的模型上增量微调
+     * 只读取模型训练截止之后的新K线，以及截止之前最近的 fineTuneReplayBars 根K线用于回放和构造窗口；
+     * 训练截止前最后 predictSteps 根K线当时还没有标签，这些窗口也算作新窗口。
+     */
+    private static LSTMModel fineTuneModel(ZhituStockDataDao stockDataDao,
+                                           DataPreprocessingService preprocessingService,
+                                           MultiTimeframeFeatureFusion fusion,
+                                           CrossSectionalFeatureEngine crossSectionalEngine,
+                                           ModelTrainingService trainingService, ModelConfig modelConfig,
+                                           LocalDateTime endDate) throws Exception {
+        ModelBundle bundle = ModelBundle.loadWithoutNetwork(new File("models/" + MODEL_NAME, ModelBundle.FILE_NAME));
+        String cutoffText = bundle.getMetadata().get(ModelTrainingService.DATA_CUTOFF_KEY);
+        if (cutoffText == null) {
+            cutoffText = bundle.getMetadata().get("trainedAt");
+            logger.warn("模型包中没有数据截止时间，使用训练时间代替: {}", cutoffText);
+        }
+        LocalDateTime cutoff = TradeTimeUtil.parse(cutoffText);
+        // K线周期和额外特征都沿用模型训练时的配置
+        String timeLevel = bundle.getConfig().getTimeLevel();
+
+        int timeSteps = modelConfig.getTimeSteps();
+        int predictSteps = modelConfig.getPredictSteps();
+        int contextBars = Math.max(modelConfig.getFineTuneReplayBars(),
+                timeSteps + predictSteps + FeatureEngineeringService.WARM_UP_BARS);
+        List<ZhituStockKLine> klineData = stockDataDao.getKLineDataBefore(STOCK_CODE, timeLevel, cutoff,
+                contextBars);
+        int firstNewRow = klineData.size();
+        klineData.addAll(stockDataDao.getKLineData(STOCK_CODE, timeLevel, cutoff.plusSeconds(1), endDate));
+        logger.info("Fine-tuning {} on {} new bars after {} ({} earlier bars for replay)",
+                MODEL_NAME, klineData.size() - firstNewRow, cutoffText, firstNewRow);
+
+        if (klineData.size() > firstNewRow && klineData.size() > timeSteps + predictSteps) {
+            // 特征列与模型一致
+            DataPreprocessingService.ProcessedData processedData = preprocessingService.preprocessData(klineData,
+                    timeSteps, predictSteps,
+                    extraFeatures(fusion, crossSectionalEngine, stockDataDao, klineData, bundle.getConfig()),
+                    bundle);
+            // 第w个窗口的标签取第 w+timeSteps-1 行，该行之后 predictSteps 根K线中有新K线时就是新样本
+            int firstNewWindow = firstNewRow - predictSteps - timeSteps + 1;
+            trainingService.fineTuneModel(processedData, firstNewWindow, MODEL_NAME,
+                    klineData.get(klineData.size() - 1).getTradeTime());
+        } else {
+            logger.info("No new bars since {}, keeping the current model", cutoffText);
+        }
+        return LSTMModel.loadModel(MODEL_NAME);
+    }
+
+    /**
+     * 按配置构造额外特征列：先是融合的粗周期特征，再是横截面特征，都没有配置时返回null
+     * 列的顺序与 PredictionService 构造预测输入时一致
+     */
+    private static INDArray extraFeatures(MultiTimeframeFeatureFusion fusion,
+                                          CrossSectionalFeatureEngine crossSectionalEngine,
+                                          ZhituStockDataDao stockDataDao, List<ZhituStockKLine> klineData,
+                                          ModelConfig config) {
+        String[] timeLevels = MultiTimeframeFeatureFusion.parseTimeLevels(config.getCoarseTimeLevels());
+        return DataPreprocessingService.joinExtraFeatures(
+                timeLevels.length > 0 ? fusion.fuse(stockDataDao, klineData, timeLevels) : null,
+                config.isCrossSectionalFeatures() ? crossSectionalEngine.compute(stockDataDao, klineData) : null);
+    }
+
+    /**
+     * 在全市场股票上训练共用模型
+     * K线按股票分块流式读取并写成磁盘分片，每只股票单独拟合特征标准化器；
+     * 训练时多只股票的窗口交错混合，每只股票每轮的窗口数有上限。
+     */
+    private static LSTMModel trainUniverseModel(ZhituStockDataDao stockDataDao,
+                                                DataPreprocessingService preprocessingService,
+                                                ModelTrainingService trainingService, ModelConfig modelConfig,
+                                                LocalDateTime startDate, LocalDateTime endDate) throws Exception {
+        List<String> stockCodes = stockDataDao.getStockCodes(modelConfig.getTimeLevel(), startDate, endDate,
+                2L * modelConfig.getTimeSteps() + modelConfig.getPredictSteps());
+        logger.info("Training universe model on {} symbols", stockCodes.size());
+
+        ChunkedPreprocessingService chunkedPreprocessing =
+                new ChunkedPreprocessingService(preprocessingService.getFeatureEngineeringService());
+        chunkedPreprocessing.setPerSymbolNormalization(true);
+        ShardedDataset dataset = chunkedPreprocessing.build(stockDataDao, stockCodes, modelConfig.getTimeLevel(),
+                startDate, endDate, modelConfig.getTimeSteps(), modelConfig.getPredictSteps(),
+                modelConfig.getFeatureNormalizerMode(),
+                new File("cache/universe/" + UNIVERSE_MODEL_NAME));
+
+        ModelTrainingService.TrainingResult trainingResult =
+                trainingService.trainUniverseModel(dataset, UNIVERSE_MODEL_NAME);
+        if (trainingResult.getEvaluation() != null) {
+            trainingResult.getEvaluation().printMetrics();
+        }
+        return LSTMModel.loadModel(UNIVERSE_MODEL_NAME);
+    }
 }
\ No newline at end of file
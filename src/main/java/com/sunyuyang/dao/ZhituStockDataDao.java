@@ -8,7 +8,11 @@ import javax.sql.DataSource;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 public class ZhituStockDataDao {
     private static final Logger logger = LoggerFactory.getLogger(ZhituStockDataDao.class);
@@ -26,10 +30,65 @@ public class ZhituStockDataDao {
      * 获取指定股票和时间范围的K线数据
      */
     public List<ZhituStockKLine> getKLineData(String stockCode, LocalDateTime startDate, LocalDateTime endDate) {
+        return getKLineData(stockCode, null, startDate, endDate);
+    }
+
+    /**
+     * 获取指定周期、指定时间（含）之前最近的 limit 根K线，按时间升序返回
+     *
+     * @param timeLevel K线周期，为null时不过滤周期
+     */
+    public List<ZhituStockKLine> getKLineDataBefore(String stockCode, String timeLevel, LocalDateTime endDate,
+                                                    int limit) {
         String sql = "SELECT trade_time, open_price, high_price, low_price, close_price, " +
                 "volume, amount, prev_close, is_suspended,time_level " +
                 "FROM zhitu_stock_k_line " +
-                "WHERE stock_code = ? AND trade_time BETWEEN ? AND ? " +
+                "WHERE stock_code = ? " + (timeLevel != null ? "AND time_level = ? " : "") +
+                "AND trade_time <= ? " +
+                "ORDER BY trade_time DESC LIMIT ?";
+
+        List<ZhituStockKLine> result = new ArrayList<>();
+
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+
+            int index = 1;
+            ps.setString(index++, stockCode);
+            if (timeLevel != null) {
+                ps.setString(index++, timeLevel);
+            }
+            ps.setTimestamp(index++, Timestamp.valueOf(endDate));
+            ps.setInt(index, limit);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    result.add(mapKLine(rs, stockCode));
+                }
+            }
+            Collections.reverse(result);
+
+            logger.info("Fetched {} {} records for stock {} up to {}", result.size(), timeLevel, stockCode, endDate);
+
+        } catch (SQLException e) {
+            logger.error("Failed to fetch K-line data for stock {}", stockCode, e);
+            throw new RuntimeException("Failed to fetch K-line data", e);
+        }
+
+        return result;
+    }
+
+    /**
+     * 获取指定股票、K线周期和时间范围的K线数据
+     *
+     * @param timeLevel K线周期，为null时不过滤周期
+     */
+    public List<ZhituStockKLine> getKLineData(String stockCode, String timeLevel,
+                                              LocalDateTime startDate, LocalDateTime endDate) {
+        String sql = "SELECT trade_time, open_price, high_price, low_price, close_price, " +
+                "volume, amount, prev_close, is_suspended,time_level " +
+                "FROM zhitu_stock_k_line " +
+                "WHERE stock_code = ? " + (timeLevel != null ? "AND time_level = ? " : "") +
+                "AND trade_time BETWEEN ? AND ? " +
                 "ORDER BY trade_time ASC";
 
         List<ZhituStockKLine> result = new ArrayList<>();
@@ -37,30 +96,22 @@ public class ZhituStockDataDao {
         try (Connection conn = dataSource.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
 
-            ps.setString(1, stockCode);
-            ps.setTimestamp(2, Timestamp.valueOf(startDate));
-            ps.setTimestamp(3, Timestamp.valueOf(endDate));
+            int index = 1;
+            ps.setString(index++, stockCode);
+            if (timeLevel != null) {
+                ps.setString(index++, timeLevel);
+            }
+            ps.setTimestamp(index++, Timestamp.valueOf(startDate));
+            ps.setTimestamp(index, Timestamp.valueOf(endDate));
 
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    ZhituStockKLine kline = new ZhituStockKLine();
-                    kline.setStockCode(stockCode);
-                    kline.setTradeTime(rs.getString("trade_time"));
-                    kline.setOpen(rs.getDouble("open_price"));
-                    kline.setHigh(rs.getDouble("high_price"));
-                    kline.setLow(rs.getDouble("low_price"));
-                    kline.setClose(rs.getDouble("close_price"));
-                    kline.setVolume(rs.getDouble("volume"));
-                    kline.setAmount(rs.getDouble("amount"));
-                    kline.setPrevClose(rs.getDouble("prev_close"));
-                    kline.setIsSuspended(rs.getString("is_suspended"));
-                    kline.setTimeLevel(rs.getString("time_level"));
-                    result.add(kline);
+                    result.add(mapKLine(rs, stockCode));
                 }
             }
 
-            logger.info("Fetched {} records for stock {} from {} to {}",
-                    result.size(), stockCode, startDate, endDate);
+            logger.info("Fetched {} {} records for stock {} from {} to {}",
+                    result.size(), timeLevel, stockCode, startDate, endDate);
 
         } catch (SQLException e) {
             logger.error("Failed to fetch K-line data for stock {}", stockCode, e);
@@ -70,6 +121,210 @@ public class ZhituStockDataDao {
         return result;
     }
 
+    /**
+     * 流式读取指定股票、K线周期和时间范围的K线数据，每凑满 chunkSize 根交给 chunkConsumer 处理
+     * 结果集逐行从服务端拉取，任意时刻内存中最多只有一个块，适合多年的分钟级数据
+     *
+     * @param timeLevel K线周期，为null时不过滤周期
+     * @return 读取的K线总数
+     */
+    public long streamKLineData(String stockCode, String timeLevel, LocalDateTime startDate, LocalDateTime endDate,
+                                int chunkSize, Consumer<List<ZhituStockKLine>> chunkConsumer) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize必须大于0: " + chunkSize);
+        }
+
+        String sql = "SELECT trade_time, open_price, high_price, low_price, close_price, " +
+                "volume, amount, prev_close, is_suspended,time_level " +
+                "FROM zhitu_stock_k_line " +
+                "WHERE stock_code = ? " + (timeLevel != null ? "AND time_level = ? " : "") +
+                "AND trade_time BETWEEN ? AND ? " +
+                "ORDER BY trade_time ASC";
+
+        long total = 0;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql,
+                     ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+
+            // MySQL驱动只有在只进只读且fetchSize为Integer.MIN_VALUE时才逐行流式返回，否则会一次读入整个结果集
+            ps.setFetchSize(Integer.MIN_VALUE);
+
+            int index = 1;
+            ps.setString(index++, stockCode);
+            if (timeLevel != null) {
+                ps.setString(index++, timeLevel);
+            }
+            ps.setTimestamp(index++, Timestamp.valueOf(startDate));
+            ps.setTimestamp(index, Timestamp.valueOf(endDate));
+
+            try (ResultSet rs = ps.executeQuery()) {
+                List<ZhituStockKLine> chunk = new ArrayList<>(chunkSize);
+                while (rs.next()) {
+                    chunk.add(mapKLine(rs, stockCode));
+                    if (chunk.size() == chunkSize) {
+                        chunkConsumer.accept(chunk);
+                        total += chunk.size();
+                        chunk = new ArrayList<>(chunkSize);
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    chunkConsumer.accept(chunk);
+                    total += chunk.size();
+                }
+            }
+
+            logger.info("Streamed {} records for stock {} from {} to {}", total, stockCode, startDate, endDate);
+
+        } catch (SQLException e) {
+            logger.error("Failed to stream K-line data for stock {}", stockCode, e);
+            throw new RuntimeException("Failed to stream K-line data", e);
+        }
+
+        return total;
+    }
+
+    /**
+     * 全部股票在指定周期和时间范围内的K线，按股票代码分组，每只股票按时间升序，用于计算横截面特征
+     * 结果集逐行从服务端拉取
+     *
+     * @param timeLevel K线周期，为null时不过滤周期
+     */
+    public Map<String, List<ZhituStockKLine>> getUniverseKLineData(String timeLevel,
+                                                                   LocalDateTime startDate, LocalDateTime endDate) {
+        String sql = "SELECT stock_code, trade_time, open_price, high_price, low_price, close_price, " +
+                "volume, amount, prev_close, is_suspended,time_level " +
+                "FROM zhitu_stock_k_line " +
+                "WHERE " + (timeLevel != null ? "time_level = ? AND " : "") + "trade_time BETWEEN ? AND ? " +
+                "ORDER BY stock_code ASC, trade_time ASC";
+
+        Map<String, List<ZhituStockKLine>> universe = new LinkedHashMap<>();
+        long total = 0;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql,
+                     ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+
+            ps.setFetchSize(Integer.MIN_VALUE);
+
+            int index = 1;
+            if (timeLevel != null) {
+                ps.setString(index++, timeLevel);
+            }
+            ps.setTimestamp(index++, Timestamp.valueOf(startDate));
+            ps.setTimestamp(index, Timestamp.valueOf(endDate));
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String stockCode = rs.getString("stock_code");
+                    universe.computeIfAbsent(stockCode, code -> new ArrayList<>()).add(mapKLine(rs, stockCode));
+                    total++;
+                }
+            }
+
+            logger.info("Fetched {} {} records for {} stocks from {} to {}",
+                    total, timeLevel, universe.size(), startDate, endDate);
+
+        } catch (SQLException e) {
+            logger.error("Failed to fetch universe K-line data", e);
+            throw new RuntimeException("Failed to fetch universe K-line data", e);
+        }
+
+        return universe;
+    }
+
+    /**
+     * 统计指定股票、K线周期和时间范围内的K线数量及首尾时间，不拉取K线本身
+     *
+     * @param stockCode 股票代码，为null时统计全部股票
+     * @param timeLevel K线周期，为null时不过滤周期
+     */
+    public BarStats getBarStats(String stockCode, String timeLevel, LocalDateTime startDate, LocalDateTime endDate) {
+        String sql = "SELECT COUNT(*), MIN(trade_time), MAX(trade_time) " +
+                "FROM zhitu_stock_k_line " +
+                "WHERE " + (stockCode != null ? "stock_code = ? AND " : "") +
+                (timeLevel != null ? "time_level = ? AND " : "") +
+                "trade_time BETWEEN ? AND ?";
+
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+
+            int index = 1;
+            if (stockCode != null) {
+                ps.setString(index++, stockCode);
+            }
+            if (timeLevel != null) {
+                ps.setString(index++, timeLevel);
+            }
+            ps.setTimestamp(index++, Timestamp.valueOf(startDate));
+            ps.setTimestamp(index, Timestamp.valueOf(endDate));
+
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return new BarStats(rs.getLong(1), rs.getString(2), rs.getString(3));
+                }
+            }
+
+        } catch (SQLException e) {
+            logger.error("Failed to fetch K-line stats for stock {}", stockCode, e);
+            throw new RuntimeException("Failed to fetch K-line stats", e);
+        }
+
+        return new BarStats(0, null, null);
+    }
+
+    /**
+     * 时间范围内至少有 minBars 根指定周期K线的股票代码，用于确定全市场训练的股票池
+     *
+     * @param timeLevel K线周期，为null时不过滤周期
+     */
+    public List<String> getStockCodes(String timeLevel, LocalDateTime startDate, LocalDateTime endDate,
+                                      long minBars) {
+        String sql = "SELECT stock_code FROM zhitu_stock_k_line " +
+                "WHERE " + (timeLevel != null ? "time_level = ? AND " : "") + "trade_time BETWEEN ? AND ? " +
+                "GROUP BY stock_code HAVING COUNT(*) >= ? " +
+                "ORDER BY stock_code";
+
+        List<String> stockCodes = new ArrayList<>();
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+
+            int index = 1;
+            if (timeLevel != null) {
+                ps.setString(index++, timeLevel);
+            }
+            ps.setTimestamp(index++, Timestamp.valueOf(startDate));
+            ps.setTimestamp(index++, Timestamp.valueOf(endDate));
+            ps.setLong(index, minBars);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    stockCodes.add(rs.getString(1));
+                }
+            }
+
+        } catch (SQLException e) {
+            logger.error("Failed to fetch stock codes", e);
+            throw new RuntimeException("Failed to fetch stock codes", e);
+        }
+
+        return stockCodes;
+    }
+
+    private ZhituStockKLine mapKLine(ResultSet rs, String stockCode) throws SQLException {
+        ZhituStockKLine kline = new ZhituStockKLine();
+        kline.setStockCode(stockCode);
+        kline.setTradeTime(rs.getString("trade_time"));
+        kline.setOpen(rs.getDouble("open_price"));
+        kline.setHigh(rs.getDouble("high_price"));
+        kline.setLow(rs.getDouble("low_price"));
+        kline.setClose(rs.getDouble("close_price"));
+        kline.setVolume(rs.getDouble("volume"));
+        kline.setAmount(rs.getDouble("amount"));
+        kline.setPrevClose(rs.getDouble("prev_close"));
+        kline.setIsSuspended(rs.getString("is_suspended"));
+        kline.setTimeLevel(rs.getString("time_level"));
+        return kline;
+    }
+
     /**
      * 批量保存K线数据
      */
@@ -164,4 +419,31 @@ public class ZhituStockDataDao {
 
         return false;
     }
+
+    /**
+     * K线统计信息
+     */
+    public static class BarStats {
+        private final long count;
+        private final String firstTradeTime;
+        private final String lastTradeTime;
+
+        public BarStats(long count, String firstTradeTime, String lastTradeTime) {
+            this.count = count;
+            this.firstTradeTime = firstTradeTime;
+            this.lastTradeTime = lastTradeTime;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public String getFirstTradeTime() {
+            return firstTradeTime;
+        }
+
+        public String getLastTradeTime() {
+            return lastTradeTime;
+        }
+    }
 }
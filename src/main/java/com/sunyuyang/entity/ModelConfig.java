@@ -1,6 +1,11 @@
 package com.sunyuyang.entity;
 
+import com.sunyuyang.util.ColumnNormalizer;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.nd4j.linalg.api.buffer.DataType;
+
 public class ModelConfig {
+    private Architecture architecture = Architecture.LSTM; // 网络结构
     private int timeSteps = 60;          // 时间步长（历史窗口）
     private int predictSteps = 32;       // 预测步长（未来5个交易日）
     private int batchSize = 64;          // 批大小
@@ -11,12 +16,54 @@ public class ModelConfig {
     private int denseLayerSize = 32;     // 全连接层大小
     private double learningRate = 0.001; // 学习率
     private double dropoutRate = 0.2;    // Dropout率
+    private DataType dataType = DataType.FLOAT;        // 特征、窗口、标签和网络的计算精度
+    private DataType storageDataType = DataType.FLOAT; // 磁盘缓存的存储精度（可选FLOAT16）
+    private double dataTypeTolerance = 1e-3;           // 低精度与DOUBLE参考结果的允许误差（MSE相对误差）
+    private ColumnNormalizer.Mode featureNormalizerMode = ColumnNormalizer.Mode.MIN_MAX; // 特征按列标准化方式
+    private int validationFrequency = 5; // 每多少轮在后台计算一次验证损失（0表示不验证）
+    private int workers = 1;             // 数据并行训练的模型副本数（1表示单线程训练）
+    private int averagingFrequency = 5;  // 数据并行时每个副本训练多少个批次后平均一次参数
+    private int earlyStoppingPatience = 10; // 验证损失连续多少轮没有改善时停止训练（0表示不早停）
+    private int maxTrainingMinutes = 0;     // 单次训练的最长时间（分钟，0表示不限制）
+    private int checkpointFrequency = 5;    // 每多少轮写一次检查点（0表示不写）
+    private int crossValidationParallelism = 1; // 交叉验证时同时训练的折数
+    private int maxWindowsPerSymbol = 2000;     // 全市场训练时每只股票每轮最多抽取的窗口数（0表示不限制）
+    private int shuffleBufferSize = 8192;       // 全市场训练混合多只股票窗口的打乱缓冲区大小（窗口数）
+    private int openShards = 16;                // 全市场训练时同时交错读取的分片数
+    private int fineTuneEpochs = 3;             // 增量微调的训练轮数
+    private double fineTuneReplayRatio = 1.0;   // 增量微调时每个新窗口搭配回放的旧窗口数
+    private int fineTuneReplayBars = 2000;      // 增量微调时读取训练截止之前的K线数（回放窗口和新窗口的上下文）
+    private String timeLevel = "5";             // 训练和预测使用的K线周期（zhitu_stock_k_line.time_level，null表示不过滤周期）
+    private String coarseTimeLevels = "";       // 融合到训练K线上的粗周期特征，逗号分隔（如 "60,d"，为空时不融合）
+    private boolean crossSectionalFeatures = false; // 是否附加全市场横截面特征（收益率排名、成交量z-score、相对强弱）
+    private String telemetryFile = null;        // 训练遥测的JSON文件路径（null表示不写）
+    private int telemetryPort = 0;              // 训练遥测 /metrics 的HTTP端口（0表示不启动）
+    private String telemetryHost = "127.0.0.1"; // 训练遥测 /metrics 绑定的地址（默认只监听本机，"0.0.0.0"表示所有网卡）
+    private int telemetryDetailFrequency = 10;  // 每多少次迭代记录一次参数范数、更新量范数和内存
+    private int convChannels = 32;              // TCN和注意力结构的卷积通道数（注意力的模型维度）
+    private int convKernelSize = 3;             // TCN的卷积核大小
+    private int tcnLevels = 4;                  // TCN的膨胀卷积层数，第i层膨胀率为2^i
+    private int attentionHeads = 4;             // 注意力头数，需整除convChannels
+    private DataType inferenceWeightType = DataType.FLOAT; // 推理版本模型包的参数存储类型（FLOAT16、INT8为压缩存储）
+    private double inferencePruneSparsity = 0.0; // 推理版本中每个权重张量按幅值置零的比例（0表示不剪枝）
+    private WorkspaceMode workspaceMode = WorkspaceMode.ENABLED; // 网络训练和推理的工作区模式（NONE便于排查内存问题）
 
     public static ModelConfig getDefaultConfig() {
         return new ModelConfig();
     }
 
     // Getters and Setters
+    public Architecture getArchitecture() {
+        return architecture;
+    }
+
+    public void setArchitecture(Architecture architecture) {
+        if (architecture == null) {
+            throw new IllegalArgumentException("architecture不能为空");
+        }
+        this.architecture = architecture;
+    }
+
     public int getTimeSteps() {
         return timeSteps;
     }
@@ -96,4 +143,337 @@ public class ModelConfig {
     public void setDropoutRate(double dropoutRate) {
         this.dropoutRate = dropoutRate;
     }
+
+    public DataType getDataType() {
+        return dataType;
+    }
+
+    public void setDataType(DataType dataType) {
+        if (!dataType.isFPType()) {
+            throw new IllegalArgumentException("只支持浮点类型: " + dataType);
+        }
+        this.dataType = dataType;
+    }
+
+    public DataType getStorageDataType() {
+        return storageDataType;
+    }
+
+    public void setStorageDataType(DataType storageDataType) {
+        if (!storageDataType.isFPType()) {
+            throw new IllegalArgumentException("只支持浮点类型: " + storageDataType);
+        }
+        this.storageDataType = storageDataType;
+    }
+
+    public double getDataTypeTolerance() {
+        return dataTypeTolerance;
+    }
+
+    public void setDataTypeTolerance(double dataTypeTolerance) {
+        this.dataTypeTolerance = dataTypeTolerance;
+    }
+
+    public ColumnNormalizer.Mode getFeatureNormalizerMode() {
+        return featureNormalizerMode;
+    }
+
+    public void setFeatureNormalizerMode(ColumnNormalizer.Mode featureNormalizerMode) {
+        this.featureNormalizerMode = featureNormalizerMode;
+    }
+
+    public int getValidationFrequency() {
+        return validationFrequency;
+    }
+
+    public void setValidationFrequency(int validationFrequency) {
+        if (validationFrequency < 0) {
+            throw new IllegalArgumentException("validationFrequency不能为负数: " + validationFrequency);
+        }
+        this.validationFrequency = validationFrequency;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public void setWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers必须大于0: " + workers);
+        }
+        this.workers = workers;
+    }
+
+    public int getAveragingFrequency() {
+        return averagingFrequency;
+    }
+
+    public void setAveragingFrequency(int averagingFrequency) {
+        if (averagingFrequency < 1) {
+            throw new IllegalArgumentException("averagingFrequency必须大于0: " + averagingFrequency);
+        }
+        this.averagingFrequency = averagingFrequency;
+    }
+
+    public int getEarlyStoppingPatience() {
+        return earlyStoppingPatience;
+    }
+
+    public void setEarlyStoppingPatience(int earlyStoppingPatience) {
+        if (earlyStoppingPatience < 0) {
+            throw new IllegalArgumentException("earlyStoppingPatience不能为负数: " + earlyStoppingPatience);
+        }
+        this.earlyStoppingPatience = earlyStoppingPatience;
+    }
+
+    public int getMaxTrainingMinutes() {
+        return maxTrainingMinutes;
+    }
+
+    public void setMaxTrainingMinutes(int maxTrainingMinutes) {
+        if (maxTrainingMinutes < 0) {
+            throw new IllegalArgumentException("maxTrainingMinutes不能为负数: " + maxTrainingMinutes);
+        }
+        this.maxTrainingMinutes = maxTrainingMinutes;
+    }
+
+    public int getCheckpointFrequency() {
+        return checkpointFrequency;
+    }
+
+    public void setCheckpointFrequency(int checkpointFrequency) {
+        if (checkpointFrequency < 0) {
+            throw new IllegalArgumentException("checkpointFrequency不能为负数: " + checkpointFrequency);
+        }
+        this.checkpointFrequency = checkpointFrequency;
+    }
+
+    public int getCrossValidationParallelism() {
+        return crossValidationParallelism;
+    }
+
+    public void setCrossValidationParallelism(int crossValidationParallelism) {
+        if (crossValidationParallelism < 1) {
+            throw new IllegalArgumentException("crossValidationParallelism必须大于0: " + crossValidationParallelism);
+        }
+        this.crossValidationParallelism = crossValidationParallelism;
+    }
+
+    public int getMaxWindowsPerSymbol() {
+        return maxWindowsPerSymbol;
+    }
+
+    public void setMaxWindowsPerSymbol(int maxWindowsPerSymbol) {
+        if (maxWindowsPerSymbol < 0) {
+            throw new IllegalArgumentException("maxWindowsPerSymbol不能为负数: " + maxWindowsPerSymbol);
+        }
+        this.maxWindowsPerSymbol = maxWindowsPerSymbol;
+    }
+
+    public int getShuffleBufferSize() {
+        return shuffleBufferSize;
+    }
+
+    public void setShuffleBufferSize(int shuffleBufferSize) {
+        if (shuffleBufferSize < 1) {
+            throw new IllegalArgumentException("shuffleBufferSize必须大于0: " + shuffleBufferSize);
+        }
+        this.shuffleBufferSize = shuffleBufferSize;
+    }
+
+    public int getOpenShards() {
+        return openShards;
+    }
+
+    public void setOpenShards(int openShards) {
+        if (openShards < 1) {
+            throw new IllegalArgumentException("openShards必须大于0: " + openShards);
+        }
+        this.openShards = openShards;
+    }
+
+    public int getFineTuneEpochs() {
+        return fineTuneEpochs;
+    }
+
+    public void setFineTuneEpochs(int fineTuneEpochs) {
+        if (fineTuneEpochs < 1) {
+            throw new IllegalArgumentException("fineTuneEpochs必须大于0: " + fineTuneEpochs);
+        }
+        this.fineTuneEpochs = fineTuneEpochs;
+    }
+
+    public double getFineTuneReplayRatio() {
+        return fineTuneReplayRatio;
+    }
+
+    public void setFineTuneReplayRatio(double fineTuneReplayRatio) {
+        if (fineTuneReplayRatio < 0) {
+            throw new IllegalArgumentException("fineTuneReplayRatio不能为负数: " + fineTuneReplayRatio);
+        }
+        this.fineTuneReplayRatio = fineTuneReplayRatio;
+    }
+
+    public int getFineTuneReplayBars() {
+        return fineTuneReplayBars;
+    }
+
+    public void setFineTuneReplayBars(int fineTuneReplayBars) {
+        if (fineTuneReplayBars < 0) {
+            throw new IllegalArgumentException("fineTuneReplayBars不能为负数: " + fineTuneReplayBars);
+        }
+        this.fineTuneReplayBars = fineTuneReplayBars;
+    }
+
+    public String getTimeLevel() {
+        return timeLevel;
+    }
+
+    public void setTimeLevel(String timeLevel) {
+        this.timeLevel = timeLevel;
+    }
+
+    public String getCoarseTimeLevels() {
+        return coarseTimeLevels;
+    }
+
+    public void setCoarseTimeLevels(String coarseTimeLevels) {
+        this.coarseTimeLevels = coarseTimeLevels == null ? "" : coarseTimeLevels;
+    }
+
+    public boolean isCrossSectionalFeatures() {
+        return crossSectionalFeatures;
+    }
+
+    public void setCrossSectionalFeatures(boolean crossSectionalFeatures) {
+        this.crossSectionalFeatures = crossSectionalFeatures;
+    }
+
+    public String getTelemetryFile() {
+        return telemetryFile;
+    }
+
+    public void setTelemetryFile(String telemetryFile) {
+        this.telemetryFile = telemetryFile;
+    }
+
+    public int getTelemetryPort() {
+        return telemetryPort;
+    }
+
+    public void setTelemetryPort(int telemetryPort) {
+        if (telemetryPort < 0 || telemetryPort > 65535) {
+            throw new IllegalArgumentException("telemetryPort超出范围: " + telemetryPort);
+        }
+        this.telemetryPort = telemetryPort;
+    }
+
+    public String getTelemetryHost() {
+        return telemetryHost;
+    }
+
+    public void setTelemetryHost(String telemetryHost) {
+        this.telemetryHost = telemetryHost;
+    }
+
+    public int getTelemetryDetailFrequency() {
+        return telemetryDetailFrequency;
+    }
+
+    public void setTelemetryDetailFrequency(int telemetryDetailFrequency) {
+        if (telemetryDetailFrequency < 1) {
+            throw new IllegalArgumentException("telemetryDetailFrequency必须大于0: " + telemetryDetailFrequency);
+        }
+        this.telemetryDetailFrequency = telemetryDetailFrequency;
+    }
+
+    public int getConvChannels() {
+        return convChannels;
+    }
+
+    public void setConvChannels(int convChannels) {
+        if (convChannels < 1) {
+            throw new IllegalArgumentException("convChannels必须大于0: " + convChannels);
+        }
+        this.convChannels = convChannels;
+    }
+
+    public int getConvKernelSize() {
+        return convKernelSize;
+    }
+
+    public void setConvKernelSize(int convKernelSize) {
+        if (convKernelSize < 2) {
+            throw new IllegalArgumentException("convKernelSize必须大于1: " + convKernelSize);
+        }
+        this.convKernelSize = convKernelSize;
+    }
+
+    public int getTcnLevels() {
+        return tcnLevels;
+    }
+
+    public void setTcnLevels(int tcnLevels) {
+        if (tcnLevels < 1) {
+            throw new IllegalArgumentException("tcnLevels必须大于0: " + tcnLevels);
+        }
+        this.tcnLevels = tcnLevels;
+    }
+
+    public int getAttentionHeads() {
+        return attentionHeads;
+    }
+
+    public void setAttentionHeads(int attentionHeads) {
+        if (attentionHeads < 1) {
+            throw new IllegalArgumentException("attentionHeads必须大于0: " + attentionHeads);
+        }
+        this.attentionHeads = attentionHeads;
+    }
+
+    public WorkspaceMode getWorkspaceMode() {
+        return workspaceMode;
+    }
+
+    public void setWorkspaceMode(WorkspaceMode workspaceMode) {
+        if (workspaceMode == null) {
+            throw new IllegalArgumentException("workspaceMode不能为空");
+        }
+        this.workspaceMode = workspaceMode;
+    }
+
+    public DataType getInferenceWeightType() {
+        return inferenceWeightType;
+    }
+
+    public void setInferenceWeightType(DataType inferenceWeightType) {
+        if (inferenceWeightType == null
+                || (inferenceWeightType != DataType.INT8 && !inferenceWeightType.isFPType())) {
+            throw new IllegalArgumentException("只支持浮点类型或INT8: " + inferenceWeightType);
+        }
+        this.inferenceWeightType = inferenceWeightType;
+    }
+
+    public double getInferencePruneSparsity() {
+        return inferencePruneSparsity;
+    }
+
+    public void setInferencePruneSparsity(double inferencePruneSparsity) {
+        if (inferencePruneSparsity < 0 || inferencePruneSparsity >= 1) {
+            throw new IllegalArgumentException("inferencePruneSparsity必须在[0, 1)之间: " + inferencePruneSparsity);
+        }
+        this.inferencePruneSparsity = inferencePruneSparsity;
+    }
+
+    /**
+     * 网络结构
+     * LSTM: 两层LSTM（默认）；SIMPLE_RNN: 两层简单循环层，层大小沿用 lstmLayer1Size/lstmLayer2Size；
+     * TCN: 膨胀因果一维卷积，取最后一个时间步；ATTENTION: 因果卷积嵌入后做多头自注意力，再对时间取平均。
+     */
+    public enum Architecture {
+        LSTM,
+        SIMPLE_RNN,
+        TCN,
+        ATTENTION
+    }
 }
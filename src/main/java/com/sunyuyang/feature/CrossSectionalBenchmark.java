@@ -0,0 +1,96 @@
+package com.sunyuyang.feature;
+
+import com.sunyuyang.entity.ZhituStockKLine;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 横截面特征引擎的基准测试
+ * 在合成的全市场K线（随机游走，约5%的K线缺失，板块按股票代码轮流分配）上计时 {@link CrossSectionalFeatureEngine#compute(Map, Map)}，
+ * 重复数次取最快的一次，排除JIT预热。
+ * <p>
+ * 用法: CrossSectionalBenchmark [股票数，默认2000] [时间点数，默认10000] [重复次数，默认3]
+ * K线对象本身约占 股票数×时间点数×100 字节的堆内存，规模较大时需要相应调大 -Xmx。
+ */
+public class CrossSectionalBenchmark {
+    private static final int SECTORS = 30;
+
+    public static void main(String[] args) {
+        int symbols = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int timestamps = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int repeats = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        Map<String, List<ZhituStockKLine>> universe = syntheticUniverse(symbols, timestamps, 42);
+        Map<String, String> sectors = new HashMap<>();
+        long bars = 0;
+        for (String symbol : universe.keySet()) {
+            sectors.put(symbol, "S" + (sectors.size() % SECTORS));
+            bars += universe.get(symbol).size();
+        }
+
+        System.out.printf("股票: %d, 时间点: %d, K线: %d, 板块: %d, CPU核数: %d%n",
+                symbols, timestamps, bars, SECTORS, Runtime.getRuntime().availableProcessors());
+
+        CrossSectionalFeatureEngine engine = new CrossSectionalFeatureEngine(DataType.FLOAT);
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < repeats; run++) {
+            long start = System.nanoTime();
+            Map<String, INDArray> features = engine.compute(universe, sectors);
+            double millis = (System.nanoTime() - start) / 1e6;
+            best = Math.min(best, millis);
+            System.out.printf("第%d次: %.1f ms, 结果股票数: %d%n", run + 1, millis, features.size());
+        }
+        System.out.printf("最快: %.1f ms, 每百万K线: %.1f ms%n", best, best / (bars / 1e6));
+    }
+
+    /**
+     * 合成全市场5分钟K线，所有股票共用同一组时间字符串
+     */
+    static Map<String, List<ZhituStockKLine>> syntheticUniverse(int symbols, int timestamps, long seed) {
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        String[] times = new String[timestamps];
+        LocalDateTime time = LocalDateTime.of(2020, 1, 2, 9, 35);
+        for (int t = 0; t < timestamps; t++) {
+            times[t] = time.format(formatter);
+            time = time.plusMinutes(5);
+        }
+
+        Random random = new Random(seed);
+        Map<String, List<ZhituStockKLine>> universe = new LinkedHashMap<>();
+        for (int s = 0; s < symbols; s++) {
+            String symbol = String.format("%06d.SZ", s);
+            List<ZhituStockKLine> bars = new ArrayList<>(timestamps);
+            double price = 5 + random.nextDouble() * 50;
+            for (int t = 0; t < timestamps; t++) {
+                if (random.nextInt(20) == 0) {
+                    continue;
+                }
+                ZhituStockKLine bar = new ZhituStockKLine();
+                bar.setStockCode(symbol);
+                bar.setTradeTime(times[t]);
+                double close = price * (1 + 0.01 * random.nextGaussian());
+                bar.setOpen(price);
+                bar.setClose(close);
+                bar.setHigh(Math.max(price, close));
+                bar.setLow(Math.min(price, close));
+                bar.setVolume(1000 + random.nextInt(100000));
+                bar.setAmount(bar.getVolume() * close);
+                bar.setPrevClose(price);
+                bar.setIsSuspended("0");
+                bars.add(bar);
+                price = close;
+            }
+            universe.put(symbol, bars);
+        }
+        return universe;
+    }
+}
@@ -0,0 +1,384 @@
+package com.sunyuyang.feature;
+
+import com.sunyuyang.dao.ZhituStockDataDao;
+import com.sunyuyang.entity.ZhituStockKLine;
+import com.sunyuyang.util.TradeTimeUtil;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * 横截面特征引擎
+ * 把全市场股票对齐到统一的交易日历上，按时间点计算横截面特征，再按每只股票自己的K线顺序取回：
+ * <ol>
+ *   <li>收益率横截面分位排名 (0~1)</li>
+ *   <li>对数成交量相对全市场的z-score</li>
+ *   <li>相对板块强弱：收益率减去同板块平均收益率（无板块信息时相对全市场）</li>
+ * </ol>
+ * 数据按 [时间点, 股票] 的列式数组存储，每个时间点的一行在内存中连续，各时间点并行计算。
+ * 由 {@link com.sunyuyang.entity.ModelConfig#isCrossSectionalFeatures()} 开启，训练、增量微调和预测都附加这三列。
+ */
+public class CrossSectionalFeatureEngine {
+    private static final Logger logger = LoggerFactory.getLogger(CrossSectionalFeatureEngine.class);
+
+    public static final int CROSS_SECTIONAL_FEATURE_COUNT = 3;
+    private static final String DEFAULT_SECTOR = "__market__";
+    // 行列转换时的分块大小：一块股票 x 一段时间点的写入范围能放进CPU缓存
+    private static final int SYMBOL_BLOCK = 64;
+    private static final int TIME_TILE = 256;
+
+    private final DataType dataType;
+
+    public CrossSectionalFeatureEngine() {
+        this(Nd4j.dataType());
+    }
+
+    public CrossSectionalFeatureEngine(DataType dataType) {
+        this.dataType = dataType;
+    }
+
+    /**
+     * 计算全市场的横截面特征
+     *
+     * @param universe       股票代码 -> 按时间升序的K线
+     * @param sectorBySymbol 股票代码 -> 板块，可为null或缺项（归入全市场）
+     * @return 股票代码 -> [该股票K线数, CROSS_SECTIONAL_FEATURE_COUNT]，与其K线逐行对齐，可作为 preprocessData 的额外特征
+     */
+    public Map<String, INDArray> compute(Map<String, List<ZhituStockKLine>> universe,
+                                         Map<String, String> sectorBySymbol) {
+        long start = System.currentTimeMillis();
+        List<String> symbols = new ArrayList<>(universe.keySet());
+        int symbolCount = symbols.size();
+
+        // 1. 解析时间并建立统一交易日历
+        long[][] symbolTimes = new long[symbolCount][];
+        IntStream.range(0, symbolCount).parallel().forEach(s -> {
+            List<ZhituStockKLine> bars = universe.get(symbols.get(s));
+            long[] times = new long[bars.size()];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = TradeTimeUtil.toEpochSecond(bars.get(i).getTradeTime());
+            }
+            symbolTimes[s] = times;
+        });
+        long[] calendar = buildCalendar(symbolTimes);
+        int timestampCount = calendar.length;
+
+        // 2. 填充列式数组 [timestamp * symbolCount + symbol]，缺失为NaN
+        long cells = (long) timestampCount * symbolCount;
+        if (cells > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("横截面矩阵过大: " + timestampCount + " x " + symbolCount);
+        }
+        int[][] calendarIndex = new int[symbolCount][];
+        float[][] symbolReturns = new float[symbolCount][];
+        float[][] symbolLogVolumes = new float[symbolCount][];
+        IntStream.range(0, symbolCount).parallel().forEach(s -> {
+            List<ZhituStockKLine> bars = universe.get(symbols.get(s));
+            calendarIndex[s] = alignToCalendar(symbolTimes[s], calendar);
+            float[] symbolReturn = new float[bars.size()];
+            float[] symbolLogVolume = new float[bars.size()];
+            for (int i = 0; i < symbolReturn.length; i++) {
+                ZhituStockKLine bar = bars.get(i);
+                if (i > 0) {
+                    double prevClose = bars.get(i - 1).getClose();
+                    symbolReturn[i] = (float) ((bar.getClose() - prevClose) / prevClose);
+                } else {
+                    symbolReturn[i] = Float.NaN;
+                }
+                // 成交量非负且通常很大，Math.log是JIT内建函数，比log1p快得多
+                symbolLogVolume[i] = (float) Math.log(1.0 + bar.getVolume());
+            }
+            symbolReturns[s] = symbolReturn;
+            symbolLogVolumes[s] = symbolLogVolume;
+        });
+
+        float[] returns = new float[(int) cells];
+        float[] logVolumes = new float[(int) cells];
+        Arrays.fill(returns, Float.NaN);
+        Arrays.fill(logVolumes, Float.NaN);
+        scatter(calendarIndex, symbolReturns, returns, symbolCount, timestampCount);
+        scatter(calendarIndex, symbolLogVolumes, logVolumes, symbolCount, timestampCount);
+
+        // 3. 板块编号
+        Map<String, Integer> sectorIds = new HashMap<>();
+        int[] sectorOf = new int[symbolCount];
+        for (int s = 0; s < symbolCount; s++) {
+            String sector = sectorBySymbol == null ? null : sectorBySymbol.get(symbols.get(s));
+            sectorOf[s] = sectorIds.computeIfAbsent(sector == null ? DEFAULT_SECTOR : sector, k -> sectorIds.size());
+        }
+        int sectorCount = sectorIds.size();
+
+        // 4. 按时间点并行计算，结果写回同样布局的数组
+        float[] returnRanks = new float[(int) cells];
+        float[] volumeZScores = new float[(int) cells];
+        float[] relativeStrengths = new float[(int) cells];
+        ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(() -> new Scratch(symbolCount, sectorCount));
+
+        IntStream.range(0, timestampCount).parallel().forEach(t -> computeTimestamp(t * symbolCount,
+                symbolCount, returns, logVolumes, sectorOf, scratch.get(),
+                returnRanks, volumeZScores, relativeStrengths));
+
+        // 5. 按每只股票的K线顺序取回
+        double[][] symbolValues = new double[symbolCount][];
+        for (int s = 0; s < symbolCount; s++) {
+            symbolValues[s] = new double[calendarIndex[s].length * CROSS_SECTIONAL_FEATURE_COUNT];
+        }
+        gather(calendarIndex, returnRanks, symbolValues, 0, symbolCount, timestampCount);
+        gather(calendarIndex, volumeZScores, symbolValues, 1, symbolCount, timestampCount);
+        gather(calendarIndex, relativeStrengths, symbolValues, 2, symbolCount, timestampCount);
+
+        Map<String, INDArray> result = new HashMap<>();
+        INDArray[] perSymbol = new INDArray[symbolCount];
+        IntStream.range(0, symbolCount).parallel().forEach(s -> perSymbol[s] = Nd4j.create(symbolValues[s],
+                new long[]{calendarIndex[s].length, CROSS_SECTIONAL_FEATURE_COUNT}, dataType));
+        for (int s = 0; s < symbolCount; s++) {
+            result.put(symbols.get(s), perSymbol[s]);
+        }
+
+        logger.info("Computed cross-sectional features for {} symbols x {} timestamps ({} sectors) in {} ms",
+                symbolCount, timestampCount, sectorCount, System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * 从数据库拉取同一周期、同一时间范围内的全市场K线，计算一只股票的横截面特征
+     * 该股票本身使用传入的K线，保证结果与它逐行对齐；数据库中没有板块信息，相对强弱相对全市场计算
+     *
+     * @param bars 一只股票按时间升序的K线
+     * @return [bars.size(), CROSS_SECTIONAL_FEATURE_COUNT]，可作为 preprocessData 的额外特征
+     */
+    public INDArray compute(ZhituStockDataDao stockDataDao, List<ZhituStockKLine> bars) {
+        if (bars.isEmpty()) {
+            return Nd4j.create(dataType, 0, CROSS_SECTIONAL_FEATURE_COUNT);
+        }
+
+        ZhituStockKLine first = bars.get(0);
+        Map<String, List<ZhituStockKLine>> universe = stockDataDao.getUniverseKLineData(first.getTimeLevel(),
+                TradeTimeUtil.parse(first.getTradeTime()),
+                TradeTimeUtil.parse(bars.get(bars.size() - 1).getTradeTime()));
+        universe.put(first.getStockCode(), bars);
+        return compute(universe, null).get(first.getStockCode());
+    }
+
+    /**
+     * 计算单个时间点的横截面特征
+     *
+     * @param offset 该时间点在列式数组中的起始位置
+     */
+    private static void computeTimestamp(int offset, int symbolCount, float[] returns, float[] logVolumes,
+                                         int[] sectorOf, Scratch scratch, float[] returnRanks,
+                                         float[] volumeZScores, float[] relativeStrengths) {
+        // 收益率排名：把 (收益率, 股票下标) 编码为long一次排序，再线性扫描分配排名，相同值取中间排名
+        int count = 0;
+        Arrays.fill(scratch.sectorSums, 0.0);
+        Arrays.fill(scratch.sectorCounts, 0);
+        for (int s = 0; s < symbolCount; s++) {
+            float value = returns[offset + s];
+            if (Float.isNaN(value)) {
+                returnRanks[offset + s] = Float.NaN;
+                relativeStrengths[offset + s] = Float.NaN;
+            } else {
+                scratch.keys[count++] = ((long) sortableBits(value) << 32) | s;
+                scratch.sectorSums[sectorOf[s]] += value;
+                scratch.sectorCounts[sectorOf[s]]++;
+            }
+        }
+        Arrays.sort(scratch.keys, 0, count);
+
+        int groupStart = 0;
+        for (int i = 1; i <= count; i++) {
+            if (i < count && (scratch.keys[i] >>> 32) == (scratch.keys[groupStart] >>> 32)) {
+                continue;
+            }
+            double midRank = (groupStart + i - 1) / 2.0;
+            float rank = count > 1 ? (float) (midRank / (count - 1)) : 0.5f;
+            for (int j = groupStart; j < i; j++) {
+                returnRanks[offset + (int) scratch.keys[j]] = rank;
+            }
+            groupStart = i;
+        }
+
+        for (int s = 0; s < symbolCount; s++) {
+            int cell = offset + s;
+            float value = returns[cell];
+            if (!Float.isNaN(value)) {
+                int sector = sectorOf[s];
+                relativeStrengths[cell] = (float) (value - scratch.sectorSums[sector] / scratch.sectorCounts[sector]);
+            }
+        }
+
+        // 成交量z-score：单遍Welford统计
+        long n = 0;
+        double mean = 0.0;
+        double m2 = 0.0;
+        for (int s = 0; s < symbolCount; s++) {
+            float value = logVolumes[offset + s];
+            if (!Float.isNaN(value)) {
+                n++;
+                double delta = value - mean;
+                mean += delta / n;
+                m2 += delta * (value - mean);
+            }
+        }
+        double std = n > 1 ? Math.sqrt(m2 / (n - 1)) : 0.0;
+
+        for (int s = 0; s < symbolCount; s++) {
+            int cell = offset + s;
+            float value = logVolumes[cell];
+            if (Float.isNaN(value)) {
+                volumeZScores[cell] = Float.NaN;
+            } else {
+                volumeZScores[cell] = std > 0 ? (float) ((value - mean) / std) : 0.0f;
+            }
+        }
+    }
+
+    /**
+     * 按股票存储的数据写入 [时间点, 股票] 布局，按 股票块 x 时间段 分块写入以减少缓存缺失
+     */
+    private static void scatter(int[][] calendarIndex, float[][] source, float[] target,
+                                int symbolCount, int timestampCount) {
+        int blocks = (symbolCount + SYMBOL_BLOCK - 1) / SYMBOL_BLOCK;
+        IntStream.range(0, blocks).parallel().forEach(block -> {
+            int from = block * SYMBOL_BLOCK;
+            int to = Math.min(from + SYMBOL_BLOCK, symbolCount);
+            int[] cursors = new int[to - from];
+            for (int tileEnd = TIME_TILE; tileEnd < timestampCount + TIME_TILE; tileEnd += TIME_TILE) {
+                for (int s = from; s < to; s++) {
+                    int[] index = calendarIndex[s];
+                    float[] values = source[s];
+                    int cursor = cursors[s - from];
+                    while (cursor < index.length && index[cursor] < tileEnd) {
+                        target[index[cursor] * symbolCount + s] = values[cursor];
+                        cursor++;
+                    }
+                    cursors[s - from] = cursor;
+                }
+            }
+        });
+    }
+
+    /**
+     * scatter的逆过程：从 [时间点, 股票] 布局取回每只股票的第column列
+     */
+    private static void gather(int[][] calendarIndex, float[] source, double[][] target, int column,
+                               int symbolCount, int timestampCount) {
+        int blocks = (symbolCount + SYMBOL_BLOCK - 1) / SYMBOL_BLOCK;
+        IntStream.range(0, blocks).parallel().forEach(block -> {
+            int from = block * SYMBOL_BLOCK;
+            int to = Math.min(from + SYMBOL_BLOCK, symbolCount);
+            int[] cursors = new int[to - from];
+            for (int tileEnd = TIME_TILE; tileEnd < timestampCount + TIME_TILE; tileEnd += TIME_TILE) {
+                for (int s = from; s < to; s++) {
+                    int[] index = calendarIndex[s];
+                    double[] values = target[s];
+                    int cursor = cursors[s - from];
+                    while (cursor < index.length && index[cursor] < tileEnd) {
+                        values[cursor * CROSS_SECTIONAL_FEATURE_COUNT + column] = source[index[cursor] * symbolCount + s];
+                        cursor++;
+                    }
+                    cursors[s - from] = cursor;
+                }
+            }
+        });
+    }
+
+    /**
+     * 合并所有股票的时间得到去重后的交易日历
+     * 大部分股票共用同一交易日历，逐只归并时若没有新时间点则直接复用，整体是线性的
+     */
+    private static long[] buildCalendar(long[][] symbolTimes) {
+        long[] calendar = new long[0];
+        for (long[] times : symbolTimes) {
+            calendar = mergeUnion(calendar, times);
+        }
+        return calendar;
+    }
+
+    /**
+     * 两个有序数组的去重并集，b中没有新元素时返回a本身
+     */
+    private static long[] mergeUnion(long[] a, long[] b) {
+        int i = 0;
+        int j = 0;
+        int extra = 0;
+        while (j < b.length) {
+            if (i < a.length && a[i] < b[j]) {
+                i++;
+            } else if (i < a.length && a[i] == b[j]) {
+                i++;
+                j++;
+            } else {
+                if (j == 0 || b[j] != b[j - 1]) {
+                    extra++;
+                }
+                j++;
+            }
+        }
+        if (extra == 0) {
+            return a;
+        }
+
+        long[] merged = new long[a.length + extra];
+        int k = 0;
+        i = 0;
+        j = 0;
+        while (i < a.length || j < b.length) {
+            long next;
+            if (j >= b.length || (i < a.length && a[i] <= b[j])) {
+                next = a[i++];
+            } else {
+                next = b[j++];
+            }
+            if (k == 0 || merged[k - 1] != next) {
+                merged[k++] = next;
+            }
+        }
+        return k == merged.length ? merged : Arrays.copyOf(merged, k);
+    }
+
+    /**
+     * 两个有序数组归并，得到每根K线在交易日历中的位置
+     */
+    private static int[] alignToCalendar(long[] times, long[] calendar) {
+        int[] index = new int[times.length];
+        int position = 0;
+        for (int i = 0; i < times.length; i++) {
+            while (calendar[position] < times[i]) {
+                position++;
+            }
+            if (calendar[position] != times[i]) {
+                throw new IllegalArgumentException("K线时间未按升序排列");
+            }
+            index[i] = position;
+        }
+        return index;
+    }
+
+    /**
+     * 把float转换为与数值大小顺序一致的int
+     */
+    private static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    /**
+     * 每个线程复用的临时数组
+     */
+    private static class Scratch {
+        final long[] keys;
+        final double[] sectorSums;
+        final int[] sectorCounts;
+
+        Scratch(int symbolCount, int sectorCount) {
+            this.keys = new long[symbolCount];
+            this.sectorSums = new double[sectorCount];
+            this.sectorCounts = new int[sectorCount];
+        }
+    }
+}
@@ -1,285 +1,453 @@
 package com.sunyuyang.feature;
 
 import com.sunyuyang.entity.ZhituStockKLine;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.ops.impl.transforms.custom.Max;
+import org.nd4j.linalg.api.ops.impl.transforms.custom.Min;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.ops.transforms.Transforms;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
+import java.util.*;
 
 public class FeatureEngineeringService {
     private static final Logger logger = LoggerFactory.getLogger(FeatureEngineeringService.class);
 
     /**
-     * 提取基础特征
+     * 特征集版本，特征定义或计算方式变化时必须递增，用于让磁盘缓存失效
      */
-    public INDArray extractBasicFeatures(List<ZhituStockKLine> klineData) {
-        int timesteps = klineData.size();
-        int features = 12; // 基础特征数量
-
-        INDArray featureArray = Nd4j.create(timesteps, features);
+    public static final int FEATURE_SET_VERSION = 1;
+    public static final int BASIC_FEATURE_COUNT = 12;
+    public static final int TECHNICAL_INDICATOR_COUNT = 8;
+    public static final int FEATURE_COUNT = BASIC_FEATURE_COUNT + TECHNICAL_INDICATOR_COUNT;
+    /**
+     * 技术指标需要回看的最大K线数量（布林带20周期）
+     */
+    public static final int WARM_UP_BARS = 20;
+    // EMA列的位置，增量计算时需要上一行的EMA值
+    public static final int EMA_COLUMN = BASIC_FEATURE_COUNT + 1;
 
-        for (int i = 0; i < timesteps; i++) {
-            ZhituStockKLine k = klineData.get(i);
-            int featureIndex = 0;
+    private final DataType dataType;
 
-            // 1. 价格特征
-            featureArray.putScalar(i, featureIndex++, k.getOpen());
-            featureArray.putScalar(i, featureIndex++, k.getHigh());
-            featureArray.putScalar(i, featureIndex++, k.getLow());
-            featureArray.putScalar(i, featureIndex++, k.getClose());
+    public FeatureEngineeringService() {
+        this(Nd4j.dataType());
+    }
 
-            // 2. 成交量特征
-            featureArray.putScalar(i, featureIndex++, Math.log1p(k.getVolume())); // 对数成交量
-            featureArray.putScalar(i, featureIndex++, k.getAmount());
+    /**
+     * @param dataType 生成的特征和标签矩阵的数据类型
+     */
+    public FeatureEngineeringService(DataType dataType) {
+        this.dataType = dataType;
+    }
 
-            // 3. 价格变动特征
-            if (i > 0) {
-                ZhituStockKLine prevK = klineData.get(i - 1);
-                double priceChange = (k.getClose() - prevK.getClose()) / prevK.getClose();
-                featureArray.putScalar(i, featureIndex++, priceChange);
+    public DataType getDataType() {
+        return dataType;
+    }
 
-                double volumeChange = (k.getVolume() - prevK.getVolume()) / (prevK.getVolume() + 1);
-                featureArray.putScalar(i, featureIndex++, volumeChange);
-            } else {
-                featureArray.putScalar(i, featureIndex++, 0.0);
-                featureArray.putScalar(i, featureIndex++, 0.0);
-            }
+    /**
+     * 提取全部特征（基础特征 + 技术指标）
+     */
+    public INDArray extractFeatures(List<ZhituStockKLine> klineData) {
+        return computeFeatureRows(klineData, 0, Double.NaN);
+    }
 
-            // 4. 技术指标特征（简化版）
-            // 价格区间
-            featureArray.putScalar(i, featureIndex++, (k.getHigh() - k.getLow()) / k.getOpen());
+    /**
+     * 计算从fromIndex开始的特征行：前 BASIC_FEATURE_COUNT 列为基础特征，后 TECHNICAL_INDICATOR_COUNT 列为技术指标
+     * fromIndex之前的K线只作为指标回看窗口使用，用于缓存追加和分块处理时的增量计算；全量提取是 fromIndex 为0的情况
+     *
+     * @param klineData 包含回看窗口的K线数据
+     * @param fromIndex 第一行需要计算的K线下标
+     * @param prevEma   fromIndex-1 行的EMA值，fromIndex为0时忽略
+     * @return [klineData.size() - fromIndex, FEATURE_COUNT] 的特征矩阵
+     */
+    public INDArray computeFeatureRows(List<ZhituStockKLine> klineData, int fromIndex, double prevEma) {
+        int total = klineData.size();
+        int rows = total - fromIndex;
+        if (rows < 0 || fromIndex < 0) {
+            throw new IllegalArgumentException("fromIndex越界: " + fromIndex + ", 数据量: " + total);
+        }
 
-            // 收盘价与前收盘价比
-            featureArray.putScalar(i, featureIndex++, (k.getClose() - k.getPrevClose()) / k.getPrevClose());
+        double[] values = new double[rows * FEATURE_COUNT];
+        double alpha = 2.0 / (12 + 1); // 12周期EMA的alpha
+        double ema = prevEma;
 
-            // 平均成交价
-            double avgPrice = k.getVolume() > 0 ? k.getAmount() / k.getVolume() : k.getClose();
-            featureArray.putScalar(i, featureIndex++, avgPrice);
+        for (int i = fromIndex; i < total; i++) {
+            ZhituStockKLine k = klineData.get(i);
+            double close = k.getClose();
+            int base = (i - fromIndex) * FEATURE_COUNT;
+            int featureIndex = base;
+
+            // 基础特征
+            values[featureIndex++] = k.getOpen();
+            values[featureIndex++] = k.getHigh();
+            values[featureIndex++] = k.getLow();
+            values[featureIndex++] = close;
+            values[featureIndex++] = Math.log1p(k.getVolume());
+            values[featureIndex++] = k.getAmount();
 
-            // 交易状态
-            if (k.getIsSuspended().equals("0")) {
-                featureArray.putScalar(i, featureIndex++, 0.0);
+            if (i > 0) {
+                ZhituStockKLine prevK = klineData.get(i - 1);
+                values[featureIndex++] = (close - prevK.getClose()) / prevK.getClose();
+                values[featureIndex++] = (k.getVolume() - prevK.getVolume()) / (prevK.getVolume() + 1);
             } else {
-                featureArray.putScalar(i, featureIndex++, 1.0);
+                values[featureIndex++] = 0.0;
+                values[featureIndex++] = 0.0;
             }
 
-        }
-
-        logger.info("Extracted {} basic features from {} timesteps", features, timesteps);
-        return featureArray;
-    }
+            values[featureIndex++] = (k.getHigh() - k.getLow()) / k.getOpen();
+            values[featureIndex++] = (close - k.getPrevClose()) / k.getPrevClose();
+            values[featureIndex++] = k.getVolume() > 0 ? k.getAmount() / k.getVolume() : close;
+            values[featureIndex++] = k.getIsSuspended().equals("0") ? 0.0 : 1.0;
 
-    /**
-     * 添加技术指标
-     */
-    public INDArray addTechnicalIndicators(INDArray basicFeatures, List<ZhituStockKLine> klineData) {
-        int timesteps = (int) basicFeatures.size(0);
-        int basicFeatureCount = (int) basicFeatures.size(1);
-        int technicalIndicatorCount = 8; // 技术指标数量
-
-        INDArray enhancedFeatures = Nd4j.create(timesteps, basicFeatureCount + technicalIndicatorCount);
-
-        // 复制基础特征
-       /* enhancedFeatures.put(
-                Nd4j.arange(0, timesteps),
-                Nd4j.arange(0, basicFeatureCount),
-                basicFeatures
-        );*/
-
-        enhancedFeatures.get(
-                NDArrayIndex.interval(0, timesteps),
-                NDArrayIndex.interval(0, basicFeatureCount)
-        ).assign(basicFeatures);
-
-        // 计算技术指标
-        for (int i = 0; i < timesteps; i++) {
-            int featureIndex = basicFeatureCount;
-
-            // 1. 简单移动平均 (SMA)
-            if (i >= 4) { // 5周期SMA
+            // 技术指标
+            if (i >= 4) {
                 double sma5 = 0;
                 for (int j = 0; j < 5; j++) {
                     sma5 += klineData.get(i - j).getClose();
                 }
-                enhancedFeatures.putScalar(i, featureIndex++, sma5 / 5);
+                values[featureIndex++] = sma5 / 5;
             } else {
-                enhancedFeatures.putScalar(i, featureIndex++, klineData.get(i).getClose());
+                values[featureIndex++] = close;
             }
 
-            // 2. 指数移动平均 (EMA)
-            if (i > 0) {
-                double close = klineData.get(i).getClose();
-                double prevEma = enhancedFeatures.getDouble(i - 1, featureIndex);
-                double alpha = 2.0 / (12 + 1); // 12周期EMA的alpha
-                double ema = alpha * close + (1 - alpha) * prevEma;
-                enhancedFeatures.putScalar(i, featureIndex++, ema);
-            } else {
-                enhancedFeatures.putScalar(i, featureIndex++, klineData.get(i).getClose());
-            }
+            ema = i > 0 ? alpha * close + (1 - alpha) * ema : close;
+            values[featureIndex++] = ema;
 
-            // 3. 相对强弱指数 (RSI) - 简化版
             if (i >= 14) {
                 double avgGain = 0;
                 double avgLoss = 0;
-
                 for (int j = 1; j <= 14; j++) {
-                    double change = klineData.get(i - j + 1).getClose() -
-                            klineData.get(i - j).getClose();
+                    double change = klineData.get(i - j + 1).getClose() - klineData.get(i - j).getClose();
                     if (change > 0) {
                         avgGain += change;
                     } else {
                         avgLoss -= change;
                     }
                 }
-
                 avgGain /= 14;
                 avgLoss /= 14;
-
                 double rs = avgLoss > 0 ? avgGain / avgLoss : 100;
-                double rsi = 100 - (100 / (1 + rs));
-                enhancedFeatures.putScalar(i, featureIndex++, rsi);
+                values[featureIndex++] = 100 - (100 / (1 + rs));
             } else {
-                enhancedFeatures.putScalar(i, featureIndex++, 50.0); // 中性值
+                values[featureIndex++] = 50.0;
             }
 
-            // 4. 布林带位置
             if (i >= 19) {
                 double sum = 0;
                 for (int j = 0; j < 20; j++) {
                     sum += klineData.get(i - j).getClose();
                 }
                 double middle = sum / 20;
-
                 double variance = 0;
                 for (int j = 0; j < 20; j++) {
                     double diff = klineData.get(i - j).getClose() - middle;
                     variance += diff * diff;
                 }
                 double stdDev = Math.sqrt(variance / 20);
-
-                double bbPosition = (klineData.get(i).getClose() - middle) / (2 * stdDev);
-                enhancedFeatures.putScalar(i, featureIndex++, bbPosition);
+                values[featureIndex++] = (close - middle) / (2 * stdDev);
             } else {
-                enhancedFeatures.putScalar(i, featureIndex++, 0.0);
+                values[featureIndex++] = 0.0;
             }
 
-            // 5. 动量指标
             if (i > 9) {
-                double momentum = klineData.get(i).getClose() - klineData.get(i - 10).getClose();
-                enhancedFeatures.putScalar(i, featureIndex++, momentum / klineData.get(i - 10).getClose());
+                double pastClose = klineData.get(i - 10).getClose();
+                values[featureIndex++] = (close - pastClose) / pastClose;
             } else {
-                enhancedFeatures.putScalar(i, featureIndex++, 0.0);
+                values[featureIndex++] = 0.0;
             }
 
-            // 6. 价格波动率
             if (i >= 9) {
                 double high = Double.MIN_VALUE;
                 double low = Double.MAX_VALUE;
-
                 for (int j = 0; j < 10; j++) {
-                    ZhituStockKLine k = klineData.get(i - j);
-                    high = Math.max(high, k.getHigh());
-                    low = Math.min(low, k.getLow());
+                    ZhituStockKLine past = klineData.get(i - j);
+                    high = Math.max(high, past.getHigh());
+                    low = Math.min(low, past.getLow());
                 }
-
-                double volatility = (high - low) / klineData.get(i).getClose();
-                enhancedFeatures.putScalar(i, featureIndex++, volatility);
+                values[featureIndex++] = (high - low) / close;
             } else {
-                enhancedFeatures.putScalar(i, featureIndex++, 0.0);
+                values[featureIndex++] = 0.0;
             }
 
-            // 7. 成交量加权平均价 (VWAP) - 简化版
             if (i >= 4) {
                 double totalAmount = 0;
                 double totalVolume = 0;
-
                 for (int j = 0; j < 5; j++) {
-                    ZhituStockKLine k = klineData.get(i - j);
-                    totalAmount += k.getAmount();
-                    totalVolume += k.getVolume();
+                    ZhituStockKLine past = klineData.get(i - j);
+                    totalAmount += past.getAmount();
+                    totalVolume += past.getVolume();
                 }
-
-                double vwap = totalVolume > 0 ? totalAmount / totalVolume : klineData.get(i).getClose();
-                enhancedFeatures.putScalar(i, featureIndex++, vwap);
+                values[featureIndex++] = totalVolume > 0 ? totalAmount / totalVolume : close;
             } else {
-                enhancedFeatures.putScalar(i, featureIndex++, klineData.get(i).getClose());
+                values[featureIndex++] = close;
             }
 
-            // 8. 价格加速度
             if (i >= 2) {
-                double acceleration = (klineData.get(i).getClose() - 2 * klineData.get(i - 1).getClose() +
-                        klineData.get(i - 2).getClose()) / klineData.get(i - 2).getClose();
-                enhancedFeatures.putScalar(i, featureIndex++, acceleration);
+                double close2 = klineData.get(i - 2).getClose();
+                values[featureIndex] = (close - 2 * klineData.get(i - 1).getClose() + close2) / close2;
             } else {
-                enhancedFeatures.putScalar(i, featureIndex++, 0.0);
+                values[featureIndex] = 0.0;
             }
         }
 
-        logger.info("Added {} technical indicators, total features: {}",
-                technicalIndicatorCount, enhancedFeatures.size(1));
-        return enhancedFeatures;
+        return Nd4j.create(values, new long[]{rows, FEATURE_COUNT}, dataType);
     }
 
     /**
      * 创建标签数据
      */
     public INDArray createLabels(List<ZhituStockKLine> klineData, int predictSteps) {
+        return createLabelFamilies(klineData, predictSteps, EnumSet.of(LabelFamily.RETURN))
+                .get(LabelFamily.RETURN);
+    }
+
+    /**
+     * 一次计算多种标签
+     * 在收盘价序列上构造 [timesteps, predictSteps] 的跨步视图 view[i, j] = close[i + j + 1]（不复制数据），
+     * 整个比值矩阵 close[i+1..i+k] / close[i] 由一次广播除法得到，各标签族都从它派生
+     *
+     * @return 标签族 -> [klineData.size() - predictSteps, predictSteps]
+     */
+    public Map<LabelFamily, INDArray> createLabelFamilies(List<ZhituStockKLine> klineData, int predictSteps,
+                                                          Set<LabelFamily> families) {
         int timesteps = klineData.size() - predictSteps;
 
         if (timesteps <= 0) {
             throw new IllegalArgumentException("Not enough data for prediction");
         }
 
-        INDArray labelArray = Nd4j.create(timesteps, predictSteps);
+        double[] closes = new double[klineData.size()];
+        for (int i = 0; i < closes.length; i++) {
+            closes[i] = klineData.get(i).getClose();
+        }
+        INDArray close = Nd4j.create(closes, new long[]{closes.length}, dataType);
+
+        // 跨步视图：第i行是第i根K线之后的predictSteps个收盘价
+        INDArray futureCloses = Nd4j.create(close.data(), new long[]{timesteps, predictSteps},
+                new long[]{1, 1}, 1, 'c');
+        INDArray currentCloses = close.get(NDArrayIndex.interval(0, timesteps)).reshape(timesteps, 1);
+        INDArray ratios = futureCloses.divColumnVector(currentCloses);
+
+        Map<LabelFamily, INDArray> labels = new EnumMap<>(LabelFamily.class);
+        for (LabelFamily family : families) {
+            switch (family) {
+                case RETURN:
+                    labels.put(family, ratios.sub(1.0));
+                    break;
+                case LOG_RETURN:
+                    labels.put(family, Transforms.log(ratios, true));
+                    break;
+                case DIRECTION:
+                    labels.put(family, ratios.gt(1.0).castTo(dataType));
+                    break;
+                case MAX_EXCURSION:
+                    labels.put(family, cumulativeExtreme(ratios.sub(1.0), true));
+                    break;
+                case MIN_EXCURSION:
+                    labels.put(family, cumulativeExtreme(ratios.sub(1.0), false));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported label family: " + family);
+            }
+        }
 
-        for (int i = 0; i < timesteps; i++) {
-            for (int j = 0; j < predictSteps; j++) {
-                // 归一化的价格变化作为标签
-                double futurePrice = klineData.get(i + j + 1).getClose();
-                double currentPrice = klineData.get(i).getClose();
-                double priceChange = (futurePrice - currentPrice) / currentPrice;
+        logger.info("Created {} labels for {} timesteps, predicting {} steps ahead",
+                families, timesteps, predictSteps);
+        return labels;
+    }
 
-                labelArray.putScalar(i, j, priceChange);
+    /**
+     * 沿预测步方向的累计最大/最小值（原地），每个步长一次逐元素运算
+     */
+    private INDArray cumulativeExtreme(INDArray returns, boolean maximum) {
+        for (int j = 1; j < returns.columns(); j++) {
+            INDArray previous = returns.getColumn(j - 1);
+            INDArray current = returns.getColumn(j);
+            if (maximum) {
+                Nd4j.exec(new Max(previous, current, current));
+            } else {
+                Nd4j.exec(new Min(previous, current, current));
             }
         }
+        return returns;
+    }
 
-        logger.info("Created labels for {} timesteps, predicting {} steps ahead",
-                timesteps, predictSteps);
-        return labelArray;
+    /**
+     * 标签族
+     */
+    public enum LabelFamily {
+        RETURN,        // 收益率 close[i+j]/close[i] - 1
+        LOG_RETURN,    // 对数收益率
+        DIRECTION,     // 方向：上涨为1，否则为0
+        MAX_EXCURSION, // 到第j步为止的最大有利波动
+        MIN_EXCURSION  // 到第j步为止的最大不利波动
     }
 
     /**
      * 处理缺失值和异常值
      */
     public INDArray handleMissingValues(INDArray features) {
-        INDArray cleaned = features.dup();
-        int rows = (int) cleaned.size(0);
-        int cols = (int) cleaned.size(1);
+        return cleanFeatures(features, false).getCleaned();
+    }
+
+    /**
+     * 单遍处理缺失值和异常值（3σ原则）
+     * 先用Welford算法按列计算忽略NaN/Inf的均值和标准差，再在同一块原始数组上完成填充和缩尾，
+     * 并返回每列填充、缩尾的数量用于监控数据质量
+     *
+     * @param features 特征矩阵 [timesteps, features]
+     * @param inPlace  是否直接修改传入的矩阵
+     */
+    public CleaningResult cleanFeatures(INDArray features, boolean inPlace) {
+        if (features.rank() != 2) {
+            throw new IllegalArgumentException("特征矩阵必须是二维的: " + Arrays.toString(features.shape()));
+        }
+
+        int rows = (int) features.size(0);
+        int cols = (int) features.size(1);
+
+        // 只有连续的C顺序数组才能直接操作底层缓冲区，否则在副本上处理
+        boolean direct = inPlace && !features.isView() && features.ordering() == 'c'
+                && features.length() == features.data().length();
+        INDArray target = direct ? features : features.dup('c');
+        double[] values = target.data().asDouble();
+
+        // 1. Welford单遍统计，按行顺序遍历以保证内存访问连续
+        long[] counts = new long[cols];
+        double[] means = new double[cols];
+        double[] m2 = new double[cols];
+
+        for (int row = 0; row < rows; row++) {
+            int base = row * cols;
+            for (int col = 0; col < cols; col++) {
+                double value = values[base + col];
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    continue;
+                }
+                long n = ++counts[col];
+                double delta = value - means[col];
+                means[col] += delta / n;
+                m2[col] += delta * (value - means[col]);
+            }
+        }
 
+        double[] stds = new double[cols];
         for (int col = 0; col < cols; col++) {
-            // 计算列的平均值和标准差
-            INDArray column = cleaned.getColumn(col);
-            double mean = column.meanNumber().doubleValue();
-            double std = column.stdNumber().doubleValue();
+            // 与stdNumber()保持一致，使用样本标准差；整列缺失时用0填充
+            stds[col] = counts[col] > 1 ? Math.sqrt(m2[col] / (counts[col] - 1)) : 0.0;
+        }
+
+        return applyCleaning(features, inPlace, target, values, means, stds);
+    }
+
+    /**
+     * 用给定的列均值和标准差处理缺失值和异常值
+     * 分块处理时每块单独统计会得到不一致的边界，这里使用全量数据预先统计好的均值和标准差
+     */
+    public CleaningResult cleanFeatures(INDArray features, boolean inPlace, double[] means, double[] stds) {
+        if (features.rank() != 2) {
+            throw new IllegalArgumentException("特征矩阵必须是二维的: " + Arrays.toString(features.shape()));
+        }
+        if (means.length != features.size(1) || stds.length != features.size(1)) {
+            throw new IllegalArgumentException("列统计量数量与特征列数不一致");
+        }
+
+        boolean direct = inPlace && !features.isView() && features.ordering() == 'c'
+                && features.length() == features.data().length();
+        INDArray target = direct ? features : features.dup('c');
+        return applyCleaning(features, inPlace, target, target.data().asDouble(), means.clone(), stds.clone());
+    }
 
-            // 识别和处理异常值（3σ原则）
-            for (int row = 0; row < rows; row++) {
-                double value = cleaned.getDouble(row, col);
+    private CleaningResult applyCleaning(INDArray features, boolean inPlace, INDArray target, double[] values,
+                                         double[] means, double[] stds) {
+        int rows = (int) features.size(0);
+        int cols = (int) features.size(1);
 
+        double[] lowerBounds = new double[cols];
+        double[] upperBounds = new double[cols];
+        for (int col = 0; col < cols; col++) {
+            lowerBounds[col] = means[col] - 3 * stds[col];
+            upperBounds[col] = means[col] + 3 * stds[col];
+        }
+
+        // 2. 填充缺失值并缩尾
+        int[] filledCounts = new int[cols];
+        int[] clippedCounts = new int[cols];
+
+        for (int row = 0; row < rows; row++) {
+            int base = row * cols;
+            for (int col = 0; col < cols; col++) {
+                double value = values[base + col];
                 if (Double.isNaN(value) || Double.isInfinite(value)) {
-                    // 用列平均值填充缺失值
-                    cleaned.putScalar(row, col, mean);
-                } else if (Math.abs(value - mean) > 3 * std) {
-                    // 缩尾处理：将异常值调整到3σ范围内
-                    double cappedValue = mean + Math.signum(value - mean) * 3 * std;
-                    cleaned.putScalar(row, col, cappedValue);
+                    values[base + col] = means[col];
+                    filledCounts[col]++;
+                } else if (value > upperBounds[col]) {
+                    values[base + col] = upperBounds[col];
+                    clippedCounts[col]++;
+                } else if (value < lowerBounds[col]) {
+                    values[base + col] = lowerBounds[col];
+                    clippedCounts[col]++;
                 }
             }
         }
 
-        return cleaned;
+        target.data().setData(values);
+        if (inPlace && target != features) {
+            features.assign(target);
+            target = features;
+        }
+
+        return new CleaningResult(target, means, stds, filledCounts, clippedCounts);
+    }
+
+    /**
+     * 缺失值和异常值处理结果
+     */
+    public static class CleaningResult {
+        private final INDArray cleaned;
+        private final double[] columnMeans;
+        private final double[] columnStds;
+        private final int[] filledCounts;
+        private final int[] clippedCounts;
+
+        public CleaningResult(INDArray cleaned, double[] columnMeans, double[] columnStds,
+                              int[] filledCounts, int[] clippedCounts) {
+            this.cleaned = cleaned;
+            this.columnMeans = columnMeans;
+            this.columnStds = columnStds;
+            this.filledCounts = filledCounts;
+            this.clippedCounts = clippedCounts;
+        }
+
+        public INDArray getCleaned() {
+            return cleaned;
+        }
+
+        public double[] getColumnMeans() {
+            return columnMeans;
+        }
+
+        public double[] getColumnStds() {
+            return columnStds;
+        }
+
+        public int[] getFilledCounts() {
+            return filledCounts;
+        }
+
+        public int[] getClippedCounts() {
+            return clippedCounts;
+        }
+
+        public int getTotalFilled() {
+            return Arrays.stream(filledCounts).sum();
+        }
+
+        public int getTotalClipped() {
+            return Arrays.stream(clippedCounts).sum();
+        }
     }
 }
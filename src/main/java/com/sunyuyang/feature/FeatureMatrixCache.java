@@ -0,0 +1,345 @@
+package com.sunyuyang.feature;
+
+import com.sunyuyang.entity.ZhituStockKLine;
+import com.sunyuyang.util.NDArrayFiles;
+import com.sunyuyang.util.TradeTimeUtil;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 特征矩阵磁盘缓存
+ * 按 股票代码 + K线周期 + 特征集版本 存储未清洗的原始特征矩阵，文件头记录最后一根K线时间。
+ * 存储精度可以低于计算精度（例如FLOAT16存储、FLOAT计算），读取时再转换。
+ * 数据文件为小端二进制，读取时整段批量读取；有新K线时只计算并追加新增的行。
+ * <p>
+ * 文件布局：
+ * <pre>
+ *   &lt;key&gt;.feat  : 128字节文件头 + [rows, cols] 特征数据
+ *   &lt;key&gt;.times : 每行对应K线的epoch秒（int64）
+ * </pre>
+ */
+public class FeatureMatrixCache {
+    private static final Logger logger = LoggerFactory.getLogger(FeatureMatrixCache.class);
+
+    private static final int MAGIC = 0x53504643; // "SPFC"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 128;
+    private static final int TEXT_FIELD_SIZE = 32;
+    // 文件头中行数和最后K线时间的位置，追加时原地更新
+    private static final int ROWS_POSITION = 16;
+    private static final int LAST_BAR_POSITION = 24 + TEXT_FIELD_SIZE;
+    // FLOAT16能表示的最大有限值，成交额等列可能超出
+    private static final double FLOAT16_MAX = 65504.0;
+
+    private final File cacheDir;
+    private final FeatureEngineeringService featureEngineeringService;
+    private final DataType storageDataType;
+
+    public FeatureMatrixCache() {
+        this(new File("cache/features"));
+    }
+
+    public FeatureMatrixCache(File cacheDir) {
+        this(cacheDir, new FeatureEngineeringService());
+    }
+
+    public FeatureMatrixCache(File cacheDir, FeatureEngineeringService featureEngineeringService) {
+        this(cacheDir, featureEngineeringService, featureEngineeringService.getDataType());
+    }
+
+    /**
+     * @param storageDataType 文件中的存储精度，特征按 featureEngineeringService 的精度返回
+     */
+    public FeatureMatrixCache(File cacheDir, FeatureEngineeringService featureEngineeringService,
+                              DataType storageDataType) {
+        this.cacheDir = cacheDir;
+        this.featureEngineeringService = featureEngineeringService;
+        this.storageDataType = storageDataType;
+    }
+
+    /**
+     * 获取K线数据对应的原始特征矩阵，优先使用缓存
+     *
+     * @param klineData 按时间升序排列的同一股票、同一周期的K线
+     * @return [klineData.size(), FEATURE_COUNT] 的特征矩阵（新数组，可原地修改）
+     */
+    public INDArray getFeatures(List<ZhituStockKLine> klineData) {
+        if (klineData.isEmpty()) {
+            return featureEngineeringService.extractFeatures(klineData);
+        }
+
+        ZhituStockKLine first = klineData.get(0);
+        String key = cacheKey(first.getStockCode(), first.getTimeLevel());
+        long[] barTimes = new long[klineData.size()];
+        for (int i = 0; i < barTimes.length; i++) {
+            barTimes[i] = TradeTimeUtil.toEpochSecond(klineData.get(i).getTradeTime());
+        }
+
+        try {
+            INDArray cached = readOrAppend(key, klineData, barTimes);
+            if (cached != null) {
+                return cached;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Feature cache {} unusable, recomputing: {}", key, e.getMessage());
+        }
+
+        INDArray features = featureEngineeringService.extractFeatures(klineData);
+        try {
+            write(key, features, barTimes, klineData.get(klineData.size() - 1).getTradeTime());
+        } catch (IOException e) {
+            logger.warn("Failed to write feature cache {}", key, e);
+        }
+        return features;
+    }
+
+    /**
+     * 缓存命中时返回读取的特征（与文件无关，可以原地清洗），必要时追加新K线的特征；无法复用时返回null
+     */
+    private INDArray readOrAppend(String key, List<ZhituStockKLine> klineData, long[] barTimes)
+            throws IOException {
+        File dataFile = new File(cacheDir, key + ".feat");
+        File timesFile = new File(cacheDir, key + ".times");
+        if (!dataFile.exists() || !timesFile.exists()) {
+            logger.info("Feature cache miss: {}", key);
+            return null;
+        }
+
+        try (FileChannel dataChannel = FileChannel.open(dataFile.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel timesChannel = FileChannel.open(timesFile.toPath(),
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            Header header = readHeader(dataChannel);
+            if (header == null) {
+                logger.info("Feature cache {} has incompatible header, rebuilding", key);
+                return null;
+            }
+
+            long[] cachedTimes = readTimes(timesChannel, header.rows);
+            int offset = Arrays.binarySearch(cachedTimes, barTimes[0]);
+            if (offset < 0) {
+                logger.info("Feature cache {} does not cover {}, rebuilding", key, klineData.get(0).getTradeTime());
+                return null;
+            }
+
+            int overlap = (int) Math.min(header.rows - offset, barTimes.length);
+            if (cachedTimes[offset + overlap - 1] != barTimes[overlap - 1]) {
+                logger.info("Feature cache {} is inconsistent with bar data, rebuilding", key);
+                return null;
+            }
+
+            long rowBytes = (long) header.cols * header.dataType.width();
+            INDArray cached = NDArrayFiles.read(dataChannel, HEADER_SIZE + offset * rowBytes,
+                    header.dataType, overlap, header.cols);
+            if (header.dataType != featureEngineeringService.getDataType()) {
+                cached = cached.castTo(featureEngineeringService.getDataType());
+            }
+
+            if (overlap == barTimes.length) {
+                logger.info("Feature cache hit: {} ({} rows)", key, overlap);
+                return cached;
+            }
+
+            // 增量计算需要完整的指标回看窗口
+            if (overlap < FeatureEngineeringService.WARM_UP_BARS) {
+                return null;
+            }
+
+            double prevEma = cached.getDouble(overlap - 1, FeatureEngineeringService.EMA_COLUMN);
+            INDArray newRows = featureEngineeringService.computeFeatureRows(klineData, overlap, prevEma);
+            if (!fitsStorageType(newRows, header.dataType)) {
+                return null;
+            }
+            long[] newTimes = Arrays.copyOfRange(barTimes, overlap, barTimes.length);
+
+            append(dataChannel, timesChannel, header, newRows, newTimes,
+                    klineData.get(klineData.size() - 1).getTradeTime());
+            logger.info("Feature cache {}: reused {} rows, appended {} new rows", key, overlap, newRows.size(0));
+            return Nd4j.vstack(cached, newRows);
+        }
+    }
+
+    /**
+     * 追加新行：先写数据，最后更新文件头，中途失败时多写的数据会在下次追加时被覆盖
+     */
+    private void append(FileChannel dataChannel, FileChannel timesChannel, Header header,
+                        INDArray newRows, long[] newTimes, String lastBarTime) throws IOException {
+        INDArray stored = newRows.dataType() == header.dataType ? newRows : newRows.castTo(header.dataType);
+        long rowBytes = (long) header.cols * header.dataType.width();
+
+        dataChannel.truncate(HEADER_SIZE + header.rows * rowBytes);
+        dataChannel.position(HEADER_SIZE + header.rows * rowBytes);
+        NDArrayFiles.writeData(dataChannel, stored);
+
+        timesChannel.truncate(header.rows * Long.BYTES);
+        timesChannel.position(header.rows * Long.BYTES);
+        writeTimes(timesChannel, newTimes);
+
+        dataChannel.force(false);
+        timesChannel.force(false);
+
+        ByteBuffer update = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        update.putLong(header.rows + newTimes.length).flip();
+        dataChannel.write(update, ROWS_POSITION);
+        dataChannel.write(textField(lastBarTime), LAST_BAR_POSITION);
+        dataChannel.force(false);
+    }
+
+    /**
+     * 全量写入缓存，先写临时文件再替换，避免读到半写的文件
+     */
+    private void write(String key, INDArray features, long[] barTimes, String lastBarTime) throws IOException {
+        if (!cacheDir.exists()) {
+            cacheDir.mkdirs();
+        }
+
+        DataType targetType = storageDataType;
+        if (!fitsStorageType(features, targetType)) {
+            logger.warn("Feature values of {} exceed {} range, storing as {}", key, targetType, features.dataType());
+            targetType = features.dataType();
+        }
+        INDArray stored = features.dataType() == targetType ? features : features.castTo(targetType);
+
+        File dataFile = new File(cacheDir, key + ".feat");
+        File timesFile = new File(cacheDir, key + ".times");
+        File tmpData = new File(cacheDir, key + ".feat.tmp");
+        File tmpTimes = new File(cacheDir, key + ".times.tmp");
+
+        try (FileChannel channel = FileChannel.open(tmpTimes.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeTimes(channel, barTimes);
+        }
+
+        try (FileChannel channel = FileChannel.open(tmpData.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.putInt(FeatureEngineeringService.FEATURE_SET_VERSION);
+            header.putInt((int) features.size(1));
+            header.putLong(features.size(0));
+            header.put(textField(stored.dataType().name()));
+            header.put(textField(lastBarTime));
+            header.position(0);
+            channel.write(header);
+            NDArrayFiles.writeData(channel, stored);
+        }
+
+        Files.move(tmpTimes.toPath(), timesFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmpData.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        logger.info("Feature cache written: {} ({} rows)", key, features.size(0));
+    }
+
+    /**
+     * 删除指定股票和周期的缓存
+     */
+    public void invalidate(String stockCode, String timeLevel) {
+        String key = cacheKey(stockCode, timeLevel);
+        new File(cacheDir, key + ".feat").delete();
+        new File(cacheDir, key + ".times").delete();
+    }
+
+    private static boolean fitsStorageType(INDArray features, DataType dataType) {
+        return dataType != DataType.FLOAT16 || features.length() == 0
+                || features.amaxNumber().doubleValue() <= FLOAT16_MAX;
+    }
+
+    private Header readHeader(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(buffer, 0);
+        buffer.flip();
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            return null;
+        }
+        if (buffer.getInt() != FeatureEngineeringService.FEATURE_SET_VERSION) {
+            return null;
+        }
+
+        int cols = buffer.getInt();
+        long rows = buffer.getLong();
+        DataType dataType = DataType.valueOf(readTextField(buffer));
+        if (cols != FeatureEngineeringService.FEATURE_COUNT
+                || channel.size() < HEADER_SIZE + rows * cols * dataType.width()) {
+            return null;
+        }
+        return new Header(rows, cols, dataType);
+    }
+
+    private long[] readTimes(FileChannel channel, long rows) throws IOException {
+        if (channel.size() < rows * Long.BYTES) {
+            throw new IOException("时间索引文件长度不足");
+        }
+        LongBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, rows * Long.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .asLongBuffer();
+        long[] times = new long[(int) rows];
+        mapped.get(times);
+        return times;
+    }
+
+    private void writeTimes(FileChannel channel, long[] times) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(times.length * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asLongBuffer().put(times);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer textField(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer field = ByteBuffer.allocate(TEXT_FIELD_SIZE);
+        field.put(bytes, 0, Math.min(bytes.length, TEXT_FIELD_SIZE));
+        field.position(0);
+        return field;
+    }
+
+    private static String readTextField(ByteBuffer buffer) {
+        byte[] bytes = new byte[TEXT_FIELD_SIZE];
+        buffer.get(bytes);
+        int length = 0;
+        while (length < bytes.length && bytes[length] != 0) {
+            length++;
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private static String cacheKey(String stockCode, String timeLevel) {
+        String level = timeLevel == null ? "default" : timeLevel;
+        return (stockCode + "_" + level).replaceAll("[^A-Za-z0-9._-]", "_")
+                + "_v" + FeatureEngineeringService.FEATURE_SET_VERSION;
+    }
+
+    private static class Header {
+        final long rows;
+        final int cols;
+        final DataType dataType;
+
+        Header(long rows, int cols, DataType dataType) {
+            this.rows = rows;
+            this.cols = cols;
+            this.dataType = dataType;
+        }
+    }
+}
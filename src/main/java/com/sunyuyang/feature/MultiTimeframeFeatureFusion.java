@@ -0,0 +1,184 @@
+package com.sunyuyang.feature;
+
+import com.sunyuyang.dao.ZhituStockDataDao;
+import com.sunyuyang.entity.ZhituStockKLine;
+import com.sunyuyang.util.NDArrayFiles;
+import com.sunyuyang.util.TradeTimeUtil;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 多周期特征融合
+ * 用as-of join把粗周期（如60分钟、日线）的特征对齐到细周期（如5分钟）K线上：
+ * 每根细周期K线只能看到在它结束时已经收盘的最后一根粗周期K线，不会引入未来信息。
+ * 分钟线的tradeTime是K线结束的时刻；日线及以上周期按K线日期当日收盘计，当天的日线在收盘前不可见。
+ * 两个序列都按时间升序，对齐过程是一次归并式线性扫描。
+ * 融合的周期由 {@link com.sunyuyang.entity.ModelConfig#getCoarseTimeLevels()} 配置，训练、增量微调和预测使用同一组周期。
+ */
+public class MultiTimeframeFeatureFusion {
+    private static final Logger logger = LoggerFactory.getLogger(MultiTimeframeFeatureFusion.class);
+
+    // 拉取粗周期数据时向前多取的自然日，保证指标有足够的回看窗口
+    private static final int COARSE_WARM_UP_DAYS = 60;
+    // 收盘后才完整的周期
+    private static final Set<String> SESSION_TIME_LEVELS = Set.of("d", "w", "m", "y");
+
+    private final FeatureEngineeringService featureEngineeringService;
+    private final FeatureMatrixCache featureCache;
+
+    public MultiTimeframeFeatureFusion() {
+        this(new FeatureEngineeringService(), null);
+    }
+
+    public MultiTimeframeFeatureFusion(FeatureEngineeringService featureEngineeringService,
+                                       FeatureMatrixCache featureCache) {
+        this.featureEngineeringService = featureEngineeringService;
+        this.featureCache = featureCache;
+    }
+
+    /**
+     * as-of join：对每个细周期时间点，取可用时间不晚于它的最后一行粗周期特征
+     *
+     * @param fineTimes      细周期K线时间（epoch秒，升序）
+     * @param coarseTimes    粗周期K线完整可用的时间（epoch秒，升序）
+     * @param coarseFeatures 粗周期特征 [coarseTimes.length, cols]
+     * @return [fineTimes.length, cols]，之前没有可用粗周期数据的行为NaN
+     */
+    public INDArray asOfJoin(long[] fineTimes, long[] coarseTimes, INDArray coarseFeatures) {
+        if (coarseFeatures.size(0) != coarseTimes.length) {
+            throw new IllegalArgumentException("粗周期特征行数与时间数量不一致");
+        }
+        checkSorted(fineTimes, "fine");
+        checkSorted(coarseTimes, "coarse");
+
+        int cols = (int) coarseFeatures.size(1);
+        INDArray source = NDArrayFiles.isContiguous(coarseFeatures) ? coarseFeatures : coarseFeatures.dup('c');
+        double[] coarse = source.data().asDouble();
+        double[] joined = new double[fineTimes.length * cols];
+
+        int next = 0;
+        for (int i = 0; i < fineTimes.length; i++) {
+            // 推进到第一根尚不可用的粗周期K线
+            while (next < coarseTimes.length && coarseTimes[next] <= fineTimes[i]) {
+                next++;
+            }
+
+            int base = i * cols;
+            if (next == 0) {
+                for (int col = 0; col < cols; col++) {
+                    joined[base + col] = Double.NaN;
+                }
+            } else {
+                System.arraycopy(coarse, (next - 1) * cols, joined, base, cols);
+            }
+        }
+
+        return Nd4j.create(joined, new long[]{fineTimes.length, cols}, coarseFeatures.dataType());
+    }
+
+    /**
+     * 把多个粗周期的特征依次对齐并横向拼接
+     *
+     * @return [fineBars.size(), 各周期列数之和]，可直接作为 preprocessData 的额外特征
+     */
+    public INDArray fuse(List<ZhituStockKLine> fineBars, List<List<ZhituStockKLine>> coarseTimeframes) {
+        long[] fineTimes = toEpochSeconds(fineBars);
+        List<INDArray> joined = new ArrayList<>();
+
+        for (List<ZhituStockKLine> coarseBars : coarseTimeframes) {
+            if (coarseBars.isEmpty()) {
+                joined.add(Nd4j.valueArrayOf(new long[]{fineBars.size(), FeatureEngineeringService.FEATURE_COUNT},
+                        Double.NaN, featureEngineeringService.getDataType()));
+                continue;
+            }
+
+            INDArray coarseFeatures = featureCache != null
+                    ? featureCache.getFeatures(coarseBars)
+                    : featureEngineeringService.extractFeatures(coarseBars);
+            joined.add(asOfJoin(fineTimes, closeTimes(coarseBars), coarseFeatures));
+        }
+
+        if (joined.isEmpty()) {
+            return Nd4j.create(featureEngineeringService.getDataType(), fineBars.size(), 0);
+        }
+
+        INDArray fused = joined.size() == 1 ? joined.get(0) : Nd4j.hstack(joined);
+        logger.info("Fused {} coarse timeframes onto {} bars, {} context columns",
+                coarseTimeframes.size(), fineBars.size(), fused.size(1));
+        return fused;
+    }
+
+    /**
+     * 从数据库拉取指定周期的K线并融合到细周期K线上
+     *
+     * @param coarseTimeLevels 粗周期，例如 "60"、"d"
+     */
+    public INDArray fuse(ZhituStockDataDao stockDataDao, List<ZhituStockKLine> fineBars, String... coarseTimeLevels) {
+        if (fineBars.isEmpty()) {
+            return Nd4j.create(featureEngineeringService.getDataType(), 0, (long) coarseTimeLevels.length * FeatureEngineeringService.FEATURE_COUNT);
+        }
+
+        String stockCode = fineBars.get(0).getStockCode();
+        LocalDateTime start = TradeTimeUtil.parse(fineBars.get(0).getTradeTime()).minusDays(COARSE_WARM_UP_DAYS);
+        LocalDateTime end = TradeTimeUtil.parse(fineBars.get(fineBars.size() - 1).getTradeTime());
+
+        List<List<ZhituStockKLine>> coarseTimeframes = new ArrayList<>();
+        for (String timeLevel : coarseTimeLevels) {
+            coarseTimeframes.add(stockDataDao.getKLineData(stockCode, timeLevel, start, end));
+        }
+        return fuse(fineBars, coarseTimeframes);
+    }
+
+    /**
+     * 解析逗号分隔的周期列表，空字符串返回空数组
+     */
+    public static String[] parseTimeLevels(String timeLevels) {
+        return Arrays.stream(timeLevels.split(","))
+                .map(String::trim)
+                .filter(level -> !level.isEmpty())
+                .toArray(String[]::new);
+    }
+
+    /**
+     * 粗周期K线收盘（完整可用）的时间
+     * 周期未知时，时间部分为 00:00:00 的K线按日线处理
+     */
+    static long[] closeTimes(List<ZhituStockKLine> bars) {
+        long[] times = new long[bars.size()];
+        for (int i = 0; i < times.length; i++) {
+            ZhituStockKLine bar = bars.get(i);
+            String tradeTime = bar.getTradeTime();
+            boolean sessionBar = bar.getTimeLevel() != null
+                    ? SESSION_TIME_LEVELS.contains(bar.getTimeLevel())
+                    : tradeTime.length() == 10 || tradeTime.startsWith("00:00:00", 11);
+            times[i] = sessionBar
+                    ? TradeTimeUtil.toSessionCloseEpochSecond(tradeTime)
+                    : TradeTimeUtil.toEpochSecond(tradeTime);
+        }
+        return times;
+    }
+
+    private static long[] toEpochSeconds(List<ZhituStockKLine> bars) {
+        long[] times = new long[bars.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = TradeTimeUtil.toEpochSecond(bars.get(i).getTradeTime());
+        }
+        return times;
+    }
+
+    private static void checkSorted(long[] times, String name) {
+        for (int i = 1; i < times.length; i++) {
+            if (times[i] < times[i - 1]) {
+                throw new IllegalArgumentException(name + " 时间序列未按升序排列，位置: " + i);
+            }
+        }
+    }
+}
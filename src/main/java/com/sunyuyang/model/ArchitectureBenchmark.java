@@ -0,0 +1,109 @@
+package com.sunyuyang.model;
+
+import com.sunyuyang.entity.ModelConfig;
+import com.sunyuyang.util.PrefetchingBatchIterator;
+import com.sunyuyang.util.SlidingWindowDataSetIterator;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.util.Arrays;
+
+/**
+ * 网络结构的基准测试
+ * 在同一份合成时间序列（与 {@link DataParallelBenchmark} 相同）上用各结构训练相同的轮数，
+ * 比较参数量、训练吞吐、单窗口推理延迟（逐个窗口调用 output，预热后统计p50/p99）和测试集损失。
+ * <p>
+ * 用法: ArchitectureBenchmark [结构列表，默认全部] [轮数，默认3] [行数，默认20000] [延迟测量次数，默认1000]
+ */
+public class ArchitectureBenchmark {
+    private static final int WARM_UP_CALLS = 100;
+
+    public static void main(String[] args) {
+        String[] architectures = args.length > 0 ? args[0].split(",")
+                : Arrays.stream(ModelConfig.Architecture.values()).map(Enum::name).toArray(String[]::new);
+        int epochs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        int latencyCalls = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+        int timeSteps = DataParallelBenchmark.TIME_STEPS;
+        INDArray[] data = DataParallelBenchmark.syntheticSeries(rows, 42);
+        int windows = SlidingWindowDataSetIterator.windowCount(rows, timeSteps);
+        int trainWindows = (int) (windows * 0.8);
+
+        System.out.printf("行数: %d, 窗口: %d, 训练窗口: %d, 轮数: %d, 时间步长: %d%n",
+                rows, windows, trainWindows, epochs, timeSteps);
+        System.out.printf("%-12s %-10s %-16s %-12s %-12s %-12s%n",
+                "结构", "参数量", "训练(样本/秒)", "p50(ms)", "p99(ms)", "测试损失");
+
+        for (String architecture : architectures) {
+            ModelConfig config = new ModelConfig();
+            config.setArchitecture(ModelConfig.Architecture.valueOf(architecture.trim()));
+            config.setTimeSteps(timeSteps);
+            config.setPredictSteps(DataParallelBenchmark.PREDICT_STEPS);
+
+            LSTMModel lstmModel = new LSTMModel(config);
+            lstmModel.initialize(DataParallelBenchmark.FEATURES, DataParallelBenchmark.PREDICT_STEPS, timeSteps);
+            MultiLayerNetwork model = lstmModel.getModel();
+            model.setListeners();
+
+            PrefetchingBatchIterator trainIterator = PrefetchingBatchIterator.slidingWindows(data[0], data[1],
+                    timeSteps, 0, trainWindows, config.getBatchSize(), true, 1L, config.getDataType());
+            long start = System.nanoTime();
+            try {
+                for (int epoch = 0; epoch < epochs; epoch++) {
+                    model.fit(trainIterator);
+                    trainIterator.reset();
+                }
+            } finally {
+                trainIterator.shutdown();
+            }
+            double samplesPerSecond = (double) trainWindows * epochs / ((System.nanoTime() - start) / 1e9);
+
+            double[] latencies = singleWindowLatencies(model, data[0], trainWindows, windows, timeSteps,
+                    latencyCalls);
+
+            PrefetchingBatchIterator testIterator = PrefetchingBatchIterator.slidingWindows(data[0], data[1],
+                    timeSteps, trainWindows, windows, config.getBatchSize(), false, 1L, config.getDataType());
+            try {
+                System.out.printf("%-12s %-10d %-16.1f %-12.3f %-12.3f %-12.6f%n", config.getArchitecture(),
+                        model.numParams(), samplesPerSecond, percentile(latencies, 0.50),
+                        percentile(latencies, 0.99), AsyncValidator.averageScore(model, testIterator));
+            } finally {
+                testIterator.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 逐个测试窗口调用一次 output 的耗时（毫秒），窗口预先组装好，只计网络前向
+     */
+    private static double[] singleWindowLatencies(MultiLayerNetwork model, INDArray features,
+                                                  int fromWindow, int toWindow, int timeSteps, int calls) {
+        int available = toWindow - fromWindow;
+        INDArray[] inputs = new INDArray[Math.min(available, calls + WARM_UP_CALLS)];
+        for (int i = 0; i < inputs.length; i++) {
+            int window = fromWindow + i;
+            inputs[i] = features.get(NDArrayIndex.interval(window, window + timeSteps), NDArrayIndex.all())
+                    .dup('c').reshape(1, timeSteps, features.size(1));
+        }
+
+        double[] latencies = new double[calls];
+        for (int i = 0; i < WARM_UP_CALLS + calls; i++) {
+            INDArray input = inputs[i % inputs.length];
+            long start = System.nanoTime();
+            model.output(input);
+            if (i >= WARM_UP_CALLS) {
+                latencies[i - WARM_UP_CALLS] = (System.nanoTime() - start) / 1e6;
+            }
+        }
+        return latencies;
+    }
+
+    private static double percentile(double[] values, double quantile) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
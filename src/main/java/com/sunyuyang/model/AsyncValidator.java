@@ -0,0 +1,164 @@
+package com.sunyuyang.model;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 在后台线程上计算验证损失
+ * 持有与训练网络结构相同的独立网络，每次验证先把参数快照写入副本，再在验证集上逐批计算损失，训练线程不需要等待。
+ * 验证按提交顺序串行执行；验证集迭代器在验证期间只能由本类使用。
+ */
+public class AsyncValidator {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncValidator.class);
+
+    private final MultiLayerNetwork network;
+    private final DataSetIterator validationIterator;
+    private final ExecutorService executor;
+    private final List<Future<?>> pending = new ArrayList<>();
+    private final TreeMap<Integer, Double> scores = new TreeMap<>();
+
+    // 验证损失最低的参数快照，用于早停后恢复最优模型
+    private int bestEpoch = -1;
+    private double bestScore = Double.POSITIVE_INFINITY;
+    private INDArray bestParams;
+
+    public AsyncValidator(MultiLayerNetwork trainingNetwork, DataSetIterator validationIterator) {
+        // 从配置JSON重建网络而不是clone()：clone出的层配置与训练网络共享Dropout等有状态对象，
+        // 后台前向计算会清掉训练线程正在使用的Dropout掩码
+        this.network = new MultiLayerNetwork(MultiLayerConfiguration.fromJson(
+                trainingNetwork.getLayerWiseConfigurations().toJson()));
+        this.network.init();
+        this.validationIterator = validationIterator;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "async-validation");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 提交一次验证
+     *
+     * @param epoch  已完成的训练轮数
+     * @param params 参数快照，提交后不能再修改
+     */
+    public synchronized void submit(int epoch, INDArray params) {
+        pending.add(executor.submit(() -> {
+            network.setParams(params);
+            double score = averageScore(network, validationIterator);
+            synchronized (this) {
+                scores.put(epoch, score);
+                if (score < bestScore) {
+                    bestScore = score;
+                    bestEpoch = epoch;
+                    bestParams = params;
+                }
+            }
+            logger.info("验证 - 训练轮次 {}: 损失 {}", epoch, String.format("%.6f", score));
+        }));
+    }
+
+    /**
+     * 从检查点恢复已有的验证记录
+     *
+     * @param bestParams 最优参数快照，可为null（此时只恢复损失记录）
+     */
+    public synchronized void restore(Map<Integer, Double> previousScores, int previousBestEpoch,
+                                     INDArray bestParams) {
+        scores.putAll(previousScores);
+        Double score = previousScores.get(previousBestEpoch);
+        if (bestParams != null && score != null) {
+            this.bestEpoch = previousBestEpoch;
+            this.bestScore = score;
+            this.bestParams = bestParams;
+        }
+    }
+
+    /**
+     * 网络在迭代器全部批次上按样本数加权的平均损失，迭代器前后都会被重置
+     */
+    public static double averageScore(MultiLayerNetwork network, DataSetIterator iterator) {
+        double scoreSum = 0.0;
+        long exampleCount = 0;
+        iterator.reset();
+        while (iterator.hasNext()) {
+            DataSet batch = iterator.next();
+            int size = batch.numExamples();
+            scoreSum += network.score(batch) * size;
+            exampleCount += size;
+        }
+        iterator.reset();
+        return exampleCount > 0 ? scoreSum / exampleCount : Double.NaN;
+    }
+
+    /**
+     * 等待所有已提交的验证完成
+     */
+    public void awaitAll() {
+        List<Future<?>> futures;
+        synchronized (this) {
+            futures = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待验证结果时被中断", e);
+            } catch (ExecutionException e) {
+                logger.warn("验证失败", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * 已完成的验证损失：训练轮次 -> 损失
+     */
+    public synchronized Map<Integer, Double> getScores() {
+        return new TreeMap<>(scores);
+    }
+
+    /**
+     * 最近一次完成验证的训练轮次，尚未完成任何验证时为-1
+     */
+    public synchronized int getLastValidatedEpoch() {
+        return scores.isEmpty() ? -1 : scores.lastKey();
+    }
+
+    /**
+     * 验证损失最低的训练轮次，尚未完成任何验证时为-1
+     */
+    public synchronized int getBestEpoch() {
+        return bestEpoch;
+    }
+
+    public synchronized double getBestScore() {
+        return bestScore;
+    }
+
+    /**
+     * 验证损失最低时的参数快照（只读），尚未完成任何验证时为null
+     */
+    public synchronized INDArray getBestParams() {
+        return bestParams;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
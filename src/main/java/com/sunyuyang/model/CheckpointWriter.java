@@ -0,0 +1,166 @@
+package com.sunyuyang.model;
+
+import com.sunyuyang.entity.ModelConfig;
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 在后台线程上写训练检查点
+ * 训练线程只复制参数和更新器状态的快照，序列化和写盘在后台完成，训练不等待磁盘。
+ * 检查点使用模型包格式（{@link ModelBundle}）：checkpoint.bundle 是最近一次的参数和更新器状态，用于中断后继续训练；
+ * best.bundle 是验证损失最低时的参数。训练正常结束并保存最终模型后应调用 {@link #delete(File)} 删除检查点。
+ * 写入按提交顺序串行执行，每个文件都是先写临时文件再替换，进程被杀时不会留下不完整的检查点。
+ */
+public class CheckpointWriter {
+    private static final Logger logger = LoggerFactory.getLogger(CheckpointWriter.class);
+
+    public static final String FILE_NAME = "checkpoint.bundle";
+    public static final String BEST_FILE_NAME = "best.bundle";
+
+    private final File directory;
+    private final ModelConfig config;
+    private final ModelBundle.FeatureSpec featureSpec;
+    // 写盘用的网络，只在后台线程上使用
+    private final MultiLayerNetwork network;
+    private final ExecutorService executor;
+    private final List<Future<?>> pending = new ArrayList<>();
+
+    public CheckpointWriter(File directory, MultiLayerNetwork trainingNetwork, ModelConfig config, int timeSteps) {
+        this.directory = directory;
+        this.config = config;
+        this.featureSpec = ModelBundle.FeatureSpec.current(trainingNetwork.layerInputSize(0), timeSteps,
+                trainingNetwork.layerSize(trainingNetwork.getnLayers() - 1));
+        this.network = new MultiLayerNetwork(MultiLayerConfiguration.fromJson(
+                trainingNetwork.getLayerWiseConfigurations().toJson()));
+        this.network.init();
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 提交一个检查点
+     *
+     * @param params       参数快照，提交后不能再修改
+     * @param updaterState 更新器状态快照，可为null
+     * @param metadata     训练进度（轮次、损失记录等），恢复时原样读出
+     */
+    public synchronized void submit(INDArray params, INDArray updaterState, Map<String, String> metadata) {
+        pending.add(executor.submit(() -> write(FILE_NAME, params, updaterState, metadata)));
+    }
+
+    /**
+     * 提交最优模型的参数快照
+     */
+    public synchronized void submitBest(INDArray params, Map<String, String> metadata) {
+        pending.add(executor.submit(() -> write(BEST_FILE_NAME, params, null, metadata)));
+    }
+
+    private void write(String fileName, INDArray params, INDArray updaterState, Map<String, String> metadata) {
+        long start = System.nanoTime();
+        network.params().assign(params);
+        INDArray state = updaterState(network);
+        if (updaterState != null && state != null) {
+            state.assign(updaterState);
+        }
+
+        File file = new File(directory, fileName);
+        try {
+            new ModelBundle(network, config, featureSpec, null, null, new LinkedHashMap<>(metadata))
+                    .save(file, updaterState != null);
+        } catch (IOException e) {
+            // 检查点失败不影响训练，只是中断后无法从这里恢复
+            logger.warn("检查点写入失败: {}", file.getPath(), e);
+            return;
+        }
+        logger.debug("检查点已写入: {} ({} ms)", file.getPath(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * 等待所有已提交的检查点写完
+     */
+    public void awaitAll() {
+        List<Future<?>> futures;
+        synchronized (this) {
+            futures = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待检查点写入时被中断", e);
+            } catch (ExecutionException e) {
+                logger.warn("检查点写入失败", e.getCause());
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * 读取目录中的检查点（含更新器状态），不存在或无法读取时返回null
+     */
+    public static ModelBundle load(File directory) {
+        return loadFile(new File(directory, FILE_NAME), true);
+    }
+
+    /**
+     * 读取目录中的最优模型检查点，不存在或无法读取时返回null
+     */
+    public static ModelBundle loadBest(File directory) {
+        return loadFile(new File(directory, BEST_FILE_NAME), false);
+    }
+
+    private static ModelBundle loadFile(File file, boolean loadUpdater) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return ModelBundle.load(file, loadUpdater);
+        } catch (IOException e) {
+            logger.warn("检查点无法读取，忽略: {}", file.getPath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * 删除目录中的检查点文件
+     */
+    public static void delete(File directory) {
+        for (String fileName : new String[]{FILE_NAME, BEST_FILE_NAME}) {
+            File file = new File(directory, fileName);
+            if (file.exists() && !file.delete()) {
+                logger.warn("检查点删除失败: {}", file.getPath());
+            }
+        }
+    }
+
+    /**
+     * 网络的更新器状态视图（不是副本），更新器没有状态时为null
+     */
+    public static INDArray updaterState(MultiLayerNetwork network) {
+        Updater updater = network.getUpdater(true);
+        return updater == null ? null : updater.getStateViewArray();
+    }
+}
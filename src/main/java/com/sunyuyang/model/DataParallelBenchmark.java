@@ -0,0 +1,114 @@
+package com.sunyuyang.model;
+
+import com.sunyuyang.entity.ModelConfig;
+import com.sunyuyang.util.PrefetchingBatchIterator;
+import com.sunyuyang.util.SlidingWindowDataSetIterator;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.Random;
+
+/**
+ * 数据并行训练的基准测试
+ * 在合成的时间序列上分别用不同的工作线程数训练相同的轮数，比较每轮耗时、最终训练损失和测试集损失。
+ * <p>
+ * 用法: DataParallelBenchmark [工作线程数列表，默认1,2,4] [轮数，默认3] [行数，默认20000]
+ */
+public class DataParallelBenchmark {
+    static final int TIME_STEPS = 30;
+    static final int FEATURES = 20;
+    static final int PREDICT_STEPS = 8;
+
+    public static void main(String[] args) {
+        String[] workerCounts = (args.length > 0 ? args[0] : "1,2,4").split(",");
+        int epochs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+        INDArray[] data = syntheticSeries(rows, 42);
+        int windows = SlidingWindowDataSetIterator.windowCount(rows, TIME_STEPS);
+        int trainWindows = (int) (windows * 0.8);
+
+        System.out.printf("行数: %d, 窗口: %d, 训练窗口: %d, 轮数: %d, CPU核数: %d%n",
+                rows, windows, trainWindows, epochs, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-8s %-14s %-14s %-14s%n", "workers", "每轮耗时(ms)", "训练损失", "测试损失");
+
+        for (String workerCount : workerCounts) {
+            ModelConfig config = new ModelConfig();
+            config.setTimeSteps(TIME_STEPS);
+            config.setPredictSteps(PREDICT_STEPS);
+            config.setWorkers(Integer.parseInt(workerCount.trim()));
+
+            LSTMModel lstmModel = new LSTMModel(config);
+            lstmModel.initialize(FEATURES, PREDICT_STEPS, TIME_STEPS);
+            MultiLayerNetwork model = lstmModel.getModel();
+            EpochScoreListener scoreListener = new EpochScoreListener();
+            model.setListeners(scoreListener);
+
+            PrefetchingBatchIterator trainIterator = PrefetchingBatchIterator.slidingWindows(data[0], data[1],
+                    TIME_STEPS, 0, trainWindows, config.getBatchSize(), true, 1L, config.getDataType());
+            DataParallelTrainer trainer = config.getWorkers() > 1
+                    ? new DataParallelTrainer(model, config.getWorkers(), config.getAveragingFrequency()) : null;
+            long start = System.nanoTime();
+            try {
+                for (int epoch = 0; epoch < epochs; epoch++) {
+                    if (trainer != null) {
+                        trainer.fit(trainIterator);
+                    } else {
+                        model.fit(trainIterator);
+                    }
+                    trainIterator.reset();
+                }
+            } finally {
+                trainIterator.shutdown();
+                if (trainer != null) {
+                    trainer.shutdown();
+                }
+            }
+            double epochMillis = (System.nanoTime() - start) / 1e6 / epochs;
+
+            PrefetchingBatchIterator testIterator = PrefetchingBatchIterator.slidingWindows(data[0], data[1],
+                    TIME_STEPS, trainWindows, windows, config.getBatchSize(), false, 1L, config.getDataType());
+            try {
+                System.out.printf("%-8d %-14.1f %-14.6f %-14.6f%n", config.getWorkers(), epochMillis,
+                        scoreListener.getLastEpochScore(), AsyncValidator.averageScore(model, testIterator));
+            } finally {
+                testIterator.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 合成数据：特征是相互独立的AR(1)序列，第i步标签是最后几个时间步特征的固定线性组合加噪声
+     *
+     * @return {特征 [rows, FEATURES], 标签 [rows, PREDICT_STEPS]}，第r行标签对应以第r行结尾的窗口
+     */
+    static INDArray[] syntheticSeries(int rows, long seed) {
+        Random random = new Random(seed);
+        float[][] features = new float[rows][FEATURES];
+        float[][] labels = new float[rows][PREDICT_STEPS];
+        float[][] weights = new float[PREDICT_STEPS][FEATURES];
+        for (float[] row : weights) {
+            for (int j = 0; j < FEATURES; j++) {
+                row[j] = (float) (random.nextGaussian() / FEATURES);
+            }
+        }
+
+        for (int r = 0; r < rows; r++) {
+            for (int j = 0; j < FEATURES; j++) {
+                float previous = r > 0 ? features[r - 1][j] : 0f;
+                features[r][j] = (float) (0.9 * previous + 0.3 * random.nextGaussian());
+            }
+            for (int k = 0; k < PREDICT_STEPS; k++) {
+                double value = 0.05 * random.nextGaussian();
+                for (int lag = 0; lag < 3 && lag <= r; lag++) {
+                    for (int j = 0; j < FEATURES; j++) {
+                        value += weights[k][j] * features[r - lag][j];
+                    }
+                }
+                labels[r][k] = (float) value;
+            }
+        }
+        return new INDArray[]{Nd4j.create(features), Nd4j.create(labels)};
+    }
+}
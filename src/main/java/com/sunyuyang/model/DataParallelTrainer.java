@@ -0,0 +1,278 @@
+package com.sunyuyang.model;
+
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.updater.BaseMultiLayerUpdater;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 数据并行训练
+ * 每个工作线程持有一个模型副本，依次分到不同的minibatch独立训练；每个副本训练 averagingFrequency 个批次后，
+ * 把所有副本的参数和更新器状态（Adam的一阶、二阶矩）取平均，写回主模型并同步到每个副本。
+ * <p>
+ * 主模型的训练监听器在每次参数平均后收到一次 iterationDone（score为这一轮所有批次按样本数加权的平均损失，
+ * {@link TelemetryListener} 另外收到这一轮所有副本训练的样本总数），
+ * 每轮结束收到 onEpochStart/onEpochEnd，与单线程 fit 的监听器语义一致。
+ * 副本和主模型的迭代计数保持一致：每次参数平均后都取副本中最大的计数（即单个副本训练过的批次数），
+ * 学习率调度和Adam的偏差修正在各副本和主模型上看到的是同一个步数。
+ * 每个工作线程上的ND4J运算本身也是多线程的，工作线程较多时应相应减小 OMP_NUM_THREADS，避免线程超额订阅。
+ */
+public class DataParallelTrainer {
+    private static final Logger logger = LoggerFactory.getLogger(DataParallelTrainer.class);
+
+    private final MultiLayerNetwork model;
+    private final int averagingFrequency;
+    private final List<MultiLayerNetwork> replicas;
+    private final ExecutorService executor;
+    // 分给副本的批次副本按位置复用，形状不变时只复制数据，不再每批分配新数组
+    private final List<DataSet> batchCopies = new ArrayList<>();
+
+    /**
+     * @param model              主模型，需已初始化；训练结果写回该模型
+     * @param workers            工作线程（模型副本）数
+     * @param averagingFrequency 每个副本训练多少个批次后做一次参数平均
+     */
+    public DataParallelTrainer(MultiLayerNetwork model, int workers, int averagingFrequency) {
+        if (workers < 1 || averagingFrequency < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "参数无效: workers=%d, averagingFrequency=%d", workers, averagingFrequency));
+        }
+        this.model = model;
+        this.averagingFrequency = averagingFrequency;
+
+        // 副本从配置JSON重建，不与主模型共享Dropout等有状态对象
+        String configJson = model.getLayerWiseConfigurations().toJson();
+        this.replicas = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            MultiLayerNetwork replica = new MultiLayerNetwork(MultiLayerConfiguration.fromJson(configJson));
+            replica.init(model.params().dup(), false);
+            replica.setIterationCount(model.getIterationCount());
+            replica.setEpochCount(model.getEpochCount());
+            replicas.add(replica);
+        }
+        copyUpdaterState(model);
+
+        this.executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "data-parallel-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.info("数据并行训练 - 工作线程: {}, 参数平均频率: {} 批", workers, averagingFrequency);
+    }
+
+    /**
+     * 训练一轮
+     * 迭代器返回的批次会被复制，迭代器可以复用批次缓冲区
+     */
+    public void fit(DataSetIterator iterator) {
+        for (TrainingListener listener : model.getListeners()) {
+            listener.onEpochStart(model);
+        }
+
+        int workers = replicas.size();
+        while (iterator.hasNext()) {
+            // 按轮转方式给每个副本分配最多 averagingFrequency 个批次
+            List<List<DataSet>> assignments = new ArrayList<>(workers);
+            for (int i = 0; i < workers; i++) {
+                assignments.add(new ArrayList<>(averagingFrequency));
+            }
+            int assigned = 0;
+            while (assigned < workers * averagingFrequency && iterator.hasNext()) {
+                DataSet batch = iterator.next();
+                assignments.get(assigned % workers).add(copyBatch(assigned, batch));
+                assigned++;
+            }
+
+            List<Future<double[]>> results = new ArrayList<>(workers);
+            for (int i = 0; i < workers; i++) {
+                MultiLayerNetwork replica = replicas.get(i);
+                List<DataSet> batches = assignments.get(i);
+                results.add(executor.submit(() -> fitBatches(replica, batches)));
+            }
+
+            double scoreSum = 0.0;
+            long exampleCount = 0;
+            int activeReplicas = 0;
+            for (Future<double[]> result : results) {
+                double[] scoreAndCount = await(result);
+                scoreSum += scoreAndCount[0];
+                exampleCount += (long) scoreAndCount[1];
+                if (scoreAndCount[1] > 0) {
+                    activeReplicas++;
+                }
+            }
+
+            averageReplicas(activeReplicas);
+
+            model.setScore(exampleCount > 0 ? scoreSum / exampleCount : Double.NaN);
+            syncIterationCount();
+            for (TrainingListener listener : model.getListeners()) {
+                if (listener instanceof TelemetryListener) {
+                    ((TelemetryListener) listener).setParallelExamples(exampleCount);
+                }
+                listener.iterationDone(model, model.getIterationCount(), model.getEpochCount());
+            }
+        }
+
+        for (TrainingListener listener : model.getListeners()) {
+            listener.onEpochEnd(model);
+        }
+        model.incrementEpochCount();
+        for (MultiLayerNetwork replica : replicas) {
+            replica.setEpochCount(model.getEpochCount());
+        }
+    }
+
+    /**
+     * 把主模型和全部副本的迭代计数对齐到副本中的最大值
+     * 轮转分配下第一个副本分到的批次最多，本轮分到批次较少的副本也跟上，下一轮的Adam偏差修正与平均后的矩一致
+     */
+    private void syncIterationCount() {
+        int iterationCount = model.getIterationCount();
+        for (MultiLayerNetwork replica : replicas) {
+            iterationCount = Math.max(iterationCount, replica.getIterationCount());
+        }
+        model.setIterationCount(iterationCount);
+        for (MultiLayerNetwork replica : replicas) {
+            replica.setIterationCount(iterationCount);
+        }
+    }
+
+    /**
+     * 把迭代器返回的批次复制到第 slot 个复用的批次副本中
+     * 上一轮的副本在所有工作线程结束后才会被覆盖
+     */
+    private DataSet copyBatch(int slot, DataSet batch) {
+        INDArray features = batch.getFeatures();
+        INDArray labels = batch.getLabels();
+        if (slot < batchCopies.size()) {
+            DataSet copy = batchCopies.get(slot);
+            if (copy.getFeatures().equalShapes(features) && copy.getLabels().equalShapes(labels)
+                    && copy.getFeatures().dataType() == features.dataType()
+                    && copy.getLabels().dataType() == labels.dataType()) {
+                copy.getFeatures().assign(features);
+                copy.getLabels().assign(labels);
+                return copy;
+            }
+        }
+        DataSet copy = new DataSet(features.dup(), labels.dup());
+        if (slot < batchCopies.size()) {
+            batchCopies.set(slot, copy);
+        } else {
+            batchCopies.add(copy);
+        }
+        return copy;
+    }
+
+    /**
+     * 在一个副本上依次训练分到的批次
+     *
+     * @return {按样本数加权的损失之和, 样本数}
+     */
+    private static double[] fitBatches(MultiLayerNetwork replica, List<DataSet> batches) {
+        double scoreSum = 0.0;
+        long exampleCount = 0;
+        for (DataSet batch : batches) {
+            replica.fit(batch);
+            int size = batch.numExamples();
+            scoreSum += replica.score() * size;
+            exampleCount += size;
+        }
+        return new double[]{scoreSum, exampleCount};
+    }
+
+    /**
+     * 对参与了本轮训练的副本（前 activeReplicas 个，轮转分配保证了这一点）取平均，写回主模型并同步到全部副本
+     */
+    private void averageReplicas(int activeReplicas) {
+        if (activeReplicas == 0) {
+            return;
+        }
+
+        INDArray params = replicas.get(0).params().dup();
+        for (int i = 1; i < activeReplicas; i++) {
+            params.addi(replicas.get(i).params());
+        }
+        params.divi(activeReplicas);
+        model.params().assign(params);
+        for (MultiLayerNetwork replica : replicas) {
+            replica.params().assign(params);
+        }
+
+        INDArray state = updaterState(replicas.get(0));
+        if (state != null) {
+            INDArray averaged = state.dup();
+            for (int i = 1; i < activeReplicas; i++) {
+                averaged.addi(updaterState(replicas.get(i)));
+            }
+            averaged.divi(activeReplicas);
+            for (MultiLayerNetwork replica : replicas) {
+                updaterState(replica).assign(averaged);
+            }
+            INDArray modelState = updaterState(model);
+            if (modelState != null) {
+                modelState.assign(averaged);
+            }
+        }
+    }
+
+    /**
+     * 把主模型的更新器状态复制到所有副本（例如在已训练过的模型上继续训练时）
+     */
+    private void copyUpdaterState(MultiLayerNetwork source) {
+        INDArray sourceState = updaterState(source);
+        if (sourceState == null) {
+            return;
+        }
+        for (MultiLayerNetwork replica : replicas) {
+            INDArray state = updaterState(replica);
+            if (state != null) {
+                state.assign(sourceState);
+            }
+        }
+    }
+
+    private static INDArray updaterState(MultiLayerNetwork network) {
+        Updater updater = network.getUpdater(true);
+        if (updater instanceof BaseMultiLayerUpdater) {
+            return ((BaseMultiLayerUpdater<?>) updater).getStateViewArray();
+        }
+        return null;
+    }
+
+    private static double[] await(Future<double[]> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待工作线程时被中断", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("工作线程训练失败", e.getCause());
+        }
+    }
+
+    public int getWorkers() {
+        return replicas.size();
+    }
+
+    public int getAveragingFrequency() {
+        return averagingFrequency;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
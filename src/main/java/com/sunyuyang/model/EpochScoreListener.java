@@ -0,0 +1,81 @@
+package com.sunyuyang.model;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 在fit过程中累计每个minibatch的损失，得到每轮的平均训练损失，不需要额外遍历一次训练集
+ * minibatch损失是参数更新前前向计算的结果（包含Dropout），按批大小加权平均。
+ * 可选地每 validationFrequency 轮把当前参数快照交给 {@link AsyncValidator} 在后台计算验证损失。
+ */
+public class EpochScoreListener extends BaseTrainingListener {
+    private final AsyncValidator validator;
+    private final int validationFrequency;
+
+    private double scoreSum = 0.0;
+    private long exampleCount = 0;
+    private int completedEpochs = 0;
+    private final List<Double> epochScores = new ArrayList<>();
+
+    public EpochScoreListener() {
+        this(null, 0);
+    }
+
+    /**
+     * @param validator           后台验证器，为null时不做验证
+     * @param validationFrequency 每多少轮验证一次，0表示不验证
+     */
+    public EpochScoreListener(AsyncValidator validator, int validationFrequency) {
+        this.validator = validator;
+        this.validationFrequency = validationFrequency;
+    }
+
+    @Override
+    public void iterationDone(Model model, int iteration, int epoch) {
+        // 数据并行训练时主模型没有输入，每次参数平均报告的是一轮的平均损失，按等权处理
+        int batchSize = model.input() != null ? Math.max(1, model.batchSize()) : 1;
+        scoreSum += model.score() * batchSize;
+        exampleCount += batchSize;
+    }
+
+    @Override
+    public void onEpochEnd(Model model) {
+        epochScores.add(exampleCount > 0 ? scoreSum / exampleCount : Double.NaN);
+        scoreSum = 0.0;
+        exampleCount = 0;
+        completedEpochs++;
+
+        if (validator != null && validationFrequency > 0 && completedEpochs % validationFrequency == 0) {
+            // 参数快照在训练线程上复制，验证与下一轮训练并行
+            validator.submit(completedEpochs, ((MultiLayerNetwork) model).params().dup());
+        }
+    }
+
+    /**
+     * 从检查点继续训练时恢复已完成轮次的损失，之后的验证轮次按恢复后的轮数计算
+     */
+    public void restore(List<Double> previousEpochScores) {
+        epochScores.addAll(previousEpochScores);
+        completedEpochs += previousEpochScores.size();
+    }
+
+    /**
+     * 最近一轮的平均训练损失，尚未完成任何一轮时为NaN
+     */
+    public double getLastEpochScore() {
+        return epochScores.isEmpty() ? Double.NaN : epochScores.get(epochScores.size() - 1);
+    }
+
+    public List<Double> getEpochScores() {
+        return Collections.unmodifiableList(epochScores);
+    }
+
+    public int getCompletedEpochs() {
+        return completedEpochs;
+    }
+}
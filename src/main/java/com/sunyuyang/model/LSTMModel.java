@@ -1,15 +1,24 @@
 package com.sunyuyang.model;
 
 import com.sunyuyang.entity.ModelConfig;
+import com.sunyuyang.feature.FeatureEngineeringService;
+import com.sunyuyang.util.ColumnNormalizer;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
 import org.deeplearning4j.nn.conf.*;
 import org.deeplearning4j.nn.conf.inputs.InputType;
 import org.deeplearning4j.nn.conf.layers.*;
+import org.deeplearning4j.nn.conf.layers.convolutional.Cropping1D;
+import org.deeplearning4j.nn.conf.layers.recurrent.LastTimeStep;
+import org.deeplearning4j.nn.conf.layers.recurrent.SimpleRnn;
+import org.deeplearning4j.nn.conf.preprocessor.ComposableInputPreProcessor;
+import org.deeplearning4j.nn.conf.preprocessor.FeedForwardToRnnPreProcessor;
+import org.deeplearning4j.nn.conf.preprocessor.RnnToFeedForwardPreProcessor;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
 import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.learning.config.Adam;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 import org.slf4j.Logger;
@@ -17,28 +26,66 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 
 public class LSTMModel {
     private static final Logger logger = LoggerFactory.getLogger(LSTMModel.class);
     public MultiLayerNetwork model;
     private ModelConfig config;
+    private ModelBundle bundle;
+    private int timeSteps;
 
     public LSTMModel(ModelConfig config) {
         this.config = config;
     }
 
     /**
-     * 加载模型
+     * 加载模型（用于预测，不恢复更新器状态）
      */
     public static LSTMModel loadModel(String modelName) {
+        return loadModel(modelName, false);
+    }
+
+    /**
+     * 加载模型
+     * 优先读取模型包，其次是推理版本的模型包，最后兼容旧的 model.zip
+     *
+     * @param withUpdater 是否恢复更新器状态（继续训练时需要）
+     */
+    public static LSTMModel loadModel(String modelName, boolean withUpdater) {
         try {
-            File modelFile = new File("models/" + modelName + "/model.zip");
+            File modelDir = new File("models/" + modelName);
+            File bundleFile = new File(modelDir, ModelBundle.FILE_NAME);
+            File inferenceFile = new File(modelDir, ModelBundle.INFERENCE_FILE_NAME);
+            File modelFile = new File(modelDir, "model.zip");
+
+            if (!bundleFile.exists() && !withUpdater && inferenceFile.exists()) {
+                bundleFile = inferenceFile;
+            }
+
+            if (bundleFile.exists()) {
+                long start = System.nanoTime();
+                ModelBundle bundle = ModelBundle.load(bundleFile, withUpdater);
+                if (!bundle.getFeatureSpec().isCurrent()) {
+                    throw new IOException(String.format("模型特征版本 %d 与当前特征版本 %d 不一致，需要重新训练",
+                            bundle.getFeatureSpec().getFeatureSetVersion(),
+                            FeatureEngineeringService.FEATURE_SET_VERSION));
+                }
+
+                LSTMModel lstmModel = new LSTMModel(bundle.getConfig());
+                lstmModel.model = bundle.getNetwork();
+                lstmModel.bundle = bundle;
+
+                logger.info("Model loaded from: {} in {} ms", bundleFile.getAbsolutePath(),
+                        (System.nanoTime() - start) / 1_000_000);
+                return lstmModel;
+            }
 
             if (!modelFile.exists()) {
                 throw new IOException("Model file not found: " + modelFile.getPath());
             }
 
-            MultiLayerNetwork loadedModel = ModelSerializer.restoreMultiLayerNetwork(modelFile);
+            MultiLayerNetwork loadedModel = ModelSerializer.restoreMultiLayerNetwork(modelFile, withUpdater);
 
             LSTMModel lstmModel = new LSTMModel(ModelConfig.getDefaultConfig());
             lstmModel.model = loadedModel;
@@ -52,52 +99,53 @@ public class LSTMModel {
     }
 
     /**
-     * 构建LSTM模型配置 - 修正版本
+     * 按 ModelConfig 中的网络结构构建模型配置
+     * 各结构共用同一套优化器设置和 全连接层 -> 输出层 的头部，输入都是 [batch, time_steps, features]（NWC），
+     * 保存和加载方式完全相同。
      */
     public MultiLayerConfiguration buildModelConfig(int numInputFeatures, int numOutputSteps, int timeSteps) {
-        logger.info("Building LSTM model configuration...");
+        logger.info("Building {} model configuration...", config.getArchitecture());
         logger.info("Input features: {}, Output steps: {}, Time steps: {}",
                 numInputFeatures, numOutputSteps, timeSteps);
 
-        return new NeuralNetConfiguration.Builder()
+        NeuralNetConfiguration.ListBuilder builder = new NeuralNetConfiguration.Builder()
                 .seed(12345)
+                .dataType(config.getDataType())
+                // 前向、反向传播的激活和梯度在工作区中复用，不再逐批分配堆外内存
+                .trainingWorkspaceMode(config.getWorkspaceMode())
+                .inferenceWorkspaceMode(config.getWorkspaceMode())
                 .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
                 .updater(new Adam(config.getLearningRate()))
                 .weightInit(WeightInit.XAVIER)
                 .l2(1e-4)
-                .list()
-
-                // 第一LSTM层 - 输入应该是时间步长，而不是特征数
-                // 注意：LSTM层的nIn应该是特征数，但输入形状需要正确排列
-                .layer(new LSTM.Builder()
-                        .name("lstm-layer-1")
-                        .nIn(numInputFeatures)  // 输入特征数
-                        .nOut(config.getLstmLayer1Size())
-                        .activation(Activation.TANH)
-                        .gateActivationFunction(Activation.SIGMOID)
-                        .dropOut(config.getDropoutRate())
-                        .build())
+                .list();
 
-                // 第二LSTM层
-                .layer(new LSTM.Builder()
-                        .name("lstm-layer-2")
-                        .nIn(config.getLstmLayer1Size())
-                        .nOut(config.getLstmLayer2Size())
-                        .activation(Activation.TANH)
-                        .gateActivationFunction(Activation.SIGMOID)
-                        .dropOut(config.getDropoutRate())
-                        .build())
+        int encoderSize;
+        switch (config.getArchitecture()) {
+            case SIMPLE_RNN:
+                encoderSize = addSimpleRnnLayers(builder, numInputFeatures);
+                break;
+            case TCN:
+                encoderSize = addTcnLayers(builder, numInputFeatures, timeSteps);
+                break;
+            case ATTENTION:
+                encoderSize = addAttentionLayers(builder, numInputFeatures);
+                break;
+            default:
+                encoderSize = addLstmLayers(builder, numInputFeatures);
+        }
 
+        return builder
                 // 全连接层
                 .layer(new DenseLayer.Builder()
                         .name("dense-layer")
-                        .nIn(config.getLstmLayer2Size())
+                        .nIn(encoderSize)
                         .nOut(config.getDenseLayerSize())
                         .activation(Activation.RELU)
                         .build())
 
-                // 输出层 - 修改为DenseLayer，因为我们预测的是多步输出
-                .layer(new DenseLayer.Builder()
+                // 输出层 - 回归多步输出，MSE损失
+                .layer(new OutputLayer.Builder(LossFunctions.LossFunction.MSE)
                         .name("output-layer")
                         .nIn(config.getDenseLayerSize())
                         .nOut(numOutputSteps)  // 输出步数
@@ -105,15 +153,140 @@ public class LSTMModel {
                         .build())
 
                 // 添加输入类型设置
-                .setInputType(InputType.recurrent(numInputFeatures, timeSteps))
+                .setInputType(InputType.recurrent(numInputFeatures, timeSteps, RNNFormat.NWC))
                 .build();
     }
 
+    /**
+     * 两层LSTM，第二层只保留最后一个时间步的输出
+     *
+     * @return 编码器输出的特征数
+     */
+    private int addLstmLayers(NeuralNetConfiguration.ListBuilder builder, int numInputFeatures) {
+        // 第一LSTM层 - 输入按 [batch, time_steps, features] 排列（NWC）
+        builder.layer(new LSTM.Builder()
+                .name("lstm-layer-1")
+                .nIn(numInputFeatures)  // 输入特征数
+                .nOut(config.getLstmLayer1Size())
+                .activation(Activation.TANH)
+                .gateActivationFunction(Activation.SIGMOID)
+                .dataFormat(RNNFormat.NWC)
+                .dropOut(config.getDropoutRate())
+                .build());
+
+        // 第二LSTM层 - 只保留最后一个时间步的输出，供全连接层使用
+        builder.layer(new LastTimeStep(new LSTM.Builder()
+                .name("lstm-layer-2")
+                .nIn(config.getLstmLayer1Size())
+                .nOut(config.getLstmLayer2Size())
+                .activation(Activation.TANH)
+                .gateActivationFunction(Activation.SIGMOID)
+                .dataFormat(RNNFormat.NWC)
+                .dropOut(config.getDropoutRate())
+                .build()));
+        return config.getLstmLayer2Size();
+    }
+
+    /**
+     * 两层简单循环层（DL4J 1.0.0-M2.1 没有GRU层，这是最接近的轻量循环结构），每步只有一次矩阵乘法
+     * 该版本的 SimpleRnn 在 NWC 格式下反向传播 Dropout 时形状不匹配，所以这两层不加 Dropout。
+     */
+    private int addSimpleRnnLayers(NeuralNetConfiguration.ListBuilder builder, int numInputFeatures) {
+        builder.layer(new SimpleRnn.Builder()
+                .name("rnn-layer-1")
+                .nIn(numInputFeatures)
+                .nOut(config.getLstmLayer1Size())
+                .activation(Activation.TANH)
+                .dataFormat(RNNFormat.NWC)
+                .build());
+        builder.layer(new LastTimeStep(new SimpleRnn.Builder()
+                .name("rnn-layer-2")
+                .nIn(config.getLstmLayer1Size())
+                .nOut(config.getLstmLayer2Size())
+                .activation(Activation.TANH)
+                .dataFormat(RNNFormat.NWC)
+                .build()));
+        return config.getLstmLayer2Size();
+    }
+
+    /**
+     * 膨胀因果卷积（TCN），第i层膨胀率为2^i，所有时间步并行计算
+     * MultiLayerNetwork 不支持残差连接，这里是不带残差的堆叠。卷积和池化层按 NCW 计算，输入先转置；
+     * 裁剪掉前 timeSteps-1 步后只剩最后一个时间步，它的感受野是 1 + (kernel-1)(2^levels - 1)。
+     */
+    private int addTcnLayers(NeuralNetConfiguration.ListBuilder builder, int numInputFeatures, int timeSteps) {
+        int receptiveField = 1 + (config.getConvKernelSize() - 1) * ((1 << config.getTcnLevels()) - 1);
+        if (receptiveField < timeSteps) {
+            logger.warn("TCN感受野 {} 小于时间步长 {}，最后一步看不到窗口开头", receptiveField, timeSteps);
+        }
+
+        builder.inputPreProcessor(0, nwcToNcw());
+        int channels = numInputFeatures;
+        for (int level = 0; level < config.getTcnLevels(); level++) {
+            builder.layer(new Convolution1DLayer.Builder()
+                    .name("tcn-conv-" + (level + 1))
+                    .nIn(channels)
+                    .nOut(config.getConvChannels())
+                    .kernelSize(config.getConvKernelSize())
+                    .dilation(1 << level)
+                    .convolutionMode(ConvolutionMode.Causal)
+                    .rnnDataFormat(RNNFormat.NCW)
+                    .activation(Activation.RELU)
+                    .dropOut(level > 0 ? config.getDropoutRate() : 0.0)
+                    .build());
+            channels = config.getConvChannels();
+        }
+        builder.layer(new Cropping1D.Builder(timeSteps - 1, 0).name("last-time-step").build());
+        builder.layer(new GlobalPoolingLayer.Builder(PoolingType.MAX).name("flatten").build());
+        return channels;
+    }
+
+    /**
+     * 注意力编码器：因果卷积把每个时间步嵌入到 convChannels 维并带上局部的时间顺序，
+     * 多头自注意力在所有时间步之间交换信息，最后对时间取平均
+     */
+    private int addAttentionLayers(NeuralNetConfiguration.ListBuilder builder, int numInputFeatures) {
+        if (config.getConvChannels() % config.getAttentionHeads() != 0) {
+            throw new IllegalArgumentException(String.format("convChannels %d 不能被 attentionHeads %d 整除",
+                    config.getConvChannels(), config.getAttentionHeads()));
+        }
+
+        builder.inputPreProcessor(0, nwcToNcw());
+        builder.layer(new Convolution1DLayer.Builder()
+                .name("attention-embedding")
+                .nIn(numInputFeatures)
+                .nOut(config.getConvChannels())
+                .kernelSize(config.getConvKernelSize())
+                .convolutionMode(ConvolutionMode.Causal)
+                .rnnDataFormat(RNNFormat.NCW)
+                .activation(Activation.RELU)
+                .build());
+        builder.layer(new SelfAttentionLayer.Builder()
+                .name("self-attention")
+                .nIn(config.getConvChannels())
+                .nOut(config.getConvChannels())
+                .nHeads(config.getAttentionHeads())
+                .projectInput(true)
+                .dropOut(config.getDropoutRate())
+                .build());
+        builder.layer(new GlobalPoolingLayer.Builder(PoolingType.AVG).name("time-pooling").build());
+        return config.getConvChannels();
+    }
+
+    /**
+     * 把 [batch, time_steps, features] 的输入转成卷积层使用的 [batch, features, time_steps]
+     */
+    private static InputPreProcessor nwcToNcw() {
+        return new ComposableInputPreProcessor(new RnnToFeedForwardPreProcessor(RNNFormat.NWC),
+                new FeedForwardToRnnPreProcessor(RNNFormat.NCW));
+    }
+
     /**
      * 初始化模型
      */
     public void initialize(int numInputFeatures, int numOutputSteps, int timeSteps) {
         MultiLayerConfiguration modelConfig = buildModelConfig(numInputFeatures, numOutputSteps, timeSteps);
+        this.timeSteps = timeSteps;
         this.model = new MultiLayerNetwork(modelConfig);
         this.model.init();
 
@@ -138,25 +311,106 @@ public class LSTMModel {
     }
 
     /**
-     * 保存模型
+     * 保存模型（包含更新器状态，可继续训练）
      */
     public void saveModel(String modelName) {
+        saveModel(modelName, null, null, null);
+    }
+
+    /**
+     * 保存模型包，标准化器和训练元数据与网络写在同一个文件中
+     */
+    public void saveModel(String modelName, ColumnNormalizer featureNormalizer,
+                          ColumnNormalizer labelNormalizer, Map<String, String> metadata) {
+        saveModel(modelName, featureNormalizer, labelNormalizer, null, metadata);
+    }
+
+    /**
+     * 保存全市场模型包，额外写入每只训练股票的特征标准化器
+     */
+    public void saveModel(String modelName, ColumnNormalizer featureNormalizer, ColumnNormalizer labelNormalizer,
+                          Map<String, ColumnNormalizer> symbolNormalizers, Map<String, String> metadata) {
+        writeBundle(modelName, ModelBundle.FILE_NAME, getModel(), getModel().params().dataType(), true,
+                featureNormalizer, labelNormalizer, symbolNormalizers, metadata);
+    }
+
+    /**
+     * 保存不含更新器状态的推理版本，文件更小，只能用于预测
+     * 配置了 inferencePruneSparsity 时在网络副本上剪枝后保存，参数按 inferenceWeightType 存储（FLOAT16或INT8时加载后反量化）
+     *
+     * @return 推理版本使用的网络，剪枝时是剪枝后的副本，用于和原模型比较精度
+     */
+    public MultiLayerNetwork saveInferenceModel(String modelName) {
+        MultiLayerNetwork inference = getModel();
+        if (config.getInferencePruneSparsity() > 0) {
+            inference = ModelCompressor.copyForInference(inference);
+            long zeros = ModelCompressor.prune(inference, config.getInferencePruneSparsity());
+            logger.info("推理版本剪枝: {} / {} 个参数为0", zeros, inference.numParams());
+        }
+        writeBundle(modelName, ModelBundle.INFERENCE_FILE_NAME, inference, config.getInferenceWeightType(), false,
+                getFeatureNormalizer(), getLabelNormalizer(),
+                bundle != null ? bundle.getSymbolNormalizers() : null,
+                bundle != null ? bundle.getMetadata() : null);
+        return inference;
+    }
+
+    private void writeBundle(String modelName, String fileName, MultiLayerNetwork network, DataType storageType,
+                             boolean includeUpdater, ColumnNormalizer featureNormalizer,
+                             ColumnNormalizer labelNormalizer, Map<String, ColumnNormalizer> symbolNormalizers,
+                             Map<String, String> metadata) {
         try {
             File modelDir = new File("models/" + modelName);
             if (!modelDir.exists()) {
                 modelDir.mkdirs();
             }
 
-            File modelFile = new File(modelDir, "model.zip");
-            ModelSerializer.writeModel(model, modelFile, true);
-
-            logger.info("Model saved to: {}", modelFile.getAbsolutePath());
+            ModelBundle newBundle = new ModelBundle(network, config, featureSpec(),
+                    featureNormalizer, labelNormalizer, symbolNormalizers, metadata);
+            newBundle.save(new File(modelDir, fileName), includeUpdater, storageType);
+            if (includeUpdater) {
+                this.bundle = newBundle;
+            }
         } catch (IOException e) {
             logger.error("Failed to save model", e);
             throw new RuntimeException("Failed to save model", e);
         }
     }
 
+    private ModelBundle.FeatureSpec featureSpec() {
+        if (bundle != null) {
+            return bundle.getFeatureSpec();
+        }
+        int steps = timeSteps > 0 ? timeSteps : config.getTimeSteps();
+        return ModelBundle.FeatureSpec.current(model.layerInputSize(0), steps,
+                model.layerSize(model.getnLayers() - 1));
+    }
+
+    /**
+     * 保存或加载的模型包，旧格式模型为null
+     */
+    public ModelBundle getBundle() {
+        return bundle;
+    }
+
+    public ColumnNormalizer getFeatureNormalizer() {
+        return bundle != null ? bundle.getFeatureNormalizer() : null;
+    }
+
+    /**
+     * 指定股票的特征标准化器；全市场模型按股票选择，其他模型与 {@link #getFeatureNormalizer()} 相同
+     */
+    public ColumnNormalizer getFeatureNormalizer(String symbol) {
+        return bundle != null ? bundle.getFeatureNormalizer(symbol) : null;
+    }
+
+    public ColumnNormalizer getLabelNormalizer() {
+        return bundle != null ? bundle.getLabelNormalizer() : null;
+    }
+
+    public ModelConfig getConfig() {
+        return config;
+    }
+
     /**
      * 获取模型摘要
      */
@@ -166,7 +420,7 @@ public class LSTMModel {
         }
 
         StringBuilder summary = new StringBuilder();
-        summary.append("=== LSTM Model Summary ===\n");
+        summary.append(String.format("=== %s Model Summary ===%n", config.getArchitecture()));
         summary.append(String.format("Total Parameters: %,d%n", model.numParams()));
         summary.append(String.format("Number of Layers: %d%n", model.getnLayers()));
 
@@ -0,0 +1,559 @@
+package com.sunyuyang.model;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.TypeReference;
+import com.sunyuyang.entity.ModelConfig;
+import com.sunyuyang.feature.FeatureEngineeringService;
+import com.sunyuyang.util.ColumnNormalizer;
+import com.sunyuyang.util.NDArrayFiles;
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 单文件模型包
+ * 文件布局：128字节小端文件头 | 元数据段（网络配置JSON、ModelConfig、特征规格、标准化器、按股票的特征标准化器、训练元数据）|
+ * 按64字节对齐的参数数据 | 可选的更新器状态数据。参数和更新器状态是C顺序、小端的原始数值，加载时整段批量读取。
+ * 文件头记录头部之后全部内容的CRC32，加载时校验，并检查网络输入输出与特征规格、标准化器列数一致。
+ * 不含更新器状态的推理版本只能用于预测，不能继续训练。
+ * 全市场模型为每只训练股票保存一份特征标准化器，预测时按股票代码选择，未参与训练的股票使用全市场合并的特征标准化器。
+ * 格式版本1的模型包没有按股票的标准化器，仍可读取。
+ * 推理版本的参数可以用FLOAT16或INT8存储（格式版本3）：INT8按参数张量对称量化，每个张量一个缩放系数，
+ * 缩放表写在元数据段末尾；加载时反量化为网络的计算精度，使用方式与普通模型包相同。
+ */
+public class ModelBundle {
+    private static final Logger logger = LoggerFactory.getLogger(ModelBundle.class);
+
+    public static final String FILE_NAME = "model.bundle";
+    public static final String INFERENCE_FILE_NAME = "inference.bundle";
+
+    private static final int MAGIC = 0x53504D42; // "SPMB"
+    private static final int FORMAT_VERSION = 3;
+    private static final int HEADER_SIZE = 128;
+    private static final int TEXT_FIELD_SIZE = 32;
+    private static final int BLOB_ALIGNMENT = 64;
+    private static final int FLAG_UPDATER = 1;
+
+    private final MultiLayerNetwork network;
+    private final ModelConfig config;
+    private final FeatureSpec featureSpec;
+    private final ColumnNormalizer featureNormalizer;
+    private final ColumnNormalizer labelNormalizer;
+    private final Map<String, ColumnNormalizer> symbolNormalizers;
+    private final Map<String, String> metadata;
+    private final boolean updaterIncluded;
+    // 文件中参数的存储类型，新建（尚未保存或加载）时为null
+    private final DataType paramStorageType;
+
+    /**
+     * @param featureNormalizer 特征标准化器，可为null
+     * @param labelNormalizer   标签标准化器，可为null
+     * @param metadata          训练元数据（训练时间、样本数、评估指标等），可为null
+     */
+    public ModelBundle(MultiLayerNetwork network, ModelConfig config, FeatureSpec featureSpec,
+                       ColumnNormalizer featureNormalizer, ColumnNormalizer labelNormalizer,
+                       Map<String, String> metadata) {
+        this(network, config, featureSpec, featureNormalizer, labelNormalizer, null, metadata, false, null);
+    }
+
+    /**
+     * @param symbolNormalizers 按股票代码索引的特征标准化器（全市场模型），可为null
+     */
+    public ModelBundle(MultiLayerNetwork network, ModelConfig config, FeatureSpec featureSpec,
+                       ColumnNormalizer featureNormalizer, ColumnNormalizer labelNormalizer,
+                       Map<String, ColumnNormalizer> symbolNormalizers, Map<String, String> metadata) {
+        this(network, config, featureSpec, featureNormalizer, labelNormalizer, symbolNormalizers, metadata, false,
+                null);
+    }
+
+    private ModelBundle(MultiLayerNetwork network, ModelConfig config, FeatureSpec featureSpec,
+                        ColumnNormalizer featureNormalizer, ColumnNormalizer labelNormalizer,
+                        Map<String, ColumnNormalizer> symbolNormalizers,
+                        Map<String, String> metadata, boolean updaterIncluded, DataType paramStorageType) {
+        this.network = network;
+        this.config = config;
+        this.featureSpec = featureSpec;
+        this.featureNormalizer = featureNormalizer;
+        this.labelNormalizer = labelNormalizer;
+        this.symbolNormalizers = symbolNormalizers == null
+                ? new LinkedHashMap<>() : new LinkedHashMap<>(symbolNormalizers);
+        this.metadata = metadata == null ? new LinkedHashMap<>() : new LinkedHashMap<>(metadata);
+        this.updaterIncluded = updaterIncluded;
+        this.paramStorageType = paramStorageType;
+    }
+
+    /**
+     * 写入模型包，先写临时文件再替换
+     *
+     * @param includeUpdater 是否包含更新器状态；推理版本不需要
+     */
+    public void save(File file, boolean includeUpdater) throws IOException {
+        save(file, includeUpdater, network.params().dataType());
+    }
+
+    /**
+     * 写入模型包，参数按指定类型存储
+     *
+     * @param storageType 参数的存储类型；与网络精度不同时（例如FLOAT16、INT8）只能用于推理版本，不能包含更新器状态
+     */
+    public void save(File file, boolean includeUpdater, DataType storageType) throws IOException {
+        checkConsistency(network, featureSpec, featureNormalizer, labelNormalizer, symbolNormalizers);
+
+        INDArray networkParams = network.params();
+        if (includeUpdater && storageType != networkParams.dataType()) {
+            throw new IllegalArgumentException("参数以 " + storageType + " 存储的模型包不能包含更新器状态");
+        }
+        if (storageType != DataType.INT8 && !storageType.isFPType()) {
+            throw new IllegalArgumentException("不支持的参数存储类型: " + storageType);
+        }
+        List<QuantizedTensor> quantization = new ArrayList<>();
+        INDArray params = storageType == DataType.INT8
+                ? quantize(network, quantization)
+                : storageType != networkParams.dataType() ? networkParams.castTo(storageType) : networkParams;
+        INDArray updaterState = includeUpdater ? updaterState(network) : null;
+        if (updaterState != null && updaterState.dataType() != params.dataType()) {
+            updaterState = updaterState.castTo(params.dataType());
+        }
+
+        byte[] meta = writeMeta(quantization);
+        long paramsOffset = align(HEADER_SIZE + meta.length);
+        long paramsBytes = params.length() * params.dataType().width();
+        long updaterOffset = updaterState == null ? 0 : align(paramsOffset + paramsBytes);
+        long updaterLength = updaterState == null ? 0 : updaterState.length();
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        File tmpFile = new File(file.getPath() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_SIZE);
+            writeFully(channel, ByteBuffer.wrap(meta));
+
+            channel.position(paramsOffset);
+            NDArrayFiles.writeData(channel, params);
+            if (updaterState != null) {
+                channel.position(updaterOffset);
+                NDArrayFiles.writeData(channel, updaterState);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.putInt(updaterState != null ? FLAG_UPDATER : 0);
+            header.putInt(featureSpec.getFeatureSetVersion());
+            header.putLong(meta.length);
+            header.putLong(paramsOffset);
+            header.putLong(params.length());
+            header.putLong(updaterOffset);
+            header.putLong(updaterLength);
+            header.putLong(checksum(channel, HEADER_SIZE, channel.size() - HEADER_SIZE));
+            header.put(textField(params.dataType().name()));
+            header.position(0);
+            channel.write(header, 0);
+            channel.force(false);
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        logger.info("Model bundle saved to: {} ({} {} params{})", file.getAbsolutePath(),
+                params.length(), storageType, updaterState != null ? ", with updater state" : "");
+    }
+
+    /**
+     * 加载模型包
+     *
+     * @param loadUpdater 是否恢复更新器状态（继续训练时需要，预测时不需要）
+     */
+    public static ModelBundle load(File file, boolean loadUpdater) throws IOException {
+        return read(file, true, loadUpdater);
+    }
+
+    /**
+     * 只读取配置、特征规格、标准化器和元数据，不构建网络；返回对象的 {@link #getNetwork()} 为null
+     */
+    public static ModelBundle loadWithoutNetwork(File file) throws IOException {
+        return read(file, false, false);
+    }
+
+    private static ModelBundle read(File file, boolean loadNetwork, boolean loadUpdater) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("模型文件长度不足: " + file.getPath());
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+
+            if (header.getInt() != MAGIC) {
+                throw new IOException("不是模型包文件: " + file.getPath());
+            }
+            int version = header.getInt();
+            if (version < 1 || version > FORMAT_VERSION) {
+                throw new IOException("不支持的模型包格式版本: " + version);
+            }
+            int flags = header.getInt();
+            header.getInt(); // 特征版本，元数据段中也有，用于不解析元数据时快速查看
+            long metaLength = header.getLong();
+            long paramsOffset = header.getLong();
+            long numParams = header.getLong();
+            long updaterOffset = header.getLong();
+            long updaterLength = header.getLong();
+            long expectedChecksum = header.getLong();
+            DataType dataType = DataType.valueOf(readTextField(header));
+
+            long paramsEnd = paramsOffset + numParams * dataType.width();
+            long end = (flags & FLAG_UPDATER) != 0 ? updaterOffset + updaterLength * dataType.width() : paramsEnd;
+            if (paramsOffset < HEADER_SIZE + metaLength || channel.size() < end) {
+                throw new IOException("模型文件不完整: " + file.getPath());
+            }
+            if (checksum(channel, HEADER_SIZE, channel.size() - HEADER_SIZE) != expectedChecksum) {
+                throw new IOException("模型文件校验失败: " + file.getPath());
+            }
+
+            ByteBuffer meta = ByteBuffer.allocate((int) metaLength);
+            channel.read(meta, HEADER_SIZE);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta.array()));
+
+            String networkJson = readText(in);
+            ModelConfig config = JSON.parseObject(readText(in), ModelConfig.class);
+            FeatureSpec featureSpec = new FeatureSpec(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            ColumnNormalizer featureNormalizer = in.readBoolean() ? ColumnNormalizer.readFrom(in) : null;
+            ColumnNormalizer labelNormalizer = in.readBoolean() ? ColumnNormalizer.readFrom(in) : null;
+            Map<String, ColumnNormalizer> symbolNormalizers = version >= 2 ? ColumnNormalizer.readMap(in) : null;
+            Map<String, String> metadata = JSON.parseObject(readText(in),
+                    new TypeReference<LinkedHashMap<String, String>>() {
+                    });
+            List<QuantizedTensor> quantization = version >= 3 ? readQuantization(in) : new ArrayList<>();
+            if (dataType == DataType.INT8 && quantization.isEmpty() && numParams > 0) {
+                throw new IOException("INT8参数缺少缩放表: " + file.getPath());
+            }
+
+            boolean updaterLoaded = false;
+            MultiLayerNetwork network = null;
+            if (loadNetwork) {
+                MultiLayerConfiguration networkConfig = MultiLayerConfiguration.fromJson(networkJson);
+                network = new MultiLayerNetwork(networkConfig);
+                INDArray params = NDArrayFiles.read(channel, paramsOffset, dataType, 1, numParams)
+                        .castTo(networkConfig.getDataType());
+                // 反量化：每个张量乘以自己的缩放系数（castTo返回新数组，不修改读取的原始参数）
+                for (QuantizedTensor tensor : quantization) {
+                    segment(params, tensor.offset, tensor.length).muli(tensor.scale);
+                }
+                network.init(params, false);
+
+                if (loadUpdater && (flags & FLAG_UPDATER) != 0) {
+                    INDArray state = NDArrayFiles.read(channel, updaterOffset, dataType, 1, updaterLength);
+                    Updater updater = network.getUpdater();
+                    INDArray expected = updater.getStateViewArray();
+                    if (expected == null || expected.length() != updaterLength) {
+                        throw new IOException("更新器状态长度不一致: " + updaterLength);
+                    }
+                    updater.setStateViewArray(network, state.castTo(expected.dataType()), false);
+                    updaterLoaded = true;
+                }
+                checkConsistency(network, featureSpec, featureNormalizer, labelNormalizer, symbolNormalizers);
+            }
+
+            return new ModelBundle(network, config, featureSpec, featureNormalizer, labelNormalizer,
+                    symbolNormalizers, metadata, updaterLoaded, dataType);
+        }
+    }
+
+    private byte[] writeMeta(List<QuantizedTensor> quantization) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        writeText(out, network.getLayerWiseConfigurations().toJson());
+        writeText(out, JSON.toJSONString(config));
+        out.writeInt(featureSpec.getFeatureSetVersion());
+        out.writeInt(featureSpec.getFeatureCount());
+        out.writeInt(featureSpec.getTimeSteps());
+        out.writeInt(featureSpec.getPredictSteps());
+        out.writeBoolean(featureNormalizer != null);
+        if (featureNormalizer != null) {
+            featureNormalizer.writeTo(out);
+        }
+        out.writeBoolean(labelNormalizer != null);
+        if (labelNormalizer != null) {
+            labelNormalizer.writeTo(out);
+        }
+        ColumnNormalizer.writeMap(out, symbolNormalizers);
+        writeText(out, JSON.toJSONString(metadata));
+        out.writeInt(quantization.size());
+        for (QuantizedTensor tensor : quantization) {
+            out.writeUTF(tensor.name);
+            out.writeLong(tensor.offset);
+            out.writeLong(tensor.length);
+            out.writeFloat(tensor.scale);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 网络输入输出、特征规格和标准化器必须相互一致
+     */
+    private static void checkConsistency(MultiLayerNetwork network, FeatureSpec featureSpec,
+                                         ColumnNormalizer featureNormalizer, ColumnNormalizer labelNormalizer,
+                                         Map<String, ColumnNormalizer> symbolNormalizers)
+            throws IOException {
+        if (network == null) {
+            throw new IOException("模型未初始化");
+        }
+        long inputSize = network.layerInputSize(0);
+        long outputSize = network.layerSize(network.getnLayers() - 1);
+        if (inputSize != featureSpec.getFeatureCount() || outputSize != featureSpec.getPredictSteps()) {
+            throw new IOException(String.format("网络输入输出(%d, %d)与特征规格(%d, %d)不一致",
+                    inputSize, outputSize, featureSpec.getFeatureCount(), featureSpec.getPredictSteps()));
+        }
+        if (featureNormalizer != null && featureNormalizer.getColumns() != featureSpec.getFeatureCount()) {
+            throw new IOException("特征标准化器列数不一致: " + featureNormalizer.getColumns());
+        }
+        if (labelNormalizer != null && labelNormalizer.getColumns() != featureSpec.getPredictSteps()) {
+            throw new IOException("标签标准化器列数不一致: " + labelNormalizer.getColumns());
+        }
+        if (symbolNormalizers != null) {
+            for (Map.Entry<String, ColumnNormalizer> entry : symbolNormalizers.entrySet()) {
+                if (entry.getValue().getColumns() != featureSpec.getFeatureCount()) {
+                    throw new IOException(String.format("股票 %s 的特征标准化器列数不一致: %d",
+                            entry.getKey(), entry.getValue().getColumns()));
+                }
+            }
+        }
+    }
+
+    private static List<QuantizedTensor> readQuantization(DataInput in) throws IOException {
+        int count = in.readInt();
+        List<QuantizedTensor> quantization = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            quantization.add(new QuantizedTensor(in.readUTF(), in.readLong(), in.readLong(), in.readFloat()));
+        }
+        return quantization;
+    }
+
+    /**
+     * 按参数张量对称量化到INT8：scale = max|w| / 127，q = round(w / scale)
+     * 张量是展平参数向量中连续的一段，偏移量取参数视图相对展平向量的位置
+     *
+     * @param quantization 输出每个张量的偏移、长度和缩放系数
+     */
+    private static INDArray quantize(MultiLayerNetwork network, List<QuantizedTensor> quantization) {
+        INDArray params = network.params();
+        // castTo在类型相同时返回原数组，需要复制，否则会改动网络参数
+        INDArray scaled = params.dataType() == DataType.FLOAT ? params.dup() : params.castTo(DataType.FLOAT);
+        for (Map.Entry<String, INDArray> entry : network.paramTable(true).entrySet()) {
+            INDArray view = entry.getValue();
+            long offset = view.offset() - params.offset();
+            long length = view.length();
+            INDArray segment = segment(scaled, offset, length);
+            double maxAbs = segment.amaxNumber().doubleValue();
+            float scale = maxAbs > 0 ? (float) (maxAbs / 127.0) : 1f;
+            segment.divi(scale);
+            quantization.add(new QuantizedTensor(entry.getKey(), offset, length, scale));
+        }
+        return Transforms.round(scaled, false).castTo(DataType.INT8);
+    }
+
+    /**
+     * 展平参数向量中 [offset, offset + length) 的视图
+     */
+    private static INDArray segment(INDArray params, long offset, long length) {
+        return params.reshape(params.length()).get(NDArrayIndex.interval(offset, offset + length));
+    }
+
+    private static INDArray updaterState(MultiLayerNetwork network) {
+        Updater updater = network.getUpdater(false);
+        return updater == null ? null : updater.getStateViewArray();
+    }
+
+    private static long checksum(FileChannel channel, long position, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        if (length > 0) {
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+        }
+        return crc.getValue();
+    }
+
+    private static long align(long position) {
+        return (position + BLOB_ALIGNMENT - 1) / BLOB_ALIGNMENT * BLOB_ALIGNMENT;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeText(DataOutput out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readText(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer textField(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer field = ByteBuffer.allocate(TEXT_FIELD_SIZE);
+        field.put(bytes, 0, Math.min(bytes.length, TEXT_FIELD_SIZE));
+        field.position(0);
+        return field;
+    }
+
+    private static String readTextField(ByteBuffer buffer) {
+        byte[] bytes = new byte[TEXT_FIELD_SIZE];
+        buffer.get(bytes);
+        int length = 0;
+        while (length < bytes.length && bytes[length] != 0) {
+            length++;
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    public MultiLayerNetwork getNetwork() {
+        return network;
+    }
+
+    public ModelConfig getConfig() {
+        return config;
+    }
+
+    public FeatureSpec getFeatureSpec() {
+        return featureSpec;
+    }
+
+    public ColumnNormalizer getFeatureNormalizer() {
+        return featureNormalizer;
+    }
+
+    public ColumnNormalizer getLabelNormalizer() {
+        return labelNormalizer;
+    }
+
+    /**
+     * 按股票代码索引的特征标准化器，非全市场模型为空
+     */
+    public Map<String, ColumnNormalizer> getSymbolNormalizers() {
+        return Collections.unmodifiableMap(symbolNormalizers);
+    }
+
+    /**
+     * 指定股票的特征标准化器，没有该股票的统计量时返回全市场合并的特征标准化器
+     */
+    public ColumnNormalizer getFeatureNormalizer(String symbol) {
+        ColumnNormalizer normalizer = symbolNormalizers.get(symbol);
+        return normalizer != null ? normalizer : featureNormalizer;
+    }
+
+    public Map<String, String> getMetadata() {
+        return Collections.unmodifiableMap(metadata);
+    }
+
+    /**
+     * 文件中参数的存储类型（FLOAT、FLOAT16、INT8等），新建未保存的模型包为null
+     */
+    public DataType getParamStorageType() {
+        return paramStorageType;
+    }
+
+    /**
+     * 加载时是否恢复了更新器状态
+     */
+    public boolean isUpdaterIncluded() {
+        return updaterIncluded;
+    }
+
+    /**
+     * INT8存储时一个参数张量在展平参数向量中的位置和缩放系数
+     */
+    private static class QuantizedTensor {
+        final String name;
+        final long offset;
+        final long length;
+        final float scale;
+
+        QuantizedTensor(String name, long offset, long length, float scale) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.scale = scale;
+        }
+    }
+
+    /**
+     * 特征规格：模型训练时使用的特征版本和输入输出形状
+     */
+    public static class FeatureSpec {
+        private final int featureSetVersion;
+        private final int featureCount;
+        private final int timeSteps;
+        private final int predictSteps;
+
+        public FeatureSpec(int featureSetVersion, int featureCount, int timeSteps, int predictSteps) {
+            this.featureSetVersion = featureSetVersion;
+            this.featureCount = featureCount;
+            this.timeSteps = timeSteps;
+            this.predictSteps = predictSteps;
+        }
+
+        /**
+         * 使用当前特征版本
+         */
+        public static FeatureSpec current(int featureCount, int timeSteps, int predictSteps) {
+            return new FeatureSpec(FeatureEngineeringService.FEATURE_SET_VERSION,
+                    featureCount, timeSteps, predictSteps);
+        }
+
+        /**
+         * 是否与当前特征工程代码生成的特征一致
+         */
+        public boolean isCurrent() {
+            return featureSetVersion == FeatureEngineeringService.FEATURE_SET_VERSION;
+        }
+
+        public int getFeatureSetVersion() {
+            return featureSetVersion;
+        }
+
+        public int getFeatureCount() {
+            return featureCount;
+        }
+
+        public int getTimeSteps() {
+            return timeSteps;
+        }
+
+        public int getPredictSteps() {
+            return predictSteps;
+        }
+    }
+}
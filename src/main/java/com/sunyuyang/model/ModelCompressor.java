@@ -0,0 +1,166 @@
+package com.sunyuyang.model;
+
+import com.sunyuyang.util.Workspaces;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.ops.transforms.Transforms;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * 推理模型的训练后压缩
+ * 剪枝在网络的副本上进行：每个权重张量（偏置除外）中绝对值最小的一部分置零，原网络不受影响。
+ * 低精度存储（FLOAT16、INT8）由 {@link ModelBundle#save(java.io.File, boolean, org.nd4j.linalg.api.buffer.DataType)} 完成，
+ * 压缩前后的精度差异用 {@link #compare(MultiLayerNetwork, MultiLayerNetwork, DataSetIterator)} 在保留的测试集上比较。
+ */
+public final class ModelCompressor {
+    private static final String BIAS_KEY = "b";
+
+    private ModelCompressor() {
+    }
+
+    /**
+     * 复制网络的结构和参数，不复制更新器状态和监听器
+     */
+    public static MultiLayerNetwork copyForInference(MultiLayerNetwork network) {
+        MultiLayerNetwork copy = new MultiLayerNetwork(
+                MultiLayerConfiguration.fromJson(network.getLayerWiseConfigurations().toJson()));
+        copy.init(network.params().dup(), false);
+        return copy;
+    }
+
+    /**
+     * 按幅值剪枝，直接修改传入的网络
+     *
+     * @param sparsity 每个权重张量中置零的比例，[0, 1)
+     * @return 置零的参数个数（包括原本就是0的）
+     */
+    public static long prune(MultiLayerNetwork network, double sparsity) {
+        if (sparsity < 0 || sparsity >= 1) {
+            throw new IllegalArgumentException("sparsity必须在[0, 1)之间: " + sparsity);
+        }
+        long zeros = 0;
+        for (Map.Entry<String, INDArray> entry : network.paramTable().entrySet()) {
+            String key = entry.getKey().substring(entry.getKey().indexOf('_') + 1);
+            INDArray weights = entry.getValue();
+            if (key.equals(BIAS_KEY) || weights.length() < 2) {
+                continue;
+            }
+            INDArray magnitude = Transforms.abs(weights, true);
+            if (sparsity > 0) {
+                double[] sorted = magnitude.reshape(magnitude.length()).toDoubleVector();
+                Arrays.sort(sorted);
+                double threshold = sorted[(int) (sparsity * sorted.length)];
+                weights.muli(magnitude.gte(threshold).castTo(weights.dataType()));
+            }
+            zeros += weights.length() - weights.neq(0.0).castTo(weights.dataType()).sumNumber().longValue();
+        }
+        return zeros;
+    }
+
+    /**
+     * 在保留的测试集上比较原模型和压缩模型：各自相对标签的MSE，以及两者输出的差异
+     */
+    public static CompressionReport compare(MultiLayerNetwork original, MultiLayerNetwork compressed,
+                                            DataSetIterator heldOut) {
+        double originalSquaredError = 0.0;
+        double compressedSquaredError = 0.0;
+        double absoluteDiff = 0.0;
+        double maxAbsoluteDiff = 0.0;
+        long values = 0;
+        long samples = 0;
+
+        heldOut.reset();
+        while (heldOut.hasNext()) {
+            DataSet batch = heldOut.next();
+            try (MemoryWorkspace workspace = Workspaces.openFor(original, Workspaces.EVALUATION)) {
+                INDArray labels = batch.getLabels();
+                INDArray expected = Workspaces.output(original, batch.getFeatures(), workspace);
+                INDArray actual = Workspaces.output(compressed, batch.getFeatures(), workspace)
+                        .castTo(expected.dataType());
+                originalSquaredError += Transforms.pow(expected.sub(labels.castTo(expected.dataType())), 2, false)
+                        .sumNumber().doubleValue();
+                compressedSquaredError += Transforms.pow(actual.sub(labels.castTo(actual.dataType())), 2, false)
+                        .sumNumber().doubleValue();
+                INDArray diff = Transforms.abs(actual.subi(expected), false);
+                absoluteDiff += diff.sumNumber().doubleValue();
+                maxAbsoluteDiff = Math.max(maxAbsoluteDiff, diff.maxNumber().doubleValue());
+                values += labels.length();
+            }
+            samples += batch.numExamples();
+        }
+        heldOut.reset();
+
+        return new CompressionReport(samples,
+                values > 0 ? originalSquaredError / values : 0.0,
+                values > 0 ? compressedSquaredError / values : 0.0,
+                values > 0 ? absoluteDiff / values : 0.0,
+                maxAbsoluteDiff);
+    }
+
+    /**
+     * 压缩前后在测试集上的精度对比
+     */
+    public static class CompressionReport {
+        private final long samples;
+        private final double originalMse;
+        private final double compressedMse;
+        private final double meanAbsoluteDiff;
+        private final double maxAbsoluteDiff;
+
+        public CompressionReport(long samples, double originalMse, double compressedMse,
+                                 double meanAbsoluteDiff, double maxAbsoluteDiff) {
+            this.samples = samples;
+            this.originalMse = originalMse;
+            this.compressedMse = compressedMse;
+            this.meanAbsoluteDiff = meanAbsoluteDiff;
+            this.maxAbsoluteDiff = maxAbsoluteDiff;
+        }
+
+        public long getSamples() {
+            return samples;
+        }
+
+        public double getOriginalMse() {
+            return originalMse;
+        }
+
+        public double getCompressedMse() {
+            return compressedMse;
+        }
+
+        /**
+         * 压缩模型MSE减去原模型MSE，正数表示精度下降
+         */
+        public double getMseDelta() {
+            return compressedMse - originalMse;
+        }
+
+        /**
+         * MSE的相对变化
+         */
+        public double getRelativeMseDelta() {
+            return getMseDelta() / Math.max(originalMse, 1e-12);
+        }
+
+        public double getMeanAbsoluteDiff() {
+            return meanAbsoluteDiff;
+        }
+
+        public double getMaxAbsoluteDiff() {
+            return maxAbsoluteDiff;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("样本: %d, 原模型MSE: %.6f, 压缩模型MSE: %.6f (%+.4f%%), 输出平均差: %.6f, 最大差: %.6f",
+                    samples, originalMse, compressedMse, getRelativeMseDelta() * 100,
+                    meanAbsoluteDiff, maxAbsoluteDiff);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.sunyuyang.model;
+
+import com.sunyuyang.util.MemoryStats;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.gradient.Gradient;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 训练遥测监听器，把每次迭代和每轮的耗时、吞吐、内存和范数写入 {@link TelemetrySink}
+ * 迭代耗时是相邻两次 iterationDone 的间隔，其中等待数据（ETL）的时间取DL4J记录的 lastEtlTime，其余算作计算时间。
+ * 参数范数和更新量范数（iterationDone时梯度视图中保存的是本次实际应用的更新量）以及内存每 detailFrequency 次迭代记录一次，
+ * 每轮结束记录整轮的汇总和这一轮的堆外内存增长、GC次数与停顿时间。
+ * 数据并行训练时主模型在每次参数平均后收到一次迭代，没有输入和梯度：样本数由 {@link DataParallelTrainer} 通过
+ * {@link #setParallelExamples(long)} 提供（这一轮所有副本训练的样本总数），更新量范数记为0。
+ */
+public class TelemetryListener extends BaseTrainingListener {
+    private final TelemetrySink sink;
+    private final String run;
+    private final int detailFrequency;
+
+    // 数据并行训练时下一次 iterationDone 的样本数，-1表示从模型输入取
+    private long parallelExamples = -1;
+
+    private long lastIterationTime;
+    private long epochStartTime;
+    private MemoryStats epochStartMemory;
+    private int epochIterations;
+    private long epochSamples;
+    private double epochEtlMillis;
+    private double epochComputeMillis;
+
+    /**
+     * @param run             训练任务名，区分写入同一输出端的多个训练
+     * @param detailFrequency 每多少次迭代记录一次范数和内存
+     */
+    public TelemetryListener(TelemetrySink sink, String run, int detailFrequency) {
+        if (detailFrequency < 1) {
+            throw new IllegalArgumentException("detailFrequency必须大于0: " + detailFrequency);
+        }
+        this.sink = sink;
+        this.run = run;
+        this.detailFrequency = detailFrequency;
+    }
+
+    @Override
+    public void onEpochStart(Model model) {
+        epochStartTime = System.nanoTime();
+        lastIterationTime = epochStartTime;
+        epochStartMemory = MemoryStats.capture();
+        epochIterations = 0;
+        epochSamples = 0;
+        epochEtlMillis = 0.0;
+        epochComputeMillis = 0.0;
+    }
+
+    @Override
+    public void iterationDone(Model model, int iteration, int epoch) {
+        long now = System.nanoTime();
+        if (epochStartMemory == null) {
+            onEpochStart(model);
+        }
+        double wallMillis = (now - lastIterationTime) / 1e6;
+        lastIterationTime = now;
+
+        boolean hasInput = model.input() != null;
+        long samples = parallelExamples >= 0 ? parallelExamples : hasInput ? model.batchSize() : 0;
+        parallelExamples = -1;
+        double etlMillis = hasInput && model instanceof MultiLayerNetwork
+                ? Math.min(wallMillis, ((MultiLayerNetwork) model).getLastEtlTime()) : 0.0;
+        double computeMillis = wallMillis - etlMillis;
+        epochIterations++;
+        epochSamples += samples;
+        epochEtlMillis += etlMillis;
+        epochComputeMillis += computeMillis;
+
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("epoch", epoch);
+        fields.put("iteration", iteration);
+        fields.put("wallMs", wallMillis);
+        fields.put("etlMs", etlMillis);
+        fields.put("computeMs", computeMillis);
+        fields.put("samples", samples);
+        fields.put("samplesPerSecond", wallMillis > 0 ? samples * 1000.0 / wallMillis : 0.0);
+        fields.put("score", model.score());
+        if (epochIterations % detailFrequency == 0) {
+            fields.put("paramNorm", model.params().norm2Number().doubleValue());
+            fields.put("updateNorm", hasInput ? updateNorm(model) : 0.0);
+            putMemory(fields, MemoryStats.capture());
+        }
+        sink.record(run, "iteration", fields);
+    }
+
+    /**
+     * 设置下一次 iterationDone 的样本数，用于数据并行训练的主模型（没有输入可以取批次大小）
+     */
+    void setParallelExamples(long examples) {
+        this.parallelExamples = examples;
+    }
+
+    @Override
+    public void onEpochEnd(Model model) {
+        if (epochStartMemory == null) {
+            return;
+        }
+        double wallMillis = (System.nanoTime() - epochStartTime) / 1e6;
+        MemoryStats memory = MemoryStats.capture();
+
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("epoch", model instanceof MultiLayerNetwork ? ((MultiLayerNetwork) model).getEpochCount() : -1);
+        fields.put("iterations", epochIterations);
+        fields.put("wallMs", wallMillis);
+        fields.put("etlMs", epochEtlMillis);
+        fields.put("computeMs", epochComputeMillis);
+        fields.put("etlFraction", wallMillis > 0 ? epochEtlMillis / wallMillis : 0.0);
+        fields.put("samples", epochSamples);
+        fields.put("samplesPerSecond", wallMillis > 0 ? epochSamples * 1000.0 / wallMillis : 0.0);
+        fields.put("score", model.score());
+        fields.put("paramNorm", model.params().norm2Number().doubleValue());
+        putMemory(fields, memory);
+        fields.put("offHeapGrowthBytes", memory.getOffHeapBytes() - epochStartMemory.getOffHeapBytes());
+        fields.put("gcCount", memory.getGcCount() - epochStartMemory.getGcCount());
+        fields.put("gcMs", memory.getGcMillis() - epochStartMemory.getGcMillis());
+        sink.record(run, "epoch", fields);
+        epochStartMemory = null;
+    }
+
+    private static double updateNorm(Model model) {
+        Gradient gradient = model.gradient();
+        INDArray update = gradient != null ? gradient.gradient() : null;
+        return update != null ? update.norm2Number().doubleValue() : 0.0;
+    }
+
+    private static void putMemory(Map<String, Object> fields, MemoryStats memory) {
+        fields.put("heapUsedBytes", memory.getHeapUsedBytes());
+        fields.put("offHeapBytes", memory.getOffHeapBytes());
+        fields.put("physicalBytes", memory.getPhysicalBytes());
+    }
+}
@@ -0,0 +1,198 @@
+package com.sunyuyang.model;
+
+import com.alibaba.fastjson2.JSON;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 训练遥测的输出端
+ * 每条记录追加为JSON文件的一行，同时保留每个训练任务每种记录的最新值，
+ * 通过HTTP的 /metrics 以Prometheus文本格式提供（只输出数值字段，类型为gauge，标签为任务名），默认只监听本机地址。
+ * 多个训练任务（例如并行的交叉验证折）可以共用同一个输出端，写入是串行的；
+ * 任务结束后调用 {@link #finishRun(String)} 清除它的最新值，/metrics 只保留正在进行的任务。
+ */
+public class TelemetrySink implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(TelemetrySink.class);
+    private static final String METRIC_PREFIX = "stock_training_";
+
+    private final BufferedWriter writer;
+    private final HttpServer server;
+    private final ExecutorService httpExecutor;
+    // 任务名 -> 记录类型 -> 最新一条记录
+    private final Map<String, Map<String, Map<String, Object>>> latest = new ConcurrentHashMap<>();
+    private long lastFlush = System.nanoTime();
+
+    /**
+     * @param file 追加写入的JSON文件，为null时不写文件
+     * @param host /metrics 绑定的地址，为null时绑定本机回环地址
+     * @param port /metrics 的端口，0表示不启动HTTP服务
+     */
+    public TelemetrySink(File file, String host, int port) throws IOException {
+        if (file != null) {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("无法创建目录: " + parent.getPath());
+            }
+            writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } else {
+            writer = null;
+        }
+
+        if (port > 0) {
+            HttpServer created;
+            InetSocketAddress address = host != null
+                    ? new InetSocketAddress(host, port)
+                    : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+            try {
+                if (address.isUnresolved()) {
+                    throw new IOException("无法解析遥测服务地址: " + host);
+                }
+                created = HttpServer.create(address, 0);
+            } catch (IOException e) {
+                closeWriter();
+                throw e;
+            }
+            server = created;
+            server.createContext("/metrics", exchange -> {
+                byte[] body = prometheusText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            httpExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "telemetry-http");
+                thread.setDaemon(true);
+                return thread;
+            });
+            server.setExecutor(httpExecutor);
+            server.start();
+            logger.info("训练遥测服务已启动: http://{}:{}/metrics", address.getHostString(), port);
+        } else {
+            server = null;
+            httpExecutor = null;
+        }
+    }
+
+    /**
+     * 记录一条遥测数据
+     *
+     * @param run    训练任务名
+     * @param type   记录类型（iteration、epoch等）
+     * @param fields 字段，写入后不能再修改
+     */
+    public void record(String run, String type, Map<String, Object> fields) {
+        latest.computeIfAbsent(run, key -> new ConcurrentHashMap<>()).put(type, fields);
+        if (writer == null) {
+            return;
+        }
+
+        Map<String, Object> line = new LinkedHashMap<>();
+        line.put("time", System.currentTimeMillis());
+        line.put("run", run);
+        line.put("type", type);
+        line.putAll(fields);
+        String json = JSON.toJSONString(line);
+        synchronized (this) {
+            try {
+                writer.write(json);
+                writer.newLine();
+                // 迭代记录很密集，最多每秒刷一次盘
+                if (!"iteration".equals(type) || System.nanoTime() - lastFlush > 1_000_000_000L) {
+                    writer.flush();
+                    lastFlush = System.nanoTime();
+                }
+            } catch (IOException e) {
+                logger.warn("遥测记录写入失败", e);
+            }
+        }
+    }
+
+    /**
+     * 训练任务结束，清除它的最新值
+     */
+    public void finishRun(String run) {
+        latest.remove(run);
+    }
+
+    /**
+     * 全部任务的最新数值，Prometheus文本格式，指标名为 前缀 + 记录类型 + 字段名
+     * 同名指标的各任务样本放在一起，前面是一行 # TYPE
+     */
+    public String prometheusText() {
+        // 指标名 -> 各任务的样本行
+        Map<String, StringBuilder> metrics = new TreeMap<>();
+        for (Map.Entry<String, Map<String, Map<String, Object>>> run : latest.entrySet()) {
+            String label = run.getKey().replace("\\", "\\\\").replace("\"", "\\\"");
+            for (Map.Entry<String, Map<String, Object>> record : run.getValue().entrySet()) {
+                for (Map.Entry<String, Object> field : record.getValue().entrySet()) {
+                    if (!(field.getValue() instanceof Number)) {
+                        continue;
+                    }
+                    String name = METRIC_PREFIX + record.getKey() + '_' + snakeCase(field.getKey());
+                    metrics.computeIfAbsent(name, key -> new StringBuilder())
+                            .append(name).append("{run=\"").append(label).append("\"} ")
+                            .append(field.getValue()).append('\n');
+                }
+            }
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, StringBuilder> metric : metrics.entrySet()) {
+            text.append("# TYPE ").append(metric.getKey()).append(" gauge\n").append(metric.getValue());
+        }
+        return text.toString();
+    }
+
+    private static String snakeCase(String name) {
+        StringBuilder result = new StringBuilder(name.length() + 4);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isUpperCase(c)) {
+                result.append('_').append(Character.toLowerCase(c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            httpExecutor.shutdown();
+        }
+        closeWriter();
+        latest.clear();
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.warn("遥测文件关闭失败", e);
+            }
+        }
+    }
+}
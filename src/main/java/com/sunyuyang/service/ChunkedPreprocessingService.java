@@ -0,0 +1,329 @@
+package com.sunyuyang.service;
+
+import com.sunyuyang.dao.ZhituStockDataDao;
+import com.sunyuyang.entity.ZhituStockKLine;
+import com.sunyuyang.feature.FeatureEngineeringService;
+import com.sunyuyang.util.ColumnNormalizer;
+import com.sunyuyang.util.TradeTimeUtil;
+import com.sunyuyang.util.WindowShard;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 分块预处理流程，用于装不进内存的多年、多股票数据集
+ * K线按股票逐块流式读取，指标的回看窗口和EMA状态跨块延续，结果与一次性处理完全一致。
+ * <ol>
+ *     <li>第一遍：统计全部特征的列均值和标准差，作为缺失值填充和3σ缩尾的边界</li>
+ *     <li>第二遍：清洗特征、生成标签，增量拟合特征和标签标准化器，按股票写出分片</li>
+ *     <li>第三遍：用拟合好的标准化器逐个分片原地标准化</li>
+ * </ol>
+ * 同一股票相邻分片重叠 timeSteps-1 行，每个窗口恰好属于一个分片，窗口不会跨越股票边界。
+ * 任意时刻内存中最多只有一个K线块和一个分片。
+ * <p>
+ * 开启按股票标准化（{@link #setPerSymbolNormalization(boolean)}）时，第二遍同时为每只股票单独拟合特征标准化器，
+ * 第三遍用各自的统计量标准化，使价格水平、波动率不同的股票在同一个全市场模型中可比；
+ * 每只股票只多保存一组列统计量，标签是相对变化率，仍使用全市场统一的标签标准化器。
+ */
+public class ChunkedPreprocessingService {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedPreprocessingService.class);
+
+    public static final int DEFAULT_CHUNK_SIZE = 50_000;
+    public static final int DEFAULT_SHARD_ROWS = 65_536;
+
+    private final FeatureEngineeringService featureEngineeringService;
+    private final int chunkSize;
+    private final int shardRows;
+    private boolean perSymbolNormalization = false;
+
+    public ChunkedPreprocessingService(FeatureEngineeringService featureEngineeringService) {
+        this(featureEngineeringService, DEFAULT_CHUNK_SIZE, DEFAULT_SHARD_ROWS);
+    }
+
+    /**
+     * @param chunkSize 每次从数据源读取的K线数
+     * @param shardRows 每个分片的目标行数
+     */
+    public ChunkedPreprocessingService(FeatureEngineeringService featureEngineeringService,
+                                       int chunkSize, int shardRows) {
+        if (chunkSize <= 0 || shardRows <= 0) {
+            throw new IllegalArgumentException("chunkSize和shardRows必须大于0");
+        }
+        this.featureEngineeringService = featureEngineeringService;
+        this.chunkSize = chunkSize;
+        this.shardRows = shardRows;
+    }
+
+    /**
+     * 从数据库流式读取K线并构建分片数据集
+     *
+     * @param timeLevel K线周期，为null时不过滤周期
+     */
+    public ShardedDataset build(ZhituStockDataDao stockDataDao, List<String> stockCodes, String timeLevel,
+                                LocalDateTime startDate, LocalDateTime endDate,
+                                int timeSteps, int predictSteps, ColumnNormalizer.Mode featureNormalizerMode,
+                                File outputDir) throws IOException {
+        return build((stockCode, consumer) ->
+                        stockDataDao.streamKLineData(stockCode, timeLevel, startDate, endDate, chunkSize, consumer),
+                stockCodes, timeSteps, predictSteps, featureNormalizerMode, outputDir);
+    }
+
+    /**
+     * 从任意K线数据源构建分片数据集
+     */
+    public ShardedDataset build(KLineSource source, List<String> stockCodes,
+                                int timeSteps, int predictSteps, ColumnNormalizer.Mode featureNormalizerMode,
+                                File outputDir) throws IOException {
+        if (timeSteps <= 0 || predictSteps <= 0) {
+            throw new IllegalArgumentException("timeSteps和predictSteps必须大于0");
+        }
+        if (shardRows < 2 * timeSteps) {
+            throw new IllegalArgumentException(String.format(
+                    "分片行数 %d 过小，至少需要 2 * timeSteps = %d", shardRows, 2 * timeSteps));
+        }
+        if (!outputDir.exists() && !outputDir.mkdirs()) {
+            throw new IOException("无法创建数据集目录: " + outputDir);
+        }
+
+        logger.info("Starting chunked preprocessing of {} symbols into {}", stockCodes.size(), outputDir);
+
+        // 1. 第一遍：原始特征的列统计量，用作清洗边界
+        ColumnNormalizer rawStats = new ColumnNormalizer(ColumnNormalizer.Mode.Z_SCORE);
+        for (String stockCode : stockCodes) {
+            SymbolStream stream = new SymbolStream(predictSteps);
+            source.stream(stockCode, chunk -> rawStats.partialFit(stream.computeFeatures(chunk)));
+        }
+        if (!rawStats.isFitted()) {
+            throw new IllegalArgumentException("数据源中没有K线数据");
+        }
+        double[] means = rawStats.getMeans();
+        double[] stds = sampleStds(rawStats);
+
+        // 2. 第二遍：清洗、生成标签、拟合标准化器并写出未标准化的分片
+        ColumnNormalizer featureNormalizer = new ColumnNormalizer(featureNormalizerMode);
+        ColumnNormalizer labelNormalizer = new ColumnNormalizer(ColumnNormalizer.Mode.MIN_MAX);
+        Map<String, ColumnNormalizer> symbolNormalizers = new LinkedHashMap<>();
+        List<ShardedDataset.ShardInfo> shards = new ArrayList<>();
+
+        for (String stockCode : stockCodes) {
+            SymbolStream stream = new SymbolStream(predictSteps);
+            ShardWriter writer = new ShardWriter(stockCode, timeSteps, outputDir, shards);
+            ColumnNormalizer symbolNormalizer = perSymbolNormalization
+                    ? new ColumnNormalizer(featureNormalizerMode) : null;
+            source.stream(stockCode, chunk -> {
+                INDArray features = stream.computeFeatures(chunk);
+                featureEngineeringService.cleanFeatures(features, true, means, stds);
+                INDArray[] labeled = stream.label(chunk, features);
+                if (labeled != null) {
+                    featureNormalizer.partialFit(labeled[0]);
+                    if (symbolNormalizer != null) {
+                        symbolNormalizer.partialFit(labeled[0]);
+                    }
+                    labelNormalizer.partialFit(labeled[1]);
+                    writer.append(labeled[0], labeled[1], labeled[2]);
+                }
+            });
+            writer.finish();
+            if (symbolNormalizer != null && symbolNormalizer.isFitted()) {
+                symbolNormalizers.put(stockCode, symbolNormalizer);
+            }
+        }
+        if (shards.isEmpty() || !featureNormalizer.isFitted()) {
+            throw new IllegalArgumentException("数据不足，无法构造任何滑动窗口");
+        }
+
+        // 3. 第三遍：逐个分片原地标准化
+        for (ShardedDataset.ShardInfo info : shards) {
+            File file = new File(outputDir, info.getFileName());
+            WindowShard shard = WindowShard.read(file);
+            symbolNormalizers.getOrDefault(info.getSymbol(), featureNormalizer).transform(shard.getFeatures());
+            labelNormalizer.transform(shard.getLabels());
+            shard.write(file);
+        }
+
+        ShardedDataset dataset = new ShardedDataset(outputDir, timeSteps, predictSteps,
+                FeatureEngineeringService.FEATURE_SET_VERSION, FeatureEngineeringService.FEATURE_COUNT,
+                shards, featureNormalizer, labelNormalizer, perSymbolNormalization ? symbolNormalizers : null);
+        dataset.save();
+
+        logger.info("Chunked preprocessing completed: {} shards, {} windows", shards.size(), dataset.getWindowCount());
+        return dataset;
+    }
+
+    /**
+     * 是否为每只股票单独拟合特征标准化器，默认使用全市场统一的统计量
+     */
+    public void setPerSymbolNormalization(boolean perSymbolNormalization) {
+        this.perSymbolNormalization = perSymbolNormalization;
+    }
+
+    public boolean isPerSymbolNormalization() {
+        return perSymbolNormalization;
+    }
+
+    /**
+     * 与 cleanFeatures 一致使用样本标准差
+     */
+    private static double[] sampleStds(ColumnNormalizer stats) {
+        long[] counts = stats.getCounts();
+        double[] stds = stats.getStds();
+        for (int col = 0; col < stds.length; col++) {
+            stds[col] = counts[col] > 1 ? stds[col] * Math.sqrt((double) counts[col] / (counts[col] - 1)) : 0.0;
+        }
+        return stds;
+    }
+
+    /**
+     * K线数据源：按时间顺序把一只股票的K线分块交给consumer
+     */
+    @FunctionalInterface
+    public interface KLineSource {
+        void stream(String stockCode, Consumer<List<ZhituStockKLine>> consumer);
+    }
+
+    /**
+     * 单只股票的跨块状态
+     * 特征计算延续前一块最后 WARM_UP_BARS 根K线和EMA；标签需要未来 predictSteps 根K线，
+     * 每块最后 predictSteps 行先暂存，等下一块到达后再输出。
+     */
+    private class SymbolStream {
+        private final int predictSteps;
+        private List<ZhituStockKLine> warmUpBars = new ArrayList<>();
+        private double previousEma = Double.NaN;
+        private List<ZhituStockKLine> pendingBars = new ArrayList<>();
+        private INDArray pendingFeatures;
+
+        SymbolStream(int predictSteps) {
+            this.predictSteps = predictSteps;
+        }
+
+        /**
+         * 计算本块K线的特征 [chunk.size(), FEATURE_COUNT]
+         */
+        INDArray computeFeatures(List<ZhituStockKLine> chunk) {
+            List<ZhituStockKLine> context = new ArrayList<>(warmUpBars.size() + chunk.size());
+            context.addAll(warmUpBars);
+            context.addAll(chunk);
+
+            INDArray features = featureEngineeringService.computeFeatureRows(context, warmUpBars.size(), previousEma);
+            previousEma = features.getDouble(features.size(0) - 1, FeatureEngineeringService.EMA_COLUMN);
+            warmUpBars = new ArrayList<>(context.subList(
+                    Math.max(0, context.size() - FeatureEngineeringService.WARM_UP_BARS), context.size()));
+            return features;
+        }
+
+        /**
+         * 合并暂存行后输出已经有完整标签的行
+         *
+         * @return {特征, 标签, 行时间}，没有可输出的行时返回null
+         */
+        INDArray[] label(List<ZhituStockKLine> chunk, INDArray features) {
+            List<ZhituStockKLine> bars = new ArrayList<>(pendingBars.size() + chunk.size());
+            bars.addAll(pendingBars);
+            bars.addAll(chunk);
+            INDArray rows = pendingFeatures == null ? features : Nd4j.vstack(pendingFeatures, features);
+
+            int ready = bars.size() - predictSteps;
+            if (ready <= 0) {
+                pendingBars = bars;
+                pendingFeatures = rows;
+                return null;
+            }
+
+            INDArray labels = featureEngineeringService.createLabels(bars, predictSteps);
+            INDArray readyFeatures = rows.get(NDArrayIndex.interval(0, ready), NDArrayIndex.all()).dup('c');
+            pendingBars = new ArrayList<>(bars.subList(ready, bars.size()));
+            pendingFeatures = rows.get(NDArrayIndex.interval(ready, rows.size(0)), NDArrayIndex.all()).dup('c');
+            long[] times = new long[ready];
+            for (int i = 0; i < ready; i++) {
+                times[i] = TradeTimeUtil.toEpochSecond(bars.get(i).getTradeTime());
+            }
+            return new INDArray[]{readyFeatures, labels, Nd4j.createFromArray(times).reshape(ready, 1)};
+        }
+    }
+
+    /**
+     * 单只股票的分片写出器，攒够 shardRows 行写一个分片，并把最后 timeSteps-1 行留给下一个分片
+     */
+    private class ShardWriter {
+        private final String stockCode;
+        private final int timeSteps;
+        private final File outputDir;
+        private final List<ShardedDataset.ShardInfo> shards;
+        private final List<INDArray> featureParts = new ArrayList<>();
+        private final List<INDArray> labelParts = new ArrayList<>();
+        private final List<INDArray> timeParts = new ArrayList<>();
+        private long bufferedRows = 0;
+        private long newRows = 0;
+        private int shardIndex = 0;
+
+        ShardWriter(String stockCode, int timeSteps, File outputDir, List<ShardedDataset.ShardInfo> shards) {
+            this.stockCode = stockCode;
+            this.timeSteps = timeSteps;
+            this.outputDir = outputDir;
+            this.shards = shards;
+        }
+
+        void append(INDArray features, INDArray labels, INDArray times) {
+            featureParts.add(features);
+            labelParts.add(labels);
+            timeParts.add(times);
+            bufferedRows += features.size(0);
+            newRows += features.size(0);
+            if (bufferedRows >= shardRows) {
+                flush();
+            }
+        }
+
+        void finish() {
+            // 只剩上一个分片的重叠行时没有新窗口
+            if (newRows > 0 && bufferedRows >= timeSteps) {
+                flush();
+            }
+            featureParts.clear();
+            labelParts.clear();
+            timeParts.clear();
+        }
+
+        private void flush() {
+            INDArray features = featureParts.size() == 1 ? featureParts.get(0) : Nd4j.vstack(featureParts);
+            INDArray labels = labelParts.size() == 1 ? labelParts.get(0) : Nd4j.vstack(labelParts);
+            INDArray times = timeParts.size() == 1 ? timeParts.get(0) : Nd4j.vstack(timeParts);
+            long rows = features.size(0);
+
+            String fileName = String.format("%s-%05d.shard", stockCode.replaceAll("[^A-Za-z0-9._-]", "_"), shardIndex++);
+            try {
+                new WindowShard(stockCode, features, labels, times).write(new File(outputDir, fileName));
+            } catch (IOException e) {
+                throw new UncheckedIOException("写入分片失败: " + fileName, e);
+            }
+            shards.add(new ShardedDataset.ShardInfo(fileName, stockCode, rows));
+            logger.info("Shard written: {} ({} rows)", fileName, rows);
+
+            // 重叠部分保证跨分片边界的窗口出现在下一个分片中
+            int overlap = timeSteps - 1;
+            featureParts.clear();
+            labelParts.clear();
+            timeParts.clear();
+            if (overlap > 0) {
+                featureParts.add(features.get(NDArrayIndex.interval(rows - overlap, rows), NDArrayIndex.all()).dup('c'));
+                labelParts.add(labels.get(NDArrayIndex.interval(rows - overlap, rows), NDArrayIndex.all()).dup('c'));
+                timeParts.add(times.get(NDArrayIndex.interval(rows - overlap, rows), NDArrayIndex.all()).dup('c'));
+            }
+            bufferedRows = overlap;
+            newRows = 0;
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package com.sunyuyang.service;
 
+import com.alibaba.fastjson2.JSON;
 import com.sunyuyang.entity.ZhituStockKLine;
 import com.sunyuyang.feature.FeatureEngineeringService;
-import com.sunyuyang.util.MinMaxNormalizer;
+import com.sunyuyang.feature.FeatureMatrixCache;
+import com.sunyuyang.model.ModelBundle;
+import com.sunyuyang.util.ColumnNormalizer;
+import com.sunyuyang.util.SlidingWindowDataSetIterator;
+import com.sunyuyang.util.SplitGenerator;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.api.preprocessor.serializer.NormalizerSerializer;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.indexing.NDArrayIndex;
 import org.slf4j.Logger;
@@ -12,26 +17,148 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class DataPreprocessingService {
     private static final Logger logger = LoggerFactory.getLogger(DataPreprocessingService.class);
+
+    /**
+     * 模型包元数据中记录特征清洗所用列均值和标准差的键（JSON数组）
+     */
+    public static final String CLEANING_MEANS_KEY = "cleaningMeans";
+    public static final String CLEANING_STDS_KEY = "cleaningStds";
+
     private final FeatureEngineeringService featureEngineeringService;
+    private FeatureMatrixCache featureCache;
+    private ColumnNormalizer.Mode featureNormalizerMode = ColumnNormalizer.Mode.MIN_MAX;
 
     public DataPreprocessingService() {
-        this.featureEngineeringService = new FeatureEngineeringService();
+        this(Nd4j.dataType());
+    }
+
+    /**
+     * @param dataType 特征矩阵、滑动窗口和标签的数据类型
+     */
+    public DataPreprocessingService(DataType dataType) {
+        this.featureEngineeringService = new FeatureEngineeringService(dataType);
+    }
+
+    public FeatureEngineeringService getFeatureEngineeringService() {
+        return featureEngineeringService;
+    }
+
+    /**
+     * 设置特征缓存，为null时每次都从K线重新计算特征
+     */
+    public void setFeatureCache(FeatureMatrixCache featureCache) {
+        this.featureCache = featureCache;
+    }
+
+    /**
+     * 设置特征的按列标准化方式，标签始终按列缩放到 [0, 1]
+     */
+    public void setFeatureNormalizerMode(ColumnNormalizer.Mode featureNormalizerMode) {
+        this.featureNormalizerMode = featureNormalizerMode;
     }
 
     /**
      * 完整数据预处理流程
      */
     public ProcessedData preprocessData(List<ZhituStockKLine> klineData, int timeSteps, int predictSteps) {
+        return preprocessData(klineData, timeSteps, predictSteps, (INDArray) null);
+    }
+
+    /**
+     * 完整数据预处理流程，附加额外特征列（例如多周期融合的上下文特征）
+     *
+     * @param extraFeatures 与klineData逐行对齐的额外特征 [klineData.size(), extra]，可为null
+     */
+    public ProcessedData preprocessData(List<ZhituStockKLine> klineData, int timeSteps, int predictSteps,
+                                        INDArray extraFeatures) {
+        return preprocess(klineData, timeSteps, predictSteps, extraFeatures, null, null, null, null);
+    }
+
+    /**
+     * 用已有模型的标准化器预处理新数据（增量微调时使用），标准化器不重新拟合，
+     * 新数据与原训练数据的缩放保持一致
+     */
+    public ProcessedData preprocessData(List<ZhituStockKLine> klineData, int timeSteps, int predictSteps,
+                                        ColumnNormalizer featureNormalizer, ColumnNormalizer labelNormalizer) {
+        if (featureNormalizer == null || labelNormalizer == null) {
+            throw new IllegalArgumentException("标准化器不能为null");
+        }
+        return preprocess(klineData, timeSteps, predictSteps, null, featureNormalizer, labelNormalizer, null, null);
+    }
+
+    /**
+     * 用已有模型包的标准化器和清洗统计量预处理新数据（增量微调时使用）
+     * 缺失值的填充值和缩尾边界沿用训练时的列均值和标准差，与标准化器一样不在新数据上重新统计；
+     * 模型包中没有记录清洗统计量（旧版本）时才在新数据上统计
+     */
+    public ProcessedData preprocessData(List<ZhituStockKLine> klineData, int timeSteps, int predictSteps,
+                                        ModelBundle bundle) {
+        return preprocessData(klineData, timeSteps, predictSteps, null, bundle);
+    }
+
+    /**
+     * 用已有模型包预处理新数据，附加与训练时相同的额外特征列
+     *
+     * @param extraFeatures 与klineData逐行对齐的额外特征，可为null
+     */
+    public ProcessedData preprocessData(List<ZhituStockKLine> klineData, int timeSteps, int predictSteps,
+                                        INDArray extraFeatures, ModelBundle bundle) {
+        if (bundle.getFeatureNormalizer() == null || bundle.getLabelNormalizer() == null) {
+            throw new IllegalArgumentException("模型包中没有标准化器");
+        }
+        double[][] cleaningStats = cleaningStats(bundle);
+        if (cleaningStats == null) {
+            logger.warn("模型包中没有特征清洗统计量，在新数据上重新统计");
+        }
+        return preprocess(klineData, timeSteps, predictSteps, extraFeatures,
+                bundle.getFeatureNormalizer(), bundle.getLabelNormalizer(),
+                cleaningStats != null ? cleaningStats[0] : null, cleaningStats != null ? cleaningStats[1] : null);
+    }
+
+    /**
+     * 模型包中保存的特征清洗统计量 {列均值, 列标准差}，旧版本模型包没有记录时返回null
+     */
+    private static double[][] cleaningStats(ModelBundle bundle) {
+        Map<String, String> metadata = bundle.getMetadata();
+        if (!metadata.containsKey(CLEANING_MEANS_KEY) || !metadata.containsKey(CLEANING_STDS_KEY)) {
+            return null;
+        }
+        return new double[][]{
+                JSON.parseObject(metadata.get(CLEANING_MEANS_KEY), double[].class),
+                JSON.parseObject(metadata.get(CLEANING_STDS_KEY), double[].class)};
+    }
+
+    /**
+     * @param featureNormalizer 已拟合的特征标准化器，为null时在本数据上拟合新的标准化器
+     * @param labelNormalizer   已拟合的标签标准化器，为null时在本数据上拟合新的标准化器
+     * @param cleaningMeans     特征清洗的列均值，与cleaningStds同时为null时在本数据上统计
+     */
+    private ProcessedData preprocess(List<ZhituStockKLine> klineData, int timeSteps, int predictSteps,
+                                     INDArray extraFeatures,
+                                     ColumnNormalizer featureNormalizer, ColumnNormalizer labelNormalizer,
+                                     double[] cleaningMeans, double[] cleaningStds) {
         logger.info("Starting data preprocessing...");
 
         // 1. 特征工程
-        INDArray basicFeatures = featureEngineeringService.extractBasicFeatures(klineData);
-        INDArray enhancedFeatures = featureEngineeringService.addTechnicalIndicators(basicFeatures, klineData);
-        INDArray cleanedFeatures = featureEngineeringService.handleMissingValues(enhancedFeatures);
+        INDArray enhancedFeatures = withExtraFeatures(featureCache != null
+                ? featureCache.getFeatures(klineData)
+                : featureEngineeringService.extractFeatures(klineData), extraFeatures);
+        FeatureEngineeringService.CleaningResult cleaningResult = cleaningMeans != null
+                ? featureEngineeringService.cleanFeatures(enhancedFeatures, true, cleaningMeans, cleaningStds)
+                : featureEngineeringService.cleanFeatures(enhancedFeatures, true);
+        INDArray cleanedFeatures = cleaningResult.getCleaned();
+        logger.info("Data quality - filled per column: {}, clipped per column: {}",
+                Arrays.toString(cleaningResult.getFilledCounts()),
+                Arrays.toString(cleaningResult.getClippedCounts()));
 
         // 2. 创建标签
         INDArray labels = featureEngineeringService.createLabels(klineData, predictSteps);
@@ -50,87 +177,109 @@ public class DataPreprocessingService {
                 NDArrayIndex.all()
         );
 
-        // 3. 数据标准化
-        MinMaxNormalizer featureNormalizer = new MinMaxNormalizer();
-        featureNormalizer.fit(alignedFeatures);
-        featureNormalizer.transform(alignedFeatures);
+        // 3. 数据标准化 - 每列独立缩放
+        if (featureNormalizer == null) {
+            featureNormalizer = new ColumnNormalizer(featureNormalizerMode);
+            featureNormalizer.fitTransform(alignedFeatures);
+        } else {
+            featureNormalizer.transform(alignedFeatures);
+        }
 
-        MinMaxNormalizer labelNormalizer = new MinMaxNormalizer();
-        labelNormalizer.fit(alignedLabels);
-        labelNormalizer.transform(alignedLabels);
+        if (labelNormalizer == null) {
+            labelNormalizer = new ColumnNormalizer(ColumnNormalizer.Mode.MIN_MAX);
+            labelNormalizer.fitTransform(alignedLabels);
+        } else {
+            labelNormalizer.transform(alignedLabels);
+        }
 
-        // 4. 创建滑动窗口数据集 - 使用DL4J期望的维度顺序: [samples, time_steps, features]
-        INDArray windowedFeatures = createSlidingWindows(alignedFeatures, timeSteps);
-        INDArray windowedLabels = createLabelWindows(alignedLabels, timeSteps, predictSteps);
+        // 4. 滑动窗口在训练时由迭代器按需组装，这里只保留二维矩阵
+        int windowCount = SlidingWindowDataSetIterator.windowCount(minLength, timeSteps);
+        if (windowCount <= 0) {
+            logger.warn("无法创建滑动窗口，样本数: {}, 时间步长: {}", minLength, timeSteps);
+        }
 
-        logger.info("Data preprocessing completed. Features shape: {}, Labels shape: {}",
-                windowedFeatures.shape(), windowedLabels.shape());
+        logger.info("Data preprocessing completed. Features shape: {}, Labels shape: {}, windows: {}",
+                alignedFeatures.shape(), alignedLabels.shape(), windowCount);
 
-        return new ProcessedData(windowedFeatures, windowedLabels,
-                featureNormalizer, labelNormalizer);
+        return new ProcessedData(alignedFeatures, alignedLabels, timeSteps,
+                featureNormalizer, labelNormalizer,
+                cleaningResult.getColumnMeans(), cleaningResult.getColumnStds());
     }
 
     /**
-     * 创建滑动窗口特征 - DL4J期望的维度顺序: [samples, time_steps, features]
+     * 用训练时拟合的标准化器构造最新的输入窗口 [1, timeSteps, features]，附加与训练时相同的额外特征列
+     * 与 preprocessData 不同，这里不需要标签，最后 predictSteps 根K线也参与构造窗口。
+     * 缺失值的填充值和缩尾边界沿用模型包中训练时的清洗统计量，旧版本模型包没有记录时才在这段K线上重新统计
+     *
+     * @param featureNormalizer 特征标准化器（全市场模型为对应股票的标准化器）
+     * @param extraFeatures     与klineData逐行对齐的额外特征，可为null
+     * @param bundle            训练时保存的模型包
      */
-    private INDArray createSlidingWindows(INDArray features, int timeSteps) {
-        int totalWindows = (int) features.size(0) - timeSteps + 1;
-        int featureSize = (int) features.size(1);
-
-        // 创建正确维度的数组: [totalWindows, timeSteps, featureSize]
-        INDArray windowed = Nd4j.create(totalWindows, timeSteps, featureSize);
-
-        for (int i = 0; i < totalWindows; i++) {
-            // 获取时间窗口内的特征数据
-            INDArray window = features.get(
-                    NDArrayIndex.interval(i, i + timeSteps),
-                    NDArrayIndex.all()
-            );
+    public INDArray prepareLatestWindow(List<ZhituStockKLine> klineData, int timeSteps,
+                                        ColumnNormalizer featureNormalizer, INDArray extraFeatures,
+                                        ModelBundle bundle) {
+        if (klineData.size() < timeSteps) {
+            throw new IllegalArgumentException(String.format(
+                    "Not enough data. Required: %d, Available: %d", timeSteps, klineData.size()));
+        }
 
-            // 将窗口放入三维数组的第i个切片
-            windowed.putSlice(i, window);
+        INDArray features = withExtraFeatures(featureCache != null
+                ? featureCache.getFeatures(klineData)
+                : featureEngineeringService.extractFeatures(klineData), extraFeatures);
+        double[][] cleaningStats = cleaningStats(bundle);
+        INDArray cleaned;
+        if (cleaningStats != null) {
+            cleaned = featureEngineeringService.cleanFeatures(features, true, cleaningStats[0], cleaningStats[1])
+                    .getCleaned();
+        } else {
+            logger.warn("模型包中没有特征清洗统计量，在最近 {} 根K线上重新统计，预测输入的清洗可能与训练时不一致",
+                    klineData.size());
+            cleaned = featureEngineeringService.cleanFeatures(features, false).getCleaned();
         }
 
-        return windowed;
+        long rows = cleaned.size(0);
+        INDArray window = cleaned.get(NDArrayIndex.interval(rows - timeSteps, rows), NDArrayIndex.all()).dup('c');
+        featureNormalizer.transform(window);
+        return window.reshape(1, timeSteps, window.size(1));
     }
 
     /**
-     * 创建对应的标签窗口 - 简化版本
+     * 在K线特征右侧拼接额外特征列
      */
-    private INDArray createLabelWindows(INDArray labels, int timeSteps, int predictSteps) {
-        int totalWindows = (int) labels.size(0) - timeSteps + 1;
-
-        // 确保有足够的样本
-        if (totalWindows <= 0) {
-            logger.warn("无法创建标签窗口，总窗口数: {}", totalWindows);
-            return Nd4j.create(0, predictSteps);
+    private static INDArray withExtraFeatures(INDArray features, INDArray extraFeatures) {
+        if (extraFeatures == null || extraFeatures.size(1) == 0) {
+            return features;
         }
+        if (extraFeatures.size(0) != features.size(0)) {
+            throw new IllegalArgumentException(String.format(
+                    "额外特征行数不匹配: %d vs %d", extraFeatures.size(0), features.size(0)));
+        }
+        return Nd4j.hstack(features, extraFeatures.castTo(features.dataType()));
+    }
 
-        INDArray windowedLabels = Nd4j.create(totalWindows, predictSteps);
-
-        for (int i = 0; i < totalWindows; i++) {
-            // 取每个窗口最后一个时间点的标签
-            int labelIdx = i + timeSteps - 1;
-
-            if (labelIdx < labels.size(0)) {
-                // 获取标签行
-                INDArray labelRow = labels.getRow(labelIdx);
-                windowedLabels.putRow(i, labelRow);
-            } else {
-                // 如果索引超出范围，使用最后一个有效标签
-                INDArray lastLabel = labels.getRow((int) labels.size(0) - 1);
-                windowedLabels.putRow(i, lastLabel);
+    /**
+     * 按顺序横向拼接多组额外特征（粗周期融合、横截面特征等），跳过null和没有列的组
+     *
+     * @return 拼接结果，全部为空时返回null
+     */
+    public static INDArray joinExtraFeatures(INDArray... blocks) {
+        List<INDArray> present = new ArrayList<>();
+        for (INDArray block : blocks) {
+            if (block != null && block.size(1) > 0) {
+                present.add(block);
             }
         }
-
-        return windowedLabels;
+        if (present.isEmpty()) {
+            return null;
+        }
+        return present.size() == 1 ? present.get(0) : Nd4j.hstack(present);
     }
 
     /**
      * 保存标准化器
      */
-    public void saveNormalizers(MinMaxNormalizer featureNormalizer,
-                                MinMaxNormalizer labelNormalizer,
+    public void saveNormalizers(ColumnNormalizer featureNormalizer,
+                                ColumnNormalizer labelNormalizer,
                                 String modelName) {
         try {
             File modelDir = new File("models/" + modelName);
@@ -148,16 +297,26 @@ public class DataPreprocessingService {
     }
 
     /**
-     * 加载标准化器
+     * 加载标准化器，优先从模型包中读取
      */
     public NormalizerPair loadNormalizers(String modelName) {
         try {
             File modelDir = new File("models/" + modelName);
 
-            MinMaxNormalizer featureNormalizer = NormalizerSerializer.getDefault()
-                    .restore(new File(modelDir, "feature_normalizer.bin"));
-            MinMaxNormalizer labelNormalizer = NormalizerSerializer.getDefault()
-                    .restore(new File(modelDir, "label_normalizer.bin"));
+            File bundleFile = new File(modelDir, ModelBundle.FILE_NAME);
+            if (!bundleFile.exists()) {
+                bundleFile = new File(modelDir, ModelBundle.INFERENCE_FILE_NAME);
+            }
+            if (bundleFile.exists()) {
+                ModelBundle bundle = ModelBundle.loadWithoutNetwork(bundleFile);
+                if (bundle.getFeatureNormalizer() != null && bundle.getLabelNormalizer() != null) {
+                    logger.info("Normalizers loaded from model bundle");
+                    return new NormalizerPair(bundle.getFeatureNormalizer(), bundle.getLabelNormalizer());
+                }
+            }
+
+            ColumnNormalizer featureNormalizer = ColumnNormalizer.load(new File(modelDir, "feature_normalizer.bin"));
+            ColumnNormalizer labelNormalizer = ColumnNormalizer.load(new File(modelDir, "label_normalizer.bin"));
 
             logger.info("Normalizers loaded successfully");
             return new NormalizerPair(featureNormalizer, labelNormalizer);
@@ -169,20 +328,39 @@ public class DataPreprocessingService {
 
     /**
      * 处理后的数据容器类
+     * 特征 [rows, features] 与标签 [rows, predictSteps] 逐行对齐，第w个窗口是特征的第 w..w+timeSteps-1 行，
+     * 标签取窗口最后一行
      */
     public static class ProcessedData {
         private final INDArray features;
         private final INDArray labels;
-        private final MinMaxNormalizer featureNormalizer;
-        private final MinMaxNormalizer labelNormalizer;
+        private final int timeSteps;
+        private final ColumnNormalizer featureNormalizer;
+        private final ColumnNormalizer labelNormalizer;
+        private final double[] cleaningMeans;
+        private final double[] cleaningStds;
+
+        public ProcessedData(INDArray features, INDArray labels, int timeSteps,
+                             ColumnNormalizer featureNormalizer,
+                             ColumnNormalizer labelNormalizer) {
+            this(features, labels, timeSteps, featureNormalizer, labelNormalizer, null, null);
+        }
 
-        public ProcessedData(INDArray features, INDArray labels,
-                             MinMaxNormalizer featureNormalizer,
-                             MinMaxNormalizer labelNormalizer) {
+        /**
+         * @param cleaningMeans 特征清洗所用的列均值，未知时为null
+         * @param cleaningStds  特征清洗所用的列标准差，未知时为null
+         */
+        public ProcessedData(INDArray features, INDArray labels, int timeSteps,
+                             ColumnNormalizer featureNormalizer,
+                             ColumnNormalizer labelNormalizer,
+                             double[] cleaningMeans, double[] cleaningStds) {
             this.features = features;
             this.labels = labels;
+            this.timeSteps = timeSteps;
             this.featureNormalizer = featureNormalizer;
             this.labelNormalizer = labelNormalizer;
+            this.cleaningMeans = cleaningMeans;
+            this.cleaningStds = cleaningStds;
         }
 
         public INDArray getFeatures() {
@@ -193,33 +371,90 @@ public class DataPreprocessingService {
             return labels;
         }
 
-        public MinMaxNormalizer getFeatureNormalizer() {
+        public int getTimeSteps() {
+            return timeSteps;
+        }
+
+        public int getWindowCount() {
+            return SlidingWindowDataSetIterator.windowCount(features.size(0), timeSteps);
+        }
+
+        /**
+         * 最新的时间窗口 [1, timeSteps, features]
+         */
+        public INDArray getLatestWindow() {
+            long rows = features.size(0);
+            if (rows < timeSteps) {
+                throw new IllegalStateException(String.format(
+                        "Not enough rows for a window. Required: %d, Available: %d", timeSteps, rows));
+            }
+            return features.get(NDArrayIndex.interval(rows - timeSteps, rows), NDArrayIndex.all())
+                    .dup('c').reshape(1, timeSteps, features.size(1));
+        }
+
+        /**
+         * 创建按需组装窗口的迭代器
+         */
+        public SlidingWindowDataSetIterator iterator(int batchSize, boolean shuffle, long seed) {
+            return new SlidingWindowDataSetIterator(features, labels, timeSteps, batchSize, shuffle, seed);
+        }
+
+        /**
+         * 在本数据集的窗口上构造划分，清除窗口数由timeSteps和标签步数决定
+         */
+        public SplitGenerator splitGenerator() {
+            return new SplitGenerator(getWindowCount(),
+                    SplitGenerator.purgeWindowsFor(timeSteps, (int) labels.size(1)));
+        }
+
+        public ColumnNormalizer getFeatureNormalizer() {
             return featureNormalizer;
         }
 
-        public MinMaxNormalizer getLabelNormalizer() {
+        public ColumnNormalizer getLabelNormalizer() {
             return labelNormalizer;
         }
+
+        public double[] getCleaningMeans() {
+            return cleaningMeans;
+        }
+
+        public double[] getCleaningStds() {
+            return cleaningStds;
+        }
+
+        /**
+         * 随模型包保存的清洗统计量，增量微调时用 {@link #CLEANING_MEANS_KEY} 等键读回；未知时为空
+         */
+        public Map<String, String> cleaningMetadata() {
+            if (cleaningMeans == null || cleaningStds == null) {
+                return Collections.emptyMap();
+            }
+            Map<String, String> metadata = new LinkedHashMap<>();
+            metadata.put(CLEANING_MEANS_KEY, JSON.toJSONString(cleaningMeans));
+            metadata.put(CLEANING_STDS_KEY, JSON.toJSONString(cleaningStds));
+            return metadata;
+        }
     }
 
     /**
      * 标准化器对
      */
     public static class NormalizerPair {
-        private final MinMaxNormalizer featureNormalizer;
-        private final MinMaxNormalizer labelNormalizer;
+        private final ColumnNormalizer featureNormalizer;
+        private final ColumnNormalizer labelNormalizer;
 
-        public NormalizerPair(MinMaxNormalizer featureNormalizer,
-                              MinMaxNormalizer labelNormalizer) {
+        public NormalizerPair(ColumnNormalizer featureNormalizer,
+                              ColumnNormalizer labelNormalizer) {
             this.featureNormalizer = featureNormalizer;
             this.labelNormalizer = labelNormalizer;
         }
 
-        public MinMaxNormalizer getFeatureNormalizer() {
+        public ColumnNormalizer getFeatureNormalizer() {
             return featureNormalizer;
         }
 
-        public MinMaxNormalizer getLabelNormalizer() {
+        public ColumnNormalizer getLabelNormalizer() {
             return labelNormalizer;
         }
     }
@@ -0,0 +1,226 @@
+package com.sunyuyang.service;
+
+import com.sunyuyang.dao.ZhituStockDataDao;
+import com.sunyuyang.feature.FeatureEngineeringService;
+import com.sunyuyang.util.ColumnNormalizer;
+import com.sunyuyang.util.NDArrayFiles;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 预处理结果快照
+ * 把 preprocessData 的输出（标准化后的特征、标签、标准化器和特征清洗的统计量）按输入指纹写成二进制文件。
+ * 指纹由股票代码、K线周期、数据的首尾时间和K线数量、横截面特征所用的全市场K线统计、特征版本、融合的粗周期、timeSteps、predictSteps、标准化方式、数据类型和特征缓存的存储精度决定，
+ * 任何一项变化都会得到新的快照；指纹相同时整段批量读取文件，跳过拉取K线、特征工程和标准化。
+ */
+public class DatasetSnapshotCache {
+    private static final Logger logger = LoggerFactory.getLogger(DatasetSnapshotCache.class);
+
+    private static final int MAGIC = 0x53504453; // "SPDS"
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 128;
+    private static final int TEXT_FIELD_SIZE = 32;
+
+    private final File snapshotDir;
+
+    public DatasetSnapshotCache(File snapshotDir) {
+        this.snapshotDir = snapshotDir;
+    }
+
+    /**
+     * 计算输入指纹（SHA-256十六进制）
+     *
+     * @param coarseTimeLevels 融合的粗周期（逗号分隔，见 ModelConfig），为空表示不融合
+     * @param universeStats    全市场K线统计，附加横截面特征时才有，否则为null
+     * @param storageDataType  特征矩阵缓存的存储精度，低精度存储读回的特征与原值不同
+     */
+    public static String fingerprint(String stockCode, String timeLevel, ZhituStockDataDao.BarStats barStats,
+                                     ZhituStockDataDao.BarStats universeStats, String coarseTimeLevels,
+                                     int timeSteps, int predictSteps,
+                                     ColumnNormalizer.Mode featureNormalizerMode, DataType dataType,
+                                     DataType storageDataType) {
+        String input = String.join("|",
+                "v" + FORMAT_VERSION,
+                stockCode,
+                "timeLevel=" + timeLevel,
+                String.valueOf(barStats.getFirstTradeTime()),
+                String.valueOf(barStats.getLastTradeTime()),
+                String.valueOf(barStats.getCount()),
+                "features=" + FeatureEngineeringService.FEATURE_SET_VERSION,
+                "universe=" + (universeStats == null ? "none" : universeStats.getCount() + "/"
+                        + universeStats.getFirstTradeTime() + "/" + universeStats.getLastTradeTime()),
+                "coarse=" + coarseTimeLevels,
+                "timeSteps=" + timeSteps,
+                "predictSteps=" + predictSteps,
+                featureNormalizerMode.name(),
+                dataType.name(),
+                "storage=" + storageDataType.name());
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(input.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * 读取快照，不存在或损坏时返回null
+     */
+    public DataPreprocessingService.ProcessedData load(String fingerprint) {
+        File file = snapshotFile(fingerprint);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int timeSteps = header.getInt();
+            int featureColumns = header.getInt();
+            int labelColumns = header.getInt();
+            header.getInt(); // 对齐
+            long rows = header.getLong();
+            long normalizerLength = header.getLong();
+            DataType dataType = DataType.valueOf(readTextField(header));
+
+            long featuresOffset = HEADER_SIZE + normalizerLength;
+            long labelsOffset = featuresOffset + rows * featureColumns * dataType.width();
+            if (channel.size() < labelsOffset + rows * labelColumns * dataType.width()) {
+                logger.warn("Dataset snapshot {} is truncated, ignoring", file.getName());
+                return null;
+            }
+
+            ByteBuffer normalizerBytes = ByteBuffer.allocate((int) normalizerLength);
+            channel.read(normalizerBytes, HEADER_SIZE);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(normalizerBytes.array()));
+            ColumnNormalizer featureNormalizer = ColumnNormalizer.readFrom(in);
+            ColumnNormalizer labelNormalizer = ColumnNormalizer.readFrom(in);
+            double[] cleaningMeans = null;
+            double[] cleaningStds = null;
+            if (in.readBoolean()) {
+                cleaningMeans = new double[featureColumns];
+                cleaningStds = new double[featureColumns];
+                for (int col = 0; col < featureColumns; col++) {
+                    cleaningMeans[col] = in.readDouble();
+                    cleaningStds[col] = in.readDouble();
+                }
+            }
+
+            INDArray features = NDArrayFiles.read(channel, featuresOffset, dataType, rows, featureColumns);
+            INDArray labels = NDArrayFiles.read(channel, labelsOffset, dataType, rows, labelColumns);
+
+            logger.info("Dataset snapshot loaded: {} ({} rows)", fingerprint, rows);
+            return new DataPreprocessingService.ProcessedData(features, labels, timeSteps,
+                    featureNormalizer, labelNormalizer, cleaningMeans, cleaningStds);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to read dataset snapshot {}, ignoring", file.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * 写入快照，先写临时文件再替换
+     */
+    public void save(String fingerprint, DataPreprocessingService.ProcessedData data) throws IOException {
+        if (!snapshotDir.exists()) {
+            snapshotDir.mkdirs();
+        }
+
+        INDArray features = data.getFeatures();
+        INDArray labels = data.getLabels().dataType() == features.dataType()
+                ? data.getLabels() : data.getLabels().castTo(features.dataType());
+
+        ByteArrayOutputStream normalizerBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(normalizerBytes);
+        data.getFeatureNormalizer().writeTo(out);
+        data.getLabelNormalizer().writeTo(out);
+        double[] cleaningMeans = data.getCleaningMeans();
+        double[] cleaningStds = data.getCleaningStds();
+        out.writeBoolean(cleaningMeans != null && cleaningStds != null);
+        if (cleaningMeans != null && cleaningStds != null) {
+            for (int col = 0; col < cleaningMeans.length; col++) {
+                out.writeDouble(cleaningMeans[col]);
+                out.writeDouble(cleaningStds[col]);
+            }
+        }
+        out.flush();
+
+        File file = snapshotFile(fingerprint);
+        File tmpFile = new File(snapshotDir, fingerprint + ".snap.tmp");
+
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.putInt(data.getTimeSteps());
+            header.putInt((int) features.size(1));
+            header.putInt((int) labels.size(1));
+            header.putInt(0);
+            header.putLong(features.size(0));
+            header.putLong(normalizerBytes.size());
+            header.put(textField(features.dataType().name()));
+            header.position(0);
+            channel.write(header);
+
+            ByteBuffer normalizers = ByteBuffer.wrap(normalizerBytes.toByteArray());
+            while (normalizers.hasRemaining()) {
+                channel.write(normalizers);
+            }
+            NDArrayFiles.writeData(channel, features);
+            NDArrayFiles.writeData(channel, labels);
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        logger.info("Dataset snapshot written: {} ({} rows)", fingerprint, features.size(0));
+    }
+
+    private File snapshotFile(String fingerprint) {
+        return new File(snapshotDir, fingerprint + ".snap");
+    }
+
+    private static ByteBuffer textField(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer field = ByteBuffer.allocate(TEXT_FIELD_SIZE);
+        field.put(bytes, 0, Math.min(bytes.length, TEXT_FIELD_SIZE));
+        field.position(0);
+        return field;
+    }
+
+    private static String readTextField(ByteBuffer buffer) {
+        byte[] bytes = new byte[TEXT_FIELD_SIZE];
+        buffer.get(bytes);
+        int length = 0;
+        while (length < bytes.length && bytes[length] != 0) {
+            length++;
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+}
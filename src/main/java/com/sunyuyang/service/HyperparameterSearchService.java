@@ -0,0 +1,935 @@
+package com.sunyuyang.service;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+import com.sunyuyang.entity.ModelConfig;
+import com.sunyuyang.model.AsyncValidator;
+import com.sunyuyang.model.EpochScoreListener;
+import com.sunyuyang.model.LSTMModel;
+import com.sunyuyang.util.PrefetchingBatchIterator;
+import com.sunyuyang.util.SlidingWindowDataSetIterator;
+import com.sunyuyang.util.SplitGenerator;
+import org.deeplearning4j.nn.conf.CacheMode;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.RNNFormat;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.memory.MemoryUseMode;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 超参数搜索
+ * 在同一份预处理数据上并发训练多组 ModelConfig，按验证损失排名。所有试验只读共享同一份二维特征和标签矩阵，
+ * 窗口由各自的迭代器按需组装，timeSteps 不同的试验也不复制数据。
+ * <p>
+ * 三种策略：RANDOM 在搜索空间中随机采样；GRID 遍历所有组合（对数范围取 {@link #GRID_POINTS} 个等比点）；
+ * ASHA 异步逐次减半，新试验先训练 minEpochs 轮，每一级中排名前 1/reductionFactor 的试验晋级，
+ * 继续训练到 reductionFactor 倍的轮数，最高一级为 ModelConfig 的 epochs。
+ * RANDOM 和 GRID 用中位数规则停止落后的试验：训练满 minEpochs 轮后，若最优验证损失差于已结束试验在同一轮的中位数则停止。
+ * 所有策略下试验自身还按 earlyStoppingPatience 早停。
+ * <p>
+ * 试验只使用最终模型训练集范围内的数据：按搜索空间中最大的 timeSteps 计算最终 holdout 的测试起点，
+ * 之前的行再按 trainTestSplit 切出验证区间。验证区间是固定的行范围（按窗口最后一行，即预测时点划分），
+ * 所有试验不论 timeSteps 是多少都在同一批预测时点上打分；训练窗口在验证区间之前并清除重叠窗口。
+ * <p>
+ * 同时运行的试验数同时受核数预算和内存预算限制，内存按搜索空间中最大的配置的训练内存报告估算。
+ * 每个试验在一个线程上训练，ND4J 的运算本身也是多线程的，并发试验较多时应把 OMP_NUM_THREADS 设为 核数预算/并发数。
+ * 每个试验结束后排行榜写入 JSON 文件。ASHA 暂停等待晋级的试验保留在内存中。
+ */
+public class HyperparameterSearchService {
+    private static final Logger logger = LoggerFactory.getLogger(HyperparameterSearchService.class);
+    private static final long SHUFFLE_SEED = 12345;
+
+    public static final int DEFAULT_MIN_EPOCHS = 2;
+    public static final int DEFAULT_REDUCTION_FACTOR = 3;
+    // 网格搜索时对数范围取的点数
+    public static final int GRID_POINTS = 3;
+    // 中位数规则至少需要的已结束试验数
+    private static final int MEDIAN_RULE_MIN_TRIALS = 3;
+
+    public enum Strategy {
+        RANDOM, GRID, ASHA
+    }
+
+    /**
+     * 可搜索的超参数
+     */
+    public enum Parameter {
+        TIME_STEPS(true) {
+            @Override
+            void apply(ModelConfig config, double value) {
+                config.setTimeSteps((int) Math.round(value));
+            }
+        },
+        LSTM_LAYER1_SIZE(true) {
+            @Override
+            void apply(ModelConfig config, double value) {
+                config.setLstmLayer1Size((int) Math.round(value));
+            }
+        },
+        LSTM_LAYER2_SIZE(true) {
+            @Override
+            void apply(ModelConfig config, double value) {
+                config.setLstmLayer2Size((int) Math.round(value));
+            }
+        },
+        DENSE_LAYER_SIZE(true) {
+            @Override
+            void apply(ModelConfig config, double value) {
+                config.setDenseLayerSize((int) Math.round(value));
+            }
+        },
+        LEARNING_RATE(false) {
+            @Override
+            void apply(ModelConfig config, double value) {
+                config.setLearningRate(value);
+            }
+        },
+        DROPOUT_RATE(false) {
+            @Override
+            void apply(ModelConfig config, double value) {
+                config.setDropoutRate(value);
+            }
+        },
+        BATCH_SIZE(true) {
+            @Override
+            void apply(ModelConfig config, double value) {
+                config.setBatchSize((int) Math.round(value));
+            }
+        };
+
+        private final boolean integer;
+
+        Parameter(boolean integer) {
+            this.integer = integer;
+        }
+
+        abstract void apply(ModelConfig config, double value);
+
+        Object format(double value) {
+            return integer ? (Object) Math.round(value) : (Object) value;
+        }
+    }
+
+    private final ModelConfig baseConfig;
+    private final int coreBudget;
+    private final long memoryBudgetBytes;
+    private int minEpochs = DEFAULT_MIN_EPOCHS;
+    private int reductionFactor = DEFAULT_REDUCTION_FACTOR;
+    private long seed = 42;
+
+    /**
+     * @param baseConfig        搜索空间以外的参数取自该配置，epochs 是每个试验的最大轮数
+     * @param coreBudget        可用核数，同时运行的试验不超过该值
+     * @param memoryBudgetBytes 可用内存（字节），0表示不限制
+     */
+    public HyperparameterSearchService(ModelConfig baseConfig, int coreBudget, long memoryBudgetBytes) {
+        if (coreBudget < 1 || memoryBudgetBytes < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "预算无效: cores=%d, memory=%d", coreBudget, memoryBudgetBytes));
+        }
+        this.baseConfig = baseConfig;
+        this.coreBudget = coreBudget;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    /**
+     * 运行一次搜索
+     *
+     * @param maxTrials       最多试验的配置数（GRID 时截取前 maxTrials 个组合）
+     * @param leaderboardFile 排行榜 JSON 文件，为null时不写
+     */
+    public SearchResult search(DataPreprocessingService.ProcessedData data, SearchSpace space, Strategy strategy,
+                               int maxTrials, File leaderboardFile) {
+        if (maxTrials < 1) {
+            throw new IllegalArgumentException("maxTrials必须大于0: " + maxTrials);
+        }
+
+        INDArray features = toConfiguredType(data.getFeatures());
+        INDArray labels = toConfiguredType(data.getLabels());
+        int concurrency = concurrencyFor(space, (int) features.size(1), (int) labels.size(1));
+        logger.info("超参数搜索 - 策略: {}, 最多试验: {}, 并发试验: {}, 每个试验最多 {} 轮",
+                strategy, maxTrials, concurrency, baseConfig.getEpochs());
+
+        Scheduler scheduler = strategy == Strategy.ASHA
+                ? new AshaScheduler(space, maxTrials)
+                : new SequentialScheduler(strategy == Strategy.GRID
+                ? space.grid(GRID_POINTS, maxTrials) : space.sample(new Random(seed), maxTrials));
+        int maxTimeSteps = configFor(baseConfig, space.largest()).getTimeSteps();
+        SearchContext context = new SearchContext(features, labels, maxTimeSteps, strategy != Strategy.ASHA);
+
+        List<Trial> trials = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "hyperparameter-trial");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletionService<Trial> completion = new ExecutorCompletionService<>(executor);
+        long start = System.nanoTime();
+        try {
+            int running = 0;
+            while (true) {
+                while (running < concurrency) {
+                    Job job = scheduler.next();
+                    if (job == null) {
+                        break;
+                    }
+                    if (!trials.contains(job.trial)) {
+                        trials.add(job.trial);
+                    }
+                    completion.submit(() -> context.run(job));
+                    running++;
+                }
+                if (running == 0) {
+                    break;
+                }
+
+                Trial finished = take(completion);
+                running--;
+                scheduler.completed(finished);
+                context.completed(finished);
+                logger.info("试验 {} {}: 已训练 {} 轮, 最优验证损失 {}, 参数 {}", finished.id, finished.status,
+                        finished.epochs, String.format("%.6f", finished.bestScore), finished.describeParams());
+                if (leaderboardFile != null) {
+                    writeLeaderboard(leaderboardFile, strategy, trials);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (Trial trial : trials) {
+            trial.finish();
+        }
+        if (leaderboardFile != null) {
+            writeLeaderboard(leaderboardFile, strategy, trials);
+        }
+
+        List<TrialResult> leaderboard = new ArrayList<>();
+        for (Trial trial : ranked(trials)) {
+            leaderboard.add(trial.toResult());
+        }
+        logger.info("超参数搜索完成 - 试验: {}, 用时: {} 秒", trials.size(),
+                String.format("%.1f", (System.nanoTime() - start) / 1e9));
+        return new SearchResult(strategy, leaderboard);
+    }
+
+    /**
+     * 同时运行的试验数：核数预算与内存预算能容纳的试验数中较小的一个
+     */
+    private int concurrencyFor(SearchSpace space, int numInputFeatures, int numOutputSteps) {
+        int concurrency = coreBudget;
+        if (memoryBudgetBytes > 0) {
+            ModelConfig largest = configFor(baseConfig, space.largest());
+            long trialBytes = estimateTrialMemory(largest, numInputFeatures, numOutputSteps);
+            int byMemory = (int) Math.max(1, memoryBudgetBytes / Math.max(1, trialBytes));
+            logger.info("单个试验估计内存: {} MB，内存预算可容纳 {} 个试验", trialBytes >> 20, byMemory);
+            concurrency = Math.min(concurrency, byMemory);
+        }
+        return concurrency;
+    }
+
+    /**
+     * 按网络的训练内存报告估算一个试验需要的内存，另加预取迭代器的批次缓冲区
+     */
+    static long estimateTrialMemory(ModelConfig config, int numInputFeatures, int numOutputSteps) {
+        int timeSteps = config.getTimeSteps();
+        MultiLayerConfiguration networkConfig = new LSTMModel(config)
+                .buildModelConfig(numInputFeatures, numOutputSteps, timeSteps);
+        long networkBytes = networkConfig
+                .getMemoryReport(InputType.recurrent(numInputFeatures, timeSteps, RNNFormat.NWC))
+                .getTotalMemoryBytes(config.getBatchSize(), MemoryUseMode.TRAINING, CacheMode.NONE,
+                        config.getDataType());
+        long batchBytes = (long) config.getBatchSize() * (timeSteps * numInputFeatures + numOutputSteps)
+                * config.getDataType().width();
+        return networkBytes + (PrefetchingBatchIterator.DEFAULT_RING_SIZE + 1) * batchBytes;
+    }
+
+    private INDArray toConfiguredType(INDArray array) {
+        return array.dataType() == baseConfig.getDataType() ? array : array.castTo(baseConfig.getDataType());
+    }
+
+    private static Trial take(CompletionService<Trial> completion) {
+        try {
+            return completion.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待试验结果时被中断", e);
+        } catch (ExecutionException e) {
+            // 试验内部的异常已经转为FAILED状态，这里只会是调度本身的错误
+            throw new IllegalStateException("试验执行失败", e.getCause());
+        }
+    }
+
+    /**
+     * 按最优验证损失排序，没有结果的试验排在最后
+     */
+    private static List<Trial> ranked(List<Trial> trials) {
+        List<Trial> sorted = new ArrayList<>(trials);
+        sorted.sort(Comparator.comparingDouble(trial -> Double.isNaN(trial.bestScore)
+                ? Double.POSITIVE_INFINITY : trial.bestScore));
+        return sorted;
+    }
+
+    private static void writeLeaderboard(File file, Strategy strategy, List<Trial> trials) {
+        JSONObject leaderboard = new JSONObject();
+        leaderboard.put("strategy", strategy.name());
+        leaderboard.put("updatedAt", LocalDateTime.now().toString());
+        JSONArray entries = new JSONArray();
+        int rank = 1;
+        for (Trial trial : ranked(trials)) {
+            JSONObject entry = trial.toResult().toJson();
+            entry.put("rank", rank++);
+            entries.add(entry);
+        }
+        leaderboard.put("trials", entries);
+
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            File tmpFile = new File(file.getPath() + ".tmp");
+            Files.write(tmpFile.toPath(), JSON.toJSONString(leaderboard).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn("排行榜写入失败: {}", file.getPath(), e);
+        }
+    }
+
+    public int getMinEpochs() {
+        return minEpochs;
+    }
+
+    /**
+     * ASHA 最低一级的训练轮数，也是中位数规则开始生效的轮数
+     */
+    public void setMinEpochs(int minEpochs) {
+        if (minEpochs < 1) {
+            throw new IllegalArgumentException("minEpochs必须大于0: " + minEpochs);
+        }
+        this.minEpochs = minEpochs;
+    }
+
+    public int getReductionFactor() {
+        return reductionFactor;
+    }
+
+    public void setReductionFactor(int reductionFactor) {
+        if (reductionFactor < 2) {
+            throw new IllegalArgumentException("reductionFactor至少为2: " + reductionFactor);
+        }
+        this.reductionFactor = reductionFactor;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * 一次训练任务：把试验继续训练到 targetEpochs 轮
+     */
+    private static class Job {
+        final Trial trial;
+        final int targetEpochs;
+
+        Job(Trial trial, int targetEpochs) {
+            this.trial = trial;
+            this.targetEpochs = targetEpochs;
+        }
+    }
+
+    private interface Scheduler {
+        /**
+         * 下一个可以开始的任务，暂时没有时返回null
+         */
+        Job next();
+
+        void completed(Trial trial);
+    }
+
+    /**
+     * RANDOM 和 GRID：按顺序把每个配置训练到最大轮数
+     */
+    private class SequentialScheduler implements Scheduler {
+        private final Iterator<Map<Parameter, Double>> candidates;
+        private int created = 0;
+
+        SequentialScheduler(List<Map<Parameter, Double>> candidates) {
+            this.candidates = candidates.iterator();
+        }
+
+        @Override
+        public Job next() {
+            if (!candidates.hasNext()) {
+                return null;
+            }
+            return new Job(newTrial(created++, candidates.next()), baseConfig.getEpochs());
+        }
+
+        @Override
+        public void completed(Trial trial) {
+        }
+    }
+
+    /**
+     * 异步逐次减半：有空闲线程时优先让最高一级中可以晋级的试验继续训练，没有可晋级的试验时开始新试验
+     */
+    private class AshaScheduler implements Scheduler {
+        private final SearchSpace space;
+        private final int maxTrials;
+        private final Random random = new Random(seed);
+        private final List<Integer> rungEpochs = new ArrayList<>();
+        // 每一级已完成的试验
+        private final List<List<Trial>> rungs = new ArrayList<>();
+        private int created = 0;
+
+        AshaScheduler(SearchSpace space, int maxTrials) {
+            this.space = space;
+            this.maxTrials = maxTrials;
+            long epochs = minEpochs;
+            while (epochs < baseConfig.getEpochs()) {
+                rungEpochs.add((int) epochs);
+                rungs.add(new ArrayList<>());
+                epochs *= reductionFactor;
+            }
+            rungEpochs.add(baseConfig.getEpochs());
+            rungs.add(new ArrayList<>());
+        }
+
+        @Override
+        public Job next() {
+            for (int rung = rungs.size() - 2; rung >= 0; rung--) {
+                int level = rung;
+                List<Trial> completed = new ArrayList<>(rungs.get(rung));
+                completed.sort(Comparator.comparingDouble(trial -> trial.rungScores.get(level)));
+                int promotable = completed.size() / reductionFactor;
+                for (Trial trial : completed.subList(0, promotable)) {
+                    if (trial.status == Status.PAUSED && trial.rung == rung) {
+                        trial.rung = rung + 1;
+                        trial.status = Status.RUNNING;
+                        return new Job(trial, rungEpochs.get(rung + 1));
+                    }
+                }
+            }
+            if (created < maxTrials) {
+                Trial trial = newTrial(created++, space.sampleOne(random));
+                trial.rung = 0;
+                return new Job(trial, rungEpochs.get(0));
+            }
+            return null;
+        }
+
+        @Override
+        public void completed(Trial trial) {
+            if (trial.status == Status.FAILED) {
+                return;
+            }
+            // 提前停止的试验也参与排名，只是不会再晋级
+            trial.rungScores.put(trial.rung, trial.bestScore);
+            rungs.get(trial.rung).add(trial);
+            if (trial.status == Status.RUNNING) {
+                trial.status = trial.rung == rungs.size() - 1 ? Status.COMPLETED : Status.PAUSED;
+            }
+        }
+    }
+
+    private Trial newTrial(int id, Map<Parameter, Double> params) {
+        return new Trial(id, params, configFor(baseConfig, params));
+    }
+
+    /**
+     * 在基础配置的副本上应用超参数
+     */
+    static ModelConfig configFor(ModelConfig baseConfig, Map<Parameter, Double> params) {
+        ModelConfig config = JSON.parseObject(JSON.toJSONString(baseConfig), ModelConfig.class);
+        for (Map.Entry<Parameter, Double> entry : params.entrySet()) {
+            entry.getKey().apply(config, entry.getValue());
+        }
+        return config;
+    }
+
+    /**
+     * 所有试验共享的数据和中位数规则的参考曲线
+     */
+    private class SearchContext {
+        private final INDArray features;
+        private final INDArray labels;
+        private final boolean medianRule;
+        // 验证窗口最后一行（预测时点）的范围 [validationFromRow, validationToRow)，所有试验共用
+        private final int validationFromRow;
+        private final int validationToRow;
+        // 已结束试验每轮的最优验证损失
+        private final List<double[]> finishedCurves = new ArrayList<>();
+
+        /**
+         * @param maxTimeSteps 搜索空间中最大的 timeSteps，最终 holdout 的测试起点按它计算，取所有候选中最早的一个
+         */
+        SearchContext(INDArray features, INDArray labels, int maxTimeSteps, boolean medianRule) {
+            this.features = features;
+            this.labels = labels;
+            this.medianRule = medianRule;
+
+            // 最终模型的第一个测试窗口从这一行开始，搜索不能使用这一行及之后的任何信息
+            int predictSteps = (int) labels.size(1);
+            int testFromRow = (int) (SlidingWindowDataSetIterator.windowCount(features.size(0), maxTimeSteps)
+                    * baseConfig.getTrainTestSplit());
+            this.validationFromRow = (int) (testFromRow * baseConfig.getTrainTestSplit());
+            // 标签覆盖预测时点之后 predictSteps 行，验证窗口的标签也必须在测试起点之前
+            this.validationToRow = testFromRow - predictSteps;
+            logger.info("超参数搜索验证区间 - 预测时点行: [{}, {})，最终测试集从第 {} 行开始",
+                    validationFromRow, validationToRow, testFromRow);
+            validationSplit(maxTimeSteps);
+        }
+
+        /**
+         * 给定 timeSteps 下的训练和验证窗口：验证窗口的最后一行落在共用的行范围内，训练窗口在其之前并清除重叠部分
+         */
+        SplitGenerator.Split validationSplit(int timeSteps) {
+            int validationFrom = Math.max(0, validationFromRow - (timeSteps - 1));
+            int validationTo = validationToRow - (timeSteps - 1);
+            int trainTo = validationFrom - SplitGenerator.purgeWindowsFor(timeSteps, (int) labels.size(1));
+            if (trainTo <= 0 || validationTo <= validationFrom) {
+                throw new IllegalArgumentException(String.format(
+                        "行数 %d 不足以在最终训练集内划分验证区间（timeSteps=%d）", features.size(0), timeSteps));
+            }
+            return new SplitGenerator.Split(0, new int[][]{{0, trainTo}}, validationFrom, validationTo);
+        }
+
+        /**
+         * 在工作线程上把试验训练到目标轮数，异常转为FAILED状态
+         */
+        Trial run(Job job) {
+            Trial trial = job.trial;
+            trial.status = Status.RUNNING;
+            long start = System.nanoTime();
+            PrefetchingBatchIterator trainIterator = null;
+            try {
+                ModelConfig config = trial.config;
+                int timeSteps = config.getTimeSteps();
+                if (trial.network == null) {
+                    LSTMModel lstmModel = new LSTMModel(config);
+                    lstmModel.initialize((int) features.size(1), (int) labels.size(1), timeSteps);
+                    trial.network = lstmModel.getModel();
+                    trial.scoreListener = new EpochScoreListener();
+                    trial.network.setListeners(trial.scoreListener);
+                    trial.split = validationSplit(timeSteps);
+                }
+
+                trainIterator = PrefetchingBatchIterator.slidingWindows(features, labels, timeSteps,
+                        trial.split.trainWindows(), config.getBatchSize(), true, SHUFFLE_SEED + trial.epochs,
+                        config.getDataType());
+                SlidingWindowDataSetIterator validationIterator = new SlidingWindowDataSetIterator(features, labels,
+                        timeSteps, trial.split.testWindows(), config.getBatchSize(), false, SHUFFLE_SEED);
+
+                while (trial.epochs < job.targetEpochs) {
+                    trial.network.fit(trainIterator);
+                    trainIterator.reset();
+                    trial.record(AsyncValidator.averageScore(trial.network, validationIterator));
+
+                    int patience = config.getEarlyStoppingPatience();
+                    if (patience > 0 && trial.epochs - trial.bestEpoch >= patience) {
+                        trial.status = Status.STOPPED;
+                        break;
+                    }
+                    if (medianRule && trial.epochs >= minEpochs && trial.epochs < job.targetEpochs
+                            && trial.bestScore > median(trial.epochs)) {
+                        trial.status = Status.PRUNED;
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                logger.warn("试验 {} 失败: {}", trial.id, trial.describeParams(), e);
+                trial.status = Status.FAILED;
+                trial.error = e.getMessage();
+            } finally {
+                if (trainIterator != null) {
+                    trainIterator.shutdown();
+                }
+                trial.trainNanos += System.nanoTime() - start;
+            }
+            if (trial.status == Status.RUNNING && medianRule) {
+                trial.status = Status.COMPLETED;
+            }
+            return trial;
+        }
+
+        /**
+         * 已结束试验在第 epoch 轮的最优验证损失的中位数，参考试验不足时返回正无穷
+         */
+        private double median(int epoch) {
+            List<Double> values = new ArrayList<>();
+            synchronized (finishedCurves) {
+                for (double[] curve : finishedCurves) {
+                    if (curve.length >= epoch) {
+                        values.add(curve[epoch - 1]);
+                    }
+                }
+            }
+            if (values.size() < MEDIAN_RULE_MIN_TRIALS) {
+                return Double.POSITIVE_INFINITY;
+            }
+            Collections.sort(values);
+            int middle = values.size() / 2;
+            return values.size() % 2 == 1 ? values.get(middle) : (values.get(middle - 1) + values.get(middle)) / 2;
+        }
+
+        void completed(Trial trial) {
+            if (trial.status == Status.COMPLETED || trial.status == Status.STOPPED) {
+                synchronized (finishedCurves) {
+                    finishedCurves.add(trial.bestCurve());
+                }
+            }
+        }
+    }
+
+    public enum Status {
+        RUNNING, PAUSED, COMPLETED, STOPPED, PRUNED, FAILED
+    }
+
+    /**
+     * 一个试验的训练状态，同一时间只在一个线程上训练
+     */
+    private static class Trial {
+        final int id;
+        final Map<Parameter, Double> params;
+        final ModelConfig config;
+        final List<Double> validationScores = new ArrayList<>();
+        final Map<Integer, Double> rungScores = new HashMap<>();
+        volatile Status status = Status.RUNNING;
+        volatile int rung;
+        volatile int epochs;
+        volatile int bestEpoch;
+        volatile double bestScore = Double.NaN;
+        volatile long trainNanos;
+        volatile String error;
+        MultiLayerNetwork network;
+        EpochScoreListener scoreListener;
+        // 测试区间是搜索的验证区间，不是最终模型的测试集
+        SplitGenerator.Split split;
+
+        Trial(int id, Map<Parameter, Double> params, ModelConfig config) {
+            this.id = id;
+            this.params = params;
+            this.config = config;
+        }
+
+        void record(double validationScore) {
+            validationScores.add(validationScore);
+            epochs++;
+            if (Double.isNaN(bestScore) || validationScore < bestScore) {
+                bestScore = validationScore;
+                bestEpoch = epochs;
+            }
+        }
+
+        /**
+         * 每轮为止的最优验证损失
+         */
+        double[] bestCurve() {
+            double[] curve = new double[validationScores.size()];
+            double best = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < curve.length; i++) {
+                best = Math.min(best, validationScores.get(i));
+                curve[i] = best;
+            }
+            return curve;
+        }
+
+        /**
+         * 搜索结束：未能晋级的ASHA试验记为PRUNED，释放网络
+         */
+        void finish() {
+            if (status == Status.PAUSED) {
+                status = Status.PRUNED;
+            }
+            network = null;
+        }
+
+        String describeParams() {
+            StringBuilder text = new StringBuilder();
+            for (Map.Entry<Parameter, Double> entry : params.entrySet()) {
+                if (text.length() > 0) {
+                    text.append(", ");
+                }
+                text.append(entry.getKey()).append('=').append(entry.getKey().format(entry.getValue()));
+            }
+            return text.toString();
+        }
+
+        TrialResult toResult() {
+            double trainLoss = scoreListener != null ? scoreListener.getLastEpochScore() : Double.NaN;
+            return new TrialResult(id, new EnumMap<>(params), config, status, epochs, bestEpoch, bestScore,
+                    trainLoss, trainNanos / 1e9, error);
+        }
+    }
+
+    /**
+     * 搜索空间：每个超参数是一组候选值或一个对数均匀分布的范围
+     */
+    public static class SearchSpace {
+        private final Map<Parameter, double[]> choices = new EnumMap<>(Parameter.class);
+        private final Map<Parameter, double[]> logRanges = new EnumMap<>(Parameter.class);
+
+        /**
+         * 常用的默认搜索空间
+         */
+        public static SearchSpace defaultSpace() {
+            SearchSpace space = new SearchSpace();
+            space.addChoice(Parameter.TIME_STEPS, 30, 60, 90);
+            space.addChoice(Parameter.LSTM_LAYER1_SIZE, 64, 128, 256);
+            space.addChoice(Parameter.LSTM_LAYER2_SIZE, 32, 64, 128);
+            space.addChoice(Parameter.DENSE_LAYER_SIZE, 16, 32, 64);
+            space.addLogUniform(Parameter.LEARNING_RATE, 1e-4, 1e-2);
+            space.addChoice(Parameter.DROPOUT_RATE, 0.0, 0.1, 0.2, 0.3);
+            space.addChoice(Parameter.BATCH_SIZE, 32, 64, 128);
+            return space;
+        }
+
+        public void addChoice(Parameter parameter, double... values) {
+            if (values.length == 0) {
+                throw new IllegalArgumentException("候选值不能为空: " + parameter);
+            }
+            logRanges.remove(parameter);
+            choices.put(parameter, values.clone());
+        }
+
+        public void addLogUniform(Parameter parameter, double min, double max) {
+            if (min <= 0 || max < min) {
+                throw new IllegalArgumentException(String.format("对数范围无效: %s [%f, %f]", parameter, min, max));
+            }
+            choices.remove(parameter);
+            logRanges.put(parameter, new double[]{min, max});
+        }
+
+        Map<Parameter, Double> sampleOne(Random random) {
+            Map<Parameter, Double> params = new EnumMap<>(Parameter.class);
+            for (Map.Entry<Parameter, double[]> entry : choices.entrySet()) {
+                double[] values = entry.getValue();
+                params.put(entry.getKey(), values[random.nextInt(values.length)]);
+            }
+            for (Map.Entry<Parameter, double[]> entry : logRanges.entrySet()) {
+                double logMin = Math.log(entry.getValue()[0]);
+                double logMax = Math.log(entry.getValue()[1]);
+                params.put(entry.getKey(), Math.exp(logMin + random.nextDouble() * (logMax - logMin)));
+            }
+            return params;
+        }
+
+        List<Map<Parameter, Double>> sample(Random random, int count) {
+            List<Map<Parameter, Double>> samples = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                samples.add(sampleOne(random));
+            }
+            return samples;
+        }
+
+        /**
+         * 所有组合，最多 limit 个；对数范围取 points 个等比点
+         */
+        List<Map<Parameter, Double>> grid(int points, int limit) {
+            Map<Parameter, double[]> axes = new EnumMap<>(choices);
+            for (Map.Entry<Parameter, double[]> entry : logRanges.entrySet()) {
+                double[] values = new double[points];
+                double logMin = Math.log(entry.getValue()[0]);
+                double logMax = Math.log(entry.getValue()[1]);
+                for (int i = 0; i < points; i++) {
+                    values[i] = Math.exp(points == 1 ? logMin : logMin + (logMax - logMin) * i / (points - 1));
+                }
+                axes.put(entry.getKey(), values);
+            }
+
+            List<Map<Parameter, Double>> combinations = new ArrayList<>();
+            combinations.add(new EnumMap<>(Parameter.class));
+            for (Map.Entry<Parameter, double[]> axis : axes.entrySet()) {
+                List<Map<Parameter, Double>> expanded = new ArrayList<>();
+                for (Map<Parameter, Double> combination : combinations) {
+                    for (double value : axis.getValue()) {
+                        Map<Parameter, Double> next = new EnumMap<>(Parameter.class);
+                        next.putAll(combination);
+                        next.put(axis.getKey(), value);
+                        expanded.add(next);
+                    }
+                }
+                combinations = expanded;
+            }
+            if (combinations.size() > limit) {
+                logger.warn("网格共 {} 个组合，只试验前 {} 个", combinations.size(), limit);
+                return new ArrayList<>(combinations.subList(0, limit));
+            }
+            return combinations;
+        }
+
+        /**
+         * 每个超参数的最大值，用于估算内存
+         */
+        Map<Parameter, Double> largest() {
+            Map<Parameter, Double> params = new EnumMap<>(Parameter.class);
+            for (Map.Entry<Parameter, double[]> entry : choices.entrySet()) {
+                params.put(entry.getKey(), Arrays.stream(entry.getValue()).max().orElse(0));
+            }
+            for (Map.Entry<Parameter, double[]> entry : logRanges.entrySet()) {
+                params.put(entry.getKey(), entry.getValue()[1]);
+            }
+            return params;
+        }
+    }
+
+    /**
+     * 一个试验的结果
+     */
+    public static class TrialResult {
+        private final int id;
+        private final Map<Parameter, Double> params;
+        private final ModelConfig config;
+        private final Status status;
+        private final int epochs;
+        private final int bestEpoch;
+        private final double bestValidationLoss;
+        private final double finalTrainLoss;
+        private final double trainSeconds;
+        private final String error;
+
+        public TrialResult(int id, Map<Parameter, Double> params, ModelConfig config, Status status, int epochs,
+                           int bestEpoch, double bestValidationLoss, double finalTrainLoss, double trainSeconds,
+                           String error) {
+            this.id = id;
+            this.params = params;
+            this.config = config;
+            this.status = status;
+            this.epochs = epochs;
+            this.bestEpoch = bestEpoch;
+            this.bestValidationLoss = bestValidationLoss;
+            this.finalTrainLoss = finalTrainLoss;
+            this.trainSeconds = trainSeconds;
+            this.error = error;
+        }
+
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("trial", id);
+            json.put("status", status.name());
+            JSONObject paramJson = new JSONObject();
+            for (Map.Entry<Parameter, Double> entry : params.entrySet()) {
+                paramJson.put(entry.getKey().name(), entry.getKey().format(entry.getValue()));
+            }
+            json.put("params", paramJson);
+            json.put("epochs", epochs);
+            json.put("bestEpoch", bestEpoch);
+            json.put("bestValidationLoss", Double.isNaN(bestValidationLoss) ? null : bestValidationLoss);
+            json.put("finalTrainLoss", Double.isNaN(finalTrainLoss) ? null : finalTrainLoss);
+            json.put("trainSeconds", Math.round(trainSeconds * 10) / 10.0);
+            if (error != null) {
+                json.put("error", error);
+            }
+            return json;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Map<Parameter, Double> getParams() {
+            return params;
+        }
+
+        /**
+         * 应用了本试验超参数的完整配置，可直接用于 ModelTrainingService
+         */
+        public ModelConfig getConfig() {
+            return config;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public int getEpochs() {
+            return epochs;
+        }
+
+        public int getBestEpoch() {
+            return bestEpoch;
+        }
+
+        public double getBestValidationLoss() {
+            return bestValidationLoss;
+        }
+
+        public double getFinalTrainLoss() {
+            return finalTrainLoss;
+        }
+
+        public double getTrainSeconds() {
+            return trainSeconds;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    /**
+     * 搜索结果，排行榜按最优验证损失从小到大排列
+     */
+    public static class SearchResult {
+        private final Strategy strategy;
+        private final List<TrialResult> leaderboard;
+
+        public SearchResult(Strategy strategy, List<TrialResult> leaderboard) {
+            this.strategy = strategy;
+            this.leaderboard = Collections.unmodifiableList(leaderboard);
+        }
+
+        public Strategy getStrategy() {
+            return strategy;
+        }
+
+        public List<TrialResult> getLeaderboard() {
+            return leaderboard;
+        }
+
+        /**
+         * 验证损失最低的试验，没有成功的试验时为null
+         */
+        public TrialResult getBest() {
+            return leaderboard.isEmpty() || Double.isNaN(leaderboard.get(0).getBestValidationLoss())
+                    ? null : leaderboard.get(0);
+        }
+
+        public void print() {
+            System.out.println("\n=== 超参数搜索排行榜 (" + strategy + ") ===");
+            int rank = 1;
+            for (TrialResult trial : leaderboard) {
+                System.out.printf("%2d. 试验 %-3d %-9s 轮数 %-3d 验证损失 %.6f  %s%n", rank++, trial.getId(),
+                        trial.getStatus(), trial.getEpochs(), trial.getBestValidationLoss(),
+                        trial.toJson().getJSONObject("params"));
+            }
+        }
+    }
+}
@@ -1,11 +1,30 @@
 package com.sunyuyang.service;
 
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.TypeReference;
 import com.sunyuyang.entity.ModelConfig;
+import com.sunyuyang.model.AsyncValidator;
+import com.sunyuyang.model.CheckpointWriter;
+import com.sunyuyang.model.DataParallelTrainer;
+import com.sunyuyang.model.EpochScoreListener;
 import com.sunyuyang.model.LSTMModel;
+import com.sunyuyang.model.ModelBundle;
+import com.sunyuyang.model.ModelCompressor;
+import com.sunyuyang.model.TelemetryListener;
+import com.sunyuyang.model.TelemetrySink;
+import com.sunyuyang.util.ColumnNormalizer;
 import com.sunyuyang.util.EvaluationMetrics;
-import org.deeplearning4j.datasets.iterator.utilty.ListDataSetIterator;
+import com.sunyuyang.util.MemoryStats;
+import com.sunyuyang.util.MixedSymbolWindowIterator;
+import com.sunyuyang.util.PrefetchingBatchIterator;
+import com.sunyuyang.util.ShardedWindowDataSetIterator;
+import com.sunyuyang.util.SlidingWindowDataSetIterator;
+import com.sunyuyang.util.SplitGenerator;
+import com.sunyuyang.util.Workspaces;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.earlystopping.EarlyStoppingResult;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
@@ -14,13 +33,47 @@ import org.nd4j.linalg.indexing.NDArrayIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ModelTrainingService {
     private static final Logger logger = LoggerFactory.getLogger(ModelTrainingService.class);
+    private static final long SHUFFLE_SEED = 12345;
+    // ND4J的DOUBLE gemm累加（beta=1）到C顺序结果时，行数×内积维度达到2048（内积维度128以上）会算错，FLOAT不受影响；
+    // DL4J的LSTM每个时间步都这样累加循环权重的乘积，所以DOUBLE参考输出的 批次×最大层大小 必须小于这个值
+    private static final int DOUBLE_GEMM_SAFE_ELEMENTS = 2047;
+    // 评估时最多收集的样本数
+    private static final int EVALUATION_SAMPLE_LIMIT = 200_000;
+    private static final int COLLECT_BLOCK_ROWS = 8192;
+    /**
+     * 模型包元数据中训练数据截止时间的键，增量微调只使用这个时间之后的K线作为新数据
+     */
+    public static final String DATA_CUTOFF_KEY = "dataCutoff";
+    /**
+     * 增量微调时归档上一版本模型包的子目录
+     */
+    public static final String VERSIONS_DIR = "versions";
     private final ModelConfig config;
+    // 训练遥测输出端由同时进行的训练共用，最后一个训练结束时关闭
+    private final Object telemetryLock = new Object();
+    private final AtomicInteger telemetryRuns = new AtomicInteger();
+    private TelemetrySink telemetrySink;
+    private int telemetryUsers = 0;
 
     public ModelTrainingService(ModelConfig config) {
         this.config = config;
@@ -28,11 +81,14 @@ public class ModelTrainingService {
 
     /**
      * 训练模型 - 修正版本
+     * 输入是已展开的窗口：特征 [samples, timeSteps, features]，标签 [samples, predictSteps]
      */
     public TrainingResult trainModel(INDArray features, INDArray labels, String modelName) {
         logger.info("Starting model training...");
         logger.info("Features shape: {}, Labels shape: {}", features.shape(), labels.shape());
 
+        PrefetchingBatchIterator trainIterator = null;
+        PrefetchingBatchIterator testIterator = null;
         try {
             // 1. 检查数据有效性
             if (features.size(0) == 0 || labels.size(0) == 0) {
@@ -53,151 +109,890 @@ public class ModelTrainingService {
 
             logger.info("对齐后数据: 特征shape={}, 标签shape={}", features.shape(), labels.shape());
 
-            // 2. 划分训练集和测试集
-            SplitResult splitResult = splitTrainTestSafe(features, labels, config.getTrainTestSplit());
+            // 统一为配置的计算精度
+            features = toConfiguredType(features);
+            labels = toConfiguredType(labels);
 
-            // 3. 初始化模型
-            int timeSteps = (int) features.size(1); // 时间步长
-            int numInputFeatures = (int) features.size(2); // 特征数
-            int numOutputSteps = config.getPredictSteps(); // 输出步长
+            // 2. 按时间顺序划分训练集和测试集，清除两者之间标签重叠的样本
+            SplitGenerator.Split split = new SplitGenerator(minSamples,
+                    SplitGenerator.purgeWindowsFor((int) features.size(1), (int) labels.size(1)))
+                    .holdout(config.getTrainTestSplit());
+            logger.info("数据划分 - 总样本: {}, 训练集: {}, 测试集: {}",
+                    minSamples, split.getTrainSize(), split.getTestSize());
 
-            logger.info("模型参数 - 时间步长: {}, 输入特征数: {}, 输出步长: {}",
-                    timeSteps, numInputFeatures, numOutputSteps);
+            // 3. 创建数据迭代器，每个批次按样本下标一次聚集到复用的缓冲区
+            trainIterator = createDataSetIterator(features, labels, split.trainWindows(), true);
+            testIterator = createDataSetIterator(features, labels, split.testWindows(), false);
 
-            LSTMModel lstmModel = new LSTMModel(config);
-            lstmModel.initialize(numInputFeatures, numOutputSteps, timeSteps);
-            MultiLayerNetwork model = lstmModel.getModel();
+            return train(trainIterator, testIterator, (int) features.size(1), (int) features.size(2),
+                    modelName, null, null, null, null);
 
-            // 4. 创建数据迭代器
-            DataSetIterator trainIterator = createDataSetIterator(
-                    splitResult.trainFeatures, splitResult.trainLabels, config.getBatchSize(), true);
-            DataSetIterator testIterator = createDataSetIterator(
-                    splitResult.testFeatures, splitResult.testLabels, config.getBatchSize(), false);
+        } catch (Exception e) {
+            logger.error("模型训练失败", e);
+            throw new RuntimeException("模型训练失败", e);
+        } finally {
+            if (trainIterator != null) {
+                trainIterator.shutdown();
+            }
+            if (testIterator != null) {
+                testIterator.shutdown();
+            }
+        }
+    }
 
-            // 5. 训练模型
-            logger.info("开始模型训练...");
-            int actualEpochs = Math.min(config.getEpochs(), 50);
+    /**
+     * 训练模型，滑动窗口由迭代器按需组装
+     *
+     * @param features  逐行对齐的特征 [rows, features]
+     * @param labels    逐行对齐的标签 [rows, predictSteps]，窗口取最后一行的标签
+     * @param timeSteps 窗口长度
+     */
+    public TrainingResult trainModel(INDArray features, INDArray labels, int timeSteps, String modelName) {
+        return trainModel(features, labels, timeSteps, null, modelName, null, null, null);
+    }
 
-            // 记录训练过程中的损失
-            List<Double> epochLosses = new ArrayList<>();
+    /**
+     * 训练预处理后的数据，标准化器随模型一起保存
+     */
+    public TrainingResult trainModel(DataPreprocessingService.ProcessedData data, String modelName) {
+        return trainModel(data, (SplitGenerator.Split) null, modelName);
+    }
 
-            for (int epoch = 0; epoch < actualEpochs; epoch++) {
-                // 训练一个epoch
-                model.fit(trainIterator);
-                trainIterator.reset();
+    /**
+     * 按给定的划分训练预处理后的数据
+     *
+     * @param split 训练和测试窗口的下标划分，为null时按 trainTestSplit 比例做一次按时间顺序的划分
+     */
+    public TrainingResult trainModel(DataPreprocessingService.ProcessedData data, SplitGenerator.Split split,
+                                     String modelName) {
+        return trainModel(data.getFeatures(), data.getLabels(), data.getTimeSteps(), split, modelName,
+                data.getFeatureNormalizer(), data.getLabelNormalizer(), data.cleaningMetadata());
+    }
+
+    /**
+     * 训练预处理后的数据，并记录数据的截止时间，之后的增量微调从这个时间之后的K线开始
+     *
+     * @param dataCutoff 训练数据最后一根K线的时间
+     */
+    public TrainingResult trainModel(DataPreprocessingService.ProcessedData data, String modelName,
+                                     String dataCutoff) {
+        Map<String, String> extraMetadata = new LinkedHashMap<>(data.cleaningMetadata());
+        extraMetadata.put(DATA_CUTOFF_KEY, dataCutoff);
+        return trainModel(data.getFeatures(), data.getLabels(), data.getTimeSteps(), null, modelName,
+                data.getFeatureNormalizer(), data.getLabelNormalizer(), extraMetadata);
+    }
+
+    /**
+     * 滚动窗口交叉验证：固定长度的训练区间后紧跟测试区间，逐折向后移动
+     */
+    public CrossValidationResult walkForwardValidate(DataPreprocessingService.ProcessedData data,
+                                                     int trainWindows, int testWindows) {
+        return crossValidate(data, data.splitGenerator().walkForward(trainWindows, testWindows));
+    }
 
-                // 计算当前epoch的平均损失
-                double epochLoss = calculateLoss(model, trainIterator);
-                epochLosses.add(epochLoss);
+    /**
+     * 在同一份窗口数据集上训练和评估每一折，各折只是窗口下标不同，不复制数据，也不保存模型
+     * 各折的模型相互独立，最多 crossValidationParallelism 折同时训练；
+     * 与 workers 大于1的数据并行训练同时使用时，总线程数是两者的乘积。
+     *
+     * @return 各折测试集的指标和用时
+     */
+    public CrossValidationResult crossValidate(DataPreprocessingService.ProcessedData data,
+                                               List<SplitGenerator.Split> splits) {
+        INDArray features = toConfiguredType(data.getFeatures());
+        INDArray labels = toConfiguredType(data.getLabels());
+        int timeSteps = data.getTimeSteps();
+        int parallelism = Math.min(config.getCrossValidationParallelism(), splits.size());
+        logger.info("交叉验证 - 折数: {}, 并行: {}", splits.size(), parallelism);
 
-                if ((epoch + 1) % 5 == 0) {
-                    logger.info("训练轮次 {}/{} - 平均损失: {:.6f}",
-                            epoch + 1, actualEpochs, epochLoss);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism), runnable -> {
+            Thread thread = new Thread(runnable, "cross-validation-fold");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        try {
+            List<Future<FoldResult>> futures = new ArrayList<>(splits.size());
+            for (SplitGenerator.Split split : splits) {
+                futures.add(executor.submit(() -> validateFold(features, labels, timeSteps, split, splits.size())));
+            }
+
+            List<FoldResult> folds = new ArrayList<>(splits.size());
+            for (Future<FoldResult> future : futures) {
+                try {
+                    folds.add(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("等待交叉验证结果时被中断", e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("交叉验证失败", e.getCause());
                 }
             }
+            return new CrossValidationResult(folds, (System.nanoTime() - start) / 1e9);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-            // 6. 评估模型
-            EvaluationResult evalResult = evaluateModel(model, splitResult);
+    /**
+     * 训练并评估一折
+     */
+    private FoldResult validateFold(INDArray features, INDArray labels, int timeSteps, SplitGenerator.Split split,
+                                    int foldCount) {
+        logger.info("交叉验证 第 {}/{} 折: {}", split.getIndex() + 1, foldCount, split);
 
-            // 7. 保存最终模型
-            lstmModel.saveModel(modelName);
+        PrefetchingBatchIterator trainIterator = PrefetchingBatchIterator.slidingWindows(features, labels,
+                timeSteps, split.trainWindows(), config.getBatchSize(), true, SHUFFLE_SEED, config.getDataType());
+        DataSetIterator testIterator = new SlidingWindowDataSetIterator(features, labels, timeSteps,
+                split.testWindows(), config.getBatchSize(), false, SHUFFLE_SEED);
+        try {
+            long trainStart = System.nanoTime();
+            FitResult fit = fitNewModel(trainIterator, null, timeSteps, (int) features.size(1), null);
+            long evalStart = System.nanoTime();
+            INDArray[] test = collectPredictions(fit.lstmModel.getModel(), testIterator);
+            long evalEnd = System.nanoTime();
 
-            logger.info("模型训练完成，最终损失: {:.6f}",
-                    epochLosses.isEmpty() ? 0.0 : epochLosses.get(epochLosses.size() - 1));
+            FoldResult fold = new FoldResult(split.getIndex(), split.getTrainSize(), split.getTestSize(),
+                    fit.earlyStopping.getTotalEpochs(),
+                    EvaluationMetrics.calculateMSE(test[0], test[1]),
+                    EvaluationMetrics.calculateMAE(test[0], test[1]),
+                    EvaluationMetrics.calculateDirectionalAccuracy(test[0], test[1]),
+                    (evalStart - trainStart) / 1e9, (evalEnd - evalStart) / 1e9);
+            logger.info("交叉验证 第 {} 折测试MSE: {}, 训练用时: {} 秒", split.getIndex() + 1,
+                    fold.getMse(), String.format("%.1f", fold.getTrainSeconds()));
+            return fold;
+        } finally {
+            trainIterator.shutdown();
+        }
+    }
 
-            return new TrainingResult(model, evalResult, null);
+    /**
+     * 训练磁盘上的分片数据集，在全部股票上按同一时间点划分训练集和测试集，分界处清除重叠窗口
+     */
+    public TrainingResult trainModel(ShardedDataset dataset, String modelName) {
+        logger.info("Starting model training on sharded dataset: {} shards, {} windows",
+                dataset.getShards().size(), dataset.getWindowCount());
+
+        ShardedWindowDataSetIterator trainIterator = null;
+        ShardedWindowDataSetIterator testIterator = null;
+        try {
+            if (dataset.getWindowCount() < 2) {
+                throw new IllegalArgumentException("训练数据不足，窗口数: " + dataset.getWindowCount());
+            }
+
+            ShardedDataset.ShardSplit split = dataset.split(config.getTrainTestSplit());
+            trainIterator = dataset.iterator(split.getTrainRanges(), config.getBatchSize(), true, SHUFFLE_SEED);
+            testIterator = dataset.iterator(split.getTestRanges(), config.getBatchSize(), false, SHUFFLE_SEED);
+
+            return train(trainIterator, testIterator, dataset.getTimeSteps(), dataset.getFeatureCount(),
+                    modelName, dataset.getFeatureNormalizer(), dataset.getLabelNormalizer(), null, null);
 
         } catch (Exception e) {
             logger.error("模型训练失败", e);
             throw new RuntimeException("模型训练失败", e);
+        } finally {
+            if (trainIterator != null) {
+                trainIterator.shutdown();
+            }
+            if (testIterator != null) {
+                testIterator.shutdown();
+            }
         }
     }
 
     /**
-     * 计算模型在数据集上的平均损失
+     * 在全市场分片数据集上训练一个所有股票共用的模型
+     * 训练批次由 {@link MixedSymbolWindowIterator} 从多只股票交错抽取，每只股票每轮最多 maxWindowsPerSymbol 个窗口，
+     * 内存只取决于打乱缓冲区大小；测试集同样按股票限额抽样，每轮固定不变。
+     * 训练集和测试集由 {@link ShardedDataset#split(double)} 在全部股票上按同一时间点划分，分界处清除重叠窗口，
+     * 一只股票的测试期不会与另一只股票的训练期重叠。
+     * 数据集按股票标准化时，每只股票的特征标准化器写入模型包，预测时按股票代码选择。
      */
-    private double calculateLoss(MultiLayerNetwork model, DataSetIterator iterator) {
-        double totalLoss = 0.0;
-        int batchCount = 0;
+    public TrainingResult trainUniverseModel(ShardedDataset dataset, String modelName) {
+        if (config.isCrossSectionalFeatures()) {
+            // 分片数据集只有K线特征，模型包配置里开启横截面特征会让预测时的特征列数对不上
+            throw new IllegalArgumentException("全市场模型不支持横截面特征，请关闭 crossSectionalFeatures");
+        }
+        MixedSymbolWindowIterator trainIterator = null;
+        MixedSymbolWindowIterator testIterator = null;
+        try {
+            ShardedDataset.ShardSplit split = dataset.split(config.getTrainTestSplit());
+            trainIterator = dataset.mixedIterator(split.getTrainRanges(), config.getBatchSize(),
+                    config.getMaxWindowsPerSymbol(), config.getOpenShards(), config.getShuffleBufferSize(),
+                    true, SHUFFLE_SEED);
+            testIterator = dataset.mixedIterator(split.getTestRanges(), config.getBatchSize(),
+                    config.getMaxWindowsPerSymbol(), config.getOpenShards(), config.getShuffleBufferSize(),
+                    false, SHUFFLE_SEED);
 
-        iterator.reset();
-        while (iterator.hasNext()) {
-            DataSet batch = iterator.next();
-            totalLoss += model.score(batch);  // score方法需要DataSet，不是DataSetIterator
-            batchCount++;
+            logger.info("Starting universe model training: {} symbols, {} shards, {} train windows per epoch, "
+                            + "{} test windows",
+                    dataset.getShards().stream().map(ShardedDataset.ShardInfo::getSymbol).distinct().count(),
+                    dataset.getShards().size(), trainIterator.windowsPerEpoch(), testIterator.windowsPerEpoch());
+            if (trainIterator.windowsPerEpoch() < 1 || testIterator.windowsPerEpoch() < 1) {
+                throw new IllegalArgumentException("训练数据不足，窗口数: " + dataset.getWindowCount());
+            }
+
+            Map<String, ColumnNormalizer> symbolNormalizers = dataset.getSymbolNormalizers();
+            if (symbolNormalizers.isEmpty()) {
+                logger.warn("数据集没有按股票的特征标准化器，所有股票将使用全市场统一的统计量");
+            }
+            return train(trainIterator, testIterator, dataset.getTimeSteps(), dataset.getFeatureCount(),
+                    modelName, dataset.getFeatureNormalizer(), dataset.getLabelNormalizer(), symbolNormalizers,
+                    null);
+
+        } catch (Exception e) {
+            logger.error("模型训练失败", e);
+            throw new RuntimeException("模型训练失败", e);
+        } finally {
+            if (trainIterator != null) {
+                trainIterator.shutdown();
+            }
+            if (testIterator != null) {
+                testIterator.shutdown();
+            }
         }
+    }
 
-        iterator.reset();
-        return batchCount > 0 ? totalLoss / batchCount : 0.0;
+    /**
+     * 增量微调：加载已保存的模型包（含更新器状态），在新数据上继续训练 fineTuneEpochs 轮，不重新初始化
+     * 训练窗口是新窗口加上从更早的窗口中随机回放的 fineTuneReplayRatio 倍旧窗口，避免模型只拟合最近的行情；
+     * 标准化器和特征清洗统计量沿用模型包中的（data 必须用它们预处理）。保存前把上一版本的模型包归档到 versions 目录。
+     * 新窗口太少不足以留出测试集，微调前后只在新窗口上计算损失作为参考（样本内）。
+     *
+     * @param data           用模型包中的标准化器和清洗统计量预处理的数据，覆盖回放区间和训练截止之后的K线
+     * @param firstNewWindow 第一个新窗口的下标，之前的窗口只参与回放
+     * @param dataCutoff     本次数据最后一根K线的时间，写入新版本作为下次微调的起点
+     * @return 没有新窗口时返回null
+     */
+    public TrainingResult fineTuneModel(DataPreprocessingService.ProcessedData data, int firstNewWindow,
+                                        String modelName, String dataCutoff) {
+        long start = System.nanoTime();
+        LSTMModel lstmModel = LSTMModel.loadModel(modelName, true);
+        ModelBundle previous = lstmModel.getBundle();
+        if (previous == null) {
+            throw new IllegalStateException("旧格式的模型不支持增量微调: " + modelName);
+        }
+        int timeSteps = data.getTimeSteps();
+        if (previous.getFeatureSpec().getTimeSteps() != timeSteps
+                || previous.getFeatureSpec().getFeatureCount() != data.getFeatures().size(1)) {
+            throw new IllegalArgumentException(String.format("数据与模型结构不一致: 时间步长 %d vs %d, 特征数 %d vs %d",
+                    timeSteps, previous.getFeatureSpec().getTimeSteps(),
+                    data.getFeatures().size(1), previous.getFeatureSpec().getFeatureCount()));
+        }
+
+        int windowCount = data.getWindowCount();
+        firstNewWindow = Math.max(0, firstNewWindow);
+        int newWindows = windowCount - firstNewWindow;
+        if (newWindows <= 0) {
+            logger.info("模型 {} 的训练截止时间之后没有新的窗口，跳过微调", modelName);
+            return null;
+        }
+        int[] newWindowIndices = new int[newWindows];
+        for (int i = 0; i < newWindows; i++) {
+            newWindowIndices[i] = firstNewWindow + i;
+        }
+        int[] replayWindows = sampleWindows(firstNewWindow,
+                (int) Math.min(firstNewWindow, Math.round(newWindows * config.getFineTuneReplayRatio())));
+        int[] trainWindows = Arrays.copyOf(newWindowIndices, newWindows + replayWindows.length);
+        System.arraycopy(replayWindows, 0, trainWindows, newWindows, replayWindows.length);
+        logger.info("开始增量微调 {} - 新窗口: {}, 回放窗口: {}, 轮数: {}",
+                modelName, newWindows, replayWindows.length, config.getFineTuneEpochs());
+
+        INDArray features = toConfiguredType(data.getFeatures());
+        INDArray labels = toConfiguredType(data.getLabels());
+        PrefetchingBatchIterator trainIterator = null;
+        try {
+            trainIterator = PrefetchingBatchIterator.slidingWindows(features, labels, timeSteps, trainWindows,
+                    config.getBatchSize(), true, SHUFFLE_SEED, config.getDataType());
+            DataSetIterator newIterator = new SlidingWindowDataSetIterator(features, labels, timeSteps,
+                    newWindowIndices, config.getBatchSize(), false, SHUFFLE_SEED);
+            MultiLayerNetwork model = lstmModel.getModel();
+            double lossBefore = AsyncValidator.averageScore(model, newIterator);
+
+            FitResult fit = fit(lstmModel, trainIterator, null, timeSteps, null, config.getFineTuneEpochs());
+            newIterator.reset();
+            double lossAfter = AsyncValidator.averageScore(model, newIterator);
+
+            Map<String, String> previousMetadata = previous.getMetadata();
+            int version = Integer.parseInt(previousMetadata.getOrDefault("version", "1")) + 1;
+            Map<String, String> metadata = new LinkedHashMap<>();
+            metadata.put("trainedAt", LocalDateTime.now().toString());
+            metadata.put(DATA_CUTOFF_KEY, dataCutoff);
+            metadata.put("version", String.valueOf(version));
+            metadata.put("fineTunedFrom", previousMetadata.getOrDefault("trainedAt", ""));
+            metadata.put("epochs", String.valueOf(fit.earlyStopping.getTotalEpochs()));
+            metadata.put("newWindows", String.valueOf(newWindows));
+            metadata.put("replayWindows", String.valueOf(replayWindows.length));
+            metadata.put("newWindowLossBefore", String.valueOf(lossBefore));
+            metadata.put("newWindowLossAfter", String.valueOf(lossAfter));
+            metadata.put("finalLoss", String.valueOf(fit.epochLosses.isEmpty()
+                    ? 0.0 : fit.epochLosses.get(fit.epochLosses.size() - 1)));
+            // 清洗统计量与标准化器一样沿用上一版本
+            for (String key : new String[]{"symbols", DataPreprocessingService.CLEANING_MEANS_KEY,
+                    DataPreprocessingService.CLEANING_STDS_KEY}) {
+                if (previousMetadata.containsKey(key)) {
+                    metadata.put(key, previousMetadata.get(key));
+                }
+            }
+
+            File modelDir = new File("models/" + modelName);
+            archiveBundle(modelDir, version - 1);
+            lstmModel.saveModel(modelName, previous.getFeatureNormalizer(), previous.getLabelNormalizer(),
+                    previous.getSymbolNormalizers(), metadata);
+            if (new File(modelDir, ModelBundle.INFERENCE_FILE_NAME).exists()) {
+                lstmModel.saveInferenceModel(modelName);
+            }
+
+            logger.info("增量微调完成 {} v{}，新窗口损失: {} -> {}，用时 {} 秒", modelName, version,
+                    String.format("%.6f", lossBefore), String.format("%.6f", lossAfter),
+                    String.format("%.1f", (System.nanoTime() - start) / 1e9));
+            return new TrainingResult(model, null, fit.earlyStopping);
+
+        } catch (Exception e) {
+            logger.error("增量微调失败", e);
+            throw new RuntimeException("增量微调失败", e);
+        } finally {
+            if (trainIterator != null) {
+                trainIterator.shutdown();
+            }
+        }
     }
 
     /**
-     * 创建数据集迭代器 - 修正版本
+     * 从 [0, windowCount) 中不放回地随机抽取 count 个窗口下标
      */
-    private DataSetIterator createDataSetIterator(INDArray features, INDArray labels, int batchSize, boolean shuffle) {
-        List<DataSet> dataSets = new ArrayList<>();
+    private static int[] sampleWindows(int windowCount, int count) {
+        int[] indices = new int[windowCount];
+        for (int i = 0; i < windowCount; i++) {
+            indices[i] = i;
+        }
+        Random random = new Random(SHUFFLE_SEED);
+        for (int i = 0; i < count; i++) {
+            int j = i + random.nextInt(windowCount - i);
+            int tmp = indices[i];
+            indices[i] = indices[j];
+            indices[j] = tmp;
+        }
+        return Arrays.copyOf(indices, count);
+    }
 
-        if (features.size(0) == 0 || labels.size(0) == 0) {
-            logger.warn("创建迭代器时发现空数据集");
-            return new ListDataSetIterator<>(dataSets, batchSize);
+    /**
+     * 把当前的模型包复制到 versions 目录，微调结果不理想时可以手动恢复
+     */
+    private static void archiveBundle(File modelDir, int version) throws IOException {
+        File bundleFile = new File(modelDir, ModelBundle.FILE_NAME);
+        if (!bundleFile.exists()) {
+            return;
+        }
+        File versionsDir = new File(modelDir, VERSIONS_DIR);
+        if (!versionsDir.exists() && !versionsDir.mkdirs()) {
+            throw new IOException("无法创建目录: " + versionsDir.getPath());
         }
+        File archived = new File(versionsDir, "v" + version + "-" + ModelBundle.FILE_NAME);
+        Files.copy(bundleFile.toPath(), archived.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        logger.info("上一版本模型包已归档: {}", archived.getPath());
+    }
 
-        int numSamples = (int) features.size(0);
+    private TrainingResult trainModel(INDArray features, INDArray labels, int timeSteps, SplitGenerator.Split split,
+                                      String modelName,
+                                      ColumnNormalizer featureNormalizer, ColumnNormalizer labelNormalizer,
+                                      Map<String, String> extraMetadata) {
+        logger.info("Starting model training...");
+        logger.info("Features shape: {}, Labels shape: {}, time steps: {}",
+                features.shape(), labels.shape(), timeSteps);
 
-        for (int i = 0; i < numSamples; i++) {
-            // 获取特征 - 保持3D形状 [1, time_steps, features]
-            INDArray feature = features.get(
-                    NDArrayIndex.point(i),
-                    NDArrayIndex.all(),
-                    NDArrayIndex.all()
-            ).reshape(1, (int) features.size(1), (int) features.size(2));
+        PrefetchingBatchIterator trainIterator = null;
+        try {
+            // 1. 检查数据有效性
+            int minRows = (int) Math.min(features.size(0), labels.size(0));
+            int totalWindows = SlidingWindowDataSetIterator.windowCount(minRows, timeSteps);
+            if (totalWindows < 2) {
+                throw new IllegalArgumentException("训练数据不足，窗口数: " + totalWindows);
+            }
 
-            // 获取标签 - 2D形状 [1, output_steps]
-            INDArray label = labels.get(
-                    NDArrayIndex.point(i),
-                    NDArrayIndex.all()
-            ).reshape(1, (int) labels.size(1));
+            // 统一为配置的计算精度（二维矩阵，转换代价与窗口长度无关）
+            features = toConfiguredType(getSafeRows(features, 0, minRows));
+            labels = toConfiguredType(getSafeRows(labels, 0, minRows));
+
+            // 2. 划分只是窗口下标，训练集和测试集共用同一份矩阵
+            if (split == null) {
+                split = new SplitGenerator(totalWindows,
+                        SplitGenerator.purgeWindowsFor(timeSteps, (int) labels.size(1)))
+                        .holdout(config.getTrainTestSplit());
+            }
+            logger.info("数据划分 - 总窗口: {}, 训练集: {}, 测试集: {}",
+                    totalWindows, split.getTrainSize(), split.getTestSize());
+
+            // 3. 创建数据迭代器，训练批次由后台线程预取
+            trainIterator = PrefetchingBatchIterator.slidingWindows(features, labels, timeSteps,
+                    split.trainWindows(), config.getBatchSize(), true, SHUFFLE_SEED, config.getDataType());
+            DataSetIterator testIterator = new SlidingWindowDataSetIterator(features, labels, timeSteps,
+                    split.testWindows(), config.getBatchSize(), false, SHUFFLE_SEED);
+
+            return train(trainIterator, testIterator, timeSteps, (int) features.size(1),
+                    modelName, featureNormalizer, labelNormalizer, null, extraMetadata);
+
+        } catch (Exception e) {
+            logger.error("模型训练失败", e);
+            throw new RuntimeException("模型训练失败", e);
+        } finally {
+            if (trainIterator != null) {
+                trainIterator.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 初始化模型并在给定的迭代器上训练、评估、保存
+     * 模型目录中有上次中断留下的检查点时从检查点继续训练，保存最终模型后删除检查点
+     *
+     * @param extraMetadata 额外写入模型包的元数据（例如数据截止时间），可为null
+     */
+    private TrainingResult train(DataSetIterator trainIterator, DataSetIterator testIterator,
+                                 int timeSteps, int numInputFeatures, String modelName,
+                                 ColumnNormalizer featureNormalizer, ColumnNormalizer labelNormalizer,
+                                 Map<String, ColumnNormalizer> symbolNormalizers,
+                                 Map<String, String> extraMetadata) {
+        File modelDir = new File("models/" + modelName);
+        MemoryStats beforeTraining = MemoryStats.capture();
+        logger.info("训练前内存: {}", beforeTraining);
+        FitResult fit = fitNewModel(trainIterator, testIterator, timeSteps, numInputFeatures, modelDir);
+        LSTMModel lstmModel = fit.lstmModel;
+        MultiLayerNetwork model = lstmModel.getModel();
+        List<Double> epochLosses = fit.epochLosses;
+        EarlyStoppingResult<MultiLayerNetwork> earlyStopping = fit.earlyStopping;
+        MemoryStats afterTraining = MemoryStats.capture();
+        logger.info("训练期间内存变化: {}", afterTraining.since(beforeTraining));
+
+        // 评估模型
+        EvaluationResult evalResult = evaluateModel(model, trainIterator, testIterator);
+        validateDataTypeTolerance(model, testIterator);
+        logger.info("评估期间内存变化: {}", MemoryStats.capture().since(afterTraining));
 
-            dataSets.add(new DataSet(feature, label));
+        // 保存最终模型，标准化器和训练信息写入同一个模型包
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put("trainedAt", LocalDateTime.now().toString());
+        if (extraMetadata != null) {
+            metadata.putAll(extraMetadata);
+        }
+        metadata.put("epochs", String.valueOf(earlyStopping.getTotalEpochs()));
+        metadata.put("bestEpoch", String.valueOf(earlyStopping.getBestModelEpoch()));
+        metadata.put("terminationReason", earlyStopping.getTerminationDetails());
+        metadata.put("trainSamples", String.valueOf(evalResult.trainActual.size(0)));
+        metadata.put("testSamples", String.valueOf(evalResult.testActual.size(0)));
+        metadata.put("finalLoss", String.valueOf(epochLosses.isEmpty() ? 0.0 : epochLosses.get(epochLosses.size() - 1)));
+        if (!fit.validationLosses.isEmpty()) {
+            metadata.put("validationLosses", fit.validationLosses.toString());
+        }
+        if (evalResult.testPredictions.length() > 0) {
+            metadata.put("testMse", String.valueOf(
+                    EvaluationMetrics.calculateMSE(evalResult.testPredictions, evalResult.testActual)));
+        }
+        if (symbolNormalizers != null && !symbolNormalizers.isEmpty()) {
+            metadata.put("symbols", String.valueOf(symbolNormalizers.size()));
         }
+        lstmModel.saveModel(modelName, featureNormalizer, labelNormalizer, symbolNormalizers, metadata);
+        CheckpointWriter.delete(modelDir);
+        if (config.getInferenceWeightType() != config.getDataType() || config.getInferencePruneSparsity() > 0) {
+            exportCompressedInference(lstmModel, modelName, modelDir, testIterator);
+        }
+
+        logger.info("模型训练完成，最终损失: {}", String.format("%.6f",
+                epochLosses.isEmpty() ? 0.0 : epochLosses.get(epochLosses.size() - 1)));
+
+        return new TrainingResult(model, evalResult, earlyStopping);
+    }
+
+    /**
+     * 导出压缩的推理版本，读回（INT8反量化）后在测试集上和原模型比较精度，记录文件大小和加载时间
+     * 压缩只影响推理版本，完整模型包保持原精度，可以继续训练或换一种压缩方式重新导出
+     */
+    private void exportCompressedInference(LSTMModel lstmModel, String modelName, File modelDir,
+                                           DataSetIterator testIterator) {
+        try {
+            lstmModel.saveInferenceModel(modelName);
+            File bundleFile = new File(modelDir, ModelBundle.FILE_NAME);
+            File inferenceFile = new File(modelDir, ModelBundle.INFERENCE_FILE_NAME);
+
+            long start = System.nanoTime();
+            ModelBundle compressed = ModelBundle.load(inferenceFile, false);
+            long loadMillis = (System.nanoTime() - start) / 1_000_000;
 
-        // 如果需要打乱数据
-        if (shuffle) {
-            java.util.Collections.shuffle(dataSets);
+            ModelCompressor.CompressionReport report = ModelCompressor.compare(lstmModel.getModel(),
+                    compressed.getNetwork(), testIterator);
+            logger.info("压缩推理版本: {}，剪枝比例 {}，文件 {} -> {} 字节，加载 {} ms",
+                    config.getInferenceWeightType(), config.getInferencePruneSparsity(),
+                    bundleFile.length(), inferenceFile.length(), loadMillis);
+            logger.info("压缩推理版本精度对比 - {}", report);
+        } catch (IOException e) {
+            logger.warn("压缩推理版本导出失败", e);
         }
+    }
+
+    /**
+     * 初始化新模型并训练，直到达到配置的轮数、验证损失连续 earlyStoppingPatience 轮没有改善或超过最长训练时间
+     * 每轮的训练损失由 {@link EpochScoreListener} 在fit过程中累计，不再额外遍历训练集；
+     * 给出验证集时每 validationFrequency 轮在后台线程上用参数快照计算验证损失，训练结束时恢复验证损失最低的参数。
+     * workers 大于1时用 {@link DataParallelTrainer} 在多个模型副本上并行训练。
+     * 给出检查点目录时每 checkpointFrequency 轮由后台线程写检查点，目录中已有兼容的检查点时从中继续训练。
+     * 早停基于后台验证的结果，停止的判断可能比验证损失开始变差晚一次验证。
+     *
+     * @param validationIterator 验证集迭代器，为null时不验证也不早停；训练期间只由后台验证线程使用
+     * @param checkpointDir      检查点目录，为null时不写也不读取检查点
+     */
+    private FitResult fitNewModel(DataSetIterator trainIterator, DataSetIterator validationIterator,
+                                  int timeSteps, int numInputFeatures, File checkpointDir) {
+        // 初始化模型
+        int numOutputSteps = config.getPredictSteps(); // 输出步长
+
+        logger.info("模型参数 - 时间步长: {}, 输入特征数: {}, 输出步长: {}",
+                timeSteps, numInputFeatures, numOutputSteps);
 
-        return new ListDataSetIterator<>(dataSets, Math.min(batchSize, dataSets.size()));
+        LSTMModel lstmModel = new LSTMModel(config);
+        lstmModel.initialize(numInputFeatures, numOutputSteps, timeSteps);
+        return fit(lstmModel, trainIterator, validationIterator, timeSteps, checkpointDir, config.getEpochs());
     }
 
     /**
-     * 安全的划分训练集和测试集
+     * 在给定的模型上继续训练最多 maxEpochs 轮，参数和更新器状态从模型当前的状态开始
      */
-    private SplitResult splitTrainTestSafe(INDArray features, INDArray labels, double splitRatio) {
-        int totalSamples = (int) features.size(0);
-        int trainSize = (int) (totalSamples * splitRatio);
+    private FitResult fit(LSTMModel lstmModel, DataSetIterator trainIterator, DataSetIterator validationIterator,
+                          int timeSteps, File checkpointDir, int maxEpochs) {
+        MultiLayerNetwork model = lstmModel.getModel();
 
-        // 确保trainSize不超过数组范围
-        if (trainSize >= totalSamples) {
-            trainSize = totalSamples - 1;
-            logger.warn("调整trainSize: {} -> {}", (int) (totalSamples * splitRatio), trainSize);
+        AsyncValidator validator = validationIterator != null && config.getValidationFrequency() > 0
+                ? new AsyncValidator(model, validationIterator) : null;
+        EpochScoreListener scoreListener = new EpochScoreListener(validator, config.getValidationFrequency());
+        CheckpointWriter checkpointWriter = checkpointDir != null && config.getCheckpointFrequency() > 0
+                ? new CheckpointWriter(checkpointDir, model, config, timeSteps) : null;
+        if (checkpointDir != null) {
+            resumeFromCheckpoint(checkpointDir, model, timeSteps, scoreListener, validator);
         }
 
-        // 确保至少有一个测试样本
-        if (trainSize >= totalSamples - 1) {
-            trainSize = totalSamples - 2;
+        model.addListeners(scoreListener);
+        TelemetrySink telemetry = acquireTelemetry();
+        TelemetryListener telemetryListener = null;
+        String telemetryRun = null;
+        if (telemetry != null) {
+            telemetryRun = (checkpointDir != null ? checkpointDir.getName() : "fit") + "-" + telemetryRuns.incrementAndGet();
+            telemetryListener = new TelemetryListener(telemetry, telemetryRun, config.getTelemetryDetailFrequency());
+            model.addListeners(telemetryListener);
         }
+        DataParallelTrainer parallelTrainer = config.getWorkers() > 1
+                ? new DataParallelTrainer(model, config.getWorkers(), config.getAveragingFrequency()) : null;
+
+        // 训练模型
+        int patience = validator != null ? config.getEarlyStoppingPatience() : 0;
+        long deadline = config.getMaxTrainingMinutes() > 0
+                ? System.nanoTime() + config.getMaxTrainingMinutes() * 60_000_000_000L : Long.MAX_VALUE;
+        String terminationDetails = "达到最大训练轮数 " + maxEpochs;
+        int checkpointedBestEpoch = validator != null ? validator.getBestEpoch() : -1;
+        logger.info("开始模型训练... 已完成轮次: {}, 最大轮次: {}", scoreListener.getCompletedEpochs(), maxEpochs);
+
+        try {
+            while (scoreListener.getCompletedEpochs() < maxEpochs) {
+                int epoch = scoreListener.getCompletedEpochs() + 1;
+
+                // 训练一个epoch
+                if (trainIterator instanceof PrefetchingBatchIterator) {
+                    ((PrefetchingBatchIterator) trainIterator).resetStatistics();
+                }
+                if (parallelTrainer != null) {
+                    parallelTrainer.fit(trainIterator);
+                } else {
+                    model.fit(trainIterator);
+                }
+                logDataWait(trainIterator, epoch);
+                trainIterator.reset();
 
-        logger.info("数据划分 - 总样本: {}, 训练集: {}, 测试集: {}",
-                totalSamples, trainSize, totalSamples - trainSize);
+                double epochLoss = scoreListener.getLastEpochScore();
+                if (epoch % 5 == 0) {
+                    logger.info("训练轮次 {}/{} - 平均损失: {}",
+                            epoch, maxEpochs, String.format("%.6f", epochLoss));
+                }
 
-        // 获取数据
-        INDArray trainFeatures = getSafeRows(features, 0, trainSize);
-        INDArray testFeatures = getSafeRows(features, trainSize, totalSamples);
+                if (checkpointWriter != null) {
+                    if (validator != null && validator.getBestEpoch() != checkpointedBestEpoch) {
+                        checkpointedBestEpoch = validator.getBestEpoch();
+                        checkpointWriter.submitBest(validator.getBestParams(),
+                                checkpointMetadata(model, scoreListener, validator));
+                    }
+                    if (epoch % config.getCheckpointFrequency() == 0) {
+                        INDArray updaterState = CheckpointWriter.updaterState(model);
+                        checkpointWriter.submit(model.params().dup(),
+                                updaterState != null ? updaterState.dup() : null,
+                                checkpointMetadata(model, scoreListener, validator));
+                    }
+                }
 
-        INDArray trainLabels = getSafeRows(labels, 0, trainSize);
-        INDArray testLabels = getSafeRows(labels, trainSize, totalSamples);
+                if (patience > 0 && validator.getBestEpoch() > 0
+                        && validator.getLastValidatedEpoch() - validator.getBestEpoch() >= patience) {
+                    terminationDetails = String.format("验证损失连续 %d 轮没有改善",
+                            validator.getLastValidatedEpoch() - validator.getBestEpoch());
+                    break;
+                }
+                if (System.nanoTime() >= deadline) {
+                    terminationDetails = "超过最长训练时间 " + config.getMaxTrainingMinutes() + " 分钟";
+                    break;
+                }
+            }
 
-        return new SplitResult(trainFeatures, trainLabels, testFeatures, testLabels);
+            int totalEpochs = scoreListener.getCompletedEpochs();
+            Map<Integer, Double> validationLosses = new TreeMap<>();
+            int bestEpoch = totalEpochs;
+            double bestScore = scoreListener.getLastEpochScore();
+            if (validator != null) {
+                // 最后一轮也参与最优模型的选择（监听器已经提交过的除外）
+                if (totalEpochs > 0 && totalEpochs % config.getValidationFrequency() != 0) {
+                    validator.submit(totalEpochs, model.params().dup());
+                }
+                validator.awaitAll();
+                validationLosses.putAll(validator.getScores());
+                if (validator.getBestParams() != null) {
+                    bestEpoch = validator.getBestEpoch();
+                    bestScore = validator.getBestScore();
+                    if (bestEpoch != totalEpochs) {
+                        model.setParams(validator.getBestParams());
+                        logger.info("恢复验证损失最低的第 {} 轮参数，验证损失: {}",
+                                bestEpoch, String.format("%.6f", bestScore));
+                    }
+                }
+            }
+            logger.info("训练结束: {}，共 {} 轮", terminationDetails, totalEpochs);
+
+            Map<Integer, Double> scoreVsEpoch = validationLosses;
+            if (scoreVsEpoch.isEmpty()) {
+                scoreVsEpoch = new TreeMap<>();
+                List<Double> scores = scoreListener.getEpochScores();
+                for (int i = 0; i < scores.size(); i++) {
+                    scoreVsEpoch.put(i + 1, scores.get(i));
+                }
+            }
+            EarlyStoppingResult<MultiLayerNetwork> earlyStopping = new EarlyStoppingResult<>(
+                    EarlyStoppingResult.TerminationReason.EpochTerminationCondition, terminationDetails,
+                    scoreVsEpoch, bestEpoch, bestScore, totalEpochs, model);
+            return new FitResult(lstmModel, new ArrayList<>(scoreListener.getEpochScores()), validationLosses,
+                    earlyStopping);
+        } finally {
+            if (validator != null) {
+                validator.shutdown();
+            }
+            if (parallelTrainer != null) {
+                parallelTrainer.shutdown();
+            }
+            if (checkpointWriter != null) {
+                checkpointWriter.awaitAll();
+                checkpointWriter.shutdown();
+            }
+            if (telemetry != null) {
+                model.getListeners().remove(telemetryListener);
+                telemetry.finishRun(telemetryRun);
+                releaseTelemetry();
+            }
+        }
+    }
+
+    /**
+     * 配置了遥测文件或端口时打开（或共用已打开的）遥测输出端，打开失败只记录警告，不影响训练
+     */
+    private TelemetrySink acquireTelemetry() {
+        if (config.getTelemetryFile() == null && config.getTelemetryPort() == 0) {
+            return null;
+        }
+        synchronized (telemetryLock) {
+            if (telemetrySink == null) {
+                try {
+                    telemetrySink = new TelemetrySink(
+                            config.getTelemetryFile() != null ? new File(config.getTelemetryFile()) : null,
+                            config.getTelemetryHost(), config.getTelemetryPort());
+                } catch (IOException e) {
+                    logger.warn("训练遥测无法启动，本次训练不记录遥测", e);
+                    return null;
+                }
+            }
+            telemetryUsers++;
+            return telemetrySink;
+        }
+    }
+
+    private void releaseTelemetry() {
+        synchronized (telemetryLock) {
+            if (--telemetryUsers == 0) {
+                telemetrySink.close();
+                telemetrySink = null;
+            }
+        }
+    }
+
+    /**
+     * 检查点中记录的训练进度
+     */
+    private static Map<String, String> checkpointMetadata(MultiLayerNetwork model, EpochScoreListener scoreListener,
+                                                          AsyncValidator validator) {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put("epoch", String.valueOf(scoreListener.getCompletedEpochs()));
+        // 网络自身的迭代和轮次计数，学习率调度和Adam的偏差修正都依赖它们
+        metadata.put("iterationCount", String.valueOf(model.getIterationCount()));
+        metadata.put("epochCount", String.valueOf(model.getEpochCount()));
+        metadata.put("epochLosses", JSON.toJSONString(scoreListener.getEpochScores()));
+        if (validator != null) {
+            metadata.put("validationLosses", JSON.toJSONString(validator.getScores()));
+            metadata.put("bestEpoch", String.valueOf(validator.getBestEpoch()));
+        }
+        return metadata;
+    }
+
+    /**
+     * 目录中有与当前网络结构一致的检查点时，恢复参数、更新器状态和训练进度
+     */
+    private void resumeFromCheckpoint(File checkpointDir, MultiLayerNetwork model, int timeSteps,
+                                      EpochScoreListener scoreListener, AsyncValidator validator) {
+        ModelBundle checkpoint = CheckpointWriter.load(checkpointDir);
+        if (checkpoint == null) {
+            return;
+        }
+        MultiLayerNetwork saved = checkpoint.getNetwork();
+        if (saved.numParams() != model.numParams() || checkpoint.getFeatureSpec().getTimeSteps() != timeSteps
+                || checkpoint.getFeatureSpec().getFeatureCount() != model.layerInputSize(0)) {
+            logger.warn("检查点与当前模型结构不一致，忽略: {}", checkpointDir);
+            return;
+        }
+
+        Map<String, String> metadata = checkpoint.getMetadata();
+        model.setParams(saved.params().castTo(model.params().dataType()));
+        INDArray savedState = CheckpointWriter.updaterState(saved);
+        INDArray state = CheckpointWriter.updaterState(model);
+        if (checkpoint.isUpdaterIncluded() && savedState != null && state != null) {
+            state.assign(savedState);
+        }
+        if (metadata.containsKey("iterationCount")) {
+            model.setIterationCount(Integer.parseInt(metadata.get("iterationCount")));
+            model.setEpochCount(Integer.parseInt(metadata.get("epochCount")));
+        }
+        scoreListener.restore(JSON.parseArray(metadata.get("epochLosses"), Double.class));
+
+        if (validator != null && metadata.containsKey("validationLosses")) {
+            Map<Integer, Double> scores = JSON.parseObject(metadata.get("validationLosses"),
+                    new TypeReference<TreeMap<Integer, Double>>() {
+                    });
+            ModelBundle best = CheckpointWriter.loadBest(checkpointDir);
+            int bestEpoch = Integer.parseInt(metadata.getOrDefault("bestEpoch", "-1"));
+            INDArray bestParams = null;
+            if (best != null && best.getNetwork().numParams() == model.numParams()) {
+                bestEpoch = Integer.parseInt(best.getMetadata().getOrDefault("bestEpoch", "-1"));
+                bestParams = best.getNetwork().params().castTo(model.params().dataType());
+            }
+            validator.restore(scores, bestEpoch, bestParams);
+        }
+        logger.info("从检查点继续训练: {}，已完成 {} 轮，迭代 {} 次",
+                checkpointDir, scoreListener.getCompletedEpochs(), model.getIterationCount());
+    }
+
+    /**
+     * 记录一轮训练中等待数据的时间，等待时间接近组装时间说明数据准备跟不上计算
+     */
+    private void logDataWait(DataSetIterator iterator, int epoch) {
+        if (!(iterator instanceof PrefetchingBatchIterator)) {
+            return;
+        }
+        PrefetchingBatchIterator prefetching = (PrefetchingBatchIterator) iterator;
+        logger.info("训练轮次 {} - 批次: {}, 等待数据: {} ms, 批次组装: {} ms",
+                epoch, prefetching.getConsumedBatches(),
+                String.format("%.1f", prefetching.getWaitTimeMillis()),
+                String.format("%.1f", prefetching.getAssemblyTimeMillis()));
+    }
+
+    /**
+     * 转换为配置的计算精度，类型一致时不复制
+     */
+    private INDArray toConfiguredType(INDArray array) {
+        return array.dataType() == config.getDataType() ? array : array.castTo(config.getDataType());
+    }
+
+    /**
+     * 低精度训练时，用DOUBLE精度的模型副本重新计算一部分测试样本，检查MSE的相对误差是否在允许范围内
+     * 两种精度按相同的小批次计算输出：FLOAT的输出与批次大小无关（差异在1e-7以内），DOUBLE只有小批次才正确，
+     * 因此MSE的差异只来自精度本身，dataTypeTolerance 是这个相对差异的上限
+     */
+    private boolean validateDataTypeTolerance(MultiLayerNetwork model, DataSetIterator testIterator) {
+        testIterator.reset();
+        if (config.getDataType() == DataType.DOUBLE || !testIterator.hasNext()) {
+            return true;
+        }
+
+        try {
+            // 逐批取出约256个样本，批次缓冲区可能被迭代器复用，需要复制
+            List<INDArray> featureBatches = new ArrayList<>();
+            List<INDArray> labelBatches = new ArrayList<>();
+            int collected = 0;
+            while (testIterator.hasNext() && collected < 256) {
+                DataSet batch = testIterator.next();
+                featureBatches.add(batch.getFeatures().dup());
+                labelBatches.add(batch.getLabels().dup());
+                collected += batch.numExamples();
+            }
+            testIterator.reset();
+            INDArray features = featureBatches.size() == 1 ? featureBatches.get(0) : Nd4j.concat(0,
+                    featureBatches.toArray(new INDArray[0]));
+            INDArray labels = labelBatches.size() == 1 ? labelBatches.get(0) : Nd4j.vstack(labelBatches);
+
+            int chunkSize = referenceChunkSize(model);
+            double lowPrecisionMse = EvaluationMetrics.calculateMSE(outputInChunks(model, features, chunkSize), labels);
+            MultiLayerNetwork reference = model.convertDataType(DataType.DOUBLE);
+            double referenceMse = EvaluationMetrics.calculateMSE(
+                    outputInChunks(reference, features.castTo(DataType.DOUBLE), chunkSize), labels);
+
+            double relativeError = Math.abs(lowPrecisionMse - referenceMse) / Math.max(referenceMse, 1e-12);
+            boolean withinTolerance = relativeError <= config.getDataTypeTolerance();
+
+            if (withinTolerance) {
+                logger.info("{}精度校验通过: MSE={}, DOUBLE参考MSE={}, 相对误差={}",
+                        config.getDataType(), lowPrecisionMse, referenceMse, relativeError);
+            } else {
+                logger.warn("{}精度误差超出容忍度{}: MSE={}, DOUBLE参考MSE={}, 相对误差={}",
+                        config.getDataType(), config.getDataTypeTolerance(),
+                        lowPrecisionMse, referenceMse, relativeError);
+            }
+            return withinTolerance;
+        } catch (Exception e) {
+            logger.warn("精度校验失败", e);
+            return false;
+        }
+    }
+
+    /**
+     * DOUBLE参考输出的批次大小，使 批次×最大层大小 不超过 {@link #DOUBLE_GEMM_SAFE_ELEMENTS}
+     */
+    private static int referenceChunkSize(MultiLayerNetwork model) {
+        long maxLayerSize = 1;
+        for (int i = 0; i < model.getnLayers(); i++) {
+            maxLayerSize = Math.max(maxLayerSize, Math.max(model.layerSize(i), model.layerInputSize(i)));
+        }
+        return (int) Math.max(1, DOUBLE_GEMM_SAFE_ELEMENTS / maxLayerSize);
+    }
+
+    /**
+     * 分小批次计算输出再拼接
+     */
+    private INDArray outputInChunks(MultiLayerNetwork model, INDArray features, int chunkSize) {
+        List<INDArray> outputs = new ArrayList<>();
+        for (int start = 0; start < features.size(0); start += chunkSize) {
+            int end = (int) Math.min(features.size(0), start + chunkSize);
+            outputs.add(model.output(getSafeRows(features, start, end)));
+        }
+        return outputs.size() == 1 ? outputs.get(0) : Nd4j.vstack(outputs);
+    }
+
+    /**
+     * 创建按样本下标聚集批次的迭代器，打乱时每轮只重排下标
+     */
+    private PrefetchingBatchIterator createDataSetIterator(INDArray features, INDArray labels, int[] examples,
+                                                           boolean shuffle) {
+        if (examples.length == 0) {
+            logger.warn("创建迭代器时发现空数据集");
+        }
+        return PrefetchingBatchIterator.examples(features, labels, examples,
+                config.getBatchSize(), shuffle, SHUFFLE_SEED, null);
     }
 
     /**
@@ -212,11 +1007,11 @@ public class ModelTrainingService {
         if (start >= end) {
             // 返回空数组
             if (array.rank() == 3) {
-                return Nd4j.create(0, array.size(1), array.size(2));
+                return Nd4j.create(array.dataType(), 0, array.size(1), array.size(2));
             } else if (array.rank() == 2) {
-                return Nd4j.create(0, array.size(1));
+                return Nd4j.create(array.dataType(), 0, array.size(1));
             } else {
-                return Nd4j.create(0);
+                return Nd4j.create(array.dataType(), 0);
             }
         }
 
@@ -240,17 +1035,16 @@ public class ModelTrainingService {
     /**
      * 评估模型
      */
-    private EvaluationResult evaluateModel(MultiLayerNetwork model, SplitResult splitResult) {
+    private EvaluationResult evaluateModel(MultiLayerNetwork model, DataSetIterator trainIterator,
+                                           DataSetIterator testIterator) {
         try {
             // 训练集评估
-            INDArray trainPredictions = model.output(splitResult.trainFeatures);
-            INDArray trainActual = splitResult.trainLabels;
+            INDArray[] train = collectPredictions(model, trainIterator);
 
             // 测试集评估
-            INDArray testPredictions = model.output(splitResult.testFeatures);
-            INDArray testActual = splitResult.testLabels;
+            INDArray[] test = collectPredictions(model, testIterator);
 
-            return new EvaluationResult(trainPredictions, trainActual, testPredictions, testActual);
+            return new EvaluationResult(train[0], train[1], test[0], test[1]);
         } catch (Exception e) {
             logger.error("模型评估失败", e);
             // 返回空评估结果
@@ -260,20 +1054,89 @@ public class ModelTrainingService {
     }
 
     /**
-     * 内部类：划分结果
+     * 逐批预测，返回 {预测值, 实际值}；批次缓冲区可能被迭代器复用，实际值需要复制
+     * 最多收集 EVALUATION_SAMPLE_LIMIT 个样本，避免分片数据集的评估结果占满堆内存。
+     * 网络输出写在 {@link Workspaces#EVALUATION} 工作区中，每批复用同一块内存，只把结果复制进按块分配的结果数组。
      */
-    private static class SplitResult {
-        final INDArray trainFeatures;
-        final INDArray trainLabels;
-        final INDArray testFeatures;
-        final INDArray testLabels;
+    private INDArray[] collectPredictions(MultiLayerNetwork model, DataSetIterator iterator) {
+        RowCollector predictions = new RowCollector();
+        RowCollector actuals = new RowCollector();
+        long outputs = model.layerSize(model.getnLayers() - 1);
 
-        SplitResult(INDArray trainFeatures, INDArray trainLabels,
-                    INDArray testFeatures, INDArray testLabels) {
-            this.trainFeatures = trainFeatures;
-            this.trainLabels = trainLabels;
-            this.testFeatures = testFeatures;
-            this.testLabels = testLabels;
+        iterator.reset();
+        long collected = 0;
+        while (iterator.hasNext() && collected < EVALUATION_SAMPLE_LIMIT) {
+            DataSet batch = iterator.next();
+            int size = batch.numExamples();
+            predictions.reserve(model.params().dataType(), outputs, size);
+            actuals.reserve(batch.getLabels().dataType(), batch.getLabels().size(1), size);
+            try (MemoryWorkspace workspace = Workspaces.openFor(model, Workspaces.EVALUATION)) {
+                predictions.append(Workspaces.output(model, batch.getFeatures(), workspace));
+                actuals.append(batch.getLabels());
+            }
+            collected += size;
+        }
+        iterator.reset();
+
+        return new INDArray[]{predictions.toArray(), actuals.toArray()};
+    }
+
+    /**
+     * 按块收集结果行，块在工作区外分配，每块至少 COLLECT_BLOCK_ROWS 行，工作区中的批次结果逐批复制进去
+     */
+    private static class RowCollector {
+        private final List<INDArray> blocks = new ArrayList<>();
+        private INDArray current;
+        private int used = 0;
+
+        /**
+         * 确保当前块还能放下 rows 行，放不下时开始新块；必须在工作区外调用
+         */
+        void reserve(DataType dataType, long columns, int rows) {
+            if (current == null || used + rows > current.size(0)) {
+                finishBlock();
+                current = Nd4j.create(dataType, Math.max(COLLECT_BLOCK_ROWS, rows), columns);
+                used = 0;
+            }
+        }
+
+        void append(INDArray rows) {
+            int count = (int) rows.size(0);
+            current.get(NDArrayIndex.interval(used, used + count), NDArrayIndex.all()).assign(rows);
+            used += count;
+        }
+
+        private void finishBlock() {
+            if (current != null && used > 0) {
+                blocks.add(current.get(NDArrayIndex.interval(0, used), NDArrayIndex.all()));
+            }
+            current = null;
+        }
+
+        INDArray toArray() {
+            finishBlock();
+            if (blocks.isEmpty()) {
+                return Nd4j.create(0);
+            }
+            return blocks.size() == 1 ? blocks.get(0) : Nd4j.vstack(blocks);
+        }
+    }
+
+    /**
+     * 一次训练的模型和损失记录
+     */
+    private static class FitResult {
+        final LSTMModel lstmModel;
+        final List<Double> epochLosses;
+        final Map<Integer, Double> validationLosses;
+        final EarlyStoppingResult<MultiLayerNetwork> earlyStopping;
+
+        FitResult(LSTMModel lstmModel, List<Double> epochLosses, Map<Integer, Double> validationLosses,
+                  EarlyStoppingResult<MultiLayerNetwork> earlyStopping) {
+            this.lstmModel = lstmModel;
+            this.epochLosses = epochLosses;
+            this.validationLosses = validationLosses;
+            this.earlyStopping = earlyStopping;
         }
     }
 
@@ -343,11 +1206,55 @@ public class ModelTrainingService {
         final double averageScore;
         final double stdScore;
         final List<Double> foldScores;
+        final List<FoldResult> folds;
+        final double wallSeconds;
 
         public CrossValidationResult(double averageScore, double stdScore, List<Double> foldScores) {
             this.averageScore = averageScore;
             this.stdScore = stdScore;
             this.foldScores = foldScores;
+            this.folds = new ArrayList<>();
+            this.wallSeconds = 0.0;
+        }
+
+        /**
+         * 由各折结果汇总，得分为测试集MSE
+         *
+         * @param wallSeconds 全部折的实际用时（各折并行时小于各折训练用时之和）
+         */
+        public CrossValidationResult(List<FoldResult> folds, double wallSeconds) {
+            List<Double> scores = new ArrayList<>(folds.size());
+            for (FoldResult fold : folds) {
+                scores.add(fold.getMse());
+            }
+            double mean = scores.stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
+            double variance = scores.stream().mapToDouble(score -> (score - mean) * (score - mean))
+                    .average().orElse(0.0);
+            this.averageScore = mean;
+            this.stdScore = Math.sqrt(variance);
+            this.foldScores = scores;
+            this.folds = folds;
+            this.wallSeconds = wallSeconds;
+        }
+
+        public double getAverageScore() {
+            return averageScore;
+        }
+
+        public double getStdScore() {
+            return stdScore;
+        }
+
+        public List<Double> getFoldScores() {
+            return foldScores;
+        }
+
+        public List<FoldResult> getFolds() {
+            return folds;
+        }
+
+        public double getWallSeconds() {
+            return wallSeconds;
         }
 
         public void print() {
@@ -355,6 +1262,82 @@ public class ModelTrainingService {
             System.out.printf("平均损失: %.6f%n", averageScore);
             System.out.printf("标准差: %.6f%n", stdScore);
             System.out.println("各折得分: " + foldScores);
+            if (!folds.isEmpty()) {
+                double trainSeconds = 0.0;
+                for (FoldResult fold : folds) {
+                    System.out.printf("第 %d 折 - 训练/测试窗口: %d/%d, 轮数: %d, MSE: %.6f, MAE: %.6f, " +
+                                    "方向准确率: %.2f%%, 训练用时: %.1f 秒, 评估用时: %.1f 秒%n",
+                            fold.getIndex() + 1, fold.getTrainSize(), fold.getTestSize(), fold.getEpochs(),
+                            fold.getMse(), fold.getMae(), fold.getDirectionalAccuracy() * 100,
+                            fold.getTrainSeconds(), fold.getEvalSeconds());
+                    trainSeconds += fold.getTrainSeconds() + fold.getEvalSeconds();
+                }
+                System.out.printf("总用时: %.1f 秒（各折合计 %.1f 秒）%n", wallSeconds, trainSeconds);
+            }
+        }
+    }
+
+    /**
+     * 交叉验证中一折的测试集指标和用时
+     */
+    public static class FoldResult {
+        private final int index;
+        private final int trainSize;
+        private final int testSize;
+        private final int epochs;
+        private final double mse;
+        private final double mae;
+        private final double directionalAccuracy;
+        private final double trainSeconds;
+        private final double evalSeconds;
+
+        public FoldResult(int index, int trainSize, int testSize, int epochs, double mse, double mae,
+                          double directionalAccuracy, double trainSeconds, double evalSeconds) {
+            this.index = index;
+            this.trainSize = trainSize;
+            this.testSize = testSize;
+            this.epochs = epochs;
+            this.mse = mse;
+            this.mae = mae;
+            this.directionalAccuracy = directionalAccuracy;
+            this.trainSeconds = trainSeconds;
+            this.evalSeconds = evalSeconds;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getTrainSize() {
+            return trainSize;
+        }
+
+        public int getTestSize() {
+            return testSize;
+        }
+
+        public int getEpochs() {
+            return epochs;
+        }
+
+        public double getMse() {
+            return mse;
+        }
+
+        public double getMae() {
+            return mae;
+        }
+
+        public double getDirectionalAccuracy() {
+            return directionalAccuracy;
+        }
+
+        public double getTrainSeconds() {
+            return trainSeconds;
+        }
+
+        public double getEvalSeconds() {
+            return evalSeconds;
         }
     }
 }
\ No newline at end of file
@@ -3,8 +3,13 @@ package com.sunyuyang.service;
 import com.sunyuyang.dao.StockDataDao;
 import com.sunyuyang.dao.ZhituStockDataDao;
 import com.sunyuyang.entity.ZhituStockKLine;
+import com.sunyuyang.feature.CrossSectionalFeatureEngine;
+import com.sunyuyang.feature.MultiTimeframeFeatureFusion;
 import com.sunyuyang.model.LSTMModel;
-import com.sunyuyang.util.PredictionDenormalizer;
+import com.sunyuyang.util.ColumnNormalizer;
+import com.sunyuyang.util.MemoryStats;
+import com.sunyuyang.util.Workspaces;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,10 +23,32 @@ public class PredictionService {
     private static final Logger logger = LoggerFactory.getLogger(PredictionService.class);
     private final ZhituStockDataDao stockDataDao;
     private final DataPreprocessingService preprocessingService;
+    private final MultiTimeframeFeatureFusion fusion;
+    private final CrossSectionalFeatureEngine crossSectionalEngine;
 
     public PredictionService(ZhituStockDataDao stockDataDao, DataPreprocessingService preprocessingService) {
+        this(stockDataDao, preprocessingService,
+                new MultiTimeframeFeatureFusion(preprocessingService.getFeatureEngineeringService(), null));
+    }
+
+    /**
+     * @param fusion 模型训练时融合了粗周期特征时，用它构造同样的额外特征列
+     */
+    public PredictionService(ZhituStockDataDao stockDataDao, DataPreprocessingService preprocessingService,
+                             MultiTimeframeFeatureFusion fusion) {
+        this(stockDataDao, preprocessingService, fusion, new CrossSectionalFeatureEngine(
+                preprocessingService.getFeatureEngineeringService().getDataType()));
+    }
+
+    /**
+     * @param crossSectionalEngine 模型训练时附加了横截面特征时，用它构造同样的额外特征列
+     */
+    public PredictionService(ZhituStockDataDao stockDataDao, DataPreprocessingService preprocessingService,
+                             MultiTimeframeFeatureFusion fusion, CrossSectionalFeatureEngine crossSectionalEngine) {
         this.stockDataDao = stockDataDao;
         this.preprocessingService = preprocessingService;
+        this.fusion = fusion;
+        this.crossSectionalEngine = crossSectionalEngine;
     }
 
     // 示例转换方法
@@ -42,7 +69,9 @@ public class PredictionService {
             LocalDateTime endDate = LocalDateTime.now();
             LocalDateTime startDate = endDate.minusDays(timeSteps * 15 / (24 * 60)); // 近似计算
 
-            List<ZhituStockKLine> recentData = stockDataDao.getKLineData(stockCode, startDate, endDate);
+            // 只取模型训练时的K线周期，同一张表中的粗周期K线不能混入
+            List<ZhituStockKLine> recentData = stockDataDao.getKLineData(stockCode,
+                    model.getConfig().getTimeLevel(), startDate, endDate);
 
             if (recentData.size() < timeSteps) {
                 throw new IllegalArgumentException(String.format(
@@ -50,32 +79,46 @@ public class PredictionService {
                         timeSteps, recentData.size()));
             }
 
-            // 2. 预处理数据
-            DataPreprocessingService.ProcessedData processedData =
-                    preprocessingService.preprocessData(recentData, timeSteps, predictSteps);
-
-            // 3. 使用最新时间窗口进行预测
-            INDArray latestWindow = processedData.getFeatures()
-                    .getRow(processedData.getFeatures().size(0) - 1);
-
-            // 重塑为 [1, timeSteps, features] 格式
-            INDArray input = latestWindow.reshape(1, timeSteps, (int) latestWindow.size(1));
-
-            // 4. 进行预测
-            INDArray normalizedPredictions = model.getModel().output(input);
-
-            // 5. 反标准化预测结果
-            //INDArray predictions = processedData.getLabelNormalizer()
-            //        .revert(normalizedPredictions);
-            // 使用示例
-            PredictionDenormalizer denormalizer = new PredictionDenormalizer(normalizedPredictions);
-            INDArray predictions = denormalizer.denormalize(normalizedPredictions);
+            INDArray input;
+            ColumnNormalizer labelNormalizer;
+            if (model.getFeatureNormalizer() != null && model.getLabelNormalizer() != null) {
+                // 2. 使用训练时的标准化器构造最新时间窗口 [1, timeSteps, features]
+                //    全市场模型按股票选择特征标准化器，未参与训练的股票使用全市场合并的统计量
+                if (!model.getBundle().getSymbolNormalizers().isEmpty()
+                        && !model.getBundle().getSymbolNormalizers().containsKey(stockCode)) {
+                    logger.warn("Stock {} was not in the training universe, using pooled feature statistics",
+                            stockCode);
+                }
+                // 模型训练时融合了粗周期特征或附加了横截面特征的，按同样的配置和顺序构造额外特征列
+                String[] coarseTimeLevels = MultiTimeframeFeatureFusion.parseTimeLevels(
+                        model.getConfig().getCoarseTimeLevels());
+                INDArray context = DataPreprocessingService.joinExtraFeatures(
+                        coarseTimeLevels.length > 0 ? fusion.fuse(stockDataDao, recentData, coarseTimeLevels) : null,
+                        model.getConfig().isCrossSectionalFeatures()
+                                ? crossSectionalEngine.compute(stockDataDao, recentData) : null);
+                input = preprocessingService.prepareLatestWindow(
+                        recentData, timeSteps, model.getFeatureNormalizer(stockCode), context, model.getBundle());
+                labelNormalizer = model.getLabelNormalizer();
+            } else {
+                // 旧格式模型没有保存标准化器，只能在最近的数据上重新拟合
+                DataPreprocessingService.ProcessedData processedData =
+                        preprocessingService.preprocessData(recentData, timeSteps, predictSteps);
+
+                // 使用最新时间窗口进行预测 [1, timeSteps, features]
+                input = processedData.getLatestWindow();
+                labelNormalizer = processedData.getLabelNormalizer();
+            }
 
-            // 6. 转换为实际价格
+            // 3. 预测、反标准化并转换为实际价格；网络输出和反标准化都在推理工作区中，只有价格列表离开工作区
             double lastPrice = recentData.get(recentData.size() - 1).getClose();
-            List<Double> futurePrices = convertToActualPrices(predictions, lastPrice);
+            List<Double> futurePrices;
+            try (MemoryWorkspace workspace = Workspaces.openFor(model.getModel(), Workspaces.INFERENCE)) {
+                INDArray predictions = Workspaces.output(model.getModel(), input, workspace);
+                labelNormalizer.inverseTransform(predictions);
+                futurePrices = convertToActualPrices(predictions, lastPrice);
+            }
 
-            // 7. 生成预测时间点
+            // 4. 生成预测时间点
             List<LocalDateTime> predictionTimes = generatePredictionTimes(
                     convertToLocalDateTime(recentData.get(recentData.size() - 1).getTradeTime()), predictSteps);
 
@@ -95,15 +138,10 @@ public class PredictionService {
     private List<Double> convertToActualPrices(INDArray normalizedPredictions, double lastPrice) {
         List<Double> prices = new ArrayList<>();
 
-        // 假设预测的是价格变化率
-        INDArray predictions = normalizedPredictions.getRow(0);
-
-        double currentPrice = lastPrice;
-        for (int i = 0; i < predictions.size(1); i++) {
-            double changeRate = predictions.getDouble(0, i);
-            double predictedPrice = currentPrice * (1 + changeRate);
-            prices.add(predictedPrice);
-            currentPrice = predictedPrice; // 累积预测
+        // 预测的是第i步相对当前收盘价的变化率（与 createLabels 一致），不做累积
+        for (int i = 0; i < normalizedPredictions.size(1); i++) {
+            double changeRate = normalizedPredictions.getDouble(0, i);
+            prices.add(lastPrice * (1 + changeRate));
         }
 
         return prices;
@@ -148,6 +186,7 @@ public class PredictionService {
     public List<StockPrediction> batchPredict(List<String> stockCodes, LSTMModel model,
                                               int timeSteps, int predictSteps) {
         List<StockPrediction> predictions = new ArrayList<>();
+        MemoryStats before = MemoryStats.capture();
 
         for (String stockCode : stockCodes) {
             try {
@@ -162,6 +201,8 @@ public class PredictionService {
             }
         }
 
+        logger.info("Batch prediction of {} stocks, memory: {}",
+                stockCodes.size(), MemoryStats.capture().since(before));
         return predictions;
     }
 
@@ -0,0 +1,485 @@
+package com.sunyuyang.service;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+import com.sunyuyang.util.ColumnNormalizer;
+import com.sunyuyang.util.MixedSymbolWindowIterator;
+import com.sunyuyang.util.ShardedWindowDataSetIterator;
+import com.sunyuyang.util.SlidingWindowDataSetIterator;
+import com.sunyuyang.util.SplitGenerator;
+import com.sunyuyang.util.TradeTimeUtil;
+import com.sunyuyang.util.WindowShard;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 磁盘上的分片数据集
+ * 目录中包含 dataset.json（分片清单）、normalizers.bin（特征和标签标准化器）和若干 .shard 分片文件，
+ * 分片中的特征和标签已经标准化，训练时用 {@link ShardedWindowDataSetIterator} 顺序读取，
+ * 或用 {@link MixedSymbolWindowIterator} 把多只股票的窗口混合成minibatch。
+ * 按股票标准化的数据集另有 symbol_normalizers.bin，保存每只股票的特征标准化器，此时 normalizers.bin
+ * 中的特征标准化器是全市场合并的统计量，只用于没有参与训练的股票。
+ * <p>
+ * 训练集和测试集由 {@link #split(double)} 在全部股票上按同一个时间点划分，分界处清除信息区间重叠的窗口。
+ */
+public class ShardedDataset {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedDataset.class);
+
+    static final String MANIFEST_FILE = "dataset.json";
+    static final String NORMALIZER_FILE = "normalizers.bin";
+    static final String SYMBOL_NORMALIZER_FILE = "symbol_normalizers.bin";
+
+    private final File directory;
+    private final int timeSteps;
+    private final int predictSteps;
+    private final int featureSetVersion;
+    private final int featureCount;
+    private final List<ShardInfo> shards;
+    private final ColumnNormalizer featureNormalizer;
+    private final ColumnNormalizer labelNormalizer;
+    private final Map<String, ColumnNormalizer> symbolNormalizers;
+
+    public ShardedDataset(File directory, int timeSteps, int predictSteps, int featureSetVersion, int featureCount,
+                          List<ShardInfo> shards,
+                          ColumnNormalizer featureNormalizer, ColumnNormalizer labelNormalizer) {
+        this(directory, timeSteps, predictSteps, featureSetVersion, featureCount, shards,
+                featureNormalizer, labelNormalizer, null);
+    }
+
+    /**
+     * @param symbolNormalizers 每只股票的特征标准化器，分片按全市场统计量标准化时为null
+     */
+    public ShardedDataset(File directory, int timeSteps, int predictSteps, int featureSetVersion, int featureCount,
+                          List<ShardInfo> shards, ColumnNormalizer featureNormalizer, ColumnNormalizer labelNormalizer,
+                          Map<String, ColumnNormalizer> symbolNormalizers) {
+        this.directory = directory;
+        this.timeSteps = timeSteps;
+        this.predictSteps = predictSteps;
+        this.featureSetVersion = featureSetVersion;
+        this.featureCount = featureCount;
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.featureNormalizer = featureNormalizer;
+        this.labelNormalizer = labelNormalizer;
+        this.symbolNormalizers = symbolNormalizers == null
+                ? Collections.emptyMap() : Collections.unmodifiableMap(new LinkedHashMap<>(symbolNormalizers));
+    }
+
+    /**
+     * 打开已构建的分片数据集
+     */
+    public static ShardedDataset open(File directory) throws IOException {
+        File manifestFile = new File(directory, MANIFEST_FILE);
+        if (!manifestFile.exists()) {
+            throw new FileNotFoundException("分片清单不存在: " + manifestFile);
+        }
+
+        JSONObject manifest = JSON.parseObject(new String(Files.readAllBytes(manifestFile.toPath()),
+                StandardCharsets.UTF_8));
+        List<ShardInfo> shards = new ArrayList<>();
+        JSONArray shardArray = manifest.getJSONArray("shards");
+        for (int i = 0; i < shardArray.size(); i++) {
+            JSONObject shard = shardArray.getJSONObject(i);
+            shards.add(new ShardInfo(shard.getString("file"), shard.getString("symbol"), shard.getLongValue("rows")));
+        }
+
+        ColumnNormalizer featureNormalizer;
+        ColumnNormalizer labelNormalizer;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(directory, NORMALIZER_FILE))))) {
+            featureNormalizer = ColumnNormalizer.readFrom(in);
+            labelNormalizer = ColumnNormalizer.readFrom(in);
+        }
+
+        Map<String, ColumnNormalizer> symbolNormalizers = null;
+        File symbolNormalizerFile = new File(directory, SYMBOL_NORMALIZER_FILE);
+        if (symbolNormalizerFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(symbolNormalizerFile)))) {
+                symbolNormalizers = ColumnNormalizer.readMap(in);
+            }
+        }
+
+        return new ShardedDataset(directory,
+                manifest.getIntValue("timeSteps"),
+                manifest.getIntValue("predictSteps"),
+                manifest.getIntValue("featureSetVersion"),
+                manifest.getIntValue("featureCount"),
+                shards, featureNormalizer, labelNormalizer, symbolNormalizers);
+    }
+
+    /**
+     * 写入分片清单和标准化器，分片文件需要已经写好
+     */
+    void save() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(directory, NORMALIZER_FILE))))) {
+            featureNormalizer.writeTo(out);
+            labelNormalizer.writeTo(out);
+        }
+        if (!symbolNormalizers.isEmpty()) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(directory, SYMBOL_NORMALIZER_FILE))))) {
+                ColumnNormalizer.writeMap(out, symbolNormalizers);
+            }
+        }
+
+        JSONObject manifest = new JSONObject();
+        manifest.put("timeSteps", timeSteps);
+        manifest.put("predictSteps", predictSteps);
+        manifest.put("featureSetVersion", featureSetVersion);
+        manifest.put("featureCount", featureCount);
+        JSONArray shardArray = new JSONArray();
+        for (ShardInfo shard : shards) {
+            JSONObject item = new JSONObject();
+            item.put("file", shard.getFileName());
+            item.put("symbol", shard.getSymbol());
+            item.put("rows", shard.getRows());
+            shardArray.add(item);
+        }
+        manifest.put("shards", shardArray);
+
+        // 清单最后写入，存在清单即表示数据集完整
+        File tmpFile = new File(directory, MANIFEST_FILE + ".tmp");
+        Files.write(tmpFile.toPath(), manifest.toJSONString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpFile.toPath(), new File(directory, MANIFEST_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 遍历全部窗口
+     */
+    public ShardedWindowDataSetIterator iterator(int batchSize, boolean shuffle, long seed) {
+        int[][] ranges = new int[shards.size()][];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = new int[]{0, SlidingWindowDataSetIterator.windowCount(shards.get(i).getRows(), timeSteps)};
+        }
+        return iterator(ranges, batchSize, shuffle, seed);
+    }
+
+    /**
+     * 只遍历每个分片内给定范围的窗口
+     *
+     * @param windowRanges 每个分片一个 [fromWindow, toWindow)，通常取自 {@link #split(double)}
+     */
+    public ShardedWindowDataSetIterator iterator(int[][] windowRanges, int batchSize, boolean shuffle, long seed) {
+        return new ShardedWindowDataSetIterator(getShardFiles(), timeSteps, windowRanges, batchSize, shuffle, seed);
+    }
+
+    /**
+     * 按时间顺序划分训练集和测试集
+     * 分片带有行时间时，在全部股票上取同一个时间点T：窗口最后一行的时间早于T的约占 trainRatio，
+     * 每只股票最后一行不早于T的窗口作测试集；没有行时间的旧分片退化为每只股票在自己的窗口序列上按比例切分。
+     * 同一股票的多个分片按顺序拼成一个窗口序列，测试集是序列末尾连续的一段，不会夹在训练窗口之间；
+     * 分界前清除 {@link SplitGenerator#purgeWindowsFor(int, int)} 个训练窗口，与 {@link SplitGenerator#holdout(double)} 一致，
+     * 训练窗口的标签不会进入测试区间。
+     */
+    public ShardSplit split(double trainRatio) throws IOException {
+        if (trainRatio <= 0 || trainRatio >= 1) {
+            throw new IllegalArgumentException("训练集比例必须在 (0, 1) 之间: " + trainRatio);
+        }
+        int shardCount = shards.size();
+        int[] windows = new int[shardCount];
+        long totalWindows = 0;
+        for (int i = 0; i < shardCount; i++) {
+            windows[i] = SlidingWindowDataSetIterator.windowCount(shards.get(i).getRows(), timeSteps);
+            totalWindows += windows[i];
+        }
+
+        // 每个分片中第一个测试窗口的下标（分片内），没有行时间时为null
+        long cutoffTime = -1;
+        int[] firstTestWindow = null;
+        long[][] endTimes = readWindowEndTimes(windows);
+        if (endTimes != null) {
+            cutoffTime = cutoffTime(endTimes, (long) (totalWindows * trainRatio));
+            firstTestWindow = new int[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                firstTestWindow[i] = lowerBound(endTimes[i], cutoffTime);
+            }
+        } else {
+            logger.warn("分片数据集 {} 没有行时间，每只股票按自己的窗口序列以比例 {} 划分，各股票的分界时间不一致",
+                    directory, trainRatio);
+        }
+
+        // 按股票把分片拼成窗口序列，找到序列中的测试起点，再映射回各分片
+        int purgeWindows = SplitGenerator.purgeWindowsFor(timeSteps, predictSteps);
+        int[][] trainRanges = new int[shardCount][];
+        int[][] testRanges = new int[shardCount][];
+        Map<String, List<Integer>> symbolShards = new LinkedHashMap<>();
+        for (int i = 0; i < shardCount; i++) {
+            symbolShards.computeIfAbsent(shards.get(i).getSymbol(), key -> new ArrayList<>()).add(i);
+        }
+        for (List<Integer> indices : symbolShards.values()) {
+            long symbolWindows = 0;
+            for (int index : indices) {
+                symbolWindows += windows[index];
+            }
+            long testFrom = symbolWindows;
+            if (firstTestWindow == null) {
+                testFrom = (long) (symbolWindows * trainRatio);
+            } else {
+                long offset = 0;
+                for (int index : indices) {
+                    if (firstTestWindow[index] < windows[index]) {
+                        testFrom = offset + firstTestWindow[index];
+                        break;
+                    }
+                    offset += windows[index];
+                }
+            }
+            // 整段历史都在分界之前的股票没有测试窗口，也不需要清除
+            long trainTo = testFrom < symbolWindows ? Math.max(0, testFrom - purgeWindows) : symbolWindows;
+
+            long offset = 0;
+            for (int index : indices) {
+                trainRanges[index] = clip(0, trainTo, offset, windows[index]);
+                testRanges[index] = clip(testFrom, symbolWindows, offset, windows[index]);
+                offset += windows[index];
+            }
+        }
+
+        ShardSplit split = new ShardSplit(trainRanges, testRanges, cutoffTime);
+        if (split.getTrainWindows() < 1 || split.getTestWindows() < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "窗口数 %d 不足以按比例 %.2f 划分（清除 %d 个窗口）", totalWindows, trainRatio, purgeWindows));
+        }
+        logger.info("分片数据集划分 - 分界时间: {}, 训练窗口: {}, 测试窗口: {}, 每只股票清除 {} 个窗口",
+                cutoffTime >= 0 ? TradeTimeUtil.fromEpochSecond(cutoffTime) : "无",
+                split.getTrainWindows(), split.getTestWindows(), purgeWindows);
+        return split;
+    }
+
+    /**
+     * 每个分片每个窗口最后一行的时间；任一分片没有行时间时返回null
+     */
+    private long[][] readWindowEndTimes(int[] windows) throws IOException {
+        long[][] endTimes = new long[shards.size()][];
+        for (int i = 0; i < endTimes.length; i++) {
+            WindowShard shard = WindowShard.read(new File(directory, shards.get(i).getFileName()));
+            INDArray times = shard.getTimes();
+            if (times == null) {
+                return null;
+            }
+            endTimes[i] = new long[windows[i]];
+            for (int w = 0; w < windows[i]; w++) {
+                endTimes[i][w] = times.getLong(w + timeSteps - 1L);
+            }
+        }
+        return endTimes;
+    }
+
+    /**
+     * 最小的时间T，使最后一行早于T的窗口数不少于 trainWindows（每个分片内窗口时间递增）
+     */
+    private static long cutoffTime(long[][] endTimes, long trainWindows) {
+        long low = Long.MAX_VALUE;
+        long high = Long.MIN_VALUE;
+        for (long[] times : endTimes) {
+            if (times.length > 0) {
+                low = Math.min(low, times[0]);
+                high = Math.max(high, times[times.length - 1] + 1);
+            }
+        }
+        while (low < high) {
+            long middle = low + (high - low) / 2;
+            long before = 0;
+            for (long[] times : endTimes) {
+                before += lowerBound(times, middle);
+            }
+            if (before >= trainWindows) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 第一个不早于 time 的位置
+     */
+    private static int lowerBound(long[] times, long time) {
+        int low = 0;
+        int high = times.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 股票窗口序列中的 [from, to) 与从 offset 开始的 windows 个分片窗口的交集，换算为分片内下标
+     */
+    private static int[] clip(long from, long to, long offset, int windows) {
+        long start = Math.min(Math.max(from - offset, 0), windows);
+        long end = Math.min(Math.max(to - offset, 0), windows);
+        return new int[]{(int) start, (int) Math.max(start, end)};
+    }
+
+    /**
+     * 把多只股票的窗口交错混合成minibatch，每只股票每轮最多抽取 maxWindowsPerSymbol 个窗口
+     *
+     * @param windowRanges 每个分片一个 [fromWindow, toWindow)，通常取自 {@link #split(double)}
+     * @param resample     每轮是否重新抽样；为false时每轮产生完全相同的窗口和顺序，适合验证集
+     * @see MixedSymbolWindowIterator
+     */
+    public MixedSymbolWindowIterator mixedIterator(int[][] windowRanges, int batchSize,
+                                                   int maxWindowsPerSymbol, int openShards, int shuffleBufferSize,
+                                                   boolean resample, long seed) {
+        List<String> symbols = new ArrayList<>(shards.size());
+        long[] rows = new long[shards.size()];
+        for (int i = 0; i < shards.size(); i++) {
+            symbols.add(shards.get(i).getSymbol());
+            rows[i] = shards.get(i).getRows();
+        }
+        return new MixedSymbolWindowIterator(getShardFiles(), symbols, rows, timeSteps, windowRanges,
+                batchSize, maxWindowsPerSymbol, openShards, shuffleBufferSize, resample, seed);
+    }
+
+    public List<File> getShardFiles() {
+        List<File> files = new ArrayList<>(shards.size());
+        for (ShardInfo shard : shards) {
+            files.add(new File(directory, shard.getFileName()));
+        }
+        return files;
+    }
+
+    /**
+     * 全部分片的窗口总数
+     */
+    public long getWindowCount() {
+        long windows = 0;
+        for (ShardInfo shard : shards) {
+            windows += SlidingWindowDataSetIterator.windowCount(shard.getRows(), timeSteps);
+        }
+        return windows;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getTimeSteps() {
+        return timeSteps;
+    }
+
+    public int getPredictSteps() {
+        return predictSteps;
+    }
+
+    public int getFeatureSetVersion() {
+        return featureSetVersion;
+    }
+
+    public int getFeatureCount() {
+        return featureCount;
+    }
+
+    public List<ShardInfo> getShards() {
+        return shards;
+    }
+
+    public ColumnNormalizer getFeatureNormalizer() {
+        return featureNormalizer;
+    }
+
+    public ColumnNormalizer getLabelNormalizer() {
+        return labelNormalizer;
+    }
+
+    /**
+     * 每只股票的特征标准化器，分片按全市场统计量标准化时为空
+     */
+    public Map<String, ColumnNormalizer> getSymbolNormalizers() {
+        return symbolNormalizers;
+    }
+
+    /**
+     * 分片数据集的一次划分：每个分片一个训练窗口范围和一个测试窗口范围，都是分片内左闭右开的窗口下标
+     */
+    public static class ShardSplit {
+        private final int[][] trainRanges;
+        private final int[][] testRanges;
+        private final long cutoffTime;
+
+        public ShardSplit(int[][] trainRanges, int[][] testRanges, long cutoffTime) {
+            this.trainRanges = trainRanges;
+            this.testRanges = testRanges;
+            this.cutoffTime = cutoffTime;
+        }
+
+        public int[][] getTrainRanges() {
+            return trainRanges;
+        }
+
+        public int[][] getTestRanges() {
+            return testRanges;
+        }
+
+        /**
+         * 分界时间（纪元秒），没有行时间的数据集为-1
+         */
+        public long getCutoffTime() {
+            return cutoffTime;
+        }
+
+        public long getTrainWindows() {
+            return count(trainRanges);
+        }
+
+        public long getTestWindows() {
+            return count(testRanges);
+        }
+
+        private static long count(int[][] ranges) {
+            long windows = 0;
+            for (int[] range : ranges) {
+                windows += range[1] - range[0];
+            }
+            return windows;
+        }
+    }
+
+    /**
+     * 分片信息
+     */
+    public static class ShardInfo {
+        private final String fileName;
+        private final String symbol;
+        private final long rows;
+
+        public ShardInfo(String fileName, String symbol, long rows) {
+            this.fileName = fileName;
+            this.symbol = symbol;
+            this.rows = rows;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package com.sunyuyang.util;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Broadcast;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按列标准化器
+ * 每列独立统计计数、均值、M2（Welford）、最小值和最大值，支持最小-最大和z-score两种方式。
+ * partialFit 可以分块多次调用（块之间用Chan公式合并），适合无法一次装入内存的数据集；NaN和无穷大不参与统计。
+ * 转换和反转换都是沿最后一维的广播乘加，对 [n, f] 和 [b, t, f] 张量原地进行。
+ */
+public class ColumnNormalizer {
+    private static final int MAGIC = 0x5350434E; // "SPCN"
+    private static final int FORMAT_VERSION = 1;
+
+    private final Mode mode;
+    private final double targetMin;
+    private final double targetMax;
+
+    private int columns = -1;
+    private long[] counts;
+    private double[] means;
+    private double[] m2s;
+    private double[] mins;
+    private double[] maxs;
+
+    // x' = x * scale + offset，统计量变化后重新计算
+    private double[] scale;
+    private double[] offset;
+
+    /**
+     * 默认最小-最大标准化到 [0, 1]
+     */
+    public ColumnNormalizer() {
+        this(Mode.MIN_MAX);
+    }
+
+    public ColumnNormalizer(Mode mode) {
+        this(mode, 0.0, 1.0);
+    }
+
+    /**
+     * @param targetMin 最小-最大标准化的目标最小值（z-score模式忽略）
+     * @param targetMax 最小-最大标准化的目标最大值（z-score模式忽略）
+     */
+    public ColumnNormalizer(Mode mode, double targetMin, double targetMax) {
+        if (mode == null) {
+            throw new IllegalArgumentException("标准化方式不能为空");
+        }
+        if (!(targetMax > targetMin)) {
+            throw new IllegalArgumentException("目标范围无效: [" + targetMin + ", " + targetMax + "]");
+        }
+        this.mode = mode;
+        this.targetMin = targetMin;
+        this.targetMax = targetMax;
+    }
+
+    /**
+     * 清空统计量后拟合
+     */
+    public void fit(INDArray data) {
+        reset();
+        partialFit(data);
+    }
+
+    /**
+     * 增量拟合一块数据，最后一维为列
+     */
+    public void partialFit(INDArray data) {
+        if (data == null || data.isEmpty()) {
+            throw new IllegalArgumentException("数据不能为空");
+        }
+
+        int cols = (int) data.size(data.rank() - 1);
+        ensureColumns(cols);
+
+        // 先在块内做一遍Welford，再与已有统计量合并
+        INDArray source = NDArrayFiles.isContiguous(data) ? data : data.dup('c');
+        double[] values = source.data().asDouble();
+        long rows = source.length() / cols;
+
+        long[] chunkCounts = new long[cols];
+        double[] chunkMeans = new double[cols];
+        double[] chunkM2s = new double[cols];
+        double[] chunkMins = new double[cols];
+        double[] chunkMaxs = new double[cols];
+        Arrays.fill(chunkMins, Double.POSITIVE_INFINITY);
+        Arrays.fill(chunkMaxs, Double.NEGATIVE_INFINITY);
+
+        for (long row = 0; row < rows; row++) {
+            int base = (int) (row * cols);
+            for (int col = 0; col < cols; col++) {
+                double value = values[base + col];
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    continue;
+                }
+                long n = ++chunkCounts[col];
+                double delta = value - chunkMeans[col];
+                chunkMeans[col] += delta / n;
+                chunkM2s[col] += delta * (value - chunkMeans[col]);
+                if (value < chunkMins[col]) {
+                    chunkMins[col] = value;
+                }
+                if (value > chunkMaxs[col]) {
+                    chunkMaxs[col] = value;
+                }
+            }
+        }
+
+        for (int col = 0; col < cols; col++) {
+            mergeColumn(col, chunkCounts[col], chunkMeans[col], chunkM2s[col], chunkMins[col], chunkMaxs[col]);
+        }
+        scale = null;
+    }
+
+    /**
+     * 合并另一个标准化器的统计量（例如并行处理的分片）
+     */
+    public void merge(ColumnNormalizer other) {
+        if (other.mode != mode || other.targetMin != targetMin || other.targetMax != targetMax) {
+            throw new IllegalArgumentException("标准化方式不一致，无法合并");
+        }
+        if (!other.isFitted()) {
+            return;
+        }
+        ensureColumns(other.columns);
+        for (int col = 0; col < columns; col++) {
+            mergeColumn(col, other.counts[col], other.means[col], other.m2s[col], other.mins[col], other.maxs[col]);
+        }
+        scale = null;
+    }
+
+    /**
+     * Chan等人的并行方差合并公式
+     */
+    private void mergeColumn(int col, long n, double mean, double m2, double min, double max) {
+        if (n == 0) {
+            return;
+        }
+        long total = counts[col] + n;
+        double delta = mean - means[col];
+        means[col] += delta * n / total;
+        m2s[col] += m2 + delta * delta * ((double) counts[col] * n / total);
+        counts[col] = total;
+        mins[col] = Math.min(mins[col], min);
+        maxs[col] = Math.max(maxs[col], max);
+    }
+
+    private void ensureColumns(int cols) {
+        if (columns == -1) {
+            columns = cols;
+            counts = new long[cols];
+            means = new double[cols];
+            m2s = new double[cols];
+            mins = new double[cols];
+            maxs = new double[cols];
+            Arrays.fill(mins, Double.POSITIVE_INFINITY);
+            Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+        } else if (columns != cols) {
+            throw new IllegalArgumentException(String.format("列数不匹配: %d vs %d", cols, columns));
+        }
+    }
+
+    /**
+     * 清空统计量
+     */
+    public void reset() {
+        columns = -1;
+        counts = null;
+        means = null;
+        m2s = null;
+        mins = null;
+        maxs = null;
+        scale = null;
+        offset = null;
+    }
+
+    /**
+     * 拟合并转换数据（原地修改）
+     */
+    public void fitTransform(INDArray data) {
+        fit(data);
+        transform(data);
+    }
+
+    /**
+     * 转换数据（原地修改），最后一维为列
+     */
+    public void transform(INDArray data) {
+        checkApplicable(data);
+        computeCoefficients();
+        applyAffine(data, scale, offset);
+    }
+
+    /**
+     * 转换数据并返回新数组（不修改原始数据）
+     */
+    public INDArray transformCopy(INDArray data) {
+        INDArray copy = data.dup();
+        transform(copy);
+        return copy;
+    }
+
+    /**
+     * 反标准化（原地修改）；常数列恢复为该列的最小值（最小-最大）或均值（z-score）
+     */
+    public void inverseTransform(INDArray normalizedData) {
+        checkApplicable(normalizedData);
+        computeCoefficients();
+
+        double[] inverseScale = new double[columns];
+        double[] inverseOffset = new double[columns];
+        for (int col = 0; col < columns; col++) {
+            if (scale[col] != 0) {
+                inverseScale[col] = 1.0 / scale[col];
+                inverseOffset[col] = -offset[col] / scale[col];
+            } else {
+                inverseOffset[col] = mode == Mode.MIN_MAX ? mins[col] : means[col];
+            }
+        }
+        applyAffine(normalizedData, inverseScale, inverseOffset);
+    }
+
+    /**
+     * 反标准化并返回新数组
+     */
+    public INDArray inverseTransformCopy(INDArray normalizedData) {
+        INDArray copy = normalizedData.dup();
+        inverseTransform(copy);
+        return copy;
+    }
+
+    /**
+     * 沿最后一维广播 x * scale + offset
+     */
+    private static void applyAffine(INDArray data, double[] scale, double[] offset) {
+        int dimension = data.rank() - 1;
+        INDArray scaleRow = Nd4j.create(scale, new long[]{scale.length}, data.dataType());
+        INDArray offsetRow = Nd4j.create(offset, new long[]{offset.length}, data.dataType());
+        Broadcast.mul(data, scaleRow, data, dimension);
+        Broadcast.add(data, offsetRow, data, dimension);
+    }
+
+    private void computeCoefficients() {
+        if (scale != null) {
+            return;
+        }
+        double[] newScale = new double[columns];
+        double[] newOffset = new double[columns];
+        for (int col = 0; col < columns; col++) {
+            if (mode == Mode.MIN_MAX) {
+                double dataRange = maxs[col] - mins[col];
+                if (counts[col] > 0 && dataRange > 0) {
+                    // targetMin + (x - dataMin) * (targetRange / dataRange)
+                    newScale[col] = (targetMax - targetMin) / dataRange;
+                    newOffset[col] = targetMin - mins[col] * newScale[col];
+                } else {
+                    // 如果该列所有值相同，设为目标范围的中点
+                    newOffset[col] = (targetMin + targetMax) / 2.0;
+                }
+            } else {
+                double std = getStd(col);
+                if (std > 0) {
+                    newScale[col] = 1.0 / std;
+                    newOffset[col] = -means[col] / std;
+                }
+            }
+        }
+        offset = newOffset;
+        scale = newScale;
+    }
+
+    private void checkApplicable(INDArray data) {
+        if (!isFitted()) {
+            throw new IllegalStateException("必须先调用 fit() 方法");
+        }
+        long cols = data.size(data.rank() - 1);
+        if (cols != columns) {
+            throw new IllegalArgumentException(String.format("列数不匹配: %d vs %d", cols, columns));
+        }
+    }
+
+    private double getStd(int col) {
+        return counts[col] > 0 ? Math.sqrt(m2s[col] / counts[col]) : 0.0;
+    }
+
+    /**
+     * 写入二进制统计量
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        if (!isFitted()) {
+            throw new IllegalStateException("必须先调用 fit() 方法");
+        }
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        byte[] modeName = mode.name().getBytes(StandardCharsets.US_ASCII);
+        out.writeByte(modeName.length);
+        out.write(modeName);
+        out.writeDouble(targetMin);
+        out.writeDouble(targetMax);
+        out.writeInt(columns);
+        for (int col = 0; col < columns; col++) {
+            out.writeLong(counts[col]);
+            out.writeDouble(means[col]);
+            out.writeDouble(m2s[col]);
+            out.writeDouble(mins[col]);
+            out.writeDouble(maxs[col]);
+        }
+    }
+
+    /**
+     * 读取 {@link #writeTo(DataOutput)} 写入的统计量
+     */
+    public static ColumnNormalizer readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("不是标准化器数据");
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("不支持的标准化器格式版本: " + version);
+        }
+        byte[] modeName = new byte[in.readUnsignedByte()];
+        in.readFully(modeName);
+        Mode mode;
+        try {
+            mode = Mode.valueOf(new String(modeName, StandardCharsets.US_ASCII));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("未知的标准化方式: " + new String(modeName, StandardCharsets.US_ASCII));
+        }
+
+        ColumnNormalizer normalizer = new ColumnNormalizer(mode, in.readDouble(), in.readDouble());
+        int cols = in.readInt();
+        if (cols <= 0) {
+            throw new IOException("列数无效: " + cols);
+        }
+        normalizer.ensureColumns(cols);
+        for (int col = 0; col < cols; col++) {
+            normalizer.counts[col] = in.readLong();
+            normalizer.means[col] = in.readDouble();
+            normalizer.m2s[col] = in.readDouble();
+            normalizer.mins[col] = in.readDouble();
+            normalizer.maxs[col] = in.readDouble();
+        }
+        return normalizer;
+    }
+
+    /**
+     * 写入按股票代码索引的一组标准化器（例如每只股票的特征统计量）
+     */
+    public static void writeMap(DataOutput out, Map<String, ColumnNormalizer> normalizers) throws IOException {
+        out.writeInt(normalizers.size());
+        for (Map.Entry<String, ColumnNormalizer> entry : normalizers.entrySet()) {
+            out.writeUTF(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    /**
+     * 读取 {@link #writeMap(DataOutput, Map)} 写入的标准化器，保持写入顺序
+     */
+    public static Map<String, ColumnNormalizer> readMap(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("标准化器数量无效: " + size);
+        }
+        Map<String, ColumnNormalizer> normalizers = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            String key = in.readUTF();
+            normalizers.put(key, readFrom(in));
+        }
+        return normalizers;
+    }
+
+    /**
+     * 保存标准化器到文件
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            writeTo(out);
+        }
+    }
+
+    /**
+     * 从文件加载标准化器
+     */
+    public static ColumnNormalizer load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            return readFrom(in);
+        }
+    }
+
+    // 获取方法
+    public Mode getMode() {
+        return mode;
+    }
+
+    public double getTargetMin() {
+        return targetMin;
+    }
+
+    public double getTargetMax() {
+        return targetMax;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public boolean isFitted() {
+        return columns > 0;
+    }
+
+    public long[] getCounts() {
+        return counts == null ? null : counts.clone();
+    }
+
+    public double[] getMeans() {
+        return means == null ? null : means.clone();
+    }
+
+    public double[] getStds() {
+        if (!isFitted()) {
+            return null;
+        }
+        double[] stds = new double[columns];
+        for (int col = 0; col < columns; col++) {
+            stds[col] = getStd(col);
+        }
+        return stds;
+    }
+
+    public double[] getMins() {
+        return mins == null ? null : mins.clone();
+    }
+
+    public double[] getMaxs() {
+        return maxs == null ? null : maxs.clone();
+    }
+
+    /**
+     * 标准化方式
+     */
+    public enum Mode {
+        MIN_MAX, // 缩放到 [targetMin, targetMax]
+        Z_SCORE  // (x - mean) / std
+    }
+}
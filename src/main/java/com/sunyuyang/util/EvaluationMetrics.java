@@ -1,28 +1,38 @@
 package com.sunyuyang.util;
 
 
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.ops.transforms.Transforms;
 
+/**
+ * 评估指标
+ * 所有累加都在DOUBLE精度下进行，避免FLOAT/FLOAT16模型的预测结果在求和时损失精度
+ * 精度转换和差值等中间数组都在 {@link Workspaces#METRICS} 工作区中分配，只有标量结果离开工作区
+ */
 public class EvaluationMetrics {
 
     /**
      * 计算均方误差 (MSE)
      */
     public static double calculateMSE(INDArray predictions, INDArray actuals) {
-        INDArray diff = predictions.sub(actuals);
-        INDArray squared = diff.mul(diff);
-        return squared.meanNumber().doubleValue();
+        MemoryWorkspace workspace = Workspaces.open(Workspaces.METRICS);
+        try (workspace) {
+            INDArray diff = toDouble(predictions).sub(toDouble(actuals));
+            return diff.muli(diff).meanNumber().doubleValue();
+        }
     }
 
     /**
      * 计算平均绝对误差 (MAE)
      */
     public static double calculateMAE(INDArray predictions, INDArray actuals) {
-        INDArray diff = predictions.sub(actuals);
-        INDArray abs = Nd4j.getExecutioner().execAndReturn(new org.nd4j.linalg.api.ops.impl.transforms.same.Abs(diff)).z();
-        //INDArray abs = diff.dup().abs();
-        return abs.meanNumber().doubleValue();
+        MemoryWorkspace workspace = Workspaces.open(Workspaces.METRICS);
+        try (workspace) {
+            INDArray diff = toDouble(predictions).sub(toDouble(actuals));
+            return Transforms.abs(diff, false).meanNumber().doubleValue();
+        }
     }
 
     /**
@@ -36,29 +46,36 @@ public class EvaluationMetrics {
      * 计算平均绝对百分比误差 (MAPE)
      */
     public static double calculateMAPE(INDArray predictions, INDArray actuals) {
-        INDArray diff = predictions.sub(actuals);
-        INDArray absDiff = Nd4j.getExecutioner().execAndReturn(new org.nd4j.linalg.api.ops.impl.transforms.same.Abs(diff)).z();
-        INDArray absActuals = Nd4j.getExecutioner().execAndReturn(new org.nd4j.linalg.api.ops.impl.transforms.same.Abs(actuals)).z();
+        MemoryWorkspace workspace = Workspaces.open(Workspaces.METRICS);
+        try (workspace) {
+            // actuals已经是DOUBLE时toDouble返回原数组，只能做不修改它的运算
+            INDArray actualValues = toDouble(actuals);
+            INDArray absDiff = Transforms.abs(toDouble(predictions).sub(actualValues), false);
+            INDArray absActuals = Transforms.abs(actualValues, true);
 
-        // 避免除以零
-        INDArray safeActuals = absActuals.add(1e-10);
-        INDArray percentageErrors = absDiff.div(safeActuals).mul(100);
+            // 避免除以零
+            INDArray percentageErrors = absDiff.divi(absActuals.addi(1e-10)).muli(100);
 
-        return percentageErrors.meanNumber().doubleValue();
+            return percentageErrors.meanNumber().doubleValue();
+        }
     }
 
     /**
      * 计算决定系数 (R²)
      */
     public static double calculateR2(INDArray predictions, INDArray actuals) {
-        double actualMean = actuals.meanNumber().doubleValue();
-        INDArray ssTotal = actuals.sub(actualMean).mul(actuals.sub(actualMean));
-        double totalSum = ssTotal.sumNumber().doubleValue();
+        MemoryWorkspace workspace = Workspaces.open(Workspaces.METRICS);
+        try (workspace) {
+            INDArray actualValues = toDouble(actuals);
+            double actualMean = actualValues.meanNumber().doubleValue();
+            INDArray deviation = actualValues.sub(actualMean);
+            double totalSum = deviation.muli(deviation).sumNumber().doubleValue();
 
-        INDArray ssResidual = predictions.sub(actuals).mul(predictions.sub(actuals));
-        double residualSum = ssResidual.sumNumber().doubleValue();
+            INDArray residual = toDouble(predictions).sub(actualValues);
+            double residualSum = residual.muli(residual).sumNumber().doubleValue();
 
-        return 1 - (residualSum / (totalSum + 1e-10));
+            return 1 - (residualSum / (totalSum + 1e-10));
+        }
     }
 
     /**
@@ -88,6 +105,13 @@ public class EvaluationMetrics {
         return totalComparisons > 0 ? (double) correctDirections / totalComparisons : 0.0;
     }
 
+    /**
+     * 转换为DOUBLE精度，已经是DOUBLE时不复制（返回原数组，调用方不能原地修改）
+     */
+    private static INDArray toDouble(INDArray array) {
+        return array.dataType() == DataType.DOUBLE ? array : array.castTo(DataType.DOUBLE);
+    }
+
     /**
      * 打印所有评估指标
      */
@@ -0,0 +1,91 @@
+package com.sunyuyang.util;
+
+import org.bytedeco.javacpp.Pointer;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * 内存和GC统计快照
+ * 堆外内存取JavaCPP跟踪的分配总量（ND4J的数组缓冲区和工作区都经过JavaCPP分配），
+ * 同时记录进程物理内存、堆使用量和各垃圾收集器的累计次数与耗时，两次快照相减得到一段代码的内存增长和GC停顿。
+ */
+public class MemoryStats {
+    private final long offHeapBytes;
+    private final long offHeapCount;
+    private final long physicalBytes;
+    private final long heapUsedBytes;
+    private final long gcCount;
+    private final long gcMillis;
+
+    private MemoryStats(long offHeapBytes, long offHeapCount, long physicalBytes, long heapUsedBytes,
+                        long gcCount, long gcMillis) {
+        this.offHeapBytes = offHeapBytes;
+        this.offHeapCount = offHeapCount;
+        this.physicalBytes = physicalBytes;
+        this.heapUsedBytes = heapUsedBytes;
+        this.gcCount = gcCount;
+        this.gcMillis = gcMillis;
+    }
+
+    /**
+     * 当前的内存和GC统计
+     */
+    public static MemoryStats capture() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return new MemoryStats(Pointer.totalBytes(), Pointer.totalCount(), Pointer.physicalBytes(),
+                runtime.totalMemory() - runtime.freeMemory(), count, millis);
+    }
+
+    /**
+     * 从 before 到本快照的变化：堆外内存和物理内存的增长、期间的GC次数和停顿时间
+     */
+    public String since(MemoryStats before) {
+        return String.format("堆外 %s (%+d 个缓冲区), 物理内存 %s, 堆 %s, GC %d 次 / %d ms",
+                signedMegabytes(offHeapBytes - before.offHeapBytes), offHeapCount - before.offHeapCount,
+                signedMegabytes(physicalBytes - before.physicalBytes),
+                signedMegabytes(heapUsedBytes - before.heapUsedBytes),
+                gcCount - before.gcCount, gcMillis - before.gcMillis);
+    }
+
+    private static String signedMegabytes(long bytes) {
+        return String.format("%+.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    public long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    public long getOffHeapCount() {
+        return offHeapCount;
+    }
+
+    public long getPhysicalBytes() {
+        return physicalBytes;
+    }
+
+    public long getHeapUsedBytes() {
+        return heapUsedBytes;
+    }
+
+    public long getGcCount() {
+        return gcCount;
+    }
+
+    public long getGcMillis() {
+        return gcMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("堆外 %.1f MB (%d 个缓冲区), 物理内存 %.1f MB, 堆 %.1f MB, GC %d 次 / %d ms",
+                offHeapBytes / (1024.0 * 1024.0), offHeapCount, physicalBytes / (1024.0 * 1024.0),
+                heapUsedBytes / (1024.0 * 1024.0), gcCount, gcMillis);
+    }
+}
@@ -36,7 +36,10 @@ public class MinMaxNormalizer {
 
     /**
      * 创建适合列数据的标准化器（每列独立标准化）
+     *
+     * @deprecated 使用 {@link ColumnNormalizer}，支持增量拟合和广播转换
      */
+    @Deprecated
     public static ColumnMinMaxNormalizer createColumnNormalizer() {
         return new ColumnMinMaxNormalizer();
     }
@@ -161,7 +164,10 @@ public class MinMaxNormalizer {
 
     /**
      * 列标准化器（每列独立标准化）
+     *
+     * @deprecated 使用 {@link ColumnNormalizer}
      */
+    @Deprecated
     public static class ColumnMinMaxNormalizer {
         private INDArray columnMins;
         private INDArray columnMaxs;
@@ -0,0 +1,439 @@
+package com.sunyuyang.util;
+
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 把多只股票的窗口交错混合成minibatch的迭代器，用于在全市场数据上训练同一个模型
+ * 同时打开 openShards 个分片，每次随机选一个打开的分片取出它的下一个窗口，复制进固定大小的打乱缓冲区；
+ * 组装批次时从缓冲区随机取窗口，空出的位置立即用新窗口补上。一个批次因此混合了多只股票、多个时间段的窗口，
+ * 而内存中只有打乱缓冲区、批次缓冲区和打开的分片，与股票数量和数据集大小无关。
+ * <p>
+ * 每只股票每轮最多抽取 maxWindowsPerSymbol 个窗口，按各分片的窗口数比例分配到分片，分片内随机抽样，
+ * 每轮的训练量因此与股票数成正比，而不随单只股票历史长度增长。
+ * resample 为false时每轮使用相同的随机种子，产生完全相同的窗口和顺序，适合验证集和测试集。
+ * <p>
+ * 注意：返回的DataSet复用同一块缓冲区，只在下一次调用next之前有效，需要保留时请自行dup。
+ */
+public class MixedSymbolWindowIterator implements DataSetIterator {
+    private final List<File> shardFiles;
+    private final int timeSteps;
+    private final int batchSize;
+    private final int openShards;
+    private final int bufferCapacity;
+    private final boolean resample;
+    private final long seed;
+    private final int[] fromWindows;
+    private final int[] toWindows;
+    private final int[] quotas;
+    private final int[] shardOrder;
+    private Random random;
+
+    private final ExecutorService readAheadExecutor;
+    private Future<WindowShard> pendingShard;
+    private int nextShard = 0;
+    private final List<OpenShard> active = new ArrayList<>();
+
+    // 打乱缓冲区：前 buffered 个位置存放已复制的窗口和对应标签
+    private DataType dataType;
+    private int numFeatures = -1;
+    private int numLabels = -1;
+    private ByteBuffer bufferFeatures;
+    private ByteBuffer bufferLabels;
+    private int buffered = 0;
+
+    private INDArray featureBatch;
+    private INDArray labelBatch;
+    private DataSetPreProcessor preProcessor;
+
+    /**
+     * @param shardFiles          分片文件
+     * @param shardSymbols        每个分片所属的股票代码
+     * @param shardRows           每个分片的行数
+     * @param windowRanges        每个分片参与抽样的窗口范围 [fromWindow, toWindow)，通常取自 ShardedDataset.split
+     * @param maxWindowsPerSymbol 每只股票每轮最多抽取的窗口数，0表示不限制
+     * @param openShards          同时交错读取的分片数
+     * @param shuffleBufferSize   打乱缓冲区能容纳的窗口数
+     */
+    public MixedSymbolWindowIterator(List<File> shardFiles, List<String> shardSymbols, long[] shardRows,
+                                     int timeSteps, int[][] windowRanges, int batchSize,
+                                     int maxWindowsPerSymbol, int openShards, int shuffleBufferSize,
+                                     boolean resample, long seed) {
+        if (shardFiles.isEmpty()) {
+            throw new IllegalArgumentException("分片列表不能为空");
+        }
+        if (shardSymbols.size() != shardFiles.size() || shardRows.length != shardFiles.size()
+                || windowRanges.length != shardFiles.size()) {
+            throw new IllegalArgumentException("分片文件、股票代码、行数和窗口范围的数量不一致");
+        }
+        if (timeSteps <= 0 || batchSize <= 0 || openShards <= 0 || shuffleBufferSize <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "参数无效: timeSteps=%d, batchSize=%d, openShards=%d, shuffleBufferSize=%d",
+                    timeSteps, batchSize, openShards, shuffleBufferSize));
+        }
+        if (maxWindowsPerSymbol < 0) {
+            throw new IllegalArgumentException("maxWindowsPerSymbol不能为负数: " + maxWindowsPerSymbol);
+        }
+
+        this.shardFiles = shardFiles;
+        this.timeSteps = timeSteps;
+        this.batchSize = batchSize;
+        this.openShards = openShards;
+        this.bufferCapacity = shuffleBufferSize;
+        this.resample = resample;
+        this.seed = seed;
+        this.random = new Random(seed);
+
+        int shards = shardFiles.size();
+        this.fromWindows = new int[shards];
+        this.toWindows = new int[shards];
+        Map<String, Long> symbolWindows = new HashMap<>();
+        for (int i = 0; i < shards; i++) {
+            int windows = SlidingWindowDataSetIterator.windowCount(shardRows[i], timeSteps);
+            if (windowRanges[i][0] < 0 || windowRanges[i][0] > windowRanges[i][1] || windowRanges[i][1] > windows) {
+                throw new IllegalArgumentException(String.format("分片 %s 的窗口范围无效: [%d, %d)，窗口数 %d",
+                        shardFiles.get(i).getName(), windowRanges[i][0], windowRanges[i][1], windows));
+            }
+            fromWindows[i] = windowRanges[i][0];
+            toWindows[i] = windowRanges[i][1];
+            symbolWindows.merge(shardSymbols.get(i), (long) (toWindows[i] - fromWindows[i]), Long::sum);
+        }
+
+        // 每只股票的窗口上限按窗口数比例分到它的各个分片
+        this.quotas = new int[shards];
+        for (int i = 0; i < shards; i++) {
+            int windows = toWindows[i] - fromWindows[i];
+            long total = symbolWindows.get(shardSymbols.get(i));
+            quotas[i] = maxWindowsPerSymbol > 0 && total > maxWindowsPerSymbol
+                    ? (int) Math.round((double) windows * maxWindowsPerSymbol / total) : windows;
+        }
+
+        this.shardOrder = new int[shards];
+        for (int i = 0; i < shards; i++) {
+            shardOrder[i] = i;
+        }
+
+        this.readAheadExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mixed-shard-read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        start();
+    }
+
+    private void start() {
+        if (!resample) {
+            random = new Random(seed);
+        }
+        for (int i = shardOrder.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = shardOrder[i];
+            shardOrder[i] = shardOrder[j];
+            shardOrder[j] = tmp;
+        }
+        nextShard = 0;
+        active.clear();
+        buffered = 0;
+        scheduleNextShard();
+    }
+
+    /**
+     * 在后台线程读取下一个分片
+     */
+    private void scheduleNextShard() {
+        if (nextShard >= shardOrder.length) {
+            pendingShard = null;
+            return;
+        }
+        File file = shardFiles.get(shardOrder[nextShard]);
+        pendingShard = readAheadExecutor.submit(() -> WindowShard.read(file));
+    }
+
+    /**
+     * 打开分片直到达到 openShards 个或没有剩余分片，本轮配额为0的分片直接跳过
+     */
+    private void openShards() {
+        while (active.size() < openShards && pendingShard != null) {
+            WindowShard shard;
+            try {
+                shard = pendingShard.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("读取分片被中断", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("读取分片失败", e.getCause());
+            }
+            int index = shardOrder[nextShard++];
+            scheduleNextShard();
+
+            if (quotas[index] > 0) {
+                checkLayout(shard);
+                active.add(new OpenShard(shard, sampleWindows(index)));
+            }
+        }
+    }
+
+    /**
+     * 从分片的窗口范围中无放回地随机抽取本轮配额个窗口
+     */
+    private int[] sampleWindows(int index) {
+        int[] range = new int[toWindows[index] - fromWindows[index]];
+        for (int i = 0; i < range.length; i++) {
+            range[i] = fromWindows[index] + i;
+        }
+        int quota = quotas[index];
+        for (int i = 0; i < quota; i++) {
+            int j = i + random.nextInt(range.length - i);
+            int tmp = range[i];
+            range[i] = range[j];
+            range[j] = tmp;
+        }
+        int[] windows = new int[quota];
+        System.arraycopy(range, 0, windows, 0, quota);
+        return windows;
+    }
+
+    /**
+     * 所有分片的列数和数据类型必须一致，第一个分片确定打乱缓冲区的布局
+     */
+    private void checkLayout(WindowShard shard) {
+        INDArray features = shard.getFeatures();
+        INDArray labels = shard.getLabels();
+        if (numFeatures < 0) {
+            dataType = features.dataType();
+            numFeatures = (int) features.size(1);
+            numLabels = (int) labels.size(1);
+            int width = dataType.width();
+            bufferFeatures = ByteBuffer.allocateDirect(
+                    Math.toIntExact((long) bufferCapacity * timeSteps * numFeatures * width))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            bufferLabels = ByteBuffer.allocateDirect(Math.toIntExact((long) bufferCapacity * numLabels * width))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        } else if (features.dataType() != dataType || features.size(1) != numFeatures
+                || labels.size(1) != numLabels) {
+            throw new IllegalStateException(String.format("分片 %s 的布局与其他分片不一致: [%d, %d] %s",
+                    shard.getSymbol(), features.size(1), labels.size(1), features.dataType()));
+        }
+    }
+
+    /**
+     * 从随机选中的打开分片取下一个窗口复制到缓冲区的 slot 位置
+     *
+     * @return 所有分片都已取完时返回false
+     */
+    private boolean drawInto(int slot) {
+        openShards();
+        if (active.isEmpty()) {
+            return false;
+        }
+        int index = random.nextInt(active.size());
+        OpenShard shard = active.get(index);
+        int window = shard.windows[shard.cursor++];
+        int width = dataType.width();
+        long windowBytes = (long) timeSteps * numFeatures * width;
+        long labelBytes = (long) numLabels * width;
+        copy(shard.features, (long) window * numFeatures * width, bufferFeatures, slot * windowBytes, windowBytes);
+        copy(shard.labels, (window + timeSteps - 1) * labelBytes, bufferLabels, slot * labelBytes, labelBytes);
+
+        if (shard.cursor == shard.windows.length) {
+            active.set(index, active.get(active.size() - 1));
+            active.remove(active.size() - 1);
+        }
+        return true;
+    }
+
+    /**
+     * 偏移量按long计算，超出ByteBuffer的int寻址范围时抛出异常而不是回绕到错误的位置
+     */
+    private static void copy(ByteBuffer source, long sourceOffset, ByteBuffer target, long targetOffset, long length) {
+        ByteBuffer from = source.duplicate();
+        from.limit(Math.toIntExact(sourceOffset + length)).position(Math.toIntExact(sourceOffset));
+        ByteBuffer to = target.duplicate();
+        to.position(Math.toIntExact(targetOffset));
+        to.put(from);
+    }
+
+    private void fillBuffer() {
+        while (buffered < bufferCapacity && drawInto(buffered)) {
+            buffered++;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (buffered == 0) {
+            fillBuffer();
+        }
+        return buffered > 0;
+    }
+
+    @Override
+    public DataSet next(int num) {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        fillBuffer();
+
+        int actualNum = Math.min(num, buffered);
+        ensureBatchBuffers(actualNum);
+        ByteBuffer featureTarget = featureBatch.data().asNio().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer labelTarget = labelBatch.data().asNio().order(ByteOrder.LITTLE_ENDIAN);
+        int width = dataType.width();
+        long windowBytes = (long) timeSteps * numFeatures * width;
+        long labelBytes = (long) numLabels * width;
+
+        for (int i = 0; i < actualNum; i++) {
+            int slot = random.nextInt(buffered);
+            copy(bufferFeatures, slot * windowBytes, featureTarget, i * windowBytes, windowBytes);
+            copy(bufferLabels, slot * labelBytes, labelTarget, i * labelBytes, labelBytes);
+
+            // 空出的位置用新窗口补上；分片都取完后用缓冲区末尾的窗口填补
+            if (!drawInto(slot)) {
+                buffered--;
+                if (slot != buffered) {
+                    copy(bufferFeatures, buffered * windowBytes, bufferFeatures, slot * windowBytes, windowBytes);
+                    copy(bufferLabels, buffered * labelBytes, bufferLabels, slot * labelBytes, labelBytes);
+                }
+            }
+        }
+
+        DataSet dataSet = new DataSet(featureBatch, labelBatch);
+        if (preProcessor != null) {
+            preProcessor.preProcess(dataSet);
+        }
+        return dataSet;
+    }
+
+    /**
+     * 批次缓冲区只在批大小变化时（通常是每轮最后一个不完整的批次）重新分配
+     */
+    private void ensureBatchBuffers(int size) {
+        if (featureBatch == null || featureBatch.size(0) != size) {
+            featureBatch = Nd4j.create(dataType, size, timeSteps, numFeatures);
+            labelBatch = Nd4j.create(dataType, size, numLabels);
+        }
+    }
+
+    @Override
+    public DataSet next() {
+        return next(batchSize);
+    }
+
+    @Override
+    public void reset() {
+        if (pendingShard != null) {
+            pendingShard.cancel(false);
+        }
+        start();
+    }
+
+    /**
+     * 停止预读线程
+     */
+    public void shutdown() {
+        readAheadExecutor.shutdownNow();
+    }
+
+    /**
+     * 每轮产生的窗口数
+     */
+    public long windowsPerEpoch() {
+        long windows = 0;
+        for (int quota : quotas) {
+            windows += quota;
+        }
+        return windows;
+    }
+
+    /**
+     * 打乱缓冲区占用的字节数，在读到第一个分片之前为0
+     */
+    public long bufferBytes() {
+        return bufferFeatures == null ? 0 : (long) bufferFeatures.capacity() + bufferLabels.capacity();
+    }
+
+    public int getTimeSteps() {
+        return timeSteps;
+    }
+
+    @Override
+    public int inputColumns() {
+        hasNext();
+        return Math.max(numFeatures, 0);
+    }
+
+    @Override
+    public int totalOutcomes() {
+        hasNext();
+        return Math.max(numLabels, 0);
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        // 批次缓冲区是复用的，预读已经在分片级别完成
+        return false;
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return null; // 回归问题，不需要类别标签
+    }
+
+    /**
+     * 打开的分片：特征和标签的只读字节视图（小端、C顺序）和本轮抽到的窗口
+     * 字节视图不持有底层数据缓冲区，必须同时保留分片本身，否则缓冲区可能被回收
+     */
+    private static class OpenShard {
+        final WindowShard shard;
+        final ByteBuffer features;
+        final ByteBuffer labels;
+        final int[] windows;
+        int cursor = 0;
+
+        OpenShard(WindowShard shard, int[] windows) {
+            this.shard = shard;
+            this.features = NDArrayFiles.byteView(shard.getFeatures());
+            this.labels = NDArrayFiles.byteView(shard.getLabels());
+            this.windows = windows;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.sunyuyang.util;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.shape.Shape;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * INDArray二进制文件读写工具
+ * 数据统一以C顺序、小端字节序的原始数值存储，读取时整段批量复制进新分配的堆外缓冲区，避免逐元素解析。
+ * 读取结果不引用文件，可以原地修改；加载期间映射区和新缓冲区会同时占用一份数据大小的内存
+ */
+public class NDArrayFiles {
+
+    private NDArrayFiles() {
+    }
+
+    /**
+     * 将数组的原始数据按小端字节序写入通道的当前位置
+     *
+     * @return 写入的字节数
+     */
+    public static long writeData(FileChannel channel, INDArray array) throws IOException {
+        INDArray contiguous = isContiguous(array) ? array : array.dup('c');
+        ByteBuffer source = contiguous.data().asNio();
+        long byteLength = contiguous.length() * contiguous.dataType().width();
+
+        if (source.order() != ByteOrder.LITTLE_ENDIAN) {
+            throw new IOException("仅支持小端字节序平台写入: " + source.order());
+        }
+
+        source.position(0).limit((int) byteLength);
+        long written = 0;
+        while (source.hasRemaining()) {
+            written += channel.write(source);
+        }
+        return written;
+    }
+
+    /**
+     * 批量读取文件中的一段数据并创建数组
+     * 先把这段文件映射为只读缓冲区，再整段复制进新分配的缓冲区，返回的数组与文件无关
+     *
+     * @param position 数据在文件中的起始字节位置
+     * @param dataType 文件中存储的数据类型
+     * @param shape    数组形状（C顺序）
+     */
+    public static INDArray read(FileChannel channel, long position, DataType dataType, long... shape)
+            throws IOException {
+        long length = 1;
+        for (long dim : shape) {
+            length *= dim;
+        }
+
+        if (length == 0) {
+            return Nd4j.create(dataType, shape);
+        }
+
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                position, length * dataType.width());
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+        DataBuffer buffer = Nd4j.createBuffer(mapped, dataType, (int) length);
+        return Nd4j.create(buffer, shape);
+    }
+
+    /**
+     * 连续数组（见 {@link #isContiguous(INDArray)}）底层数据的小端字节视图，用于按字节复制窗口和样本
+     * ByteBuffer只能按int寻址，超过2GB的数组需要先分片（见 ShardedDataset）
+     */
+    public static ByteBuffer byteView(INDArray array) {
+        long bytes = array.length() * array.dataType().width();
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format(
+                    "数组超过2GB，无法按字节复制，请使用分片数据集: %s, %d 字节",
+                    Arrays.toString(array.shape()), bytes));
+        }
+        return array.data().asNio().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * 数组数据在底层缓冲区中是否连续且从头开始
+     * 对C顺序矩阵取前若干行得到的视图也满足条件，数据就是缓冲区的前 length() 个元素
+     */
+    public static boolean isContiguous(INDArray array) {
+        return array.ordering() == 'c' && array.offset() == 0
+                && Shape.hasDefaultStridesForShape(array)
+                && array.length() <= array.data().length();
+    }
+}
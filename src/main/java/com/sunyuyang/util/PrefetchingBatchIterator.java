@@ -0,0 +1,616 @@
+package com.sunyuyang.util;
+
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 后台预取的批次迭代器
+ * 生产者线程负责打乱样本顺序、组装批次和数据类型转换，写入一个预先分配好的环形缓冲区；
+ * 训练线程只从就绪队列取出已经组装好的批次，批次准备与 MultiLayerNetwork.fit 的计算重叠，训练过程中不再分配批次内存。
+ * <p>
+ * 缓冲区在下一次调用next时归还给生产者，返回的DataSet只在下一次调用next之前有效，需要保留时请自行dup。
+ * 预处理器在生产者线程上执行。
+ * <p>
+ * 批次在后台按构造时的批大小预先组装，因此 {@link #next(int)} 只接受与 {@link #batch()} 相同的大小，
+ * 其他大小抛出 UnsupportedOperationException；需要不同批大小时请另建一个迭代器。
+ */
+public class PrefetchingBatchIterator implements DataSetIterator {
+    public static final int DEFAULT_RING_SIZE = 3;
+
+    private static final Slot END = new Slot();
+
+    private final BatchSource source;
+    private final int batchSize;
+    private final boolean shuffle;
+    private final Random random;
+    private final DataType dataType;
+    private final int[] order;
+
+    private final BlockingQueue<Slot> freeSlots;
+    private final BlockingQueue<Slot> readySlots;
+    private final ExecutorService producer;
+    private Future<?> producerTask;
+    private AtomicBoolean cancelled;
+    private volatile RuntimeException producerError;
+
+    // 训练线程持有的批次：正在使用的和hasNext预先取出的
+    private Slot held;
+    private Slot lookahead;
+    private volatile DataSetPreProcessor preProcessor;
+
+    // 统计
+    private long waitNanos = 0;
+    private long consumedBatches = 0;
+    private final AtomicLong assemblyNanos = new AtomicLong();
+
+    /**
+     * @param ringSize 环形缓冲区中的批次数（至少2个：一个在训练中使用，其余预取）
+     * @param dataType 输出的数据类型，为null时与数据源一致
+     */
+    public PrefetchingBatchIterator(BatchSource source, int batchSize, boolean shuffle, long seed,
+                                    int ringSize, DataType dataType) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize必须大于0");
+        }
+        if (ringSize < 2) {
+            throw new IllegalArgumentException("环形缓冲区至少需要2个批次: " + ringSize);
+        }
+
+        this.source = source;
+        this.batchSize = batchSize;
+        this.shuffle = shuffle;
+        this.random = new Random(seed);
+        this.dataType = dataType != null ? dataType : source.dataType();
+
+        this.order = new int[source.numExamples()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        // 缓冲区一次性分配，批大小不足的最后一个批次使用前几行的视图
+        this.freeSlots = new ArrayBlockingQueue<>(ringSize);
+        this.readySlots = new ArrayBlockingQueue<>(ringSize + 1);
+        for (int i = 0; i < ringSize; i++) {
+            freeSlots.add(new Slot(source, batchSize, this.dataType));
+        }
+
+        this.producer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "batch-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        startEpoch();
+    }
+
+    /**
+     * 在二维特征矩阵上按需组装滑动窗口，只遍历 [fromWindow, toWindow) 范围
+     */
+    public static PrefetchingBatchIterator slidingWindows(INDArray features, INDArray labels, int timeSteps,
+                                                          int fromWindow, int toWindow, int batchSize,
+                                                          boolean shuffle, long seed, DataType dataType) {
+        return slidingWindows(features, labels, timeSteps,
+                SlidingWindowDataSetIterator.windowRange(features.size(0), timeSteps, fromWindow, toWindow),
+                batchSize, shuffle, seed, dataType);
+    }
+
+    /**
+     * 在二维特征矩阵上按需组装滑动窗口，只遍历给定下标的窗口
+     */
+    public static PrefetchingBatchIterator slidingWindows(INDArray features, INDArray labels, int timeSteps,
+                                                          int[] windows, int batchSize,
+                                                          boolean shuffle, long seed, DataType dataType) {
+        return new PrefetchingBatchIterator(new WindowSource(features, labels, timeSteps, windows),
+                batchSize, shuffle, seed, DEFAULT_RING_SIZE, dataType);
+    }
+
+    /**
+     * 按样本（第0维）聚集批次，适用于已经展开的窗口 [samples, timeSteps, features] 或二维样本矩阵，
+     * 只遍历给定下标的样本
+     */
+    public static PrefetchingBatchIterator examples(INDArray features, INDArray labels, int[] examples,
+                                                    int batchSize, boolean shuffle, long seed, DataType dataType) {
+        return new PrefetchingBatchIterator(new ExampleSource(features, labels, examples),
+                batchSize, shuffle, seed, DEFAULT_RING_SIZE, dataType);
+    }
+
+    /**
+     * 0..count-1 的样本下标
+     */
+    public static int[] allExamples(long count) {
+        int[] examples = new int[(int) count];
+        for (int i = 0; i < examples.length; i++) {
+            examples[i] = i;
+        }
+        return examples;
+    }
+
+    private void startEpoch() {
+        producerError = null;
+        cancelled = new AtomicBoolean(false);
+        AtomicBoolean epochCancelled = cancelled;
+        producerTask = producer.submit(() -> produce(epochCancelled));
+    }
+
+    /**
+     * 生产者：打乱顺序后依次组装一轮的全部批次，最后放入结束标记
+     */
+    private void produce(AtomicBoolean epochCancelled) {
+        try {
+            if (shuffle) {
+                for (int i = order.length - 1; i > 0; i--) {
+                    int j = random.nextInt(i + 1);
+                    int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                }
+            }
+
+            for (int start = 0; start < order.length; start += batchSize) {
+                Slot slot = null;
+                while (slot == null) {
+                    if (epochCancelled.get()) {
+                        return;
+                    }
+                    slot = freeSlots.poll(50, TimeUnit.MILLISECONDS);
+                }
+
+                long begin = System.nanoTime();
+                slot.fill(source, order, start, Math.min(batchSize, order.length - start), preProcessor);
+                assemblyNanos.addAndGet(System.nanoTime() - begin);
+
+                readySlots.put(slot);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            producerError = e;
+        } finally {
+            readySlots.offer(END);
+        }
+    }
+
+    /**
+     * 停止当前一轮的生产并收回所有缓冲区
+     */
+    private void stopEpoch() {
+        cancelled.set(true);
+        release(held);
+        release(lookahead);
+        held = null;
+        lookahead = null;
+
+        // 生产者可能阻塞在就绪队列上，边等待边收回缓冲区
+        while (!producerTask.isDone()) {
+            try {
+                release(readySlots.poll(10, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待预取线程结束时被中断", e);
+            }
+        }
+        Slot slot;
+        while ((slot = readySlots.poll()) != null) {
+            release(slot);
+        }
+    }
+
+    private void release(Slot slot) {
+        if (slot != null && slot != END) {
+            freeSlots.offer(slot);
+        }
+    }
+
+    private Slot takeReady() {
+        long begin = System.nanoTime();
+        Slot slot;
+        try {
+            slot = readySlots.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待批次时被中断", e);
+        }
+        waitNanos += System.nanoTime() - begin;
+
+        if (slot == END && producerError != null) {
+            throw new IllegalStateException("批次组装失败", producerError);
+        }
+        return slot;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (lookahead == null) {
+            lookahead = takeReady();
+        }
+        return lookahead != END;
+    }
+
+    @Override
+    public DataSet next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        // 上一个批次已经用完，归还给生产者
+        release(held);
+        held = lookahead;
+        lookahead = null;
+        consumedBatches++;
+        return held.dataSet;
+    }
+
+    /**
+     * 批次大小在构造时固定，num必须与batch()一致
+     */
+    @Override
+    public DataSet next(int num) {
+        if (num != batchSize) {
+            throw new UnsupportedOperationException("预取迭代器的批次大小固定为 " + batchSize + ": " + num);
+        }
+        return next();
+    }
+
+    @Override
+    public void reset() {
+        stopEpoch();
+        startEpoch();
+    }
+
+    /**
+     * 停止预取线程
+     */
+    public void shutdown() {
+        cancelled.set(true);
+        producer.shutdownNow();
+    }
+
+    /**
+     * 训练线程等待批次的累计时间（毫秒）
+     */
+    public double getWaitTimeMillis() {
+        return waitNanos / 1e6;
+    }
+
+    /**
+     * 生产者组装批次的累计时间（毫秒）
+     */
+    public double getAssemblyTimeMillis() {
+        return assemblyNanos.get() / 1e6;
+    }
+
+    /**
+     * 训练线程取走的批次数
+     */
+    public long getConsumedBatches() {
+        return consumedBatches;
+    }
+
+    /**
+     * 清零等待时间和组装时间统计
+     */
+    public void resetStatistics() {
+        waitNanos = 0;
+        consumedBatches = 0;
+        assemblyNanos.set(0);
+    }
+
+    public int numExamples() {
+        return order.length;
+    }
+
+    @Override
+    public int inputColumns() {
+        return source.inputColumns();
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return source.totalOutcomes();
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        // 已经在内部预取，再包一层AsyncDataSetIterator会提前取走复用中的缓冲区
+        return false;
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return null; // 回归问题，不需要类别标签
+    }
+
+    /**
+     * 批次数据源，由生产者线程调用
+     */
+    public interface BatchSource {
+        int numExamples();
+
+        int inputColumns();
+
+        int totalOutcomes();
+
+        DataType dataType();
+
+        /**
+         * 批次特征的形状，例如 [batch, timeSteps, features]
+         */
+        long[] featureShape(int batchSize);
+
+        long[] labelShape(int batchSize);
+
+        /**
+         * 把 indices[from, from+count) 对应的样本写入缓冲区的前count个样本，缓冲区的数据类型与 dataType() 一致
+         */
+        void fill(int[] indices, int from, int count, INDArray featureBuffer, INDArray labelBuffer);
+    }
+
+    /**
+     * 环形缓冲区中的一个批次
+     */
+    private static class Slot {
+        private final INDArray features;
+        private final INDArray labels;
+        // 数据源类型与输出类型不同时，先写入暂存区再转换
+        private final INDArray stagingFeatures;
+        private final INDArray stagingLabels;
+        private final int capacity;
+        private DataSet dataSet;
+
+        private Slot() {
+            features = null;
+            labels = null;
+            stagingFeatures = null;
+            stagingLabels = null;
+            capacity = 0;
+        }
+
+        Slot(BatchSource source, int batchSize, DataType dataType) {
+            capacity = batchSize;
+            features = Nd4j.create(dataType, source.featureShape(batchSize));
+            labels = Nd4j.create(dataType, source.labelShape(batchSize));
+            if (source.dataType() != dataType) {
+                stagingFeatures = Nd4j.create(source.dataType(), source.featureShape(batchSize));
+                stagingLabels = Nd4j.create(source.dataType(), source.labelShape(batchSize));
+            } else {
+                stagingFeatures = null;
+                stagingLabels = null;
+            }
+        }
+
+        void fill(BatchSource source, int[] order, int from, int count, DataSetPreProcessor preProcessor) {
+            if (stagingFeatures != null) {
+                source.fill(order, from, count, stagingFeatures, stagingLabels);
+                features.assign(stagingFeatures);
+                labels.assign(stagingLabels);
+            } else {
+                source.fill(order, from, count, features, labels);
+            }
+
+            dataSet = count == capacity
+                    ? new DataSet(features, labels)
+                    : new DataSet(leadingRows(features, count), leadingRows(labels, count));
+            if (preProcessor != null) {
+                preProcessor.preProcess(dataSet);
+            }
+        }
+
+        private static INDArray leadingRows(INDArray array, int rows) {
+            return array.rank() == 3
+                    ? array.get(NDArrayIndex.interval(0, rows), NDArrayIndex.all(), NDArrayIndex.all())
+                    : array.get(NDArrayIndex.interval(0, rows), NDArrayIndex.all());
+        }
+    }
+
+    /**
+     * 二维特征矩阵上的滑动窗口，输出 [batch, timeSteps, features]
+     */
+    static class WindowSource implements BatchSource {
+        private final INDArray features;
+        private final INDArray labels;
+        private final int timeSteps;
+        private final int[] windows;
+        private final int numFeatures;
+        private final int numLabels;
+        private final ByteBuffer featureBytes;
+        private final ByteBuffer labelBytes;
+        // 只在生产者线程上使用
+        private int[] windowBuffer = new int[0];
+
+        WindowSource(INDArray features, INDArray labels, int timeSteps, int[] windows) {
+            if (features.rank() != 2 || labels.rank() != 2 || features.size(0) != labels.size(0)) {
+                throw new IllegalArgumentException("特征和标签必须是行数相同的二维矩阵");
+            }
+            if (features.dataType() != labels.dataType()) {
+                throw new IllegalArgumentException("特征和标签的数据类型不一致: "
+                        + features.dataType() + " vs " + labels.dataType());
+            }
+            SlidingWindowDataSetIterator.checkWindows(windows,
+                    SlidingWindowDataSetIterator.windowCount(features.size(0), timeSteps));
+
+            this.features = NDArrayFiles.isContiguous(features) ? features : features.dup('c');
+            this.labels = NDArrayFiles.isContiguous(labels) ? labels : labels.dup('c');
+            this.timeSteps = timeSteps;
+            this.windows = windows.clone();
+            this.numFeatures = (int) features.size(1);
+            this.numLabels = (int) labels.size(1);
+            this.featureBytes = NDArrayFiles.byteView(this.features);
+            this.labelBytes = NDArrayFiles.byteView(this.labels);
+        }
+
+        @Override
+        public int numExamples() {
+            return windows.length;
+        }
+
+        @Override
+        public int inputColumns() {
+            return numFeatures;
+        }
+
+        @Override
+        public int totalOutcomes() {
+            return numLabels;
+        }
+
+        @Override
+        public DataType dataType() {
+            return features.dataType();
+        }
+
+        @Override
+        public long[] featureShape(int batchSize) {
+            return new long[]{batchSize, timeSteps, numFeatures};
+        }
+
+        @Override
+        public long[] labelShape(int batchSize) {
+            return new long[]{batchSize, numLabels};
+        }
+
+        @Override
+        public void fill(int[] indices, int from, int count, INDArray featureBuffer, INDArray labelBuffer) {
+            if (windowBuffer.length < count) {
+                windowBuffer = new int[count];
+            }
+            for (int i = 0; i < count; i++) {
+                windowBuffer[i] = windows[indices[from + i]];
+            }
+            SlidingWindowDataSetIterator.copyWindows(featureBytes, labelBytes, windowBuffer, 0, count, timeSteps,
+                    numFeatures, numLabels, features.dataType().width(), featureBuffer, labelBuffer);
+        }
+    }
+
+    /**
+     * 按样本聚集的数据源：每个样本在C顺序数组中是一段连续内存，按字节复制到批次缓冲区
+     */
+    static class ExampleSource implements BatchSource {
+        private final INDArray features;
+        private final INDArray labels;
+        private final int[] examples;
+        private final long[] featureExampleShape;
+        private final int numLabels;
+        private final long featureExampleBytes;
+        private final long labelExampleBytes;
+        private final ByteBuffer featureBytes;
+        private final ByteBuffer labelBytes;
+
+        ExampleSource(INDArray features, INDArray labels, int[] examples) {
+            if (features.size(0) != labels.size(0)) {
+                throw new IllegalArgumentException("Features and labels must have same number of examples");
+            }
+            if (features.rank() < 2 || labels.rank() != 2) {
+                throw new IllegalArgumentException("特征至少是二维的，标签必须是二维矩阵");
+            }
+            for (int example : examples) {
+                if (example < 0 || example >= features.size(0)) {
+                    throw new IllegalArgumentException(String.format(
+                            "样本下标越界: %d, 样本数: %d", example, features.size(0)));
+                }
+            }
+
+            INDArray labelData = labels.dataType() == features.dataType() ? labels : labels.castTo(features.dataType());
+            this.features = NDArrayFiles.isContiguous(features) ? features : features.dup('c');
+            this.labels = NDArrayFiles.isContiguous(labelData) ? labelData : labelData.dup('c');
+            this.examples = examples.clone();
+            this.featureExampleShape = Arrays.copyOfRange(features.shape(), 1, features.rank());
+            this.numLabels = (int) labels.size(1);
+
+            int width = features.dataType().width();
+            this.featureExampleBytes = features.length() / features.size(0) * width;
+            this.labelExampleBytes = (long) numLabels * width;
+            this.featureBytes = NDArrayFiles.byteView(this.features);
+            this.labelBytes = NDArrayFiles.byteView(this.labels);
+        }
+
+        @Override
+        public int numExamples() {
+            return examples.length;
+        }
+
+        @Override
+        public int inputColumns() {
+            return (int) featureExampleShape[featureExampleShape.length - 1];
+        }
+
+        @Override
+        public int totalOutcomes() {
+            return numLabels;
+        }
+
+        @Override
+        public DataType dataType() {
+            return features.dataType();
+        }
+
+        @Override
+        public long[] featureShape(int batchSize) {
+            long[] shape = new long[featureExampleShape.length + 1];
+            shape[0] = batchSize;
+            System.arraycopy(featureExampleShape, 0, shape, 1, featureExampleShape.length);
+            return shape;
+        }
+
+        @Override
+        public long[] labelShape(int batchSize) {
+            return new long[]{batchSize, numLabels};
+        }
+
+        @Override
+        public void fill(int[] indices, int from, int count, INDArray featureBuffer, INDArray labelBuffer) {
+            copyExamples(featureBytes, indices, from, count, featureExampleBytes, featureBuffer);
+            copyExamples(labelBytes, indices, from, count, labelExampleBytes, labelBuffer);
+        }
+
+        private void copyExamples(ByteBuffer source, int[] indices, int from, int count, long exampleBytes,
+                                  INDArray buffer) {
+            ByteBuffer target = buffer.data().asNio().order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer rows = source.duplicate();
+            for (int i = 0; i < count; i++) {
+                long start = examples[indices[from + i]] * exampleBytes;
+                rows.limit(Math.toIntExact(start + exampleBytes)).position(Math.toIntExact(start));
+                target.position(Math.toIntExact(i * exampleBytes));
+                target.put(rows);
+            }
+        }
+    }
+}
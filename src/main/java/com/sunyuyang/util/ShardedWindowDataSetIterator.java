@@ -0,0 +1,235 @@
+package com.sunyuyang.util;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.io.File;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 按顺序消费磁盘分片的滑动窗口迭代器
+ * 任意时刻内存中只有正在消费的分片和预读的下一个分片，数据集大小只受磁盘限制。
+ * 每个分片内部用 {@link SlidingWindowDataSetIterator} 组装窗口，批次不跨分片；
+ * 打乱时先打乱分片顺序，再打乱分片内的窗口顺序。
+ * <p>
+ * windowRanges 给出每个分片内参与遍历的窗口范围，用于按时间划分训练集和测试集（见 ShardedDataset.split），
+ * 范围为空的分片不会被读取。
+ */
+public class ShardedWindowDataSetIterator implements DataSetIterator {
+    private final List<File> shardFiles;
+    private final int timeSteps;
+    private final int batchSize;
+    private final int[][] windowRanges;
+    private final boolean shuffle;
+    private final Random random;
+    private final int[] shardOrder;
+
+    private final ExecutorService readAheadExecutor;
+    private Future<WindowShard> pendingShard;
+    private int[] pendingRange;
+    private int nextShard = 0;
+
+    private SlidingWindowDataSetIterator current;
+    private DataSetPreProcessor preProcessor;
+
+    /**
+     * @param windowRanges 每个分片一个 [fromWindow, toWindow)
+     */
+    public ShardedWindowDataSetIterator(List<File> shardFiles, int timeSteps, int[][] windowRanges,
+                                        int batchSize, boolean shuffle, long seed) {
+        if (shardFiles.isEmpty()) {
+            throw new IllegalArgumentException("分片列表不能为空");
+        }
+        if (windowRanges.length != shardFiles.size()) {
+            throw new IllegalArgumentException(String.format(
+                    "窗口范围数量 %d 与分片数量 %d 不一致", windowRanges.length, shardFiles.size()));
+        }
+        for (int[] range : windowRanges) {
+            if (range[0] < 0 || range[0] > range[1]) {
+                throw new IllegalArgumentException(String.format("窗口范围无效: [%d, %d)", range[0], range[1]));
+            }
+        }
+        if (timeSteps <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("timeSteps和batchSize必须大于0");
+        }
+
+        this.shardFiles = shardFiles;
+        this.timeSteps = timeSteps;
+        this.batchSize = batchSize;
+        this.windowRanges = windowRanges;
+        this.shuffle = shuffle;
+        this.random = new Random(seed);
+
+        this.shardOrder = new int[shardFiles.size()];
+        for (int i = 0; i < shardOrder.length; i++) {
+            shardOrder[i] = i;
+        }
+
+        this.readAheadExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shard-read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        start();
+    }
+
+    private void start() {
+        if (shuffle) {
+            for (int i = shardOrder.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int tmp = shardOrder[i];
+                shardOrder[i] = shardOrder[j];
+                shardOrder[j] = tmp;
+            }
+        }
+        nextShard = 0;
+        current = null;
+        scheduleNextShard();
+    }
+
+    /**
+     * 在后台线程读取下一个分片
+     */
+    private void scheduleNextShard() {
+        while (nextShard < shardOrder.length && isEmpty(windowRanges[shardOrder[nextShard]])) {
+            nextShard++;
+        }
+        if (nextShard >= shardOrder.length) {
+            pendingShard = null;
+            pendingRange = null;
+            return;
+        }
+        int index = shardOrder[nextShard++];
+        File file = shardFiles.get(index);
+        pendingRange = windowRanges[index];
+        pendingShard = readAheadExecutor.submit(() -> WindowShard.read(file));
+    }
+
+    private static boolean isEmpty(int[] range) {
+        return range[1] <= range[0];
+    }
+
+    /**
+     * 切换到下一个有窗口的分片，同时开始预读再下一个分片
+     */
+    private boolean advanceShard() {
+        if (pendingShard != null) {
+            WindowShard shard;
+            int[] range = pendingRange;
+            try {
+                shard = pendingShard.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("读取分片被中断", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("读取分片失败", e.getCause());
+            }
+            scheduleNextShard();
+
+            int windows = SlidingWindowDataSetIterator.windowCount(shard.getRows(), timeSteps);
+            if (range[1] > windows) {
+                throw new IllegalStateException(String.format(
+                        "窗口范围 [%d, %d) 超出分片的窗口数 %d", range[0], range[1], windows));
+            }
+            current = new SlidingWindowDataSetIterator(shard.getFeatures(), shard.getLabels(), timeSteps,
+                    range[0], range[1], batchSize, shuffle, random.nextLong());
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (current == null || !current.hasNext()) {
+            if (!advanceShard()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public DataSet next(int num) {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        DataSet dataSet = current.next(num);
+        if (preProcessor != null) {
+            preProcessor.preProcess(dataSet);
+        }
+        return dataSet;
+    }
+
+    @Override
+    public DataSet next() {
+        return next(batchSize);
+    }
+
+    @Override
+    public void reset() {
+        if (pendingShard != null) {
+            pendingShard.cancel(false);
+        }
+        start();
+    }
+
+    /**
+     * 停止预读线程
+     */
+    public void shutdown() {
+        readAheadExecutor.shutdownNow();
+    }
+
+    public int getTimeSteps() {
+        return timeSteps;
+    }
+
+    @Override
+    public int inputColumns() {
+        return hasNext() || current != null ? current.inputColumns() : 0;
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return hasNext() || current != null ? current.totalOutcomes() : 0;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        // 分片内的批次缓冲区是复用的，预读已经在分片级别完成
+        return false;
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return null; // 回归问题，不需要类别标签
+    }
+}
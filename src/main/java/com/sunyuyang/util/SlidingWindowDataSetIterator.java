@@ -0,0 +1,278 @@
+package com.sunyuyang.util;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * 按需组装滑动窗口的数据集迭代器
+ * 只持有二维的特征矩阵 [rows, features] 和标签矩阵 [rows, outputs]，不预先展开 [windows, timeSteps, features]。
+ * 第w个窗口是特征的第 w..w+timeSteps-1 行，对应标签为第 w+timeSteps-1 行。
+ * 每个minibatch从底层缓冲区按字节块复制到复用的批次缓冲区中，打乱顺序只打乱窗口下标。
+ * <p>
+ * 注意：返回的DataSet复用同一块缓冲区，只在下一次调用next之前有效，需要保留时请自行dup。
+ */
+public class SlidingWindowDataSetIterator implements DataSetIterator {
+    private final INDArray features;
+    private final INDArray labels;
+    private final int timeSteps;
+    private final int batchSize;
+    private final int numFeatures;
+    private final int numLabels;
+    private final int[] windowIndices;
+    private final boolean shuffle;
+    private final Random random;
+
+    // 特征和标签底层数据的只读视图（小端、C顺序）
+    private final ByteBuffer featureBytes;
+    private final ByteBuffer labelBytes;
+
+    private INDArray featureBuffer;
+    private INDArray labelBuffer;
+    private int cursor = 0;
+    private DataSetPreProcessor preProcessor;
+
+    /**
+     * 遍历全部窗口
+     */
+    public SlidingWindowDataSetIterator(INDArray features, INDArray labels, int timeSteps,
+                                        int batchSize, boolean shuffle, long seed) {
+        this(features, labels, timeSteps, 0, windowCount(features.size(0), timeSteps), batchSize, shuffle, seed);
+    }
+
+    /**
+     * 只遍历 [fromWindow, toWindow) 范围内的窗口，用于按时间划分训练集和测试集而不复制数据
+     */
+    public SlidingWindowDataSetIterator(INDArray features, INDArray labels, int timeSteps,
+                                        int fromWindow, int toWindow,
+                                        int batchSize, boolean shuffle, long seed) {
+        this(features, labels, timeSteps, windowRange(features.size(0), timeSteps, fromWindow, toWindow),
+                batchSize, shuffle, seed);
+    }
+
+    /**
+     * 只遍历给定下标的窗口，例如 {@link SplitGenerator.Split#trainWindows()}
+     */
+    public SlidingWindowDataSetIterator(INDArray features, INDArray labels, int timeSteps, int[] windows,
+                                        int batchSize, boolean shuffle, long seed) {
+        if (features.rank() != 2 || labels.rank() != 2) {
+            throw new IllegalArgumentException("特征和标签必须是二维矩阵");
+        }
+        if (features.size(0) != labels.size(0)) {
+            throw new IllegalArgumentException("Features and labels must have same number of rows");
+        }
+        if (features.dataType() != labels.dataType()) {
+            throw new IllegalArgumentException("特征和标签的数据类型不一致: "
+                    + features.dataType() + " vs " + labels.dataType());
+        }
+        if (timeSteps <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("timeSteps和batchSize必须大于0");
+        }
+        checkWindows(windows, windowCount(features.size(0), timeSteps));
+
+        this.features = NDArrayFiles.isContiguous(features) ? features : features.dup('c');
+        this.labels = NDArrayFiles.isContiguous(labels) ? labels : labels.dup('c');
+        this.timeSteps = timeSteps;
+        this.batchSize = batchSize;
+        this.numFeatures = (int) features.size(1);
+        this.numLabels = (int) labels.size(1);
+        this.shuffle = shuffle;
+        this.random = new Random(seed);
+
+        this.windowIndices = windows.clone();
+
+        this.featureBytes = this.features.length() == 0 ? null : NDArrayFiles.byteView(this.features);
+        this.labelBytes = this.labels.length() == 0 ? null : NDArrayFiles.byteView(this.labels);
+
+        if (shuffle) {
+            shuffleIndices();
+        }
+    }
+
+    /**
+     * [fromWindow, toWindow) 范围内的窗口下标
+     */
+    static int[] windowRange(long rows, int timeSteps, int fromWindow, int toWindow) {
+        int totalWindows = windowCount(rows, timeSteps);
+        if (fromWindow < 0 || toWindow > totalWindows || fromWindow > toWindow) {
+            throw new IllegalArgumentException(String.format(
+                    "窗口范围越界: [%d, %d), 总窗口数: %d", fromWindow, toWindow, totalWindows));
+        }
+        int[] windows = new int[toWindow - fromWindow];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = fromWindow + i;
+        }
+        return windows;
+    }
+
+    static void checkWindows(int[] windows, int totalWindows) {
+        for (int window : windows) {
+            if (window < 0 || window >= totalWindows) {
+                throw new IllegalArgumentException(String.format(
+                        "窗口下标越界: %d, 总窗口数: %d", window, totalWindows));
+            }
+        }
+    }
+
+    /**
+     * 给定行数可以构成的窗口数
+     */
+    public static int windowCount(long rows, int timeSteps) {
+        return (int) Math.max(0, rows - timeSteps + 1);
+    }
+
+    @Override
+    public DataSet next(int num) {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        int actualNum = Math.min(num, windowIndices.length - cursor);
+        ensureBuffers(actualNum);
+
+        copyWindows(featureBytes, labelBytes, windowIndices, cursor, actualNum, timeSteps,
+                numFeatures, numLabels, features.dataType().width(), featureBuffer, labelBuffer);
+
+        cursor += actualNum;
+
+        DataSet dataSet = new DataSet(featureBuffer, labelBuffer);
+
+        if (preProcessor != null) {
+            preProcessor.preProcess(dataSet);
+        }
+
+        return dataSet;
+    }
+
+    /**
+     * 把 windows[from, from+count) 对应的窗口和标签按字节复制到目标缓冲区的前count个样本
+     *
+     * @param featureSource [rows, numFeatures] 特征的底层字节（小端、C顺序）
+     * @param labelSource   [rows, numLabels] 标签的底层字节
+     * @param width         源数据和目标缓冲区的元素字节数
+     */
+    static void copyWindows(ByteBuffer featureSource, ByteBuffer labelSource, int[] windows, int from, int count,
+                            int timeSteps, int numFeatures, int numLabels, int width,
+                            INDArray featureBuffer, INDArray labelBuffer) {
+        // 偏移量按long计算，超出ByteBuffer的int寻址范围时抛出异常而不是回绕到错误的位置
+        long windowBytes = (long) timeSteps * numFeatures * width;
+        long featureRowBytes = (long) numFeatures * width;
+        long labelRowBytes = (long) numLabels * width;
+        ByteBuffer featureTarget = featureBuffer.data().asNio().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer labelTarget = labelBuffer.data().asNio().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer features = featureSource.duplicate();
+        ByteBuffer labels = labelSource.duplicate();
+
+        for (int i = 0; i < count; i++) {
+            int window = windows[from + i];
+
+            // 窗口在C顺序的二维矩阵中是一段连续内存
+            long featureStart = window * featureRowBytes;
+            features.limit(Math.toIntExact(featureStart + windowBytes)).position(Math.toIntExact(featureStart));
+            featureTarget.position(Math.toIntExact(i * windowBytes));
+            featureTarget.put(features);
+
+            long labelStart = (window + timeSteps - 1) * labelRowBytes;
+            labels.limit(Math.toIntExact(labelStart + labelRowBytes)).position(Math.toIntExact(labelStart));
+            labelTarget.position(Math.toIntExact(i * labelRowBytes));
+            labelTarget.put(labels);
+        }
+    }
+
+    /**
+     * 批次缓冲区只在批大小变化时（通常是每轮最后一个不完整的批次）重新分配
+     */
+    private void ensureBuffers(int size) {
+        if (featureBuffer == null || featureBuffer.size(0) != size) {
+            featureBuffer = Nd4j.create(features.dataType(), size, timeSteps, numFeatures);
+            labelBuffer = Nd4j.create(labels.dataType(), size, numLabels);
+        }
+    }
+
+    private void shuffleIndices() {
+        for (int i = windowIndices.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = windowIndices[i];
+            windowIndices[i] = windowIndices[j];
+            windowIndices[j] = tmp;
+        }
+    }
+
+    /**
+     * 窗口数量
+     */
+    public int numExamples() {
+        return windowIndices.length;
+    }
+
+    public int getTimeSteps() {
+        return timeSteps;
+    }
+
+    @Override
+    public int inputColumns() {
+        return numFeatures;
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return numLabels;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        // 批次缓冲区是复用的，不能被异步预取线程提前填充
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        cursor = 0;
+        if (shuffle) {
+            shuffleIndices();
+        }
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return null; // 回归问题，不需要类别标签
+    }
+
+    @Override
+    public boolean hasNext() {
+        return cursor < windowIndices.length;
+    }
+
+    @Override
+    public DataSet next() {
+        return next(batchSize);
+    }
+}
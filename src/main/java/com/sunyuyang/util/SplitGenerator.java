@@ -0,0 +1,221 @@
+package com.sunyuyang.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 按窗口下标划分训练集和测试集
+ * 所有划分都只是同一份窗口数据集上的下标区间，不复制数据，多折验证不增加内存。
+ * <p>
+ * 第w个窗口使用第 w..w+timeSteps-1 行的特征，标签覆盖到第 w+timeSteps-1+predictSteps 行的收盘价，
+ * 相邻窗口的信息区间互相重叠。为避免测试集的信息泄漏到训练集，测试区间前后各清除 purgeWindows 个训练窗口，
+ * 测试区间之后还可以再留出 embargo 个窗口。
+ */
+public class SplitGenerator {
+    private final int totalWindows;
+    private final int purgeWindows;
+
+    /**
+     * @param totalWindows 窗口总数
+     * @param purgeWindows 测试区间两侧清除的窗口数，通常为 {@link #purgeWindowsFor(int, int)}
+     */
+    public SplitGenerator(int totalWindows, int purgeWindows) {
+        if (totalWindows <= 0 || purgeWindows < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "参数无效: totalWindows=%d, purgeWindows=%d", totalWindows, purgeWindows));
+        }
+        this.totalWindows = totalWindows;
+        this.purgeWindows = purgeWindows;
+    }
+
+    /**
+     * 窗口与标签的信息区间长度减一：两个窗口下标相差不足该值时信息区间重叠
+     */
+    public static int purgeWindowsFor(int timeSteps, int predictSteps) {
+        return timeSteps - 1 + predictSteps;
+    }
+
+    /**
+     * 单次按时间顺序划分：前 trainRatio 比例的窗口训练，最后的窗口测试，中间清除重叠部分
+     */
+    public Split holdout(double trainRatio) {
+        if (trainRatio <= 0 || trainRatio >= 1) {
+            throw new IllegalArgumentException("训练集比例必须在 (0, 1) 之间: " + trainRatio);
+        }
+        int testFrom = (int) (totalWindows * trainRatio);
+        int trainTo = testFrom - purgeWindows;
+        if (trainTo <= 0 || testFrom >= totalWindows) {
+            throw new IllegalArgumentException(String.format(
+                    "窗口数 %d 不足以按比例 %.2f 划分（清除 %d 个窗口）", totalWindows, trainRatio, purgeWindows));
+        }
+        return new Split(0, new int[][]{{0, trainTo}}, testFrom, totalWindows);
+    }
+
+    /**
+     * 滚动窗口：固定长度的训练区间，之后紧跟测试区间，每次整体向后移动一个测试区间
+     */
+    public List<Split> walkForward(int trainWindows, int testWindows) {
+        checkPositive(trainWindows, testWindows);
+        List<Split> splits = new ArrayList<>();
+        for (int testFrom = trainWindows + purgeWindows; testFrom + testWindows <= totalWindows; testFrom += testWindows) {
+            int trainTo = testFrom - purgeWindows;
+            splits.add(new Split(splits.size(), new int[][]{{trainTo - trainWindows, trainTo}},
+                    testFrom, testFrom + testWindows));
+        }
+        checkNotEmpty(splits);
+        return splits;
+    }
+
+    /**
+     * 扩展窗口：训练区间始终从第0个窗口开始，随测试区间向后延伸
+     *
+     * @param initialTrainWindows 第一折的训练窗口数
+     */
+    public List<Split> expandingWindow(int initialTrainWindows, int testWindows) {
+        checkPositive(initialTrainWindows, testWindows);
+        List<Split> splits = new ArrayList<>();
+        for (int testFrom = initialTrainWindows + purgeWindows; testFrom + testWindows <= totalWindows;
+             testFrom += testWindows) {
+            splits.add(new Split(splits.size(), new int[][]{{0, testFrom - purgeWindows}},
+                    testFrom, testFrom + testWindows));
+        }
+        checkNotEmpty(splits);
+        return splits;
+    }
+
+    /**
+     * 清除和禁入的K折：按时间切成连续的K段，每段轮流作测试集，其余窗口训练；
+     * 测试段前后清除重叠窗口，测试段之后再留出 embargoWindows 个窗口
+     */
+    public List<Split> purgedKFold(int folds, int embargoWindows) {
+        if (folds < 2 || folds > totalWindows) {
+            throw new IllegalArgumentException("折数无效: " + folds);
+        }
+        if (embargoWindows < 0) {
+            throw new IllegalArgumentException("embargoWindows不能为负数: " + embargoWindows);
+        }
+
+        List<Split> splits = new ArrayList<>(folds);
+        for (int fold = 0; fold < folds; fold++) {
+            int testFrom = (int) ((long) totalWindows * fold / folds);
+            int testTo = (int) ((long) totalWindows * (fold + 1) / folds);
+
+            List<int[]> trainRanges = new ArrayList<>(2);
+            int beforeTo = testFrom - purgeWindows;
+            if (beforeTo > 0) {
+                trainRanges.add(new int[]{0, beforeTo});
+            }
+            int afterFrom = testTo + purgeWindows + embargoWindows;
+            if (afterFrom < totalWindows) {
+                trainRanges.add(new int[]{afterFrom, totalWindows});
+            }
+            if (trainRanges.isEmpty()) {
+                throw new IllegalArgumentException(String.format(
+                        "第 %d 折清除后没有训练窗口，请减少折数或清除窗口数", fold));
+            }
+            splits.add(new Split(fold, trainRanges.toArray(new int[0][]), testFrom, testTo));
+        }
+        return splits;
+    }
+
+    private static void checkPositive(int trainWindows, int testWindows) {
+        if (trainWindows <= 0 || testWindows <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "训练和测试窗口数必须大于0: train=%d, test=%d", trainWindows, testWindows));
+        }
+    }
+
+    private void checkNotEmpty(List<Split> splits) {
+        if (splits.isEmpty()) {
+            throw new IllegalArgumentException("窗口数 " + totalWindows + " 不足以构造任何一折");
+        }
+    }
+
+    public int getTotalWindows() {
+        return totalWindows;
+    }
+
+    public int getPurgeWindows() {
+        return purgeWindows;
+    }
+
+    /**
+     * 一折划分：若干个训练区间和一个测试区间，区间都是左闭右开的窗口下标
+     */
+    public static class Split {
+        private final int index;
+        private final int[][] trainRanges;
+        private final int testFrom;
+        private final int testTo;
+
+        public Split(int index, int[][] trainRanges, int testFrom, int testTo) {
+            this.index = index;
+            this.trainRanges = trainRanges;
+            this.testFrom = testFrom;
+            this.testTo = testTo;
+        }
+
+        /**
+         * 训练窗口下标（按时间顺序）
+         */
+        public int[] trainWindows() {
+            int[] windows = new int[getTrainSize()];
+            int position = 0;
+            for (int[] range : trainRanges) {
+                for (int window = range[0]; window < range[1]; window++) {
+                    windows[position++] = window;
+                }
+            }
+            return windows;
+        }
+
+        /**
+         * 测试窗口下标（按时间顺序）
+         */
+        public int[] testWindows() {
+            int[] windows = new int[getTestSize()];
+            for (int i = 0; i < windows.length; i++) {
+                windows[i] = testFrom + i;
+            }
+            return windows;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int[][] getTrainRanges() {
+            return trainRanges;
+        }
+
+        public int getTestFrom() {
+            return testFrom;
+        }
+
+        public int getTestTo() {
+            return testTo;
+        }
+
+        public int getTrainSize() {
+            int size = 0;
+            for (int[] range : trainRanges) {
+                size += range[1] - range[0];
+            }
+            return size;
+        }
+
+        public int getTestSize() {
+            return testTo - testFrom;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder ranges = new StringBuilder();
+            for (int[] range : trainRanges) {
+                ranges.append(Arrays.toString(range));
+            }
+            return String.format("Split{%d, train=%s, test=[%d, %d)}", index, ranges, testFrom, testTo);
+        }
+    }
+}
@@ -1,37 +1,22 @@
 package com.sunyuyang.util;
 
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.DataSet;
-import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
-import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.indexing.NDArrayIndex;
 
-import java.util.List;
-import java.util.NoSuchElementException;
-
-public class StockPriceIterator implements DataSetIterator {
-    private final INDArray features;
-    private final INDArray labels;
-    private final int batchSize;
-    private final int totalExamples;
-    private final int numFeatures;
-    private final int numLabels;
-
-    private int cursor = 0;
-    private DataSetPreProcessor preProcessor;
+/**
+ * 二维样本矩阵 [examples, inputs] 的批次迭代器
+ * 批次由后台线程按行复制到预先分配的缓冲区中，见 {@link PrefetchingBatchIterator}。
+ */
+public class StockPriceIterator extends PrefetchingBatchIterator {
 
     public StockPriceIterator(INDArray features, INDArray labels, int batchSize) {
-        if (features.size(0) != labels.size(0)) {
-            throw new IllegalArgumentException("Features and labels must have same number of examples");
-        }
+        this(features, labels, batchSize, false, 0);
+    }
 
-        this.features = features;
-        this.labels = labels;
-        this.batchSize = batchSize;
-        this.totalExamples = (int) features.size(0);
-        this.numFeatures = (int) features.size(1);
-        this.numLabels = (int) labels.size(1);
+    public StockPriceIterator(INDArray features, INDArray labels, int batchSize, boolean shuffle, long seed) {
+        super(new ExampleSource(features, labels, allExamples(features.size(0))),
+                batchSize, shuffle, seed, DEFAULT_RING_SIZE, null);
     }
 
     /**
@@ -70,82 +55,4 @@ public class StockPriceIterator implements DataSetIterator {
         return new StockPriceIterator(features.reshape(totalSamples, timeSteps * numFeatures),
                 labels, batchSize);
     }
-
-    @Override
-    public DataSet next(int num) {
-        if (cursor >= totalExamples) {
-            throw new NoSuchElementException();
-        }
-
-        int actualNum = Math.min(num, totalExamples - cursor);
-        int end = cursor + actualNum;
-
-        INDArray featureBatch = features.get(NDArrayIndex.interval(cursor, end), NDArrayIndex.all());
-        INDArray labelBatch = labels.get(NDArrayIndex.interval(cursor, end), NDArrayIndex.all());
-
-        cursor = end;
-
-        DataSet dataSet = new DataSet(featureBatch, labelBatch);
-
-        if (preProcessor != null) {
-            preProcessor.preProcess(dataSet);
-        }
-
-        return dataSet;
-    }
-
-    @Override
-    public int inputColumns() {
-        return numFeatures;
-    }
-
-    @Override
-    public int totalOutcomes() {
-        return numLabels;
-    }
-
-    @Override
-    public boolean resetSupported() {
-        return true;
-    }
-
-    @Override
-    public boolean asyncSupported() {
-        return true;
-    }
-
-    @Override
-    public void reset() {
-        cursor = 0;
-    }
-
-    @Override
-    public int batch() {
-        return batchSize;
-    }
-
-    @Override
-    public DataSetPreProcessor getPreProcessor() {
-        return preProcessor;
-    }
-
-    @Override
-    public void setPreProcessor(DataSetPreProcessor preProcessor) {
-        this.preProcessor = preProcessor;
-    }
-
-    @Override
-    public List<String> getLabels() {
-        return null; // 回归问题，不需要类别标签
-    }
-
-    @Override
-    public boolean hasNext() {
-        return cursor < totalExamples;
-    }
-
-    @Override
-    public DataSet next() {
-        return next(batchSize);
-    }
 }
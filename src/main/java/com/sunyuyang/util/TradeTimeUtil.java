@@ -0,0 +1,116 @@
+package com.sunyuyang.util;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * 交易时间解析工具
+ * K线的tradeTime可能是 "yyyy-MM-dd HH:mm:ss"、"yyyy-MM-dd HH:mm" 或日线的 "yyyy-MM-dd"
+ */
+public class TradeTimeUtil {
+    private static final ZoneOffset MARKET_OFFSET = ZoneOffset.ofHours(8);
+    private static final DateTimeFormatter SECOND_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter MINUTE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    // 日线及以上周期的K线在收盘后才完整
+    private static final LocalTime MARKET_CLOSE = LocalTime.of(15, 0);
+
+    private TradeTimeUtil() {
+    }
+
+    /**
+     * 解析交易时间，日期格式视为当日收盘时刻
+     */
+    public static LocalDateTime parse(String tradeTime) {
+        String text = tradeTime.trim().replace('T', ' ');
+        if (text.length() == 10) {
+            return LocalDate.parse(text).atTime(MARKET_CLOSE);
+        }
+        if (text.length() == 16) {
+            return LocalDateTime.parse(text, MINUTE_FORMATTER);
+        }
+        // 去掉可能存在的毫秒部分，例如 JDBC 返回的 "2024-01-02 10:30:00.0"
+        if (text.length() > 19) {
+            text = text.substring(0, 19);
+        }
+        return LocalDateTime.parse(text, SECOND_FORMATTER);
+    }
+
+    /**
+     * 转换为epoch秒（北京时间）
+     * 标准格式直接按字符解析，不创建日期对象；大批量K线对齐时这是主要开销
+     */
+    public static long toEpochSecond(String tradeTime) {
+        int length = tradeTime.length();
+        if ((length == 10 || length == 16 || length >= 19) && tradeTime.charAt(4) == '-' && tradeTime.charAt(7) == '-') {
+            int year = digits(tradeTime, 0, 4);
+            int month = digits(tradeTime, 5, 2);
+            int day = digits(tradeTime, 8, 2);
+            int hour = MARKET_CLOSE.getHour();
+            int minute = MARKET_CLOSE.getMinute();
+            int second = 0;
+            if (length > 10) {
+                hour = digits(tradeTime, 11, 2);
+                minute = digits(tradeTime, 14, 2);
+                second = length >= 19 ? digits(tradeTime, 17, 2) : 0;
+            }
+            if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 31
+                    && hour >= 0 && minute >= 0 && second >= 0) {
+                return daysFromCivil(year, month, day) * 86400L
+                        + hour * 3600L + minute * 60L + second - MARKET_OFFSET.getTotalSeconds();
+            }
+        }
+        return parse(tradeTime).toEpochSecond(MARKET_OFFSET);
+    }
+
+    /**
+     * K线日期当日收盘时刻的epoch秒，忽略时间部分
+     * 日线及以上周期的K线在收盘后才完整，数据库DATETIME列返回的 "yyyy-MM-dd 00:00:00" 也按当日收盘计
+     */
+    public static long toSessionCloseEpochSecond(String tradeTime) {
+        return toEpochSecond(tradeTime.trim().substring(0, 10));
+    }
+
+    /**
+     * 转换为epoch秒（北京时间）
+     */
+    public static long toEpochSecond(LocalDateTime time) {
+        return time.toEpochSecond(MARKET_OFFSET);
+    }
+
+    /**
+     * epoch秒转换为北京时间
+     */
+    public static LocalDateTime fromEpochSecond(long epochSecond) {
+        return LocalDateTime.ofEpochSecond(epochSecond, 0, MARKET_OFFSET);
+    }
+
+    /**
+     * 解析固定位置的数字，遇到非数字返回-1
+     */
+    private static int digits(String text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * 公历日期到1970-01-01的天数
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,170 @@
+package com.sunyuyang.util;
+
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 滑动窗口分片文件
+ * 一个分片是同一只股票连续的一段行：[rows, features] 的特征和逐行对齐的 [rows, outputs] 标签，
+ * 窗口只在分片内部构造，不会跨越股票边界。
+ * 文件格式：128字节小端头部（魔数、版本、列数、行数、数据类型、股票代码、标志），随后依次是特征和标签的原始数据；
+ * 格式版本2可以在最后附带每行K线的时间（纪元秒，INT64），用于在全部股票上按同一时间点划分训练集和测试集。
+ * 版本1的分片没有行时间，仍可读取。
+ */
+public class WindowShard {
+    private static final int MAGIC = 0x53505348; // "SPSH"
+    private static final int FORMAT_VERSION = 2;
+    private static final int FLAG_TIMES = 1;
+    private static final int HEADER_SIZE = 128;
+    private static final int TEXT_FIELD_SIZE = 32;
+
+    private final String symbol;
+    private final INDArray features;
+    private final INDArray labels;
+    private final INDArray times;
+
+    public WindowShard(String symbol, INDArray features, INDArray labels) {
+        this(symbol, features, labels, null);
+    }
+
+    /**
+     * @param times 每行K线的时间（纪元秒），[rows, 1] 的INT64数组，可为null
+     */
+    public WindowShard(String symbol, INDArray features, INDArray labels, INDArray times) {
+        if (features.rank() != 2 || labels.rank() != 2 || features.size(0) != labels.size(0)) {
+            throw new IllegalArgumentException("特征和标签必须是行数相同的二维矩阵");
+        }
+        if (times != null && times.length() != features.size(0)) {
+            throw new IllegalArgumentException(String.format(
+                    "行时间数量 %d 与行数 %d 不一致", times.length(), features.size(0)));
+        }
+        this.symbol = symbol;
+        this.features = features;
+        this.labels = labels;
+        this.times = times == null || times.dataType() == DataType.INT64 ? times : times.castTo(DataType.INT64);
+    }
+
+    /**
+     * 写入分片，先写临时文件再替换
+     */
+    public void write(File file) throws IOException {
+        INDArray labelData = labels.dataType() == features.dataType() ? labels : labels.castTo(features.dataType());
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.putInt((int) features.size(1));
+            header.putInt((int) labelData.size(1));
+            header.putLong(features.size(0));
+            header.put(textField(features.dataType().name()));
+            header.put(textField(symbol));
+            header.putInt(times != null ? FLAG_TIMES : 0);
+            header.position(0);
+            channel.write(header);
+
+            NDArrayFiles.writeData(channel, features);
+            NDArrayFiles.writeData(channel, labelData);
+            if (times != null) {
+                NDArrayFiles.writeData(channel, times);
+            }
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 读取分片，特征和标签整段批量读取
+     */
+    public static WindowShard read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("分片文件不完整: " + file);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+
+            if (header.getInt() != MAGIC) {
+                throw new IOException("不是分片文件: " + file);
+            }
+            int version = header.getInt();
+            if (version < 1 || version > FORMAT_VERSION) {
+                throw new IOException("不支持的分片版本: " + version);
+            }
+            int featureColumns = header.getInt();
+            int labelColumns = header.getInt();
+            long rows = header.getLong();
+            DataType dataType = DataType.valueOf(readTextField(header));
+            String symbol = readTextField(header);
+            boolean hasTimes = version >= 2 && (header.getInt() & FLAG_TIMES) != 0;
+
+            long featuresOffset = HEADER_SIZE;
+            long labelsOffset = featuresOffset + rows * featureColumns * dataType.width();
+            long timesOffset = labelsOffset + rows * labelColumns * dataType.width();
+            long end = timesOffset + (hasTimes ? rows * DataType.INT64.width() : 0);
+            if (channel.size() < end) {
+                throw new IOException("分片文件不完整: " + file);
+            }
+
+            INDArray features = NDArrayFiles.read(channel, featuresOffset, dataType, rows, featureColumns);
+            INDArray labels = NDArrayFiles.read(channel, labelsOffset, dataType, rows, labelColumns);
+            INDArray times = hasTimes ? NDArrayFiles.read(channel, timesOffset, DataType.INT64, rows, 1) : null;
+            return new WindowShard(symbol, features, labels, times);
+        }
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public INDArray getFeatures() {
+        return features;
+    }
+
+    public INDArray getLabels() {
+        return labels;
+    }
+
+    /**
+     * 每行K线的时间（纪元秒），版本1的分片为null
+     */
+    public INDArray getTimes() {
+        return times;
+    }
+
+    public long getRows() {
+        return features.size(0);
+    }
+
+    private static ByteBuffer textField(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer field = ByteBuffer.allocate(TEXT_FIELD_SIZE);
+        field.put(bytes, 0, Math.min(bytes.length, TEXT_FIELD_SIZE));
+        field.position(0);
+        return field;
+    }
+
+    private static String readTextField(ByteBuffer buffer) {
+        byte[] bytes = new byte[TEXT_FIELD_SIZE];
+        buffer.get(bytes);
+        int length = 0;
+        while (length < bytes.length && bytes[length] != 0) {
+            length++;
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+}
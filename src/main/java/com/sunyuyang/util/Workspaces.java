@@ -0,0 +1,65 @@
+package com.sunyuyang.util;
+
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.memory.conf.WorkspaceConfiguration;
+import org.nd4j.linalg.api.memory.enums.AllocationPolicy;
+import org.nd4j.linalg.api.memory.enums.LearningPolicy;
+import org.nd4j.linalg.api.memory.enums.SpillPolicy;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * 循环体内使用的ND4J工作区
+ * 第一次循环记录所需内存并分配一整块，之后每次进入工作区都从头复用这块内存，
+ * 循环内的临时数组（网络输出、指标计算的中间结果）不再逐个分配和回收堆外内存。
+ * 工作区按线程隔离，同一线程上同名工作区复用同一块内存。
+ * <p>
+ * 工作区内创建的数组在工作区关闭后失效，需要带出工作区的结果必须先复制到工作区外的数组或转成Java值。
+ */
+public final class Workspaces {
+    public static final String EVALUATION = "SP_EVALUATION";
+    public static final String METRICS = "SP_METRICS";
+    public static final String INFERENCE = "SP_INFERENCE";
+
+    private static final WorkspaceConfiguration LOOP_CONFIG = WorkspaceConfiguration.builder()
+            .initialSize(0)
+            .overallocationLimit(0.2)
+            .policyAllocation(AllocationPolicy.OVERALLOCATE)
+            .policyLearning(LearningPolicy.FIRST_LOOP)
+            .policySpill(SpillPolicy.REALLOCATE)
+            .build();
+
+    private Workspaces() {
+    }
+
+    /**
+     * 打开并激活当前线程上的工作区，用 try-with-resources 关闭
+     */
+    public static MemoryWorkspace open(String id) {
+        return Nd4j.getWorkspaceManager().getAndActivateWorkspace(LOOP_CONFIG, id);
+    }
+
+    /**
+     * 为网络推理打开工作区；网络关闭了推理工作区（WorkspaceMode.NONE）时DL4J不允许在任何工作区内推理，
+     * 此时返回一个不做任何事的作用域，数组照常分配
+     */
+    public static MemoryWorkspace openFor(MultiLayerNetwork network, String id) {
+        return inferenceWorkspaceEnabled(network) ? open(id) : Nd4j.getWorkspaceManager().scopeOutOfWorkspaces();
+    }
+
+    /**
+     * 推理模式的网络输出，网络启用了推理工作区时输出直接写入 {@link #openFor} 打开的工作区，否则返回普通数组
+     */
+    public static INDArray output(MultiLayerNetwork network, INDArray input, MemoryWorkspace workspace) {
+        if (inferenceWorkspaceEnabled(network)) {
+            return network.output(input, false, null, null, workspace);
+        }
+        return network.output(input, false);
+    }
+
+    private static boolean inferenceWorkspaceEnabled(MultiLayerNetwork network) {
+        return network.getLayerWiseConfigurations().getInferenceWorkspaceMode() == WorkspaceMode.ENABLED;
+    }
+}